@@ -0,0 +1,1108 @@
+package java.util;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import jdk.internal.access.SharedSecrets;
+
+/**
+ * 按插入顺序紧凑存放的HashMap（CPython 3.6以后dict的做法）：key、value和hash按插入顺序依次放在三个平行数组里，
+ * 另外有一个只存int下标的开放寻址索引表负责查找
+ * 适合遍历远多于修改的小Map（例如请求属性），遍历就是按顺序扫一遍数组，不会像HashMap那样把空桶也走一遍，
+ * 也没有LinkedHashMap每个Entry的before/after指针
+ *
+ * 索引表的槽里存的是元素在数组里的下标+1，0表示空槽，冲突用线性探测解决，删除时按Knuth的算法把后面的槽往前挪，不留墓碑
+ * 删除元素只把数组里的位置置为null，后面的元素不动；数组用满时按存活元素个数重建：
+ * 新数组至少能放下存活元素个数的1.5倍，索引表的加载因子不超过0.75，存活的元素按原来的顺序挪到新数组的最前面，
+ * 删除得多时重建后的表反而会变小
+ *
+ * 和LinkedHashMap的区别：
+ * 1. 只有插入顺序，没有访问顺序，也没有removeEldestEntry
+ * 2. 放入已经存在的key不改变它的位置，删除以后再放入会排到最后
+ * 3. entrySet返回的Entry是现做的视图，重建后会按key重新定位
+ * 支持null key和null value，不是线程安全的，迭代时修改会抛出ConcurrentModificationException
+ */
+public class CompactHashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Cloneable, Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = 6830195937453728157L;
+    static final int MINIMUM_INDEX_CAPACITY = 8;                        // 索引表最少8个槽，数组能放6个元素
+    static final int MAXIMUM_INDEX_CAPACITY = 1 << 30;                  // 索引表最大槽数2的30次方
+    static final Object NULL_KEY = new Object();                        // null key在keys数组里的占位，keys里的null表示已删除
+    transient Object[] keys;                                            // key数组，按插入顺序排列
+    transient Object[] vals;                                            // value数组，和keys一一对应
+    transient int[] hashes;                                             // 每个key的hash值，重建索引时不用再调用hashCode
+    transient int[] index;                                              // 索引表，存元素下标+1，长度是2的幂
+    transient Set<Entry<K, V>> entrySet;                                // entry视图
+    transient int used;                                                 // 数组里用过的位置数，包括已删除的
+    transient int size;                                                 // 元素个数
+    transient int modCount;                                             // 并发修改异常计数
+    transient int initialCapacity;                                      // 表还没分配时，第一次分配要能放下的元素个数
+
+    /**
+     * 扰动函数，和FlatHashMap一样乘以黄金分割数再把高16位异或到低16位，开放寻址对聚集很敏感
+     */
+    static final int hash(Object key) {
+        int h;
+        return (key == null) ? 0 : (h = key.hashCode() * 0x9E3779B9) ^ (h >>> 16);
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    static Object unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : key;
+    }
+
+    /**
+     * 能放下n个元素的索引表槽数：数组长度是cap - cap / 3，索引表的加载因子不超过0.75
+     */
+    static int indexCapacityFor(int n) {
+        long c = (long) n + (n >>> 1) + 1;
+        return (c >= MAXIMUM_INDEX_CAPACITY) ? MAXIMUM_INDEX_CAPACITY :
+                Math.max(MINIMUM_INDEX_CAPACITY, HashMap.tableSizeFor((int) c));
+    }
+
+    public CompactHashMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        this.initialCapacity = initialCapacity;
+    }
+
+    public CompactHashMap() {
+    }
+
+    public CompactHashMap(Map<? extends K, ? extends V> m) {
+        putMapEntries(m);
+    }
+
+    /**
+     * 批量放入，表还没分配时按m的大小分配，避免中途重建
+     */
+    final void putMapEntries(Map<? extends K, ? extends V> m) {
+        int s = m.size();
+        if (s > 0) {
+            if (keys == null && s > initialCapacity)
+                initialCapacity = s;
+            for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+                K key = e.getKey();
+                putVal(hash(key), maskNull(key), e.getValue(), false);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 查找key在数组里的下标，没有返回-1，索引表里只有存活的元素
+     */
+    final int find(int hash, Object key) {
+        int[] idx;
+        if ((idx = index) != null) {
+            Object[] ks = keys;
+            int[] hs = hashes;
+            int mask = idx.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int e;
+                Object k;
+                if ((e = idx[i]) == 0)
+                    return -1;
+                if ((k = ks[--e]) == key || (hs[e] == hash && key.equals(k)))
+                    return e;
+            }
+        }
+        return -1;
+    }
+
+    final int indexOf(Object key) {
+        return find(hash(key), maskNull(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int e;
+        return ((e = indexOf(key)) < 0) ? null : (V) vals[e];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        int e;
+        return ((e = indexOf(key)) < 0) ? defaultValue : (V) vals[e];
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        Object[] ks, vs;
+        if (size > 0 && (ks = keys) != null) {
+            vs = vals;
+            for (int e = 0, n = used; e < n; ++e) {
+                if (ks[e] != null && Objects.equals(value, vs[e]))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putVal(hash(key), maskNull(key), value, false);
+    }
+
+    /**
+     * 放入一个映射，key已经做过maskNull；key不存在时追加到数组末尾，数组满了先重建
+     */
+    @SuppressWarnings("unchecked")
+    final V putVal(int hash, Object key, V value, boolean onlyIfAbsent) {
+        int e;
+        if ((e = find(hash, key)) >= 0) {
+            V oldValue = (V) vals[e];
+            if (!onlyIfAbsent || oldValue == null)
+                vals[e] = value;
+            return oldValue;
+        }
+        if (keys == null || used == keys.length)
+            rebuild(size + 1);
+        e = used++;
+        keys[e] = key;
+        vals[e] = value;
+        hashes[e] = hash;
+        int[] idx = index;
+        int mask = idx.length - 1, i = hash & mask;
+        while (idx[i] != 0)
+            i = (i + 1) & mask;
+        idx[i] = e + 1;
+        ++modCount;
+        ++size;
+        return null;
+    }
+
+    /**
+     * 按至少能放下minCapacity的1.5倍个元素的大小重新分配，存活的元素按原顺序挪到新数组前面，重建索引表
+     * 第一次分配时按initialCapacity分配
+     */
+    final void rebuild(int minCapacity) {
+        Object[] oldKeys = keys, oldVals = vals;
+        int[] oldHashes = hashes;
+        int cap = (oldKeys == null) ? indexCapacityFor(Math.max(initialCapacity, minCapacity)) :
+                indexCapacityFor((int) Math.min((long) minCapacity + (minCapacity >>> 1), Integer.MAX_VALUE));
+        int n = cap - cap / 3;
+        if (n < minCapacity)
+            throw new IllegalStateException("CompactHashMap is full");
+        Object[] ks = new Object[n], vs = new Object[n];
+        int[] hs = new int[n], idx = new int[cap];
+        int mask = cap - 1, e = 0;
+        if (oldKeys != null) {
+            for (int j = 0, u = used; j < u; ++j) {
+                Object k;
+                if ((k = oldKeys[j]) != null) {
+                    int h = oldHashes[j], i = h & mask;
+                    ks[e] = k;
+                    vs[e] = oldVals[j];
+                    hs[e] = h;
+                    while (idx[i] != 0)
+                        i = (i + 1) & mask;
+                    idx[i] = ++e;
+                }
+            }
+        }
+        keys = ks;
+        vals = vs;
+        hashes = hs;
+        index = idx;
+        used = e;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        putMapEntries(m);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int e;
+        if ((e = indexOf(key)) < 0)
+            return null;
+        V oldValue = (V) vals[e];
+        removeAt(e);
+        return oldValue;
+    }
+
+    /**
+     * 删除数组里第e个元素：数组里只置为null，索引表里删掉对应的槽
+     * 索引表按Knuth的线性探测删除算法，把后面本该在更前面的槽依次挪到空位上
+     */
+    final void removeAt(int e) {
+        Object[] ks = keys;
+        int[] idx = index, hs = hashes;
+        int mask = idx.length - 1, i = hs[e] & mask;
+        while (idx[i] != e + 1)
+            i = (i + 1) & mask;
+        for (int j = i; ; ) {
+            int x;
+            j = (j + 1) & mask;
+            if ((x = idx[j]) == 0)
+                break;
+            int home = hs[x - 1] & mask;
+            if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j))
+                continue; // 从home探测到j不会经过i，留在原地
+            idx[i] = x;
+            i = j;
+        }
+        idx[i] = 0;
+        ks[e] = null;
+        vals[e] = null;
+        ++modCount;
+        --size;
+    }
+
+    public void clear() {
+        modCount++;
+        if (keys != null && size > 0) {
+            size = 0;
+            Arrays.fill(keys, 0, used, null);
+            Arrays.fill(vals, 0, used, null);
+            Arrays.fill(index, 0);
+            used = 0;
+        }
+    }
+
+    public Set<K> keySet() {
+        Set<K> ks = keySet;
+        if (ks == null) {
+            ks = new KeySet();
+            keySet = ks;
+        }
+        return ks;
+    }
+
+    @SuppressWarnings("unchecked")
+    final <T> T[] prepareArray(T[] a) {
+        int size = this.size;
+        if (a.length < size) {
+            return (T[]) java.lang.reflect.Array
+                    .newInstance(a.getClass().getComponentType(), size);
+        }
+        if (a.length > size) {
+            a[size] = null;
+        }
+        return a;
+    }
+
+    <T> T[] keysToArray(T[] a) {
+        Object[] r = a, ks;
+        int idx = 0;
+        if (size > 0 && (ks = keys) != null) {
+            for (int e = 0, n = used; e < n; ++e) {
+                Object k;
+                if ((k = ks[e]) != null)
+                    r[idx++] = unmaskNull(k);
+            }
+        }
+        return a;
+    }
+
+    <T> T[] valuesToArray(T[] a) {
+        Object[] r = a, ks;
+        int idx = 0;
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int e = 0, n = used; e < n; ++e) {
+                if (ks[e] != null)
+                    r[idx++] = vs[e];
+            }
+        }
+        return a;
+    }
+
+    final class KeySet extends AbstractSet<K> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            CompactHashMap.this.clear();
+        }
+
+        public final Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        public final boolean remove(Object key) {
+            int e;
+            if ((e = indexOf(key)) < 0)
+                return false;
+            removeAt(e);
+            return true;
+        }
+
+        public final Spliterator<K> spliterator() {
+            return new KeySpliterator<>(CompactHashMap.this, 0, -1, 0, 0);
+        }
+
+        public Object[] toArray() {
+            return keysToArray(new Object[size]);
+        }
+
+        public <T> T[] toArray(T[] a) {
+            return keysToArray(prepareArray(a));
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super K> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                int mc = modCount;
+                for (int e = 0; e < used && modCount == mc; ++e) {
+                    Object k;
+                    if ((k = ks[e]) != null)
+                        action.accept((K) unmaskNull(k));
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    public Collection<V> values() {
+        Collection<V> vs = values;
+        if (vs == null) {
+            vs = new Values();
+            values = vs;
+        }
+        return vs;
+    }
+
+    final class Values extends AbstractCollection<V> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            CompactHashMap.this.clear();
+        }
+
+        public final Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        public final Spliterator<V> spliterator() {
+            return new ValueSpliterator<>(CompactHashMap.this, 0, -1, 0, 0);
+        }
+
+        public Object[] toArray() {
+            return valuesToArray(new Object[size]);
+        }
+
+        public <T> T[] toArray(T[] a) {
+            return valuesToArray(prepareArray(a));
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super V> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                Object[] vs = vals;
+                int mc = modCount;
+                for (int e = 0; e < used && modCount == mc; ++e) {
+                    if (ks[e] != null)
+                        action.accept((V) vs[e]);
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            CompactHashMap.this.clear();
+        }
+
+        public final Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        public final boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            int i = indexOf(e.getKey());
+            return i >= 0 && Objects.equals(vals[i], e.getValue());
+        }
+
+        public final boolean remove(Object o) {
+            if (o instanceof Map.Entry) {
+                Entry<?, ?> e = (Entry<?, ?>) o;
+                int i = indexOf(e.getKey());
+                if (i >= 0 && Objects.equals(vals[i], e.getValue())) {
+                    removeAt(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public final Spliterator<Entry<K, V>> spliterator() {
+            return new EntrySpliterator<>(CompactHashMap.this, 0, -1, 0, 0);
+        }
+
+        public final void forEach(Consumer<? super Entry<K, V>> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                int mc = modCount;
+                for (int e = 0; e < used && modCount == mc; ++e) {
+                    if (ks[e] != null)
+                        action.accept(new CompactEntry(e));
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * entrySet里的Entry，记住key和创建时在数组里的下标
+     * 重建会把元素挪到新数组的前面，所以每次读写先看这个位置上是不是还是这个key，不是就重新查找
+     * 元素已经被删掉时getValue返回最后一次看到的值，setValue只改这个Entry自己，和HashMap里被删掉的Node一样
+     */
+    final class CompactEntry implements Map.Entry<K, V> {
+        final Object key;   // maskNull过的key
+        int index;          // 最近一次在数组里的下标
+        V value;            // 最近一次看到的值
+
+        @SuppressWarnings("unchecked")
+        CompactEntry(int index) {
+            this.index = index;
+            this.key = keys[index];
+            this.value = (V) vals[index];
+        }
+
+        final int slot() {
+            Object[] ks = keys;
+            int i = index;
+            if (ks == null || i < 0 || i >= used || ks[i] != key)
+                index = i = find(hash(unmaskNull(key)), key);
+            return i;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final K getKey() {
+            return (K) unmaskNull(key);
+        }
+
+        @SuppressWarnings("unchecked")
+        public final V getValue() {
+            int i;
+            if ((i = slot()) >= 0)
+                value = (V) vals[i];
+            return value;
+        }
+
+        public final V setValue(V newValue) {
+            int i;
+            V oldValue = getValue();
+            if ((i = slot()) >= 0)
+                vals[i] = newValue;
+            value = newValue;
+            return oldValue;
+        }
+
+        public final int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public final boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (o instanceof Map.Entry) {
+                Entry<?, ?> e = (Entry<?, ?>) o;
+                return Objects.equals(getKey(), e.getKey()) && Objects.equals(getValue(), e.getValue());
+            }
+            return false;
+        }
+
+        public final String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    // 重写JDK8以后Map接口的默认方法，直接在数组上操作，省掉默认实现里的重复查找
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putVal(hash(key), maskNull(key), value, true);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        int e;
+        if ((e = indexOf(key)) >= 0 && Objects.equals(vals[e], value)) {
+            removeAt(e);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        int e;
+        if ((e = indexOf(key)) >= 0 && Objects.equals(vals[e], oldValue)) {
+            vals[e] = newValue;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        int e;
+        if ((e = indexOf(key)) >= 0) {
+            V oldValue = (V) vals[e];
+            vals[e] = value;
+            return oldValue;
+        }
+        return null;
+    }
+
+    /**
+     * 和HashMap一样，mappingFunction里修改了这个Map就抛出ConcurrentModificationException
+     * 修改计数没变说明数组没有重建，函数执行前查到的下标仍然有效
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), e;
+        Object k = maskNull(key);
+        V oldValue;
+        if ((e = find(hash, k)) >= 0 && (oldValue = (V) vals[e]) != null)
+            return oldValue;
+        int mc = modCount;
+        V v = mappingFunction.apply(key);
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+        if (v == null)
+            return null;
+        if (e >= 0)
+            vals[e] = v;
+        else
+            putVal(hash, k, v, false);
+        return v;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        int e;
+        V oldValue;
+        if ((e = indexOf(key)) >= 0 && (oldValue = (V) vals[e]) != null) {
+            int mc = modCount;
+            V v = remappingFunction.apply(key, oldValue);
+            if (mc != modCount)
+                throw new ConcurrentModificationException();
+            if (v == null)
+                removeAt(e);
+            else
+                vals[e] = v;
+            return v;
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), e;
+        Object k = maskNull(key);
+        V oldValue = ((e = find(hash, k)) >= 0) ? (V) vals[e] : null;
+        int mc = modCount;
+        V v = remappingFunction.apply(key, oldValue);
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+        if (e >= 0) {
+            if (v != null)
+                vals[e] = v;
+            else
+                removeAt(e);
+        } else if (v != null)
+            putVal(hash, k, v, false);
+        return v;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), e;
+        Object k = maskNull(key);
+        if ((e = find(hash, k)) >= 0) {
+            V oldValue = (V) vals[e], v;
+            if (oldValue != null) {
+                int mc = modCount;
+                v = remappingFunction.apply(oldValue, value);
+                if (mc != modCount)
+                    throw new ConcurrentModificationException();
+            } else
+                v = value;
+            if (v != null)
+                vals[e] = v;
+            else
+                removeAt(e);
+            return v;
+        }
+        putVal(hash, k, value, false);
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Object[] ks;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            int mc = modCount;
+            for (int e = 0; e < used && modCount == mc; ++e) {
+                Object k;
+                if ((k = ks[e]) != null)
+                    action.accept((K) unmaskNull(k), (V) vs[e]);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        Object[] ks;
+        if (function == null)
+            throw new NullPointerException();
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            int mc = modCount;
+            for (int e = 0; e < used && modCount == mc; ++e) {
+                Object k;
+                if ((k = ks[e]) != null)
+                    vs[e] = function.apply((K) unmaskNull(k), (V) vs[e]);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * 直接在数组上算，不为每个元素创建Entry
+     */
+    @Override
+    public int hashCode() {
+        Object[] ks;
+        int h = 0;
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int e = 0, n = used; e < n; ++e) {
+                Object k;
+                if ((k = ks[e]) != null)
+                    h += Objects.hashCode(unmaskNull(k)) ^ Objects.hashCode(vs[e]);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * 浅拷贝，四个数组各复制一份，元素的位置不变，不需要重建索引
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object clone() {
+        CompactHashMap<K, V> result;
+        try {
+            result = (CompactHashMap<K, V>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e);
+        }
+        if (keys != null) {
+            result.keys = keys.clone();
+            result.vals = vals.clone();
+            result.hashes = hashes.clone();
+            result.index = index.clone();
+        }
+        result.entrySet = null;
+        result.keySet = null;
+        result.values = null;
+        result.modCount = 0;
+        return result;
+    }
+
+    /**
+     * 序列化格式：元素个数，然后按插入顺序依次是key和value
+     */
+    @java.io.Serial
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        Object[] ks;
+        s.defaultWriteObject();
+        s.writeInt(size);
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int e = 0, n = used; e < n; ++e) {
+                Object k;
+                if ((k = ks[e]) != null) {
+                    s.writeObject(unmaskNull(k));
+                    s.writeObject(vs[e]);
+                }
+            }
+        }
+    }
+
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        keys = vals = null;
+        hashes = index = null;
+        entrySet = null;
+        keySet = null;
+        values = null;
+        used = size = modCount = 0;
+        int mappings = s.readInt();
+        if (mappings < 0 || mappings > MAXIMUM_INDEX_CAPACITY - MAXIMUM_INDEX_CAPACITY / 3)
+            throw new InvalidObjectException("Illegal mappings count: " + mappings);
+        initialCapacity = mappings;
+        if (mappings > 0) {
+            SharedSecrets.getJavaObjectInputStreamAccess().checkArray(s, Object[].class,
+                    indexCapacityFor(mappings));
+            for (int i = 0; i < mappings; i++) {
+                @SuppressWarnings("unchecked")
+                K key = (K) s.readObject();
+                @SuppressWarnings("unchecked")
+                V value = (V) s.readObject();
+                putVal(hash(key), maskNull(key), value, false);
+            }
+        }
+    }
+
+    /**
+     * 按插入顺序遍历；删除只把数组里的位置置为null，不挪动别的元素，迭代器删除后直接接着往后走
+     */
+    abstract class CompactIterator {
+        int index;              // 下一个要看的位置
+        int current = -1;       // 上一次返回的元素的位置，-1表示没有或者已经删除
+        int expectedModCount;   // for fast-fail
+
+        CompactIterator() {
+            expectedModCount = modCount;
+        }
+
+        public final boolean hasNext() {
+            Object[] ks = keys;
+            int i = index, n = used;
+            if (ks != null) {
+                while (i < n && ks[i] == null)
+                    ++i;
+            }
+            index = i;
+            return i < n;
+        }
+
+        final int nextIndex() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current = index++;
+        }
+
+        public final void remove() {
+            int e = current;
+            if (e < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            current = -1;
+            removeAt(e);
+            expectedModCount = modCount;
+        }
+    }
+
+    final class KeyIterator extends CompactIterator implements Iterator<K> {
+        @SuppressWarnings("unchecked")
+        public final K next() {
+            return (K) unmaskNull(keys[nextIndex()]);
+        }
+    }
+
+    final class ValueIterator extends CompactIterator implements Iterator<V> {
+        @SuppressWarnings("unchecked")
+        public final V next() {
+            return (V) vals[nextIndex()];
+        }
+    }
+
+    final class EntryIterator extends CompactIterator implements Iterator<Entry<K, V>> {
+        public final Entry<K, V> next() {
+            return new CompactEntry(nextIndex());
+        }
+    }
+
+    /**
+     * spliterator按插入顺序遍历，拆分时把数组下标区间对半分
+     */
+    static class CompactHashMapSpliterator<K, V> {
+        final CompactHashMap<K, V> map;
+        int index;                  // current index, modified on advance/split
+        int fence;                  // one past last index
+        int est;                    // size estimate
+        int expectedModCount;       // for comodification checks
+
+        CompactHashMapSpliterator(CompactHashMap<K, V> m, int origin,
+                                  int fence, int est,
+                                  int expectedModCount) {
+            this.map = m;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = expectedModCount;
+        }
+
+        final int getFence() { // initialize fence and size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                CompactHashMap<K, V> m = map;
+                est = m.size;
+                expectedModCount = m.modCount;
+                hi = fence = m.used;
+            }
+            return hi;
+        }
+
+        public final long estimateSize() {
+            getFence(); // force init
+            return (long) est;
+        }
+    }
+
+    static final class KeySpliterator<K, V> extends CompactHashMapSpliterator<K, V> implements Spliterator<K> {
+        KeySpliterator(CompactHashMap<K, V> m, int origin, int fence, int est, int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public KeySpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new KeySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super K> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            CompactHashMap<K, V> m = map;
+            Object[] ks = m.keys;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = m.used;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    Object k;
+                    if ((k = ks[i]) != null)
+                        action.accept((K) unmaskNull(k));
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super K> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    Object k;
+                    if ((k = ks[index++]) != null) {
+                        action.accept((K) unmaskNull(k));
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.ORDERED | Spliterator.DISTINCT;
+        }
+    }
+
+    static final class ValueSpliterator<K, V> extends CompactHashMapSpliterator<K, V> implements Spliterator<V> {
+        ValueSpliterator(CompactHashMap<K, V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public ValueSpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new ValueSpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super V> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            CompactHashMap<K, V> m = map;
+            Object[] ks = m.keys, vs = m.vals;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = m.used;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    if (ks[i] != null)
+                        action.accept((V) vs[i]);
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super V> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    int i = index++;
+                    if (ks[i] != null) {
+                        action.accept((V) map.vals[i]);
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.ORDERED;
+        }
+    }
+
+    static final class EntrySpliterator<K, V> extends CompactHashMapSpliterator<K, V> implements Spliterator<Entry<K, V>> {
+        EntrySpliterator(CompactHashMap<K, V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public EntrySpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new EntrySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        public void forEachRemaining(Consumer<? super Entry<K, V>> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            CompactHashMap<K, V> m = map;
+            Object[] ks = m.keys;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = m.used;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    if (ks[i] != null)
+                        action.accept(m.new CompactEntry(i));
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        public boolean tryAdvance(Consumer<? super Entry<K, V>> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    int i = index++;
+                    if (ks[i] != null) {
+                        action.accept(map.new CompactEntry(i));
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.ORDERED | Spliterator.DISTINCT;
+        }
+    }
+}
@@ -0,0 +1,1180 @@
+package java.util;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import jdk.internal.access.SharedSecrets;
+
+/**
+ * 开放寻址的HashMap：key、value和hash分别放在三个平行数组里，不为每个映射分配Node，
+ * 适合单线程、生命周期短的Map（例如请求范围内的Map），用来降低年轻代的分配压力
+ *
+ * 冲突用Robin Hood线性探测解决：插入时如果当前槽里元素的探测距离（离自己的桶有多远）比要插入的元素小，
+ * 就把位置让出来，由被挤出去的元素继续往后探测。这样每个元素的探测距离都比较平均，
+ * 查找时遇到空槽或者探测距离比当前步数小的元素就可以确定key不存在
+ * 删除用backward shift：把后面探测距离大于0的元素依次往前挪一格，不留墓碑，删除多了也不会让查找变慢
+ *
+ * 和HashMap的区别：
+ * 1. 没有树化，大量hash冲突的key会退化成线性探测，冲突严重的场景应该用HashMap
+ * 2. 加载因子默认0.8，必须在(0, 0.95]之间，表里总要留空槽
+ * 3. 迭代器按槽位从高到低遍历，spliterator按槽位从低到高遍历，两者顺序不同
+ * 4. entrySet返回的Entry是现做的视图，Map里的元素被挪动后会按key重新定位
+ * 支持null key和null value，不是线程安全的，迭代时修改会抛出ConcurrentModificationException
+ */
+public class FlatHashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Cloneable, Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = -4170271498470367624L;
+    static final int DEFAULT_INITIAL_CAPACITY = 1 << 4;                 // 默认容量16
+    static final int MAXIMUM_CAPACITY = 1 << 30;                        // 最大容量2的30次方
+    static final float DEFAULT_LOAD_FACTOR = 0.8f;                      // 默认加载因子
+    static final float MAXIMUM_LOAD_FACTOR = 0.95f;                     // 加载因子上限，保证表里有空槽
+    static final Object NULL_KEY = new Object();                        // null key在keys数组里的占位，keys里的null表示空槽
+    transient Object[] keys;                                            // key数组，长度是2的幂
+    transient Object[] vals;                                            // value数组，和keys一一对应
+    transient int[] hashes;                                             // 每个槽里key的hash值，计算探测距离和比较时用
+    transient Set<Entry<K, V>> entrySet;                                // entry视图
+    transient int size;                                                 // 元素个数
+    transient int modCount;                                             // 并发修改异常计数
+    int threshold;                                                      // 触发扩容的元素个数，表还没分配时是初始容量
+    final float loadFactor;                                             // 加载因子
+
+    /**
+     * 扰动函数：乘以黄金分割数再把高16位异或到低16位，低位也能受到key的所有位的影响
+     * 开放寻址对聚集很敏感，只做HashMap那样的高低位异或，连续的Integer会排成一段连续的槽
+     */
+    static final int hash(Object key) {
+        int h;
+        return (key == null) ? 0 : (h = key.hashCode() * 0x9E3779B9) ^ (h >>> 16);
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    static Object unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : key;
+    }
+
+    public FlatHashMap(int initialCapacity, float loadFactor) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        if (initialCapacity > MAXIMUM_CAPACITY)
+            initialCapacity = MAXIMUM_CAPACITY;
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR))
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.threshold = HashMap.tableSizeFor(initialCapacity);
+    }
+
+    public FlatHashMap(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    public FlatHashMap() {
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+    }
+
+    public FlatHashMap(Map<? extends K, ? extends V> m) {
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+        putMapEntries(m);
+    }
+
+    /**
+     * 批量放入，表还没分配时按m的大小算好容量，避免中途扩容
+     */
+    final void putMapEntries(Map<? extends K, ? extends V> m) {
+        int s = m.size();
+        if (s > 0) {
+            if (keys == null) {
+                float ft = ((float) s / loadFactor) + 1.0F;
+                int t = ((ft < (float) MAXIMUM_CAPACITY) ? (int) ft : MAXIMUM_CAPACITY);
+                if (t > threshold)
+                    threshold = HashMap.tableSizeFor(t);
+            }
+            for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+                K key = e.getKey();
+                putVal(hash(key), maskNull(key), e.getValue(), false);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 查找key所在的槽，没有返回-1
+     * 探测到空槽，或者槽里元素的探测距离比已经走过的步数小（key如果存在，插入时一定会占掉这个位置），就说明key不存在
+     */
+    final int find(int hash, Object key) {
+        Object[] ks;
+        if ((ks = keys) != null) {
+            int[] hs = hashes;
+            int mask = ks.length - 1;
+            for (int i = hash & mask, d = 0; ; i = (i + 1) & mask, ++d) {
+                Object k;
+                int h;
+                if ((k = ks[i]) == null)
+                    return -1;
+                if ((h = hs[i]) == hash && (k == key || key.equals(k)))
+                    return i;
+                if (((i - (h & mask)) & mask) < d)
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    final int indexOf(Object key) {
+        return find(hash(key), maskNull(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int i;
+        return ((i = indexOf(key)) < 0) ? null : (V) vals[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        int i;
+        return ((i = indexOf(key)) < 0) ? defaultValue : (V) vals[i];
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        Object[] ks, vs;
+        if (size > 0 && (ks = keys) != null) {
+            vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                if (ks[i] != null && Objects.equals(value, vs[i]))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putVal(hash(key), maskNull(key), value, false);
+    }
+
+    /**
+     * 放入一个映射，key已经做过maskNull
+     * 探测时顺便找插入位置：遇到空槽或者探测距离比当前步数小的元素就停下，从这里开始Robin Hood插入
+     */
+    @SuppressWarnings("unchecked")
+    final V putVal(int hash, Object key, V value, boolean onlyIfAbsent) {
+        Object[] ks;
+        if ((ks = keys) == null)
+            ks = resize();
+        Object[] vs = vals;
+        int[] hs = hashes;
+        int mask = ks.length - 1;
+        int i = hash & mask, d = 0;
+        for (Object k; (k = ks[i]) != null; i = (i + 1) & mask, ++d) {
+            int h;
+            if ((h = hs[i]) == hash && (k == key || key.equals(k))) {
+                V oldValue = (V) vs[i];
+                if (!onlyIfAbsent || oldValue == null)
+                    vs[i] = value;
+                return oldValue;
+            }
+            if (((i - (h & mask)) & mask) < d)
+                break;
+        }
+        if (size >= MAXIMUM_CAPACITY - 1)
+            throw new IllegalStateException("FlatHashMap is full");
+        insert(ks, vs, hs, i, d, hash, key, value);
+        ++modCount;
+        if (++size > threshold)
+            resize();
+        return null;
+    }
+
+    /**
+     * 从第i个槽开始做Robin Hood插入，d是要插入的元素在第i个槽时的探测距离
+     * 遇到探测距离更小的元素就交换，拿着被换出来的元素继续往后找，直到遇到空槽
+     */
+    static void insert(Object[] ks, Object[] vs, int[] hs, int i, int d, int hash, Object key, Object value) {
+        int mask = ks.length - 1;
+        for (; ; i = (i + 1) & mask, ++d) {
+            Object k;
+            if ((k = ks[i]) == null) {
+                ks[i] = key;
+                vs[i] = value;
+                hs[i] = hash;
+                return;
+            }
+            int h = hs[i], pd;
+            if ((pd = (i - (h & mask)) & mask) < d) {
+                Object v = vs[i];
+                ks[i] = key;
+                vs[i] = value;
+                hs[i] = hash;
+                key = k;
+                value = v;
+                hash = h;
+                d = pd;
+            }
+        }
+    }
+
+    /**
+     * 初始化或者扩容为原来的两倍，所有元素按新的长度重新插入
+     */
+    final Object[] resize() {
+        Object[] oldKeys = keys, oldVals = vals;
+        int[] oldHashes = hashes;
+        int oldCap = (oldKeys == null) ? 0 : oldKeys.length;
+        int newCap;
+        if (oldCap > 0) {
+            if (oldCap >= MAXIMUM_CAPACITY) {
+                threshold = Integer.MAX_VALUE;
+                return oldKeys;
+            }
+            newCap = oldCap << 1;
+        } else if (threshold > 0)
+            newCap = threshold;
+        else
+            newCap = DEFAULT_INITIAL_CAPACITY;
+        threshold = (newCap < MAXIMUM_CAPACITY) ? (int) (newCap * loadFactor) : Integer.MAX_VALUE;
+        Object[] ks = new Object[newCap], vs = new Object[newCap];
+        int[] hs = new int[newCap];
+        if (oldKeys != null) {
+            // 从一个空槽后面开始按槽位顺序搬，每段连续元素按探测顺序插入新表，基本不需要Robin Hood交换
+            // 加载因子接近1的小表在扩容前可能是满的，这时从0号槽开始，只是多几次交换
+            int mask = newCap - 1, oldMask = oldCap - 1, start = 0;
+            while (start < oldCap && oldKeys[start] != null)
+                ++start;
+            start &= oldMask;
+            for (int n = 0, j = start; n < oldCap; ++n, j = (j + 1) & oldMask) {
+                Object k;
+                if ((k = oldKeys[j]) != null) {
+                    int h = oldHashes[j];
+                    insert(ks, vs, hs, h & mask, 0, h, k, oldVals[j]);
+                }
+            }
+        }
+        keys = ks;
+        vals = vs;
+        hashes = hs;
+        return ks;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        putMapEntries(m);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int i;
+        if ((i = indexOf(key)) < 0)
+            return null;
+        V oldValue = (V) vals[i];
+        removeAt(i);
+        return oldValue;
+    }
+
+    /**
+     * 删除第i个槽的元素，后面探测距离大于0的元素依次往前挪一格（backward shift）
+     * 返回最后空出来的槽，比i小说明挪动绕过了数组末尾，原来在0号槽的元素挪到了最后一个槽
+     */
+    final int removeAt(int i) {
+        Object[] ks = keys, vs = vals;
+        int[] hs = hashes;
+        int mask = ks.length - 1;
+        ++modCount;
+        --size;
+        for (int j; ; i = j) {
+            Object k;
+            j = (i + 1) & mask;
+            if ((k = ks[j]) == null || ((j - (hs[j] & mask)) & mask) == 0) {
+                ks[i] = null;
+                vs[i] = null;
+                return i;
+            }
+            ks[i] = k;
+            vs[i] = vs[j];
+            hs[i] = hs[j];
+        }
+    }
+
+    public void clear() {
+        Object[] ks;
+        modCount++;
+        if ((ks = keys) != null && size > 0) {
+            size = 0;
+            Arrays.fill(ks, null);
+            Arrays.fill(vals, null);
+        }
+    }
+
+    public Set<K> keySet() {
+        Set<K> ks = keySet;
+        if (ks == null) {
+            ks = new KeySet();
+            keySet = ks;
+        }
+        return ks;
+    }
+
+    @SuppressWarnings("unchecked")
+    final <T> T[] prepareArray(T[] a) {
+        int size = this.size;
+        if (a.length < size) {
+            return (T[]) java.lang.reflect.Array
+                    .newInstance(a.getClass().getComponentType(), size);
+        }
+        if (a.length > size) {
+            a[size] = null;
+        }
+        return a;
+    }
+
+    <T> T[] keysToArray(T[] a) {
+        Object[] r = a, ks;
+        int idx = 0;
+        if (size > 0 && (ks = keys) != null) {
+            for (Object k : ks) {
+                if (k != null)
+                    r[idx++] = unmaskNull(k);
+            }
+        }
+        return a;
+    }
+
+    <T> T[] valuesToArray(T[] a) {
+        Object[] r = a, ks;
+        int idx = 0;
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                if (ks[i] != null)
+                    r[idx++] = vs[i];
+            }
+        }
+        return a;
+    }
+
+    final class KeySet extends AbstractSet<K> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            FlatHashMap.this.clear();
+        }
+
+        public final Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        public final boolean remove(Object key) {
+            int i;
+            if ((i = indexOf(key)) < 0)
+                return false;
+            removeAt(i);
+            return true;
+        }
+
+        public final Spliterator<K> spliterator() {
+            return new KeySpliterator<>(FlatHashMap.this, 0, -1, 0, 0);
+        }
+
+        public Object[] toArray() {
+            return keysToArray(new Object[size]);
+        }
+
+        public <T> T[] toArray(T[] a) {
+            return keysToArray(prepareArray(a));
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super K> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                int mc = modCount;
+                for (Object k : ks) {
+                    if (k != null)
+                        action.accept((K) unmaskNull(k));
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    public Collection<V> values() {
+        Collection<V> vs = values;
+        if (vs == null) {
+            vs = new Values();
+            values = vs;
+        }
+        return vs;
+    }
+
+    final class Values extends AbstractCollection<V> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            FlatHashMap.this.clear();
+        }
+
+        public final Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        public final Spliterator<V> spliterator() {
+            return new ValueSpliterator<>(FlatHashMap.this, 0, -1, 0, 0);
+        }
+
+        public Object[] toArray() {
+            return valuesToArray(new Object[size]);
+        }
+
+        public <T> T[] toArray(T[] a) {
+            return valuesToArray(prepareArray(a));
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super V> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                Object[] vs = vals;
+                int mc = modCount;
+                for (int i = 0; i < ks.length; ++i) {
+                    if (ks[i] != null)
+                        action.accept((V) vs[i]);
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> es;
+        return (es = entrySet) == null ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+        public final int size() {
+            return size;
+        }
+
+        public final void clear() {
+            FlatHashMap.this.clear();
+        }
+
+        public final Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        public final boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            int i = indexOf(e.getKey());
+            return i >= 0 && Objects.equals(vals[i], e.getValue());
+        }
+
+        public final boolean remove(Object o) {
+            if (o instanceof Map.Entry) {
+                Entry<?, ?> e = (Entry<?, ?>) o;
+                int i = indexOf(e.getKey());
+                if (i >= 0 && Objects.equals(vals[i], e.getValue())) {
+                    removeAt(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public final Spliterator<Entry<K, V>> spliterator() {
+            return new EntrySpliterator<>(FlatHashMap.this, 0, -1, 0, 0);
+        }
+
+        public final void forEach(Consumer<? super Entry<K, V>> action) {
+            Object[] ks;
+            if (action == null)
+                throw new NullPointerException();
+            if (size > 0 && (ks = keys) != null) {
+                int mc = modCount;
+                for (int i = 0; i < ks.length; ++i) {
+                    if (ks[i] != null)
+                        action.accept(new FlatEntry(i));
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * entrySet里的Entry，记住key和创建时所在的槽
+     * 删除别的元素会让它被挪到前一个槽，所以每次读写先看槽里是不是还是这个key，不是就重新查找
+     * 元素已经被删掉时getValue返回最后一次看到的值，setValue只改这个Entry自己，和HashMap里被删掉的Node一样
+     */
+    final class FlatEntry implements Map.Entry<K, V> {
+        final Object key;   // maskNull过的key
+        int index;          // 最近一次所在的槽
+        V value;            // 最近一次看到的值
+
+        @SuppressWarnings("unchecked")
+        FlatEntry(int index) {
+            this.index = index;
+            this.key = keys[index];
+            this.value = (V) vals[index];
+        }
+
+        final int slot() {
+            Object[] ks = keys;
+            int i = index;
+            if (ks == null || i < 0 || i >= ks.length || ks[i] != key)
+                index = i = find(hash(unmaskNull(key)), key);
+            return i;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final K getKey() {
+            return (K) unmaskNull(key);
+        }
+
+        @SuppressWarnings("unchecked")
+        public final V getValue() {
+            int i;
+            if ((i = slot()) >= 0)
+                value = (V) vals[i];
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final V setValue(V newValue) {
+            int i;
+            V oldValue = getValue();
+            if ((i = slot()) >= 0)
+                vals[i] = newValue;
+            value = newValue;
+            return oldValue;
+        }
+
+        public final int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public final boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (o instanceof Map.Entry) {
+                Entry<?, ?> e = (Entry<?, ?>) o;
+                return Objects.equals(getKey(), e.getKey()) && Objects.equals(getValue(), e.getValue());
+            }
+            return false;
+        }
+
+        public final String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    // 重写JDK8以后Map接口的默认方法，直接在槽上操作，省掉默认实现里的重复查找
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putVal(hash(key), maskNull(key), value, true);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        int i;
+        if ((i = indexOf(key)) >= 0 && Objects.equals(vals[i], value)) {
+            removeAt(i);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean replace(K key, V oldValue, V newValue) {
+        int i;
+        if ((i = indexOf(key)) >= 0 && Objects.equals(vals[i], oldValue)) {
+            vals[i] = newValue;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        int i;
+        if ((i = indexOf(key)) >= 0) {
+            V oldValue = (V) vals[i];
+            vals[i] = value;
+            return oldValue;
+        }
+        return null;
+    }
+
+    /**
+     * 和HashMap一样，mappingFunction里修改了这个Map就抛出ConcurrentModificationException
+     * 函数执行期间元素可能被挪动，所以新值要插入时重新探测一遍
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), i;
+        Object k = maskNull(key);
+        V oldValue;
+        if ((i = find(hash, k)) >= 0 && (oldValue = (V) vals[i]) != null)
+            return oldValue;
+        int mc = modCount;
+        V v = mappingFunction.apply(key);
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+        if (v == null)
+            return null;
+        if (i >= 0)
+            vals[i] = v;
+        else
+            putVal(hash, k, v, false);
+        return v;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        int i;
+        V oldValue;
+        if ((i = indexOf(key)) >= 0 && (oldValue = (V) vals[i]) != null) {
+            int mc = modCount;
+            V v = remappingFunction.apply(key, oldValue);
+            if (mc != modCount)
+                throw new ConcurrentModificationException();
+            if (v == null)
+                removeAt(i);
+            else
+                vals[i] = v;
+            return v;
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), i;
+        Object k = maskNull(key);
+        V oldValue = ((i = find(hash, k)) >= 0) ? (V) vals[i] : null;
+        int mc = modCount;
+        V v = remappingFunction.apply(key, oldValue);
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+        if (i >= 0) {
+            if (v != null)
+                vals[i] = v;
+            else
+                removeAt(i);
+        } else if (v != null)
+            putVal(hash, k, v, false);
+        return v;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        int hash = hash(key), i;
+        Object k = maskNull(key);
+        if ((i = find(hash, k)) >= 0) {
+            V oldValue = (V) vals[i], v;
+            if (oldValue != null) {
+                int mc = modCount;
+                v = remappingFunction.apply(oldValue, value);
+                if (mc != modCount)
+                    throw new ConcurrentModificationException();
+            } else
+                v = value;
+            if (v != null)
+                vals[i] = v;
+            else
+                removeAt(i);
+            return v;
+        }
+        putVal(hash, k, value, false);
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Object[] ks;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            int mc = modCount;
+            for (int i = 0; i < ks.length; ++i) {
+                Object k;
+                if ((k = ks[i]) != null)
+                    action.accept((K) unmaskNull(k), (V) vs[i]);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        Object[] ks;
+        if (function == null)
+            throw new NullPointerException();
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            int mc = modCount;
+            for (int i = 0; i < ks.length; ++i) {
+                Object k;
+                if ((k = ks[i]) != null)
+                    vs[i] = function.apply((K) unmaskNull(k), (V) vs[i]);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * 直接在数组上算，不为每个元素创建Entry
+     */
+    @Override
+    public int hashCode() {
+        Object[] ks;
+        int h = 0;
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                Object k;
+                if ((k = ks[i]) != null)
+                    h += Objects.hashCode(unmaskNull(k)) ^ Objects.hashCode(vs[i]);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * 浅拷贝，三个数组各复制一份，元素的位置不变，不需要重新插入
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object clone() {
+        FlatHashMap<K, V> result;
+        try {
+            result = (FlatHashMap<K, V>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e);
+        }
+        if (keys != null) {
+            result.keys = keys.clone();
+            result.vals = vals.clone();
+            result.hashes = hashes.clone();
+        }
+        result.entrySet = null;
+        result.modCount = 0;
+        return result;
+    }
+
+    /**
+     * 表的容量
+     */
+    final int capacity() {
+        return (keys != null) ? keys.length : (threshold > 0) ? threshold : DEFAULT_INITIAL_CAPACITY;
+    }
+
+    /**
+     * 序列化格式和HashMap一样：容量、元素个数，然后依次是key和value
+     */
+    @java.io.Serial
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        Object[] ks;
+        int buckets = capacity();
+        s.defaultWriteObject();
+        s.writeInt(buckets);
+        s.writeInt(size);
+        if (size > 0 && (ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                Object k;
+                if ((k = ks[i]) != null) {
+                    s.writeObject(unmaskNull(k));
+                    s.writeObject(vs[i]);
+                }
+            }
+        }
+    }
+
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR))
+            throw new InvalidObjectException("Illegal load factor: " + loadFactor);
+        keys = vals = null;
+        hashes = null;
+        entrySet = null;
+        keySet = null;
+        values = null;
+        size = modCount = threshold = 0;
+        s.readInt();
+        int mappings = s.readInt();
+        if (mappings < 0 || mappings >= MAXIMUM_CAPACITY)
+            throw new InvalidObjectException("Illegal mappings count: " + mappings);
+        else if (mappings > 0) {
+            float fc = (float) mappings / loadFactor + 1.0f;
+            int cap = ((fc < DEFAULT_INITIAL_CAPACITY) ?
+                    DEFAULT_INITIAL_CAPACITY :
+                    (fc >= MAXIMUM_CAPACITY) ?
+                            MAXIMUM_CAPACITY :
+                            HashMap.tableSizeFor((int) fc));
+            SharedSecrets.getJavaObjectInputStreamAccess().checkArray(s, Object[].class, cap);
+            threshold = cap;
+            resize();
+            for (int i = 0; i < mappings; i++) {
+                @SuppressWarnings("unchecked")
+                K key = (K) s.readObject();
+                @SuppressWarnings("unchecked")
+                V value = (V) s.readObject();
+                putVal(hash(key), maskNull(key), value, false);
+            }
+        }
+    }
+
+    /**
+     * 迭代器按槽位从高到低遍历：删除当前元素时，backward shift只会把更高位置（已经遍历过）的元素挪到当前位置，
+     * 不会漏掉也不会重复
+     * 唯一的例外是挪动绕过了数组末尾：原来0号槽的元素被挪到最后一个槽，放进extras最后单独遍历；
+     * 原来在1..end号槽的元素都往前挪了一格，如果下一个要看的槽在这一段里，也要跟着往前移一格
+     */
+    abstract class FlatIterator {
+        int index;              // 下一个要看的槽，从高到低
+        int current = -1;       // 上一次返回的元素所在的槽，-1表示没有或者已经删除
+        ArrayList<Object> extras; // 被挪到已遍历区域的key（maskNull过的）
+        int extrasIndex;        // extras里下一个要返回的位置
+        int expectedModCount;   // for fast-fail
+
+        FlatIterator() {
+            Object[] ks = keys;
+            expectedModCount = modCount;
+            index = (ks == null || size == 0) ? -1 : ks.length - 1;
+        }
+
+        public final boolean hasNext() {
+            Object[] ks = keys;
+            int i = index;
+            while (i >= 0 && ks[i] == null)
+                --i;
+            index = i;
+            return i >= 0 || (extras != null && extrasIndex < extras.size());
+        }
+
+        final int nextIndex() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (index >= 0)
+                return current = index--;
+            Object k = extras.get(extrasIndex++);
+            return current = find(hash(unmaskNull(k)), k);
+        }
+
+        public final void remove() {
+            int i = current, end;
+            if (i < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            current = -1;
+            if ((end = removeAt(i)) < i && index >= 0) {
+                if (extras == null)
+                    extras = new ArrayList<>();
+                extras.add(keys[keys.length - 1]);
+                if (index <= end)
+                    --index;
+            }
+            expectedModCount = modCount;
+        }
+    }
+
+    final class KeyIterator extends FlatIterator implements Iterator<K> {
+        @SuppressWarnings("unchecked")
+        public final K next() {
+            return (K) unmaskNull(keys[nextIndex()]);
+        }
+    }
+
+    final class ValueIterator extends FlatIterator implements Iterator<V> {
+        @SuppressWarnings("unchecked")
+        public final V next() {
+            return (V) vals[nextIndex()];
+        }
+    }
+
+    final class EntryIterator extends FlatIterator implements Iterator<Entry<K, V>> {
+        public final Entry<K, V> next() {
+            return new FlatEntry(nextIndex());
+        }
+    }
+
+    /**
+     * spliterator按槽位从低到高遍历，拆分时把槽位区间对半分
+     */
+    static class FlatHashMapSpliterator<K, V> {
+        final FlatHashMap<K, V> map;
+        int index;                  // current index, modified on advance/split
+        int fence;                  // one past last index
+        int est;                    // size estimate
+        int expectedModCount;       // for comodification checks
+
+        FlatHashMapSpliterator(FlatHashMap<K, V> m, int origin,
+                               int fence, int est,
+                               int expectedModCount) {
+            this.map = m;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = expectedModCount;
+        }
+
+        final int getFence() { // initialize fence and size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                FlatHashMap<K, V> m = map;
+                est = m.size;
+                expectedModCount = m.modCount;
+                Object[] ks = m.keys;
+                hi = fence = (ks == null) ? 0 : ks.length;
+            }
+            return hi;
+        }
+
+        public final long estimateSize() {
+            getFence(); // force init
+            return (long) est;
+        }
+    }
+
+    static final class KeySpliterator<K, V> extends FlatHashMapSpliterator<K, V> implements Spliterator<K> {
+        KeySpliterator(FlatHashMap<K, V> m, int origin, int fence, int est, int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public KeySpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new KeySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super K> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            FlatHashMap<K, V> m = map;
+            Object[] ks = m.keys;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = (ks == null) ? 0 : ks.length;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    Object k;
+                    if ((k = ks[i]) != null)
+                        action.accept((K) unmaskNull(k));
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super K> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    Object k;
+                    if ((k = ks[index++]) != null) {
+                        action.accept((K) unmaskNull(k));
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT;
+        }
+    }
+
+    static final class ValueSpliterator<K, V> extends FlatHashMapSpliterator<K, V> implements Spliterator<V> {
+        ValueSpliterator(FlatHashMap<K, V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public ValueSpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new ValueSpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super V> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            FlatHashMap<K, V> m = map;
+            Object[] ks = m.keys, vs = m.vals;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = (ks == null) ? 0 : ks.length;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    if (ks[i] != null)
+                        action.accept((V) vs[i]);
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super V> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    int i = index++;
+                    if (ks[i] != null) {
+                        action.accept((V) map.vals[i]);
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0);
+        }
+    }
+
+    static final class EntrySpliterator<K, V> extends FlatHashMapSpliterator<K, V> implements Spliterator<Entry<K, V>> {
+        EntrySpliterator(FlatHashMap<K, V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public EntrySpliterator<K, V> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new EntrySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        public void forEachRemaining(Consumer<? super Entry<K, V>> action) {
+            int i, hi, mc;
+            if (action == null)
+                throw new NullPointerException();
+            FlatHashMap<K, V> m = map;
+            Object[] ks = m.keys;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = (ks == null) ? 0 : ks.length;
+            } else
+                mc = expectedModCount;
+            if (ks != null && ks.length >= hi && (i = index) >= 0 && i < (index = hi)) {
+                for (; i < hi; ++i) {
+                    if (ks[i] != null)
+                        action.accept(m.new FlatEntry(i));
+                }
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        public boolean tryAdvance(Consumer<? super Entry<K, V>> action) {
+            int hi;
+            if (action == null)
+                throw new NullPointerException();
+            Object[] ks = map.keys;
+            if (ks != null && ks.length >= (hi = getFence()) && index >= 0) {
+                while (index < hi) {
+                    int i = index++;
+                    if (ks[i] != null) {
+                        action.accept(map.new FlatEntry(i));
+                        if (map.modCount != expectedModCount)
+                            throw new ConcurrentModificationException();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT;
+        }
+    }
+}
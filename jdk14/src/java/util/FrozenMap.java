@@ -0,0 +1,430 @@
+package java.util;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import jdk.internal.access.SharedSecrets;
+
+/**
+ * 只读的HashMap快照，适合启动时建好、之后只查不改的大表，用HashMap.freeze()或者FrozenMap.copyOf(map)创建
+ *
+ * 所有元素放在一个开放寻址的数组里，key和value交替存放（table[2i]是key，table[2i+1]是value），没有Node，
+ * 查找命中时key和value在同一个缓存行里，只比HashMap少一次Node的缓存缺失
+ * 槽数是能让加载因子不超过0.75的最小的2的幂，每个元素大约占11~21字节，HashMap的Node加table槽大约要36~40字节
+ * 冲突用线性探测解决，探测到空槽就说明key不存在；槽号取hash乘以黄金分割数后的高位，连续的Integer也会散开
+ *
+ * hash函数在HashMap.hash的基础上再乘一次，HashMap.freeze()直接复用Node里算好的hash，不会再调用key的hashCode
+ * 没有树化，大量hash冲突的key会退化成很长的探测序列，冲突严重的场景应该留在HashMap里
+ * 支持null key和null value，所有修改方法都抛出UnsupportedOperationException，可以安全地交给多个线程读
+ */
+public final class FrozenMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = 3405245932176347513L;
+    static final int MAXIMUM_CAPACITY = 1 << 29;                        // 最大槽数，数组长度是槽数的两倍
+    static final Object NULL_KEY = new Object();                        // null key在table里的占位，table里的null表示空槽
+    transient Object[] table;                                           // key和value交替存放，长度是槽数的两倍
+    transient int shift;                                                // 32减去槽数的位数，hash乘完以后右移shift位得到槽号
+    transient int size;                                                 // 元素个数
+    transient Set<Entry<K, V>> entrySet;                                // entry视图
+
+    /**
+     * 用三个平行数组的前n个元素建表，hs[i]必须等于HashMap.hash(ks[i])
+     * checkDuplicates为true时检查重复的key，来源不是HashMap这类按equals去重的Map时需要检查
+     */
+    FrozenMap(Object[] ks, Object[] vs, int[] hs, int n, boolean checkDuplicates) {
+        build(ks, vs, hs, n, checkDuplicates);
+    }
+
+    /**
+     * 把m复制成FrozenMap，m本身就是FrozenMap时直接返回
+     * 之后对m的修改不会影响返回的Map
+     *
+     * @throws IllegalArgumentException m里有两个按equals相等的key（例如IdentityHashMap或者自定义比较器的TreeMap）
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> FrozenMap<K, V> copyOf(Map<? extends K, ? extends V> m) {
+        if (m instanceof FrozenMap)
+            return (FrozenMap<K, V>) m;
+        if (m instanceof HashMap)
+            return ((HashMap<K, V>) m).freeze();
+        int n = m.size(), i = 0;
+        Object[] ks = new Object[n], vs = new Object[n];
+        int[] hs = new int[n];
+        for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+            if (i == ks.length) { // 遍历时m变大了
+                int len = Math.max(16, i + (i >> 1));
+                ks = Arrays.copyOf(ks, len);
+                vs = Arrays.copyOf(vs, len);
+                hs = Arrays.copyOf(hs, len);
+            }
+            K k = e.getKey();
+            ks[i] = k;
+            vs[i] = e.getValue();
+            hs[i++] = HashMap.hash(k);
+        }
+        return new FrozenMap<K, V>(ks, vs, hs, i, !(m instanceof FlatHashMap));
+    }
+
+    /**
+     * 槽号：HashMap.hash再乘以黄金分割数取高位
+     */
+    static int slot(int hash, int shift) {
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * 按线性探测把ks、vs的前n个元素放进新表
+     */
+    private void build(Object[] ks, Object[] vs, int[] hs, int n, boolean checkDuplicates) {
+        if (n > MAXIMUM_CAPACITY - (MAXIMUM_CAPACITY >> 2))
+            throw new IllegalArgumentException("Too many mappings: " + n);
+        int cap = Math.max(2, HashMap.tableSizeFor(n + (n + 2) / 3)); // n <= 0.75 * cap，表里总有空槽
+        int sh = Integer.numberOfLeadingZeros(cap) + 1, mask = cap - 1;
+        Object[] tab = new Object[cap << 1];
+        for (int i = 0; i < n; ++i) {
+            Object k = maskNull(ks[i]);
+            int j = slot(hs[i], sh);
+            for (Object x; (x = tab[j << 1]) != null; j = (j + 1) & mask) {
+                if (checkDuplicates && x.equals(k))
+                    throw new IllegalArgumentException("duplicate key: " + ks[i]);
+            }
+            tab[j << 1] = k;
+            tab[(j << 1) + 1] = vs[i];
+        }
+        table = tab;
+        shift = sh;
+        size = n;
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    static Object unmaskNull(Object key) {
+        return (key == NULL_KEY) ? null : key;
+    }
+
+    static UnsupportedOperationException uoe() {
+        return new UnsupportedOperationException();
+    }
+
+    /**
+     * 返回key在table里的下标（偶数），没有返回-1
+     */
+    final int indexOf(Object key) {
+        Object[] tab = table;
+        Object k = maskNull(key);
+        int mask = tab.length - 2;
+        for (int i = slot(HashMap.hash(key), shift) << 1; ; i = (i + 2) & mask) {
+            Object x;
+            if ((x = tab[i]) == null)
+                return -1;
+            if (x == k || k.equals(x))
+                return i;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int i;
+        return ((i = indexOf(key)) < 0) ? null : (V) table[i + 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object key, V defaultValue) {
+        int i;
+        return ((i = indexOf(key)) < 0) ? defaultValue : (V) table[i + 1];
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        Object[] tab = table;
+        for (int i = 0; i < tab.length; i += 2) {
+            Object v;
+            if (tab[i] != null && ((v = tab[i + 1]) == value || (value != null && value.equals(v))))
+                return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        Object[] tab = table;
+        for (int i = 0; i < tab.length; i += 2) {
+            Object k;
+            if ((k = tab[i]) != null)
+                action.accept((K) unmaskNull(k), (V) tab[i + 1]);
+        }
+    }
+
+    public V put(K key, V value) {
+        throw uoe();
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        throw uoe();
+    }
+
+    public V remove(Object key) {
+        throw uoe();
+    }
+
+    public void clear() {
+        throw uoe();
+    }
+
+    public V putIfAbsent(K key, V value) {
+        throw uoe();
+    }
+
+    public boolean remove(Object key, Object value) {
+        throw uoe();
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        throw uoe();
+    }
+
+    public V replace(K key, V value) {
+        throw uoe();
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        throw uoe();
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        throw uoe();
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        throw uoe();
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        throw uoe();
+    }
+
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        throw uoe();
+    }
+
+    public int hashCode() {
+        Object[] tab = table;
+        int h = 0;
+        for (int i = 0; i < tab.length; i += 2) {
+            Object k;
+            if ((k = tab[i]) != null)
+                h += Objects.hashCode(unmaskNull(k)) ^ Objects.hashCode(tab[i + 1]);
+        }
+        return h;
+    }
+
+    public Set<K> keySet() {
+        Set<K> ks;
+        return ((ks = keySet) == null) ? (keySet = new KeySet()) : ks;
+    }
+
+    final class KeySet extends AbstractSet<K> {
+        public final int size() {
+            return size;
+        }
+
+        public final Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        public final Spliterator<K> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.DISTINCT | Spliterator.IMMUTABLE);
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super K> action) {
+            if (action == null)
+                throw new NullPointerException();
+            Object[] tab = table;
+            for (int i = 0; i < tab.length; i += 2) {
+                Object k;
+                if ((k = tab[i]) != null)
+                    action.accept((K) unmaskNull(k));
+            }
+        }
+    }
+
+    public Collection<V> values() {
+        Collection<V> vs;
+        return ((vs = values) == null) ? (values = new Values()) : vs;
+    }
+
+    final class Values extends AbstractCollection<V> {
+        public final int size() {
+            return size;
+        }
+
+        public final Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        public final boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        public final Spliterator<V> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.IMMUTABLE);
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void forEach(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            Object[] tab = table;
+            for (int i = 0; i < tab.length; i += 2) {
+                if (tab[i] != null)
+                    action.accept((V) tab[i + 1]);
+            }
+        }
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> es;
+        return ((es = entrySet) == null) ? (entrySet = new EntrySet()) : es;
+    }
+
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+        public final int size() {
+            return size;
+        }
+
+        public final Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        public final boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            int i = indexOf(e.getKey());
+            return i >= 0 && Objects.equals(table[i + 1], e.getValue());
+        }
+
+        public final Spliterator<Entry<K, V>> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.DISTINCT | Spliterator.IMMUTABLE);
+        }
+    }
+
+    /**
+     * 按槽号顺序遍历，remove抛出UnsupportedOperationException
+     */
+    abstract class FrozenIterator {
+        int index;              // 下一个非空槽在table里的下标，没有了是table.length
+
+        FrozenIterator() {
+            advance(0);
+        }
+
+        final void advance(int i) {
+            Object[] tab = table;
+            while (i < tab.length && tab[i] == null)
+                i += 2;
+            index = i;
+        }
+
+        public final boolean hasNext() {
+            return index < table.length;
+        }
+
+        final int nextIndex() {
+            int i;
+            if ((i = index) >= table.length)
+                throw new NoSuchElementException();
+            advance(i + 2);
+            return i;
+        }
+    }
+
+    final class KeyIterator extends FrozenIterator implements Iterator<K> {
+        @SuppressWarnings("unchecked")
+        public final K next() {
+            return (K) unmaskNull(table[nextIndex()]);
+        }
+    }
+
+    final class ValueIterator extends FrozenIterator implements Iterator<V> {
+        @SuppressWarnings("unchecked")
+        public final V next() {
+            return (V) table[nextIndex() + 1];
+        }
+    }
+
+    final class EntryIterator extends FrozenIterator implements Iterator<Entry<K, V>> {
+        @SuppressWarnings("unchecked")
+        public final Entry<K, V> next() {
+            int i = nextIndex();
+            return new SimpleImmutableEntry<K, V>((K) unmaskNull(table[i]), (V) table[i + 1]);
+        }
+    }
+
+    /**
+     * 序列化格式：元素个数，然后按槽号顺序依次是key和value
+     * 反序列化时先把所有元素读进数组，知道了个数再一次分配好table，不会像HashMap那样边插入边扩容；
+     * hashCode依赖对象地址的key（例如枚举）换一个JVM后hash会变，所以槽的位置不写进流里，每次重新算
+     */
+    @java.io.Serial
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        Object[] tab = table;
+        s.defaultWriteObject();
+        s.writeInt(size);
+        for (int i = 0; i < tab.length; i += 2) {
+            Object k;
+            if ((k = tab[i]) != null) {
+                s.writeObject(unmaskNull(k));
+                s.writeObject(tab[i + 1]);
+            }
+        }
+    }
+
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        int mappings = s.readInt();
+        if (mappings < 0 || mappings > MAXIMUM_CAPACITY - (MAXIMUM_CAPACITY >> 2))
+            throw new InvalidObjectException("Illegal mappings count: " + mappings);
+        SharedSecrets.getJavaObjectInputStreamAccess().checkArray(s, Object[].class, mappings);
+        Object[] ks = new Object[mappings], vs = new Object[mappings];
+        int[] hs = new int[mappings];
+        for (int i = 0; i < mappings; ++i) {
+            Object k = s.readObject();
+            ks[i] = k;
+            vs[i] = s.readObject();
+            hs[i] = HashMap.hash(k);
+        }
+        try {
+            build(ks, vs, hs, mappings, true);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+    }
+}
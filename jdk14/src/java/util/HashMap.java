@@ -5,6 +5,7 @@ import java.io.InvalidObjectException;
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -21,12 +22,23 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     static final int MIN_TREEIFY_CAPACITY = 64;                         // 树化条件：map容器最小的容量值64
     static final int TREEIFY_THRESHOLD = 8;                             // 树化保持的阈值8
     static final int UNTREEIFY_THRESHOLD = 6;                           // 树转链表的节点数6
+    static final int MIN_INCREMENTAL_CAPACITY = 1 << 10;                // 旧表达到这个长度才增量扩容，更小的表一次搬完也只要几微秒
+    static final int RESIZE_STEP = 8;                                   // 增量扩容时每次修改顺带搬的桶数
+    static final int ALTERNATIVE_HASHING_THRESHOLD = 16;                // 开启防护后，String key的树化冲突累计这么多次就换成带种子的hash
+    static final int BATCH_GROUP = 16;                                  // 批量读写时每组的key数，组内先算完hash、取完桶头再逐个比较
     transient Node<K, V>[] table;                                       // 底层真正存储数据的结构
     transient Set<Entry<K, V>> entrySet;                                // key的集合
     transient int size;                                                 // 元素个数size
     transient int modCount;                                             // 并发修改异常计数
     int threshold;                                                      // 触发map扩容的容量
     final float loadFactor;                                             // 加载因子
+    transient Node<K, V>[] oldTable;                                    // 增量扩容时还没搬完的旧表，null表示没有在扩容
+    transient int transferIndex;                                        // 增量扩容时旧表里下一个按顺序要搬的桶
+    transient boolean incrementalResize;                                // 是否开启增量扩容，不参与序列化
+    transient boolean hashFloodingDefense;                              // 是否开启hash碰撞攻击防护，不参与序列化
+    transient int collisionCount;                                       // 开启防护后String key的桶树化、往树化的桶里插入的次数
+    transient long hashSeed;                                            // String key的SipHash密钥的前64位，为0表示还没启用带种子的hash
+    transient long hashSeed2;                                           // SipHash密钥的后64位
 
     static class Node<K, V> implements Entry<K, V> {
         final int hash;     // hash值
@@ -91,6 +103,52 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         return (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
     }
 
+    /**
+     * 这个Map实际使用的hash：启用了带种子的hash以后，String key改用stringHash，其他key仍然用hash
+     * LinkedHashMap等子类直接调用静态的hash定位，所以只有HashMap本身才能开启hash碰撞攻击防护
+     */
+    final int keyHash(Object key) {
+        return (hashSeed != 0L && key instanceof String) ? stringHash((String) key) : hash(key);
+    }
+
+    /**
+     * 以hashSeed、hashSeed2为密钥对String的字符做SipHash-1-3，每4个char拼成一个64位的块，结果折叠成32位
+     * 攻击者不知道密钥，就没法离线构造出hash相同的一批字符串，和jdk7的sun.misc.Hashing.stringHash32起的作用一样
+     */
+    final int stringHash(String s) {
+        long v0 = hashSeed ^ 0x736f6d6570736575L, v1 = hashSeed2 ^ 0x646f72616e646f6dL;
+        long v2 = hashSeed ^ 0x6c7967656e657261L, v3 = hashSeed2 ^ 0x7465646279746573L;
+        int len = s.length();
+        for (int i = 0; ; i += 4) {
+            long m;
+            boolean last = i + 4 > len;
+            if (!last)
+                m = s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+            else { // 最后不满4个char的部分，最高字节放长度
+                m = (long) len << 56;
+                for (int j = i, sh = 0; j < len; ++j, sh += 16)
+                    m |= (long) s.charAt(j) << sh;
+            }
+            v3 ^= m;
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+            if (last)
+                break;
+        }
+        v2 ^= 0xffL;
+        for (int r = 0; r < 3; ++r) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return (int) (h ^ (h >>> 32));
+    }
+
     /**
      * 如果x没有实现Comparable接口就会返回null，
      */
@@ -194,7 +252,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             for (Entry<? extends K, ? extends V> e : m.entrySet()) {// 增强for遍历m
                 K key = e.getKey();     // 得到key
                 V value = e.getValue(); // 得到value
-                putVal(hash(key), key, value, false, evict);// 添加一个节点
+                putVal(keyHash(key), key, value, false, evict);// 添加一个节点
             }
         }
     }
@@ -218,7 +276,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      */
     public V get(Object key) {
         Node<K, V> e;
-        return (e = getNode(hash(key), key)) == null ? null : e.value;// 先得到存储的Node节点，然后返回value
+        return (e = getNode(keyHash(key), key)) == null ? null : e.value;// 先得到存储的Node节点，然后返回value
     }
 
     /**
@@ -231,7 +289,9 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         int n;
         K k;
         // 下面的first其实就是hash值所对应的数组索引值得Node节点，判断一下这个节点不能为null
-        if ((tab = table) != null && (n = tab.length) > 0 && (first = tab[(n - 1) & hash]) != null) {
+        // 增量扩容时key所在的旧桶还没搬的话，key只可能在旧桶里；旧桶是空的（搬完了或者本来就没有）才查新表
+        if (((tab = oldTable) != null && (first = tab[(tab.length - 1) & hash]) != null) ||
+                ((tab = table) != null && (n = tab.length) > 0 && (first = tab[(n - 1) & hash]) != null)) {
             // 如果这个位置刚好是当前节点就直接返回，也就是下面两种情况key相等
             if (first.hash == hash && ((k = first.key) == key || (key != null && key.equals(k))))
                 return first;
@@ -252,14 +312,14 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      * 判断key是否存在
      */
     public boolean containsKey(Object key) {
-        return getNode(hash(key), key) != null;
+        return getNode(keyHash(key), key) != null;
     }
 
     /**
      * 添加key，value
      */
     public V put(K key, V value) {
-        return putVal(hash(key), key, value, false, true);
+        return putVal(keyHash(key), key, value, false, true);
     }
 
     /**
@@ -272,6 +332,8 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         // 如果table为null 或者长度为0，就进行扩容，因为需要添加了一个元素
         if ((tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;// 调用扩容得到长度为16
+        if (oldTable != null) // 增量扩容还没结束，先把key所在的旧桶搬到新表
+            n = (tab = tableForUpdate(hash)).length;
         // 如果原来没有元素，则直接占用这个位置
         if ((p = tab[i = (n - 1) & hash]) == null) { // 通过 容量-1 &运算得到hash值所对应的节点如果为null则直接存储
             tab[i] = newNode(hash, key, value, null);// 直接new一个节点将数据存储进去
@@ -337,6 +399,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      * 扩容
      */
     final Node<K, V>[] resize() {
+        finishResize(); // 上一次增量扩容还没结束时先搬完
         Node<K, V>[] oldTab = table; // 原数组
         int oldCap = (oldTab == null) ? 0 : oldTab.length;// 得到原数组的长度（原容量）
         int oldThr = threshold;// 旧的扩容条件值
@@ -385,54 +448,135 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
          */
 
         if (oldTab != null) { // 旧容器存在才进行，不存在则直接返回上面的新容器对象
-            for (int j = 0; j < oldCap; ++j) { // 遍历旧容器
-                Node<K, V> e;
-                if ((e = oldTab[j]) != null) { // 当前元素存在的情况进入分支存入新容器中
-                    oldTab[j] = null;
-                    /**
-                     * 三个分支，分布对应e是 普通数组节点、树节点、链表节点
-                     * 1.普通数组节点，重新计算位置
-                     * 2.树节点
-                     * 3.链表节点
-                     */
-                    if (e.next == null)
-                        newTab[e.hash & (newCap - 1)] = e; // 再hash得到新索引，将元素存入这个新位置
-                    else if (e instanceof TreeNode)
-                        ((TreeNode<K, V>) e).split(this, newTab, j, oldCap);
-                    else {
-                        Node<K, V> loHead = null, loTail = null;
-                        Node<K, V> hiHead = null, hiTail = null;
-                        Node<K, V> next;
-                        do {
-                            next = e.next;
-                            if ((e.hash & oldCap) == 0) {
-                                if (loTail == null)
-                                    loHead = e;
-                                else
-                                    loTail.next = e;
-                                loTail = e;
-                            } else {
-                                if (hiTail == null)
-                                    hiHead = e;
-                                else
-                                    hiTail.next = e;
-                                hiTail = e;
-                            }
-                        } while ((e = next) != null);
-                        
-                        if (loTail != null) {
-                            loTail.next = null;
-                            newTab[j] = loHead;
-                        }
-                        if (hiTail != null) {
-                            hiTail.next = null;
-                            newTab[j + oldCap] = hiHead;
-                        }
+            if (incrementalResize && oldCap >= MIN_INCREMENTAL_CAPACITY) {
+                // 增量扩容：先不搬，旧表和新表同时在用，之后每次修改搬RESIZE_STEP个桶（见tableForUpdate）
+                oldTable = oldTab;
+                transferIndex = 0;
+            } else {
+                for (int j = 0; j < oldCap; ++j) // 遍历旧容器
+                    transferBin(oldTab, newTab, j);
+            }
+        }
+        return newTab;
+    }
+
+    /**
+     * 把旧表第j个桶里的节点搬到新表（原来resize里的循环体）
+     * 旧表长度是oldCap的话，节点只会去新表的j和j+oldCap两个位置，由hash & oldCap决定
+     */
+    final void transferBin(Node<K, V>[] oldTab, Node<K, V>[] newTab, int j) {
+        int oldCap = oldTab.length;
+        Node<K, V> e;
+        if ((e = oldTab[j]) != null) { // 当前元素存在的情况进入分支存入新容器中
+            oldTab[j] = null;
+            /**
+             * 三个分支，分布对应e是 普通数组节点、树节点、链表节点
+             * 1.普通数组节点，重新计算位置
+             * 2.树节点
+             * 3.链表节点
+             */
+            if (e.next == null)
+                newTab[e.hash & (newTab.length - 1)] = e; // 再hash得到新索引，将元素存入这个新位置
+            else if (e instanceof TreeNode)
+                ((TreeNode<K, V>) e).split(this, newTab, j, oldCap);
+            else {
+                Node<K, V> loHead = null, loTail = null;
+                Node<K, V> hiHead = null, hiTail = null;
+                Node<K, V> next;
+                do {
+                    next = e.next;
+                    if ((e.hash & oldCap) == 0) {
+                        if (loTail == null)
+                            loHead = e;
+                        else
+                            loTail.next = e;
+                        loTail = e;
+                    } else {
+                        if (hiTail == null)
+                            hiHead = e;
+                        else
+                            hiTail.next = e;
+                        hiTail = e;
                     }
+                } while ((e = next) != null);
+                
+                if (loTail != null) {
+                    loTail.next = null;
+                    newTab[j] = loHead;
+                }
+                if (hiTail != null) {
+                    hiTail.next = null;
+                    newTab[j + oldCap] = hiHead;
                 }
             }
         }
-        return newTab;
+    }
+
+    /**
+     * 开启或者关闭增量扩容
+     * 开启后旧表长度达到MIN_INCREMENTAL_CAPACITY时，扩容不再一次搬完所有桶：新表马上启用，
+     * 之后每次修改先把要修改的key所在的旧桶搬过来，再按顺序搬RESIZE_STEP个桶，查找同时看旧表和新表。
+     * 搬完之前最多再插入oldCap/RESIZE_STEP个元素，远小于下一次扩容需要的插入次数，所以同一时刻最多只有两张表
+     * 遍历（迭代器、spliterator、forEach等）开始前会先把剩下的桶搬完，遍历本身就是O(n)的，不会改变复杂度；
+     * 因此开启后，交给多个线程只读之前要先调用一次setIncrementalResize(false)，保证之后的读操作都不会修改内部结构
+     * 关闭时会把正在进行的扩容做完
+     */
+    public void setIncrementalResize(boolean incremental) {
+        if (!incremental)
+            finishResize();
+        incrementalResize = incremental;
+    }
+
+    /**
+     * 生成当前内容的只读快照，见FrozenMap
+     * 直接沿着桶里的next链表收集元素（树化的桶也保留了next链表），复用Node里算好的hash，不会再调用key的hashCode
+     * 之后对这个HashMap的修改不会影响返回的Map
+     */
+    public FrozenMap<K, V> freeze() {
+        Node<K, V>[] tab;
+        finishResize();
+        int n = size, i = 0;
+        Object[] ks = new Object[n], vs = new Object[n];
+        int[] hs = new int[n];
+        if ((tab = table) != null && n > 0) {
+            for (Node<K, V> e : tab) {
+                for (; e != null; e = e.next) {
+                    ks[i] = e.key;
+                    vs[i] = e.value;
+                    hs[i++] = (hashSeed == 0L) ? e.hash : hash(e.key); // FrozenMap用的是静态的hash
+                }
+            }
+        }
+        return new FrozenMap<K, V>(ks, vs, hs, i, false);
+    }
+
+    /**
+     * 增量扩容时，修改hash所在的桶之前调用：先搬这个hash对应的旧桶，再按顺序搬RESIZE_STEP个桶，返回新表
+     */
+    final Node<K, V>[] tableForUpdate(int hash) {
+        Node<K, V>[] old, tab = table;
+        if ((old = oldTable) != null) {
+            int n = old.length, j = transferIndex, end = Math.min(n, j + RESIZE_STEP);
+            transferBin(old, tab, (n - 1) & hash);
+            for (; j < end; ++j)
+                transferBin(old, tab, j);
+            if ((transferIndex = end) == n)
+                oldTable = null;
+        }
+        return tab;
+    }
+
+    /**
+     * 把旧表里剩下的桶全部搬完
+     */
+    final void finishResize() {
+        Node<K, V>[] old;
+        if ((old = oldTable) != null) {
+            Node<K, V>[] tab = table;
+            for (int j = transferIndex; j < old.length; ++j)
+                transferBin(old, tab, j);
+            oldTable = null;
+        }
     }
 
 
@@ -477,6 +621,69 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
                  * 从双向链表头节点开始，进行遍历树化
                  */
                 hd.treeify(tab); // 真正进行树化的方法
+                recordCollision(hd.key);
+            }
+        }
+    }
+
+    /**
+     * 开启或者关闭hash碰撞攻击防护，用于key来自不可信输入（请求参数、JSON字段名等）的HashMap
+     * 开启后，如果String key的桶在表长度达到MIN_TREEIFY_CAPACITY以后树化，或者往已经树化的String key的桶里插入，
+     * 累计ALTERNATIVE_HASHING_THRESHOLD次，就生成一个随机密钥，String key改用SipHash（见stringHash），并把所有元素按新的hash重新放一遍；
+     * 正常的key几乎不可能让一个桶长到TREEIFY_THRESHOLD，所以没有受到攻击时不会有任何额外开销
+     * 只对String key有效，其他类型的key hashCode本身相同的话换什么种子都一样，仍然靠树化兜底
+     * 关闭只是不再触发，已经换成带种子的hash的不会换回去；这个设置不参与序列化，clone出来的Map沿用同一个密钥
+     *
+     * @throws UnsupportedOperationException 在子类（例如LinkedHashMap）上开启
+     */
+    public void setHashFloodingDefense(boolean enabled) {
+        if (enabled && getClass() != HashMap.class)
+            throw new UnsupportedOperationException("Hash flooding defense is only supported by HashMap itself");
+        hashFloodingDefense = enabled;
+    }
+
+    /**
+     * String key的桶树化，或者往树化的桶里插入了新的String key以后调用
+     * 正常的key几乎不会让桶树化，开启防护时这种情况累计多次，很可能是有人故意构造hash相同的key，换成带种子的hash
+     * 只攻击一个hash值时只会树化一次，之后的key都插进同一棵树里，所以插入也要计数
+     */
+    final void recordCollision(Object key) {
+        if (hashFloodingDefense && hashSeed == 0L && key instanceof String &&
+                ++collisionCount >= ALTERNATIVE_HASHING_THRESHOLD)
+            rehashWithSeed();
+    }
+
+    /**
+     * 生成随机密钥，按keyHash重新计算所有元素的hash，放进一张同样长度的新表，新表里仍然过长的桶照常树化
+     * Node的hash是final的，所以每个元素都要新建一个Node
+     */
+    final void rehashWithSeed() {
+        Node<K, V>[] oldTab;
+        finishResize();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long seed;
+        do {
+            seed = rnd.nextLong();
+        } while (seed == 0L);
+        hashSeed = seed;
+        hashSeed2 = rnd.nextLong();
+        if ((oldTab = table) != null) {
+            int n = oldTab.length;
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            Node<K, V>[] newTab = (Node<K, V>[]) new Node[n];
+            for (Node<K, V> e : oldTab) {
+                for (; e != null; e = e.next) {
+                    int h = keyHash(e.key), i = (n - 1) & h;
+                    newTab[i] = newNode(h, e.key, e.value, newTab[i]);
+                }
+            }
+            table = newTab;
+            for (int j = 0; j < n; ++j) {
+                int binCount = 0;
+                for (Node<K, V> e = newTab[j]; e != null; e = e.next)
+                    ++binCount;
+                if (binCount >= TREEIFY_THRESHOLD)
+                    treeifyBin(newTab, j);
             }
         }
     }
@@ -486,10 +693,122 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         putMapEntries(m, true);
     }
 
+    /**
+     * 批量查找：out[i]是keys[i]对应的value，没有映射时是null，返回找到映射的key的个数
+     * 一个一个get时每次查找都要等桶和Node的缓存缺失回来才能开始下一次；这里每BATCH_GROUP个key一组，
+     * 先算完整组的hash，再一次取出整组的桶头，最后逐个比较链表，组内的内存访问互不依赖，CPU可以同时发出多个缓存缺失，
+     * 表比末级缓存大得多时效果明显，小表和逐个get差不多
+     * 增量扩容还没搬完时退回逐个getNode
+     *
+     * @throws IllegalArgumentException out比keys短
+     */
+    public int getAll(K[] keys, V[] out) {
+        Node<K, V>[] tab;
+        int n = keys.length, found = 0;
+        if (out.length < n)
+            throw new IllegalArgumentException("out.length < keys.length: " + out.length + " < " + n);
+        if (oldTable != null || (tab = table) == null || size == 0) {
+            for (int i = 0; i < n; ++i) {
+                K key = keys[i];
+                Node<K, V> e;
+                if ((e = getNode(keyHash(key), key)) != null) {
+                    out[i] = e.value;
+                    ++found;
+                } else
+                    out[i] = null;
+            }
+            return found;
+        }
+        int mask = tab.length - 1;
+        int[] hs = new int[BATCH_GROUP];
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Node<K, V>[] heads = (Node<K, V>[]) new Node[BATCH_GROUP];
+        for (int base = 0; base < n; base += BATCH_GROUP) {
+            int m = Math.min(BATCH_GROUP, n - base);
+            for (int j = 0; j < m; ++j)
+                hs[j] = keyHash(keys[base + j]);
+            for (int j = 0; j < m; ++j)
+                heads[j] = tab[hs[j] & mask];
+            for (int j = 0; j < m; ++j) {
+                Node<K, V> e = heads[j];
+                K key = keys[base + j], k;
+                int h = hs[j];
+                if (e != null && !(e.hash == h && ((k = e.key) == key || (key != null && key.equals(k))))) {
+                    if (e instanceof TreeNode)
+                        e = ((TreeNode<K, V>) e).getTreeNode(h, key);
+                    else {
+                        while ((e = e.next) != null &&
+                                !(e.hash == h && ((k = e.key) == key || (key != null && key.equals(k)))))
+                            ;
+                    }
+                }
+                if (e != null) {
+                    out[base + j] = e.value;
+                    ++found;
+                } else
+                    out[base + j] = null;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 批量放入：依次放入keys[i] -> values[i]，和逐个put的结果一样（后面重复的key覆盖前面的）
+     * 先按keys的长度预先扩容，然后和getAll一样每组先算hash、取桶头；桶头是空的并且期间没有扩容时直接放进桶里，
+     * 其他情况（有冲突、组内前面的key刚放进同一个桶、中途扩容了）走putVal
+     *
+     * @throws IllegalArgumentException keys和values长度不同
+     */
+    public void putAll(K[] keys, V[] values) {
+        int n = keys.length;
+        if (values.length != n)
+            throw new IllegalArgumentException("keys.length != values.length: " + n + " != " + values.length);
+        if (n == 0)
+            return;
+        if (table == null) { // 和putMapEntries一样按元素个数算容量
+            float ft = ((float) n / loadFactor) + 1.0F;
+            int t = ((ft < (float) MAXIMUM_CAPACITY) ? (int) ft : MAXIMUM_CAPACITY);
+            if (t > threshold)
+                threshold = tableSizeFor(t);
+            resize();
+        } else {
+            while (n > threshold && table.length < MAXIMUM_CAPACITY)
+                resize();
+        }
+        int[] hs = new int[BATCH_GROUP];
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Node<K, V>[] heads = (Node<K, V>[]) new Node[BATCH_GROUP];
+        for (int base = 0; base < n; base += BATCH_GROUP) {
+            int m = Math.min(BATCH_GROUP, n - base);
+            Node<K, V>[] tab = table;
+            int mask = tab.length - 1;
+            boolean direct = oldTable == null;
+            for (int j = 0; j < m; ++j)
+                hs[j] = keyHash(keys[base + j]);
+            if (direct) {
+                for (int j = 0; j < m; ++j)
+                    heads[j] = tab[hs[j] & mask];
+            }
+            for (int j = 0; j < m; ++j) {
+                int h = hs[j], i;
+                K key = keys[base + j];
+                V value = values[base + j];
+                if (direct && heads[j] == null && table == tab && tab[i = h & mask] == null) {
+                    tab[i] = newNode(h, key, value, null);
+                    ++modCount;
+                    if (++size > threshold)
+                        resize();
+                    afterNodeInsertion(true);
+                } else
+                    putVal(h, key, value, false, true);
+            }
+        }
+    }
+
 
     public V remove(Object key) {
         Node<K, V> e;
-        return (e = removeNode(hash(key), key, null, false, true)) == null ? null : e.value;
+        return (e = removeNode(keyHash(key), key, null, false, true)) == null ? null : e.value;
     }
 
 
@@ -497,6 +816,8 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Node<K, V>[] tab;
         Node<K, V> p;
         int n, index;
+        if (oldTable != null)
+            tableForUpdate(hash);
         if ((tab = table) != null && (n = tab.length) > 0 &&
                 (p = tab[index = (n - 1) & hash]) != null) {
             Node<K, V> node = null, e;
@@ -540,6 +861,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public void clear() {
         Node<K, V>[] tab;
         modCount++;
+        oldTable = null;
         if ((tab = table) != null && size > 0) {
             size = 0;
             for (int i = 0; i < tab.length; ++i)
@@ -551,6 +873,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public boolean containsValue(Object value) {
         Node<K, V>[] tab;
         V v;
+        finishResize();
         if ((tab = table) != null && size > 0) {
             for (Node<K, V> e : tab) {
                 for (; e != null; e = e.next) {
@@ -592,6 +915,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Object[] r = a;
         Node<K, V>[] tab;
         int idx = 0;
+        finishResize();
         if (size > 0 && (tab = table) != null) {
             for (Node<K, V> e : tab) {
                 for (; e != null; e = e.next) {
@@ -607,6 +931,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Object[] r = a;
         Node<K, V>[] tab;
         int idx = 0;
+        finishResize();
         if (size > 0 && (tab = table) != null) {
             for (Node<K, V> e : tab) {
                 for (; e != null; e = e.next) {
@@ -635,7 +960,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         }
 
         public final boolean remove(Object key) {
-            return removeNode(hash(key), key, null, false, true) != null;
+            return removeNode(keyHash(key), key, null, false, true) != null;
         }
 
         public final Spliterator<K> spliterator() {
@@ -654,6 +979,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             Node<K, V>[] tab;
             if (action == null)
                 throw new NullPointerException();
+            finishResize();
             if (size > 0 && (tab = table) != null) {
                 int mc = modCount;
                 for (Node<K, V> e : tab) {
@@ -709,6 +1035,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             Node<K, V>[] tab;
             if (action == null)
                 throw new NullPointerException();
+            finishResize();
             if (size > 0 && (tab = table) != null) {
                 int mc = modCount;
                 for (Node<K, V> e : tab) {
@@ -745,7 +1072,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
                 return false;
             Entry<?, ?> e = (Entry<?, ?>) o;
             Object key = e.getKey();
-            Node<K, V> candidate = getNode(hash(key), key);
+            Node<K, V> candidate = getNode(keyHash(key), key);
             return candidate != null && candidate.equals(e);
         }
 
@@ -754,7 +1081,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
                 Entry<?, ?> e = (Entry<?, ?>) o;
                 Object key = e.getKey();
                 Object value = e.getValue();
-                return removeNode(hash(key), key, value, true, true) != null;
+                return removeNode(keyHash(key), key, value, true, true) != null;
             }
             return false;
         }
@@ -767,6 +1094,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             Node<K, V>[] tab;
             if (action == null)
                 throw new NullPointerException();
+            finishResize();
             if (size > 0 && (tab = table) != null) {
                 int mc = modCount;
                 for (Node<K, V> e : tab) {
@@ -785,7 +1113,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     @Override
     public V getOrDefault(Object key, V defaultValue) {
         Node<K, V> e;
-        return (e = getNode(hash(key), key)) == null ? defaultValue : e.value;
+        return (e = getNode(keyHash(key), key)) == null ? defaultValue : e.value;
     }
 
     /**
@@ -793,7 +1121,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      */
     @Override
     public V putIfAbsent(K key, V value) {
-        return putVal(hash(key), key, value, true, true);
+        return putVal(keyHash(key), key, value, true, true);
     }
 
     /**
@@ -801,7 +1129,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      */
     @Override
     public boolean remove(Object key, Object value) {
-        return removeNode(hash(key), key, value, true, true) != null;
+        return removeNode(keyHash(key), key, value, true, true) != null;
     }
 
     /**
@@ -811,7 +1139,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public boolean replace(K key, V oldValue, V newValue) {
         Node<K, V> e;
         V v;
-        if ((e = getNode(hash(key), key)) != null && ((v = e.value) == oldValue || (v != null && v.equals(oldValue)))) {
+        if ((e = getNode(keyHash(key), key)) != null && ((v = e.value) == oldValue || (v != null && v.equals(oldValue)))) {
             e.value = newValue;// 替换成新值
             afterNodeAccess(e);
             return true;
@@ -825,7 +1153,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     @Override
     public V replace(K key, V value) {
         Node<K, V> e;
-        if ((e = getNode(hash(key), key)) != null) {
+        if ((e = getNode(keyHash(key), key)) != null) {
             V oldValue = e.value;
             e.value = value;
             afterNodeAccess(e);
@@ -842,7 +1170,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
         if (mappingFunction == null)
             throw new NullPointerException();
-        int hash = hash(key);
+        int hash = keyHash(key);
         Node<K, V>[] tab;
         Node<K, V> first;
         int n, i;
@@ -851,6 +1179,8 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Node<K, V> old = null;
         if (size > threshold || (tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;
+        if (oldTable != null)
+            n = (tab = tableForUpdate(hash)).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
             if (first instanceof TreeNode)
                 old = (t = (TreeNode<K, V>) first).getTreeNode(hash, key);
@@ -907,7 +1237,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             throw new NullPointerException();
         Node<K, V> e;
         V oldValue;
-        int hash = hash(key);
+        int hash = keyHash(key);
         if ((e = getNode(hash, key)) != null &&
                 (oldValue = e.value) != null) {
             int mc = modCount;
@@ -935,7 +1265,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
         if (remappingFunction == null)
             throw new NullPointerException();
-        int hash = hash(key);
+        int hash = keyHash(key);
         Node<K, V>[] tab;
         Node<K, V> first;
         int n, i;
@@ -945,6 +1275,8 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         if (size > threshold || (tab = table) == null ||
                 (n = tab.length) == 0)
             n = (tab = resize()).length;
+        if (oldTable != null)
+            n = (tab = tableForUpdate(hash)).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
             if (first instanceof TreeNode)
                 old = (t = (TreeNode<K, V>) first).getTreeNode(hash, key);
@@ -998,7 +1330,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
     public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
         if (value == null || remappingFunction == null)
             throw new NullPointerException(); // 报空指针异常
-        int hash = hash(key); // 得到hash值
+        int hash = keyHash(key); // 得到hash值
         Node<K, V>[] tab;
         Node<K, V> first;
         int n, i;
@@ -1007,6 +1339,8 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Node<K, V> old = null;
         if (size > threshold || (tab = table) == null || (n = tab.length) == 0)
             n = (tab = resize()).length;
+        if (oldTable != null)
+            n = (tab = tableForUpdate(hash)).length;
         if ((first = tab[i = (n - 1) & hash]) != null) {
             if (first instanceof TreeNode)
                 old = (t = (TreeNode<K, V>) first).getTreeNode(hash, key);
@@ -1063,6 +1397,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Node<K, V>[] tab;
         if (action == null)
             throw new NullPointerException();
+        finishResize();
         if (size > 0 && (tab = table) != null) {
             int mc = modCount;
             for (Node<K, V> e : tab) {
@@ -1082,6 +1417,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         Node<K, V>[] tab;
         if (function == null)
             throw new NullPointerException();
+        finishResize();
         if (size > 0 && (tab = table) != null) {
             int mc = modCount;
             for (Node<K, V> e : tab) { // 增强for遍历
@@ -1161,6 +1497,9 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
      */
     void reinitialize() {
         table = null;
+        oldTable = null;
+        transferIndex = 0;
+        collisionCount = 0;
         entrySet = null;
         keySet = null;
         values = null;
@@ -1215,7 +1554,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
                 K key = (K) s.readObject();
                 @SuppressWarnings("unchecked")
                 V value = (V) s.readObject();
-                putVal(hash(key), key, value, false, false);
+                putVal(keyHash(key), key, value, false, false);
             }
         }
     }
@@ -1228,6 +1567,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
         int index;             // current slot
 
         HashIterator() {
+            finishResize(); // 遍历只看一张表
             expectedModCount = modCount;
             Node<K, V>[] t = table;
             current = next = null;
@@ -1309,6 +1649,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             int hi;
             if ((hi = fence) < 0) {
                 HashMap<K, V> m = map;
+                m.finishResize();
                 est = m.size;
                 expectedModCount = m.modCount;
                 Node<K, V>[] tab = m.table;
@@ -1342,6 +1683,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             HashMap<K, V> m = map;
             Node<K, V>[] tab = m.table;
             if ((hi = fence) < 0) {
+                m.finishResize();
                 mc = expectedModCount = m.modCount;
                 hi = fence = (tab == null) ? 0 : tab.length;
             } else
@@ -1411,6 +1753,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             HashMap<K, V> m = map;
             Node<K, V>[] tab = m.table;
             if ((hi = fence) < 0) {
+                m.finishResize();
                 mc = expectedModCount = m.modCount;
                 hi = fence = (tab == null) ? 0 : tab.length;
             } else
@@ -1479,6 +1822,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
             HashMap<K, V> m = map;
             Node<K, V>[] tab = m.table;
             if ((hi = fence) < 0) {
+                m.finishResize();
                 mc = expectedModCount = m.modCount;
                 hi = fence = (tab == null) ? 0 : tab.length;
             } else
@@ -1544,6 +1888,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
 
     void internalWriteEntries(java.io.ObjectOutputStream s) throws IOException {
         Node<K, V>[] tab;
+        finishResize();
         if (size > 0 && (tab = table) != null) {
             for (Node<K, V> e : tab) {
                 for (; e != null; e = e.next) {
@@ -1784,6 +2129,7 @@ public class HashMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Clone
                     if (xpn != null)
                         ((TreeNode<K, V>) xpn).prev = x;
                     moveRootToFront(tab, balanceInsertion(root, x));
+                    map.recordCollision(k);
                     return null;
                 }
             }
@@ -2,6 +2,9 @@
 package java.util;
 
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -13,7 +16,8 @@ public class Hashtable<K,V> extends Dictionary<K,V>
     private static final long serialVersionUID = 1421746759512286392L;
 
     private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
-    private transient Entry<?,?>[] table;
+    private static final int BULK_STRIPE = 256;     // 并行遍历和分段contains每次持有monitor处理的桶数
+    private transient volatile Entry<?,?>[] table;
     private transient int count;
     private int threshold;
     private float loadFactor;
@@ -21,6 +25,9 @@ public class Hashtable<K,V> extends Dictionary<K,V>
     private transient volatile Set<K> keySet;
     private transient volatile Set<Map.Entry<K,V>> entrySet;
     private transient volatile Collection<V> values;
+    private transient volatile boolean optimisticReads;
+    private transient volatile int version;
+    private transient BulkSnapshot snapshots;         // 正在进行的并行遍历，在monitor下读写
     private static final int KEYS = 0;
     private static final int VALUES = 1;
     private static final int ENTRIES = 2;
@@ -48,6 +55,52 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         this(initialCapacity, 0.75f);
     }
 
+    /**
+     * 开启或者关闭乐观读，用于读远多于写的Hashtable
+     * 开启后get、containsKey、contains先不加锁，按StampedLock.tryOptimisticRead/validate的方式读：
+     * 记下version，直接在table上查找，查完version没变（期间没有修改）就返回结果，变了才进monitor按原来的方式再查一遍
+     * 修改操作还是synchronized的，语义不变，只是前后各把version加一（修改期间是奇数）；
+     * rehash在新数组上复制节点，填好以后再整体发布，旧数组和上面的节点不动，正在读的线程不会被阻塞也不会走丢
+     * 关闭时把version变成奇数，还没读完的乐观读都会失败；这个设置不参与序列化，clone出来的Hashtable沿用它
+     */
+    public synchronized void setOptimisticReads(boolean enabled) {
+        if (((version & 1) == 0) != enabled)
+            version++;
+        optimisticReads = enabled;
+    }
+
+    // 修改tab[index]之前调用：先给还没保存这个桶的并行遍历复制一份（index为-1表示clear整张表），
+    // 再把version变成奇数，和这次修改重叠的乐观读都会失败
+    private void beginWrite(Entry<?,?>[] tab, int index) {
+        for (BulkSnapshot s = snapshots; s != null; s = s.next) {
+            if (s.table == tab)
+                s.save(index);
+        }
+        if (optimisticReads) {
+            version++;
+            VarHandle.storeStoreFence();
+        }
+    }
+
+    // 修改结束后调用：version回到偶数
+    private void endWrite() {
+        if (optimisticReads)
+            version++;
+    }
+
+    // 在持有monitor的情况下把e从链表上摘掉，prev为null表示e是桶头
+    private void unlinkEntry(Entry<?,?>[] tab, int index, Entry<K,V> prev, Entry<K,V> e) {
+        modCount++;
+        beginWrite(tab, index);
+        if (prev != null) {
+            prev.next = e.next;
+        } else {
+            tab[index] = e.next;
+        }
+        count--;
+        endWrite();
+    }
+
     public synchronized int size() {
         return count;
     }
@@ -60,11 +113,49 @@ public class Hashtable<K,V> extends Dictionary<K,V>
     public synchronized Enumeration<V> elements() {
         return this.<V>getEnumeration(VALUES);
     }
-    public synchronized boolean contains(Object value) {
+    public boolean contains(Object value) {
         if (value == null) {
             throw new NullPointerException();
         }
-
+        if (optimisticReads) {
+            int stamp = version;
+            if ((stamp & 1) == 0) {
+                boolean found = false;
+                Entry<?,?> tab[] = table;
+                outer:
+                for (int i = tab.length ; i-- > 0 ;) {
+                    for (Entry<?,?> e = tab[i] ; e != null ; e = e.next) {
+                        Object v = e.value;                 // 和修改重叠时可能读到null，version校验会失败
+                        if (v != null && v.equals(value)) {
+                            found = true;
+                            break outer;
+                        }
+                    }
+                }
+                VarHandle.acquireFence();
+                if (version == stamp)
+                    return found;
+            }
+        }
+        if (table.length <= BULK_STRIPE) {
+            synchronized (this) {
+                return contains0(value);
+            }
+        }
+        // 大表在快照上分段查，每段持有monitor查BULK_STRIPE个桶，段与段之间放开，写线程最多等一段
+        BulkSnapshot s = openSnapshot();
+        try {
+            for (int lo = 0, hi, n = s.table.length; lo < n; lo = hi) {
+                hi = (n - lo > BULK_STRIPE) ? lo + BULK_STRIPE : n;
+                if (s.containsValue(lo, hi, value))
+                    return true;
+            }
+            return false;
+        } finally {
+            closeSnapshot(s);
+        }
+    }
+    private boolean contains0(Object value) {
         Entry<?,?> tab[] = table;
         for (int i = tab.length ; i-- > 0 ;) {
             for (Entry<?,?> e = tab[i] ; e != null ; e = e.next) {
@@ -78,24 +169,44 @@ public class Hashtable<K,V> extends Dictionary<K,V>
     public boolean containsValue(Object value) {
         return contains(value);
     }
-    public synchronized boolean containsKey(Object key) {
-        Entry<?,?> tab[] = table;
+    public boolean containsKey(Object key) {
         int hash = key.hashCode();
-        int index = (hash & 0x7FFFFFFF) % tab.length;
-        for (Entry<?,?> e = tab[index] ; e != null ; e = e.next) {
-            if ((e.hash == hash) && e.key.equals(key)) {
-                return true;
+        if (optimisticReads) {
+            int stamp = version;
+            if ((stamp & 1) == 0) {
+                Entry<?,?> e = findEntry(table, hash, key);
+                VarHandle.acquireFence();
+                if (version == stamp)
+                    return e != null;
             }
         }
-        return false;
+        synchronized (this) {
+            return findEntry(table, hash, key) != null;
+        }
     }
-    public synchronized V get(Object key) {
-        Entry<?,?> tab[] = table;
+    public V get(Object key) {
         int hash = key.hashCode();
+        if (optimisticReads) {
+            int stamp = version;
+            if ((stamp & 1) == 0) {
+                Entry<?,?> e = findEntry(table, hash, key);
+                Object v = (e == null) ? null : e.value;
+                VarHandle.acquireFence();
+                if (version == stamp)
+                    return (V)v;
+            }
+        }
+        synchronized (this) {
+            Entry<?,?> e = findEntry(table, hash, key);
+            return (e == null) ? null : (V)e.value;
+        }
+    }
+    // 不加锁也可以调用：节点的next只会指向比它早创建的节点，链表不会成环
+    private static Entry<?,?> findEntry(Entry<?,?>[] tab, int hash, Object key) {
         int index = (hash & 0x7FFFFFFF) % tab.length;
         for (Entry<?,?> e = tab[index] ; e != null ; e = e.next) {
             if ((e.hash == hash) && e.key.equals(key)) {
-                return (V)e.value;
+                return e;
             }
         }
         return null;
@@ -111,7 +222,9 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         for(; entry != null ; entry = entry.next) {
             if ((entry.hash == hash) && entry.key.equals(key)) {
                 V old = entry.value;
+                beginWrite(tab, index);
                 entry.value = value;
+                endWrite();
                 return old;
             }
         }
@@ -125,13 +238,7 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         Entry<K,V> e = (Entry<K,V>)tab[index];
         for(Entry<K,V> prev = null ; e != null ; prev = e, e = e.next) {
             if ((e.hash == hash) && e.key.equals(key)) {
-                modCount++;
-                if (prev != null) {
-                    prev.next = e.next;
-                } else {
-                    tab[index] = e.next;
-                }
-                count--;
+                unlinkEntry(tab, index, prev, e);
                 V oldValue = e.value;
                 e.value = null;
                 return oldValue;
@@ -146,9 +253,11 @@ public class Hashtable<K,V> extends Dictionary<K,V>
     public synchronized void clear() {
         Entry<?,?> tab[] = table;
         modCount++;
+        beginWrite(tab, -1);
         for (int index = tab.length; --index >= 0; )
             tab[index] = null;
         count = 0;
+        endWrite();
     }
     public synchronized Object clone() {
         try {
@@ -161,6 +270,7 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             t.keySet = null;
             t.entrySet = null;
             t.values = null;
+            t.snapshots = null;
             t.modCount = 0;
             return t;
         } catch (CloneNotSupportedException e) {
@@ -240,7 +350,7 @@ public class Hashtable<K,V> extends Dictionary<K,V>
 
         return h;
     }
-    public synchronized V getOrDefault(Object key, V defaultValue) {
+    public V getOrDefault(Object key, V defaultValue) {
         V result = get(key);
         return (null == result) ? defaultValue : result;
     }
@@ -267,10 +377,14 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         final int expectedModCount = modCount;
 
         Entry<K, V>[] tab = (Entry<K, V>[])table;
-        for (Entry<K, V> entry : tab) {
+        for (int index = 0; index < tab.length; index++) {
+            Entry<K, V> entry = tab[index];
             while (entry != null) {
-                entry.value = Objects.requireNonNull(
+                V newValue = Objects.requireNonNull(
                     function.apply(entry.key, entry.value));
+                beginWrite(tab, index);
+                entry.value = newValue;
+                endWrite();
                 entry = entry.next;
 
                 if (expectedModCount != modCount) {
@@ -292,7 +406,9 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             if ((entry.hash == hash) && entry.key.equals(key)) {
                 V old = entry.value;
                 if (old == null) {
+                    beginWrite(tab, index);
                     entry.value = value;
+                    endWrite();
                 }
                 return old;
             }
@@ -311,13 +427,7 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         Entry<K,V> e = (Entry<K,V>)tab[index];
         for (Entry<K,V> prev = null; e != null; prev = e, e = e.next) {
             if ((e.hash == hash) && e.key.equals(key) && e.value.equals(value)) {
-                modCount++;
-                if (prev != null) {
-                    prev.next = e.next;
-                } else {
-                    tab[index] = e.next;
-                }
-                count--;
+                unlinkEntry(tab, index, prev, e);
                 e.value = null;
                 return true;
             }
@@ -335,7 +445,9 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         for (; e != null; e = e.next) {
             if ((e.hash == hash) && e.key.equals(key)) {
                 if (e.value.equals(oldValue)) {
+                    beginWrite(tab, index);
                     e.value = newValue;
+                    endWrite();
                     return true;
                 } else {
                     return false;
@@ -354,7 +466,9 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         for (; e != null; e = e.next) {
             if ((e.hash == hash) && e.key.equals(key)) {
                 V oldValue = e.value;
+                beginWrite(tab, index);
                 e.value = value;
+                endWrite();
                 return oldValue;
             }
         }
@@ -394,15 +508,11 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             if (e.hash == hash && e.key.equals(key)) {
                 V newValue = remappingFunction.apply(key, e.value);
                 if (newValue == null) {
-                    modCount++;
-                    if (prev != null) {
-                        prev.next = e.next;
-                    } else {
-                        tab[index] = e.next;
-                    }
-                    count--;
+                    unlinkEntry(tab, index, prev, e);
                 } else {
+                    beginWrite(tab, index);
                     e.value = newValue;
+                    endWrite();
                 }
                 return newValue;
             }
@@ -421,15 +531,11 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             if (e.hash == hash && Objects.equals(e.key, key)) {
                 V newValue = remappingFunction.apply(key, e.value);
                 if (newValue == null) {
-                    modCount++;
-                    if (prev != null) {
-                        prev.next = e.next;
-                    } else {
-                        tab[index] = e.next;
-                    }
-                    count--;
+                    unlinkEntry(tab, index, prev, e);
                 } else {
+                    beginWrite(tab, index);
                     e.value = newValue;
+                    endWrite();
                 }
                 return newValue;
             }
@@ -454,15 +560,11 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             if (e.hash == hash && e.key.equals(key)) {
                 V newValue = remappingFunction.apply(e.value, value);
                 if (newValue == null) {
-                    modCount++;
-                    if (prev != null) {
-                        prev.next = e.next;
-                    } else {
-                        tab[index] = e.next;
-                    }
-                    count--;
+                    unlinkEntry(tab, index, prev, e);
                 } else {
+                    beginWrite(tab, index);
                     e.value = newValue;
+                    endWrite();
                 }
                 return newValue;
             }
@@ -475,6 +577,84 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         return value;
     }
 
+    /* ---------------- 并行批量操作 -------------- */
+
+    /**
+     * 在ForkJoinPool公共池上并行地对每个key、value调用action，看到的是调用这一刻的内容（见BulkSnapshot），
+     * 期间别的线程照常读写：遍历线程每次只持有monitor取出BULK_STRIPE个桶里的key、value，放开monitor以后再调用action
+     * parallelismThreshold和ConcurrentHashMap.forEach(long, BiConsumer)的一样：元素个数少于它时只在当前线程里做，
+     * Long.MAX_VALUE表示不并行，1表示尽量拆分
+     * action可以修改这个Hashtable，修改对这次遍历不可见
+     * 调用线程持有这个Hashtable的monitor（synchronized (table) {...}）时只在当前线程里做，
+     * 否则拆出去的任务取桶时要等这个monitor，而调用线程在等它们，会死锁
+     */
+    public void parallelForEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        BulkSnapshot s = openSnapshot();
+        try {
+            new ForEachTask<K,V>(null, batchFor(parallelismThreshold), 0, s.table.length, s, action).invoke();
+        } finally {
+            closeSnapshot(s);
+        }
+    }
+
+    /**
+     * 并行地把每个key、value用transformer转换，再用reducer两两合并，快照和加锁方式同parallelForEach
+     * transformer返回null的元素跳过，没有元素或者全部跳过时返回null；reducer要满足结合律，合并顺序不确定
+     * 调用线程持有monitor时同样只在当前线程里做
+     */
+    public <U> U parallelReduce(long parallelismThreshold,
+                                BiFunction<? super K, ? super V, ? extends U> transformer,
+                                BiFunction<? super U, ? super U, ? extends U> reducer) {
+        Objects.requireNonNull(transformer);
+        Objects.requireNonNull(reducer);
+        BulkSnapshot s = openSnapshot();
+        try {
+            return new ReduceTask<K,V,U>(null, batchFor(parallelismThreshold), 0, s.table.length, s,
+                    null, transformer, reducer).invoke();
+        } finally {
+            closeSnapshot(s);
+        }
+    }
+
+    // 拆分次数，调用线程持有monitor时不拆分
+    private int batchFor(long b) {
+        return Thread.holdsLock(this) ? 0 : batchFor(b, count);
+    }
+
+    // 按元素个数n计算拆分次数，同ConcurrentHashMap.batchFor
+    static int batchFor(long b, long n) {
+        if (b == Long.MAX_VALUE || n <= 1L || n < b)
+            return 0;
+        int sp = ForkJoinPool.getCommonPoolParallelism() << 2; // slack of 4
+        return (b <= 0L || (n /= b) >= sp) ? sp : (int) n;
+    }
+
+    // 登记一个当前table上的快照，保存桶用的数组在monitor外分配，分配期间table换了就重来
+    private BulkSnapshot openSnapshot() {
+        for (;;) {
+            Entry<?,?>[] tab = table;
+            Entry<?,?>[] saved = new Entry<?,?>[tab.length];
+            synchronized (this) {
+                if (table == tab)
+                    return snapshots = new BulkSnapshot(this, tab, saved, snapshots);
+            }
+        }
+    }
+
+    // 注销快照，之后写线程不再为它保存桶
+    private synchronized void closeSnapshot(BulkSnapshot s) {
+        for (BulkSnapshot p = null, q = snapshots; q != null; p = q, q = q.next) {
+            if (q == s) {
+                if (p == null)
+                    snapshots = q.next;
+                else
+                    p.next = q.next;
+                return;
+            }
+        }
+    }
+
     private void writeObject(java.io.ObjectOutputStream s) throws IOException {
         Entry<Object, Object> entryStack = null;
 
@@ -645,6 +825,20 @@ public class Hashtable<K,V> extends Dictionary<K,V>
 
         modCount++;
         threshold = (int)Math.min(newCapacity * loadFactor, MAX_ARRAY_SIZE + 1);
+
+        if (version != 0 || snapshots != null) {
+            // 开启过乐观读或者有并行遍历正在进行：在新数组上复制节点，填好以后再发布，旧数组和旧节点不动，
+            // 并行遍历之后直接读旧数组；关闭乐观读以后也这样做，关闭之前开始的乐观读可能还在旧数组上走，
+            // 原地改next会让它走进别的链表甚至成环
+            for (int i = oldCapacity ; i-- > 0 ;) {
+                for (Entry<K,V> old = (Entry<K,V>)oldMap[i] ; old != null ; old = old.next) {
+                    int index = (old.hash & 0x7FFFFFFF) % newCapacity;
+                    newMap[index] = new Entry<>(old.hash, old.key, old.value, (Entry<K,V>)newMap[index]);
+                }
+            }
+            table = newMap;
+            return;
+        }
         table = newMap;
 
         for (int i = oldCapacity ; i-- > 0 ;) {
@@ -673,8 +867,10 @@ public class Hashtable<K,V> extends Dictionary<K,V>
 
         @SuppressWarnings("unchecked")
         Entry<K,V> e = (Entry<K,V>) tab[index];
+        beginWrite(tab, index);
         tab[index] = new Entry<>(hash, key, value, e);
         count++;
+        endWrite();
     }
 
 
@@ -762,13 +958,7 @@ public class Hashtable<K,V> extends Dictionary<K,V>
             Entry<K,V> e = (Entry<K,V>)tab[index];
             for(Entry<K,V> prev = null; e != null; prev = e, e = e.next) {
                 if (e.hash==hash && e.equals(entry)) {
-                    modCount++;
-                    if (prev != null)
-                        prev.next = e.next;
-                    else
-                        tab[index] = e.next;
-
-                    count--;
+                    unlinkEntry(tab, index, prev, e);
                     e.value = null;
                     return true;
                 }
@@ -865,13 +1055,8 @@ public class Hashtable<K,V> extends Dictionary<K,V>
                 Entry<K,V> e = (Entry<K,V>)tab[index];
                 for(Entry<K,V> prev = null; e != null; prev = e, e = e.next) {
                     if (e == lastReturned) {
-                        modCount++;
+                        unlinkEntry(tab, index, prev, e);
                         expectedModCount++;
-                        if (prev == null)
-                            tab[index] = e.next;
-                        else
-                            prev.next = e.next;
-                        count--;
                         lastReturned = null;
                         return;
                     }
@@ -881,4 +1066,196 @@ public class Hashtable<K,V> extends Dictionary<K,V>
         }
     }
 
+    /**
+     * 并行遍历和分段contains看到的快照：记下开始时的桶数组table，写线程第一次修改其中某个桶之前，
+     * 在beginWrite里把这个桶的链表复制一份存进saved；读的一方每次在monitor下处理一段桶，
+     * 存过的用副本，没存过的说明开始以后没被改过，直接读table上的链表，处理完都标成SAVED，之后写线程不用再复制
+     * 有快照时rehash复制节点而不是原地挪，换下来的旧数组和旧节点不再修改，照样可以读；
+     * clear摘下来的链表以后也不会再被修改，直接存链表头
+     * 除了构造，所有字段都只在monitor下读写
+     */
+    static final class BulkSnapshot {
+        static final Entry<?,?> SAVED = new Entry<>(0, null, null, null);  // 空桶，或者已经处理过
+        final Object lock;                          // 所属的Hashtable
+        final Entry<?,?>[] table;
+        final Entry<?,?>[] saved;
+        BulkSnapshot next;
+
+        BulkSnapshot(Object lock, Entry<?,?>[] table, Entry<?,?>[] saved, BulkSnapshot next) {
+            this.lock = lock;
+            this.table = table;
+            this.saved = saved;
+            this.next = next;
+        }
+
+        // 写线程修改table[index]之前调用，index为-1表示clear整张表
+        @SuppressWarnings("unchecked")
+        void save(int index) {
+            Entry<?,?>[] tab = table, sv = saved;
+            if (index < 0) {
+                for (int i = 0; i < tab.length; i++) {
+                    if (sv[i] == null)
+                        sv[i] = (tab[i] == null) ? SAVED : tab[i];
+                }
+            } else if (sv[index] == null) {
+                Entry<Object,Object> head = null, tail = null;
+                for (Entry<?,?> e = tab[index]; e != null; e = e.next) {
+                    Entry<Object,Object> c = new Entry<>(e.hash, e.key, e.value, null);
+                    if (tail == null)
+                        head = c;
+                    else
+                        tail.next = c;
+                    tail = c;
+                }
+                sv[index] = (head == null) ? SAVED : head;
+            }
+        }
+
+        // 取出桶index在快照时刻的链表，并标记为已处理，只在monitor下调用
+        Entry<?,?> take(int index) {
+            Entry<?,?> e = saved[index];
+            saved[index] = SAVED;
+            if (e == null)
+                return table[index];
+            return (e == SAVED) ? null : e;
+        }
+
+        boolean containsValue(int lo, int hi, Object value) {
+            synchronized (lock) {
+                for (int i = lo; i < hi; i++) {
+                    for (Entry<?,?> e = take(i); e != null; e = e.next) {
+                        if (e.value.equals(value))
+                            return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 并行遍历的任务，按桶下标区间拆分，拆法同ConcurrentHashMap.BulkTask
+     */
+    @SuppressWarnings("serial")
+    abstract static class BulkTask<K,V,R> extends CountedCompleter<R> {
+        final BulkSnapshot snapshot;
+        int batch;                                  // 还能再拆几次
+        int baseIndex, baseLimit;                   // 负责的桶下标区间[baseIndex, baseLimit)
+        Object[] pairs = new Object[BULK_STRIPE << 1];  // 从一段桶里取出的key、value交替排列
+
+        BulkTask(BulkTask<K,V,?> par, int b, int i, int f, BulkSnapshot s) {
+            super(par);
+            this.batch = b;
+            this.baseIndex = i;
+            this.baseLimit = f;
+            this.snapshot = s;
+        }
+
+        // 在monitor下取出[lo, hi)里所有的key、value放进pairs，返回pairs里用了多少个位置
+        final int collect(int lo, int hi) {
+            BulkSnapshot s = snapshot;
+            Object[] p = pairs;
+            int n = 0;
+            synchronized (s.lock) {
+                for (int i = lo; i < hi; i++) {
+                    for (Entry<?,?> e = s.take(i); e != null; e = e.next) {
+                        if (n == p.length)
+                            pairs = p = Arrays.copyOf(p, n << 1);
+                        p[n] = e.key;
+                        p[n + 1] = e.value;
+                        n += 2;
+                    }
+                }
+            }
+            return n;
+        }
+
+        // 下一段的结束下标
+        final int stripeEnd(int lo) {
+            return (baseLimit - lo > BULK_STRIPE) ? lo + BULK_STRIPE : baseLimit;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ForEachTask<K,V> extends BulkTask<K,V,Void> {
+        final BiConsumer<? super K, ? super V> action;
+
+        ForEachTask(BulkTask<K,V,?> p, int b, int i, int f, BulkSnapshot s,
+                    BiConsumer<? super K, ? super V> action) {
+            super(p, b, i, f, s);
+            this.action = action;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void compute() {
+            final BiConsumer<? super K, ? super V> action = this.action;
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                new ForEachTask<K,V>(this, batch >>>= 1, baseLimit = h, f, snapshot, action).fork();
+            }
+            for (int lo = baseIndex, hi; lo < baseLimit; lo = hi) {
+                int n = collect(lo, hi = stripeEnd(lo));
+                Object[] p = pairs;
+                for (int j = 0; j < n; j += 2)
+                    action.accept((K)p[j], (V)p[j + 1]);
+            }
+            propagateCompletion();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ReduceTask<K,V,U> extends BulkTask<K,V,U> {
+        final BiFunction<? super K, ? super V, ? extends U> transformer;
+        final BiFunction<? super U, ? super U, ? extends U> reducer;
+        U result;
+        ReduceTask<K,V,U> rights, nextRight;
+
+        ReduceTask(BulkTask<K,V,?> p, int b, int i, int f, BulkSnapshot s, ReduceTask<K,V,U> nextRight,
+                   BiFunction<? super K, ? super V, ? extends U> transformer,
+                   BiFunction<? super U, ? super U, ? extends U> reducer) {
+            super(p, b, i, f, s);
+            this.nextRight = nextRight;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+
+        public final U getRawResult() {
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void compute() {
+            final BiFunction<? super K, ? super V, ? extends U> transformer = this.transformer;
+            final BiFunction<? super U, ? super U, ? extends U> reducer = this.reducer;
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                (rights = new ReduceTask<K,V,U>(this, batch >>>= 1, baseLimit = h, f, snapshot,
+                        rights, transformer, reducer)).fork();
+            }
+            U r = null;
+            for (int lo = baseIndex, hi; lo < baseLimit; lo = hi) {
+                int n = collect(lo, hi = stripeEnd(lo));
+                Object[] p = pairs;
+                for (int j = 0; j < n; j += 2) {
+                    U u;
+                    if ((u = transformer.apply((K)p[j], (V)p[j + 1])) != null)
+                        r = (r == null) ? u : reducer.apply(r, u);
+                }
+            }
+            result = r;
+            CountedCompleter<?> c;
+            for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                ReduceTask<K,V,U> t = (ReduceTask<K,V,U>)c, s = t.rights;
+                while (s != null) {
+                    U tr, sr;
+                    if ((sr = s.result) != null)
+                        t.result = (((tr = t.result) == null) ? sr : reducer.apply(tr, sr));
+                    s = t.rights = s.nextRight;
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,415 @@
+package java.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 元素是int的Set，和IntIntMap用同一套结构：2的幂长度的int数组，Robin Hood线性探测，backward shift删除，
+ * 数组里0表示空槽，元素0单独用hasZero记录；任何操作都不装箱
+ * stream()返回IntStream，底层是Spliterator.OfInt，可以并行
+ * 不是线程安全的，forEach和spliterator遍历时修改会抛出ConcurrentModificationException
+ */
+public class IntHashSet implements Cloneable, java.io.Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = -6519315725408217634L;
+    static final int DEFAULT_INITIAL_CAPACITY = 1 << 4;                 // 默认容量16
+    static final int MAXIMUM_CAPACITY = 1 << 30;                        // 最大容量2的30次方
+    static final float DEFAULT_LOAD_FACTOR = 0.8f;                      // 默认加载因子
+    static final float MAXIMUM_LOAD_FACTOR = 0.95f;                     // 加载因子上限，保证表里有空槽
+    int[] elements;                                                     // 元素数组，0表示空槽
+    boolean hasZero;                                                    // 是否包含0
+    int size;                                                           // 元素个数，包括0
+    transient int modCount;                                             // 并发修改异常计数
+    int threshold;                                                      // 数组里的元素超过这个数就扩容，表还没分配时是初始容量
+    final float loadFactor;                                             // 加载因子
+    transient int hashSeed = ThreadLocalRandom.current().nextInt();     // 每个实例一个的散列种子，见IntIntMap.hash，反序列化时重新生成
+
+    public IntHashSet(int initialCapacity, float loadFactor) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        if (initialCapacity > MAXIMUM_CAPACITY)
+            initialCapacity = MAXIMUM_CAPACITY;
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR))
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.threshold = HashMap.tableSizeFor(initialCapacity);
+    }
+
+    public IntHashSet(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    public IntHashSet() {
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 查找非0的元素所在的槽，没有返回-1
+     */
+    final int find(int e) {
+        int[] es;
+        if ((es = elements) != null) {
+            int mask = es.length - 1;
+            for (int i = IntIntMap.hash(e, hashSeed) & mask, d = 0; ; i = (i + 1) & mask, ++d) {
+                int k;
+                if ((k = es[i]) == e)
+                    return i;
+                if (k == 0 || ((i - (IntIntMap.hash(k, hashSeed) & mask)) & mask) < d)
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int e) {
+        return (e == 0) ? hasZero : find(e) >= 0;
+    }
+
+    /**
+     * 元素原来不存在时返回true
+     */
+    public boolean add(int e) {
+        if (e == 0) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            ++modCount;
+            ++size;
+            return true;
+        }
+        int[] es;
+        if ((es = elements) == null)
+            es = resize();
+        int mask = es.length - 1;
+        int i = IntIntMap.hash(e, hashSeed) & mask, d = 0;
+        for (int k; (k = es[i]) != 0; i = (i + 1) & mask, ++d) {
+            if (k == e)
+                return false;
+            if (((i - (IntIntMap.hash(k, hashSeed) & mask)) & mask) < d)
+                break;
+        }
+        if (size - (hasZero ? 1 : 0) >= MAXIMUM_CAPACITY - 1)
+            throw new IllegalStateException("IntHashSet is full");
+        place(es, i, d, e);
+        ++modCount;
+        ++size;
+        if (size - (hasZero ? 1 : 0) > threshold)
+            resize();
+        return true;
+    }
+
+    /**
+     * Robin Hood插入，遇到探测距离更小的元素就交换，拿着被换出来的元素继续往后找，直到遇到空槽
+     */
+    final void place(int[] es, int i, int d, int e) {
+        int mask = es.length - 1;
+        for (; ; i = (i + 1) & mask, ++d) {
+            int k;
+            if ((k = es[i]) == 0) {
+                es[i] = e;
+                return;
+            }
+            int pd;
+            if ((pd = (i - (IntIntMap.hash(k, hashSeed) & mask)) & mask) < d) {
+                es[i] = e;
+                e = k;
+                d = pd;
+            }
+        }
+    }
+
+    /**
+     * 初始化或者扩容为原来的两倍，做法和IntIntMap.resize一样
+     */
+    final int[] resize() {
+        int[] old = elements;
+        int oldCap = (old == null) ? 0 : old.length;
+        int newCap;
+        if (oldCap > 0) {
+            if (oldCap >= MAXIMUM_CAPACITY) {
+                threshold = Integer.MAX_VALUE;
+                return old;
+            }
+            newCap = oldCap << 1;
+        } else if (threshold > 0)
+            newCap = threshold;
+        else
+            newCap = DEFAULT_INITIAL_CAPACITY;
+        threshold = (newCap < MAXIMUM_CAPACITY) ? (int) (newCap * loadFactor) : Integer.MAX_VALUE;
+        int[] es = new int[newCap];
+        if (old != null) {
+            int mask = newCap - 1, oldMask = oldCap - 1, start = 0;
+            while (start < oldCap && old[start] != 0)
+                ++start;
+            start &= oldMask;
+            for (int n = 0, j = start; n < oldCap; ++n, j = (j + 1) & oldMask) {
+                int k;
+                if ((k = old[j]) != 0)
+                    place(es, IntIntMap.hash(k, hashSeed) & mask, 0, k);
+            }
+        }
+        elements = es;
+        return es;
+    }
+
+    /**
+     * 元素原来存在时返回true
+     */
+    public boolean remove(int e) {
+        int i;
+        if (e == 0) {
+            if (!hasZero)
+                return false;
+            hasZero = false;
+            ++modCount;
+            --size;
+            return true;
+        }
+        if ((i = find(e)) < 0)
+            return false;
+        int[] es = elements;
+        int mask = es.length - 1;
+        ++modCount;
+        --size;
+        for (int j; ; i = j) {
+            int k;
+            j = (i + 1) & mask;
+            if ((k = es[j]) == 0 || ((j - (IntIntMap.hash(k, hashSeed) & mask)) & mask) == 0) {
+                es[i] = 0;
+                return true;
+            }
+            es[i] = k;
+        }
+    }
+
+    public void clear() {
+        modCount++;
+        if (size > 0) {
+            size = 0;
+            hasZero = false;
+            if (elements != null)
+                Arrays.fill(elements, 0);
+        }
+    }
+
+    public void forEach(IntConsumer action) {
+        int[] es;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0) {
+            int mc = modCount;
+            if ((es = elements) != null) {
+                for (int e : es) {
+                    if (e != 0)
+                        action.accept(e);
+                }
+            }
+            if (hasZero)
+                action.accept(0);
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    public int[] toArray() {
+        int[] r = new int[size], es;
+        int idx = 0;
+        if ((es = elements) != null) {
+            for (int e : es) {
+                if (e != 0)
+                    r[idx++] = e;
+            }
+        }
+        if (hasZero)
+            r[idx] = 0;
+        return r;
+    }
+
+    public Spliterator.OfInt spliterator() {
+        return new IntHashSetSpliterator(this, 0, -1, 0, 0);
+    }
+
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /**
+     * 浅拷贝，数组复制一份
+     */
+    @Override
+    public IntHashSet clone() {
+        IntHashSet result;
+        try {
+            result = (IntHashSet) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e);
+        }
+        if (elements != null)
+            result.elements = elements.clone();
+        result.modCount = 0;
+        return result;
+    }
+
+    /**
+     * 反序列化时检查数组，防止构造出长度不是2的幂或者没有空槽的表
+     * hashSeed是transient的，检查完用新生成的种子重新放置所有元素，数组里非0元素的个数必须和size对得上
+     */
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        int n = (elements == null) ? 0 : elements.length, used = size - (hasZero ? 1 : 0);
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR) || (n & (n - 1)) != 0 ||
+                used < 0 || (used > 0 && used >= n))
+            throw new java.io.InvalidObjectException("Corrupt IntHashSet");
+        hashSeed = ThreadLocalRandom.current().nextInt();
+        if (n > 0) {
+            int[] old = elements, es = new int[n];
+            int mask = n - 1, c = 0;
+            for (int k : old) {
+                if (k != 0) {
+                    if (++c > used)
+                        throw new java.io.InvalidObjectException("Corrupt IntHashSet");
+                    place(es, IntIntMap.hash(k, hashSeed) & mask, 0, k);
+                }
+            }
+            if (c != used)
+                throw new java.io.InvalidObjectException("Corrupt IntHashSet");
+            elements = es;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof IntHashSet))
+            return false;
+        IntHashSet s = (IntHashSet) o;
+        if (s.size != size || s.hasZero != hasZero)
+            return false;
+        int[] es;
+        if ((es = elements) != null) {
+            for (int e : es) {
+                if (e != 0 && s.find(e) < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 和Set.hashCode的约定一样：所有元素的hashCode之和
+     */
+    @Override
+    public int hashCode() {
+        int h = 0;
+        int[] es;
+        if ((es = elements) != null) {
+            for (int e : es) {
+                if (e != 0)
+                    h += Integer.hashCode(e);
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner sj = new StringJoiner(", ", "[", "]");
+        forEach(e -> sj.add(String.valueOf(e)));
+        return sj.toString();
+    }
+
+    /**
+     * spliterator按槽位从低到高遍历，下标等于数组长度的那个位置表示元素0
+     */
+    static final class IntHashSetSpliterator implements Spliterator.OfInt {
+        final IntHashSet set;
+        int index;                  // current index, modified on advance/split
+        int fence;                  // one past last index
+        int est;                    // size estimate
+        int expectedModCount;       // for comodification checks
+
+        IntHashSetSpliterator(IntHashSet s, int origin, int fence, int est, int expectedModCount) {
+            this.set = s;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = expectedModCount;
+        }
+
+        final int getFence() { // initialize fence and size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                IntHashSet s = set;
+                est = s.size;
+                expectedModCount = s.modCount;
+                hi = fence = ((s.elements == null) ? 0 : s.elements.length) + 1;
+            }
+            return hi;
+        }
+
+        public long estimateSize() {
+            getFence(); // force init
+            return (long) est;
+        }
+
+        public IntHashSetSpliterator trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? null :
+                    new IntHashSetSpliterator(set, lo, index = mid, est >>>= 1, expectedModCount);
+        }
+
+        public void forEachRemaining(IntConsumer action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence(), mc = expectedModCount;
+            int[] es = set.elements;
+            int n = (es == null) ? 0 : es.length;
+            for (int i = index; i < hi; ++i) {
+                if (i < n) {
+                    if (es[i] != 0)
+                        action.accept(es[i]);
+                } else if (set.hasZero)
+                    action.accept(0);
+            }
+            index = hi;
+            if (set.modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+
+        public boolean tryAdvance(IntConsumer action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence();
+            int[] es = set.elements;
+            int n = (es == null) ? 0 : es.length;
+            while (index < hi) {
+                int i = index++;
+                if ((i < n) ? es[i] != 0 : set.hasZero) {
+                    action.accept((i < n) ? es[i] : 0);
+                    if (set.modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == set.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+}
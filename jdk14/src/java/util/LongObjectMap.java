@@ -0,0 +1,628 @@
+package java.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * long到对象的Map，key直接存在long数组里，不装箱，也不为每个映射分配Node
+ *
+ * 表的长度和HashMap一样是2的幂（容量用HashMap.tableSizeFor计算），下标用key的扰动值&(长度-1)得到；
+ * 扰动是key加上每个实例随机的hashSeed后做一遍fmix64，连续的key和步长是2的幂的key都能分散开，
+ * 没有树化的退路，所以不能让外部事先算出大批探测到同一段的key
+ * 冲突用Robin Hood线性探测，删除用backward shift，探测距离由key重新算出来，不需要额外的hash数组
+ * keys数组里0表示空槽，key为0的映射单独存在zeroValue里，遍历时放在最后
+ *
+ * value可以是null，get、put、remove在没有映射时返回null，和Map一样需要区分时用containsKey
+ * keys()返回LongStream，底层是Spliterator.OfLong；values()返回Stream，都可以并行
+ * 不是线程安全的，forEach和spliterator遍历时修改会抛出ConcurrentModificationException
+ */
+public class LongObjectMap<V> implements Cloneable, java.io.Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = 3351806045296631072L;
+    static final int DEFAULT_INITIAL_CAPACITY = 1 << 4;                 // 默认容量16
+    static final int MAXIMUM_CAPACITY = 1 << 30;                        // 最大容量2的30次方
+    static final float DEFAULT_LOAD_FACTOR = 0.8f;                      // 默认加载因子
+    static final float MAXIMUM_LOAD_FACTOR = 0.95f;                     // 加载因子上限，保证表里有空槽
+    long[] keys;                                                        // key数组，0表示空槽
+    Object[] vals;                                                      // value数组，和keys一一对应
+    boolean hasZeroKey;                                                 // 是否有key为0的映射
+    V zeroValue;                                                        // key为0的映射的value
+    int size;                                                           // 映射个数，包括key为0的映射
+    transient int modCount;                                             // 并发修改异常计数
+    int threshold;                                                      // 数组里的元素超过这个数就扩容，表还没分配时是初始容量
+    final float loadFactor;                                             // 加载因子
+    transient long hashSeed = ThreadLocalRandom.current().nextLong();   // 每个实例一个的散列种子，见hash，反序列化时重新生成
+
+    /**
+     * 遍历用的回调，key是long
+     */
+    @FunctionalInterface
+    public interface LongObjConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    /**
+     * key加上seed后做murmur3的fmix64（两轮乘法、移位异或），和ConcurrentLongObjectMap.spread一样
+     * 单纯的乘法散列可逆，按k = h * C^-1就能算出任意多个探测到同一段的key；seed每个实例随机，外部不知道就构造不出来
+     */
+    static int hash(long key, long seed) {
+        long h = key + seed;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public LongObjectMap(int initialCapacity, float loadFactor) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        if (initialCapacity > MAXIMUM_CAPACITY)
+            initialCapacity = MAXIMUM_CAPACITY;
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR))
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.threshold = HashMap.tableSizeFor(initialCapacity);
+    }
+
+    public LongObjectMap(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    public LongObjectMap() {
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 查找非0的key所在的槽，没有返回-1
+     */
+    final int find(long key) {
+        long[] ks;
+        if ((ks = keys) != null) {
+            int mask = ks.length - 1;
+            for (int i = hash(key, hashSeed) & mask, d = 0; ; i = (i + 1) & mask, ++d) {
+                long k;
+                if ((k = ks[i]) == key)
+                    return i;
+                if (k == 0 || ((i - (hash(k, hashSeed) & mask)) & mask) < d)
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return (key == 0) ? hasZeroKey : find(key) >= 0;
+    }
+
+    public boolean containsValue(Object value) {
+        long[] ks;
+        if (hasZeroKey && Objects.equals(zeroValue, value))
+            return true;
+        if ((ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                if (ks[i] != 0 && Objects.equals(vs[i], value))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public V get(long key) {
+        return getOrDefault(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(long key, V defaultValue) {
+        int i;
+        if (key == 0)
+            return hasZeroKey ? zeroValue : defaultValue;
+        return ((i = find(key)) < 0) ? defaultValue : (V) vals[i];
+    }
+
+    /**
+     * 返回原来的value，原来没有这个key时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            V oldValue = zeroValue;
+            zeroValue = value;
+            if (hasZeroKey)
+                return oldValue;
+            hasZeroKey = true;
+            ++modCount;
+            ++size;
+            return null;
+        }
+        long[] ks;
+        if ((ks = keys) == null)
+            ks = resize();
+        Object[] vs = vals;
+        int mask = ks.length - 1;
+        int i = hash(key, hashSeed) & mask, d = 0;
+        for (long k; (k = ks[i]) != 0; i = (i + 1) & mask, ++d) {
+            if (k == key) {
+                V oldValue = (V) vs[i];
+                vs[i] = value;
+                return oldValue;
+            }
+            if (((i - (hash(k, hashSeed) & mask)) & mask) < d)
+                break;
+        }
+        insert(ks, vs, i, d, key, value);
+        return null;
+    }
+
+    /**
+     * 从第i个槽开始做Robin Hood插入，调用前已经确定key不存在
+     */
+    final void insert(long[] ks, Object[] vs, int i, int d, long key, Object value) {
+        if (size - (hasZeroKey ? 1 : 0) >= MAXIMUM_CAPACITY - 1)
+            throw new IllegalStateException("LongObjectMap is full");
+        place(ks, vs, i, d, key, value);
+        ++modCount;
+        ++size;
+        if (size - (hasZeroKey ? 1 : 0) > threshold)
+            resize();
+    }
+
+    /**
+     * 遇到探测距离更小的元素就交换，拿着被换出来的元素继续往后找，直到遇到空槽
+     */
+    final void place(long[] ks, Object[] vs, int i, int d, long key, Object value) {
+        int mask = ks.length - 1;
+        for (; ; i = (i + 1) & mask, ++d) {
+            long k;
+            if ((k = ks[i]) == 0) {
+                ks[i] = key;
+                vs[i] = value;
+                return;
+            }
+            int pd;
+            if ((pd = (i - (hash(k, hashSeed) & mask)) & mask) < d) {
+                Object v = vs[i];
+                ks[i] = key;
+                vs[i] = value;
+                key = k;
+                value = v;
+                d = pd;
+            }
+        }
+    }
+
+    /**
+     * 初始化或者扩容为原来的两倍，做法和FlatHashMap.resize一样
+     */
+    final long[] resize() {
+        long[] oldKeys = keys;
+        Object[] oldVals = vals;
+        int oldCap = (oldKeys == null) ? 0 : oldKeys.length;
+        int newCap;
+        if (oldCap > 0) {
+            if (oldCap >= MAXIMUM_CAPACITY) {
+                threshold = Integer.MAX_VALUE;
+                return oldKeys;
+            }
+            newCap = oldCap << 1;
+        } else if (threshold > 0)
+            newCap = threshold;
+        else
+            newCap = DEFAULT_INITIAL_CAPACITY;
+        threshold = (newCap < MAXIMUM_CAPACITY) ? (int) (newCap * loadFactor) : Integer.MAX_VALUE;
+        long[] ks = new long[newCap];
+        Object[] vs = new Object[newCap];
+        if (oldKeys != null) {
+            int mask = newCap - 1, oldMask = oldCap - 1, start = 0;
+            while (start < oldCap && oldKeys[start] != 0)
+                ++start;
+            start &= oldMask;
+            for (int n = 0, j = start; n < oldCap; ++n, j = (j + 1) & oldMask) {
+                long k;
+                if ((k = oldKeys[j]) != 0)
+                    place(ks, vs, hash(k, hashSeed) & mask, 0, k, oldVals[j]);
+            }
+        }
+        keys = ks;
+        vals = vs;
+        return ks;
+    }
+
+    /**
+     * 返回原来的value，原来没有这个key时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i;
+        if (key == 0) {
+            if (!hasZeroKey)
+                return null;
+            V oldValue = zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            ++modCount;
+            --size;
+            return oldValue;
+        }
+        if ((i = find(key)) < 0)
+            return null;
+        V oldValue = (V) vals[i];
+        removeAt(i);
+        return oldValue;
+    }
+
+    /**
+     * backward shift删除第i个槽，和FlatHashMap.removeAt一样
+     */
+    final void removeAt(int i) {
+        long[] ks = keys;
+        Object[] vs = vals;
+        int mask = ks.length - 1;
+        ++modCount;
+        --size;
+        for (int j; ; i = j) {
+            long k;
+            j = (i + 1) & mask;
+            if ((k = ks[j]) == 0 || ((j - (hash(k, hashSeed) & mask)) & mask) == 0) {
+                ks[i] = 0;
+                vs[i] = null;
+                return;
+            }
+            ks[i] = k;
+            vs[i] = vs[j];
+        }
+    }
+
+    /**
+     * 和Map.computeIfAbsent一样：没有这个key或者value是null时放入mappingFunction算出来的非null值
+     */
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        V oldValue;
+        if ((oldValue = get(key)) != null)
+            return oldValue;
+        int mc = modCount;
+        V v = mappingFunction.apply(key);
+        if (mc != modCount)
+            throw new ConcurrentModificationException();
+        if (v != null)
+            put(key, v);
+        return v;
+    }
+
+    /**
+     * 和Map.merge一样：旧值是null或者没有这个key时放入value，否则放入remappingFunction(旧值, value)，结果是null就删除
+     */
+    public V merge(long key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        V oldValue, v;
+        if ((oldValue = get(key)) == null)
+            v = value;
+        else {
+            int mc = modCount;
+            v = remappingFunction.apply(oldValue, value);
+            if (mc != modCount)
+                throw new ConcurrentModificationException();
+        }
+        if (v == null)
+            remove(key);
+        else
+            put(key, v);
+        return v;
+    }
+
+    public void clear() {
+        modCount++;
+        if (size > 0) {
+            size = 0;
+            hasZeroKey = false;
+            zeroValue = null;
+            if (keys != null) {
+                Arrays.fill(keys, 0);
+                Arrays.fill(vals, null);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(LongObjConsumer<? super V> action) {
+        long[] ks;
+        if (action == null)
+            throw new NullPointerException();
+        if (size > 0) {
+            int mc = modCount;
+            if ((ks = keys) != null) {
+                Object[] vs = vals;
+                for (int i = 0; i < ks.length; ++i) {
+                    long k;
+                    if ((k = ks[i]) != 0)
+                        action.accept(k, (V) vs[i]);
+                }
+            }
+            if (hasZeroKey)
+                action.accept(0, zeroValue);
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    public Spliterator.OfLong keySpliterator() {
+        return new KeySpliterator<>(this, 0, -1, 0, 0);
+    }
+
+    public Spliterator<V> valueSpliterator() {
+        return new ValueSpliterator<>(this, 0, -1, 0, 0);
+    }
+
+    public LongStream keys() {
+        return StreamSupport.longStream(keySpliterator(), false);
+    }
+
+    public Stream<V> values() {
+        return StreamSupport.stream(valueSpliterator(), false);
+    }
+
+    /**
+     * 浅拷贝，数组各复制一份
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public LongObjectMap<V> clone() {
+        LongObjectMap<V> result;
+        try {
+            result = (LongObjectMap<V>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e);
+        }
+        if (keys != null) {
+            result.keys = keys.clone();
+            result.vals = vals.clone();
+        }
+        result.modCount = 0;
+        return result;
+    }
+
+    /**
+     * 反序列化时检查数组，防止构造出长度不是2的幂或者没有空槽的表
+     * hashSeed是transient的，检查完用新生成的种子重新放置所有元素，数组里非0元素的个数必须和size对得上
+     */
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        int n = (keys == null) ? 0 : keys.length, used = size - (hasZeroKey ? 1 : 0);
+        if (!(loadFactor > 0 && loadFactor <= MAXIMUM_LOAD_FACTOR) || (n & (n - 1)) != 0 ||
+                (vals == null ? 0 : vals.length) != n || used < 0 || (used > 0 && used >= n))
+            throw new java.io.InvalidObjectException("Corrupt LongObjectMap");
+        hashSeed = ThreadLocalRandom.current().nextLong();
+        if (n > 0) {
+            long[] oldKeys = keys, ks = new long[n];
+            Object[] oldVals = vals, vs = new Object[n];
+            int mask = n - 1, c = 0;
+            for (int j = 0; j < n; ++j) {
+                long k;
+                if ((k = oldKeys[j]) != 0) {
+                    if (++c > used)
+                        throw new java.io.InvalidObjectException("Corrupt LongObjectMap");
+                    place(ks, vs, hash(k, hashSeed) & mask, 0, k, oldVals[j]);
+                }
+            }
+            if (c != used)
+                throw new java.io.InvalidObjectException("Corrupt LongObjectMap");
+            keys = ks;
+            vals = vs;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof LongObjectMap))
+            return false;
+        LongObjectMap<?> m = (LongObjectMap<?>) o;
+        if (m.size != size || m.hasZeroKey != hasZeroKey || (hasZeroKey && !Objects.equals(m.zeroValue, zeroValue)))
+            return false;
+        long[] ks;
+        if ((ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                long k;
+                int j;
+                if ((k = ks[i]) != 0 && ((j = m.find(k)) < 0 || !Objects.equals(m.vals[j], vs[i])))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 和Map.hashCode的约定一样：所有映射的key和value的hashCode异或后求和
+     */
+    @Override
+    public int hashCode() {
+        int h = hasZeroKey ? Objects.hashCode(zeroValue) : 0;
+        long[] ks;
+        if ((ks = keys) != null) {
+            Object[] vs = vals;
+            for (int i = 0; i < ks.length; ++i) {
+                long k;
+                if ((k = ks[i]) != 0)
+                    h += Long.hashCode(k) ^ Objects.hashCode(vs[i]);
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append('{');
+        forEach((k, v) -> {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+
+    /**
+     * spliterator按槽位从低到高遍历，下标等于数组长度的那个位置表示key为0的映射
+     */
+    static class LongObjectMapSpliterator<V> {
+        final LongObjectMap<V> map;
+        int index;                  // current index, modified on advance/split
+        int fence;                  // one past last index
+        int est;                    // size estimate
+        int expectedModCount;       // for comodification checks
+
+        LongObjectMapSpliterator(LongObjectMap<V> m, int origin, int fence, int est, int expectedModCount) {
+            this.map = m;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = expectedModCount;
+        }
+
+        final int getFence() { // initialize fence and size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                LongObjectMap<V> m = map;
+                est = m.size;
+                expectedModCount = m.modCount;
+                hi = fence = ((m.keys == null) ? 0 : m.keys.length) + 1;
+            }
+            return hi;
+        }
+
+        public final long estimateSize() {
+            getFence(); // force init
+            return (long) est;
+        }
+
+        /**
+         * 第i个位置有没有映射
+         */
+        final boolean occupied(long[] ks, int i) {
+            int n = (ks == null) ? 0 : ks.length;
+            return (i < n) ? ks[i] != 0 : map.hasZeroKey;
+        }
+
+        final int splitPoint() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid) ? -1 : mid;
+        }
+    }
+
+    static final class KeySpliterator<V> extends LongObjectMapSpliterator<V> implements Spliterator.OfLong {
+        KeySpliterator(LongObjectMap<V> m, int origin, int fence, int est, int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public KeySpliterator<V> trySplit() {
+            int lo = index, mid;
+            return ((mid = splitPoint()) < 0) ? null :
+                    new KeySpliterator<>(map, lo, index = mid, est >>>= 1, expectedModCount);
+        }
+
+        public void forEachRemaining(LongConsumer action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence(), mc = expectedModCount;
+            long[] ks = map.keys;
+            for (int i = index; i < hi; ++i) {
+                if (occupied(ks, i))
+                    action.accept((ks != null && i < ks.length) ? ks[i] : 0);
+            }
+            index = hi;
+            if (map.modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+
+        public boolean tryAdvance(LongConsumer action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence();
+            long[] ks = map.keys;
+            while (index < hi) {
+                int i = index++;
+                if (occupied(ks, i)) {
+                    action.accept((ks != null && i < ks.length) ? ks[i] : 0);
+                    if (map.modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
+    static final class ValueSpliterator<V> extends LongObjectMapSpliterator<V> implements Spliterator<V> {
+        ValueSpliterator(LongObjectMap<V> m, int origin, int fence, int est, int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public ValueSpliterator<V> trySplit() {
+            int lo = index, mid;
+            return ((mid = splitPoint()) < 0) ? null :
+                    new ValueSpliterator<>(map, lo, index = mid, est >>>= 1, expectedModCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachRemaining(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence(), mc = expectedModCount;
+            long[] ks = map.keys;
+            Object[] vs = map.vals;
+            for (int i = index; i < hi; ++i) {
+                if (occupied(ks, i))
+                    action.accept((ks != null && i < ks.length) ? (V) vs[i] : map.zeroValue);
+            }
+            index = hi;
+            if (map.modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int hi = getFence();
+            long[] ks = map.keys;
+            while (index < hi) {
+                int i = index++;
+                if (occupied(ks, i)) {
+                    action.accept((ks != null && i < ks.length) ? (V) map.vals[i] : map.zeroValue);
+                    if (map.modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0);
+        }
+    }
+}
@@ -0,0 +1,1117 @@
+package java.util;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import jdk.internal.access.SharedSecrets;
+import jdk.internal.misc.Unsafe;
+
+/**
+ * 分段加锁的Hashtable：API、null规则（key和value都不能为null）和Enumeration的行为与Hashtable一致，
+ * 但不再所有方法都synchronized在同一个monitor上
+ *
+ * 桶数组的长度是2的幂并且不小于锁的个数，桶下标的低位就是锁的下标，同一组桶（下标对锁个数取模相同）共用一把锁，
+ * 扩容时长度翻倍，一个桶拆出来的两个桶还在同一组里，所以锁和桶的对应关系在整个生命周期内不变
+ * 写操作（put、remove、compute系列……）只锁key所在的那一组；扩容按顺序拿到全部锁，复制出新的桶数组后整体发布
+ * 读操作（get、containsKey、contains、迭代）不加锁：table、Entry.next和Entry.value都是volatile的，
+ * 扩容时旧链表上的节点不改next，只在新表上复制，读完发现table已经换了就在新表上重读一遍
+ *
+ * 是Hashtable的子类（和Properties一样覆盖了全部方法），声明成Hashtable的字段、参数、返回值不用改就能换成它；
+ * 父类那一层只有一个空的桶数组，不再使用
+ *
+ * 与Hashtable的区别：
+ * 1. synchronized (table)不再能挡住别的线程的写操作，先查再写的复合操作要改用putIfAbsent、compute这类方法
+ * 2. compute系列的函数在持有一组锁的时候调用，函数里不能再修改这个map（Hashtable的monitor可以重入，这里可能死锁）
+ * 3. keys()、elements()和Hashtable一样不会抛ConcurrentModificationException；
+ *    keySet()、values()、entrySet()的迭代器也是弱一致的，不抛ConcurrentModificationException，
+ *    因为外部synchronized已经不能让迭代期间没有写操作，快速失败只会让原来正确的代码出错
+ * 4. putAll、clear、equals、toString、forEach、replaceAll不是原子的，只有clone在全部锁下复制
+ * 5. parallelForEach、parallelReduce不是快照，是弱一致的；setOptimisticReads没有作用，读本来就不加锁
+ */
+public class StripedHashtable<K, V> extends Hashtable<K, V> {
+
+    @java.io.Serial
+    private static final long serialVersionUID = -3306742125364812651L;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;                // 桶数组最大长度2的30次方
+    private static final int MAX_CONCURRENCY_LEVEL = 1 << 16;           // 锁最多65536把
+    static final int DEFAULT_CONCURRENCY_LEVEL = 16;                    // 默认16把锁
+    private static final int KEYS = 0;
+    private static final int VALUES = 1;
+    private static final int ENTRIES = 2;
+
+    private transient volatile Entry<?, ?>[] table;                     // 桶数组，扩容时整体替换
+    private transient Stripe[] stripes;                                 // 锁，第i把锁管下标对stripes.length取模等于i的桶
+    private transient int threshold;                                    // 元素个数超过它就扩容，在全部锁下修改
+    private transient int stripeThreshold;                              // threshold平摊到每组，超过它才去统计总数
+    private float loadFactor;
+    private int concurrencyLevel;                                       // 锁的个数，2的幂
+    private transient volatile Set<K> keySet;
+    private transient volatile Set<Map.Entry<K, V>> entrySet;
+    private transient volatile Collection<V> values;
+
+    /**
+     * 一组桶的锁，count是这组桶里的元素个数，只在持有这把锁时修改
+     */
+    static final class Stripe extends ReentrantLock {
+        @java.io.Serial
+        private static final long serialVersionUID = 2249069246763182397L;
+        volatile int count;
+    }
+
+    /**
+     * 链表节点，新节点总是插在桶头；删除只改前一个节点的next，被删节点自己的next不变，正在它上面的读线程还能继续往后走
+     */
+    static final class Entry<K, V> {
+        final int hash;                                                 // key.hashCode()，没有扰动
+        final K key;
+        volatile V value;
+        volatile Entry<K, V> next;
+
+        Entry(int hash, K key, V value, Entry<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    /**
+     * 几个构造方法，和Hashtable一样，initialCapacity是桶的个数（向上取到2的幂，并且不少于锁的个数）
+     */
+    public StripedHashtable() {
+        this(11, 0.75f);
+    }
+
+    public StripedHashtable(Map<? extends K, ? extends V> t) {
+        this(Math.max(2 * t.size(), 11), 0.75f);
+        putAll(t);
+    }
+
+    public StripedHashtable(int initialCapacity) {
+        this(initialCapacity, 0.75f);
+    }
+
+    public StripedHashtable(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    // concurrencyLevel：预计同时写的线程数，向上取到2的幂作为锁的个数
+    public StripedHashtable(int initialCapacity, float loadFactor, int concurrencyLevel) {
+        super(1);
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal Capacity: " + initialCapacity);
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal Load: " + loadFactor);
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Illegal Concurrency Level: " + concurrencyLevel);
+        this.loadFactor = loadFactor;
+        this.concurrencyLevel = tableSizeFor(Math.min(concurrencyLevel, MAX_CONCURRENCY_LEVEL));
+        init(initialCapacity);
+    }
+
+    // 按concurrencyLevel建锁，按initialCapacity分配桶数组
+    private void init(int initialCapacity) {
+        Stripe[] ss = new Stripe[concurrencyLevel];
+        for (int i = 0; i < ss.length; ++i)
+            ss[i] = new Stripe();
+        stripes = ss;
+        int n = Math.max(tableSizeFor(initialCapacity), ss.length);
+        setThreshold(n);
+        table = new Entry<?, ?>[n];
+    }
+
+    private void setThreshold(int n) {
+        threshold = (int) Math.min(n * loadFactor, Integer.MAX_VALUE);
+        stripeThreshold = threshold / stripes.length;
+    }
+
+    // 不小于c的2的幂
+    static final int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /**
+     * 扰动函数，桶数组长度是2的幂，把高16位异或到低16位，低位同时决定桶和锁
+     */
+    static final int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /* ---------------- 桶数组的volatile读写 -------------- */
+
+    @SuppressWarnings("unchecked")
+    static final <K, V> Entry<K, V> entryAt(Entry<?, ?>[] tab, int i) {
+        return (Entry<K, V>) U.getReferenceAcquire(tab, ((long) i << ASHIFT) + ABASE);
+    }
+
+    static final void setEntryAt(Entry<?, ?>[] tab, int i, Entry<?, ?> e) {
+        U.putReferenceRelease(tab, ((long) i << ASHIFT) + ABASE, e);
+    }
+
+    /* ---------------- 查询，不加锁 -------------- */
+
+    // 各组的count加起来，写操作同时进行时只是一个近似值
+    public int size() {
+        long n = 0L;
+        for (Stripe s : stripes)
+            n += s.count;
+        return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+    }
+
+    public boolean isEmpty() {
+        for (Stripe s : stripes)
+            if (s.count != 0)
+                return false;
+        return true;
+    }
+
+    public Enumeration<K> keys() {
+        return this.<K>getEnumeration(KEYS);
+    }
+
+    public Enumeration<V> elements() {
+        return this.<V>getEnumeration(VALUES);
+    }
+
+    public boolean contains(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        Entry<?, ?>[] tab = table;
+        for (int i = tab.length; i-- > 0; ) {
+            for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next) {
+                if (e.value.equals(value))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsValue(Object value) {
+        return contains(value);
+    }
+
+    public boolean containsKey(Object key) {
+        int hash = key.hashCode(), h = spread(hash);
+        for (Entry<?, ?>[] tab = table; ; ) {
+            boolean found = false;
+            for (Entry<?, ?> e = entryAt(tab, h & (tab.length - 1)); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (tab == (tab = table))                                   // 没有发生扩容，结果有效
+                return found;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int hash = key.hashCode(), h = spread(hash);
+        for (Entry<?, ?>[] tab = table; ; ) {
+            Object v = null;
+            for (Entry<?, ?> e = entryAt(tab, h & (tab.length - 1)); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    v = e.value;
+                    break;
+                }
+            }
+            if (tab == (tab = table))                                   // 没有发生扩容，结果有效
+                return (V) v;
+        }
+    }
+
+    public V getOrDefault(Object key, V defaultValue) {
+        V result = get(key);
+        return (null == result) ? defaultValue : result;
+    }
+
+    /* ---------------- 修改，只锁key所在的那一组 -------------- */
+
+    // 在持有s的情况下把新节点插到桶头，返回这组的元素个数
+    private int addEntry(Stripe s, Entry<?, ?>[] tab, int index, int hash, K key, V value) {
+        setEntryAt(tab, index, new Entry<K, V>(hash, key, value, entryAt(tab, index)));
+        int c = s.count + 1;
+        s.count = c;
+        return c;
+    }
+
+    // 在持有s的情况下把e从链表上摘掉，prev为null表示e是桶头
+    @SuppressWarnings("unchecked")
+    private static void unlink(Stripe s, Entry<?, ?>[] tab, int index, Entry<?, ?> prev, Entry<?, ?> e) {
+        if (prev == null)
+            setEntryAt(tab, index, e.next);
+        else
+            ((Entry<Object, Object>) prev).next = (Entry<Object, Object>) e.next;
+        s.count = s.count - 1;
+    }
+
+    public V put(K key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        int hash = key.hashCode(), h = spread(hash), c;
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    V old = e.value;
+                    e.value = value;
+                    return old;
+                }
+            }
+            c = addEntry(s, tab, index, hash, key, value);
+        } finally {
+            s.unlock();
+        }
+        if (c > stripeThreshold)
+            tryGrow();
+        return null;
+    }
+
+    public V remove(Object key) {
+        int hash = key.hashCode(), h = spread(hash);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index), prev = null; e != null; prev = e, e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    unlink(s, tab, index, prev, e);
+                    return e.value;
+                }
+            }
+            return null;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    public void putAll(Map<? extends K, ? extends V> t) {
+        for (Map.Entry<? extends K, ? extends V> e : t.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    // 一组一组地清空，清完一组就放掉它的锁
+    public void clear() {
+        Stripe[] ss = stripes;
+        for (int i = 0; i < ss.length; ++i) {
+            Stripe s = ss[i];
+            s.lock();
+            try {
+                Entry<?, ?>[] tab = table;
+                for (int j = i; j < tab.length; j += ss.length)
+                    setEntryAt(tab, j, null);
+                s.count = 0;
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        int hash = key.hashCode(), h = spread(hash), c;
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key))
+                    return e.value;
+            }
+            c = addEntry(s, tab, index, hash, key, value);
+        } finally {
+            s.unlock();
+        }
+        if (c > stripeThreshold)
+            tryGrow();
+        return null;
+    }
+
+    public boolean remove(Object key, Object value) {
+        Objects.requireNonNull(value);
+        int hash = key.hashCode(), h = spread(hash);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index), prev = null; e != null; prev = e, e = e.next) {
+                if (e.hash == hash && e.key.equals(key) && e.value.equals(value)) {
+                    unlink(s, tab, index, prev, e);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        int hash = key.hashCode(), h = spread(hash);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            for (Entry<K, V> e = entryAt(tab, h & (tab.length - 1)); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    if (e.value.equals(oldValue)) {
+                        e.value = newValue;
+                        return true;
+                    } else {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        int hash = key.hashCode(), h = spread(hash);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            for (Entry<K, V> e = entryAt(tab, h & (tab.length - 1)); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    V oldValue = e.value;
+                    e.value = value;
+                    return oldValue;
+                }
+            }
+            return null;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        int hash = key.hashCode(), h = spread(hash), c;
+        Stripe s = stripes[h & (stripes.length - 1)];
+        V newValue;
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index); e != null; e = e.next) {
+                if (e.hash == hash && e.key.equals(key))
+                    return e.value;
+            }
+            if ((newValue = mappingFunction.apply(key)) == null)
+                return null;
+            c = addEntry(s, tab, index, hash, key, newValue);
+        } finally {
+            s.unlock();
+        }
+        if (c > stripeThreshold)
+            tryGrow();
+        return newValue;
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        int hash = key.hashCode(), h = spread(hash);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index), prev = null; e != null; prev = e, e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    V newValue = remappingFunction.apply(key, e.value);
+                    if (newValue == null)
+                        unlink(s, tab, index, prev, e);
+                    else
+                        e.value = newValue;
+                    return newValue;
+                }
+            }
+            return null;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        int hash = key.hashCode(), h = spread(hash), c;
+        Stripe s = stripes[h & (stripes.length - 1)];
+        V newValue;
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index), prev = null; e != null; prev = e, e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    newValue = remappingFunction.apply(key, e.value);
+                    if (newValue == null)
+                        unlink(s, tab, index, prev, e);
+                    else
+                        e.value = newValue;
+                    return newValue;
+                }
+            }
+            if ((newValue = remappingFunction.apply(key, null)) == null)
+                return null;
+            c = addEntry(s, tab, index, hash, key, newValue);
+        } finally {
+            s.unlock();
+        }
+        if (c > stripeThreshold)
+            tryGrow();
+        return newValue;
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        int hash = key.hashCode(), h = spread(hash), c;
+        Stripe s = stripes[h & (stripes.length - 1)];
+        s.lock();
+        try {
+            Entry<?, ?>[] tab = table;
+            int index = h & (tab.length - 1);
+            for (Entry<K, V> e = entryAt(tab, index), prev = null; e != null; prev = e, e = e.next) {
+                if (e.hash == hash && e.key.equals(key)) {
+                    V newValue = remappingFunction.apply(e.value, value);
+                    if (newValue == null)
+                        unlink(s, tab, index, prev, e);
+                    else
+                        e.value = newValue;
+                    return newValue;
+                }
+            }
+            if (value == null)
+                return null;
+            c = addEntry(s, tab, index, hash, key, value);
+        } finally {
+            s.unlock();
+        }
+        if (c > stripeThreshold)
+            tryGrow();
+        return value;
+    }
+
+    // 逐组加锁替换，函数在持有那一组锁时调用
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        Objects.requireNonNull(function);
+        Stripe[] ss = stripes;
+        for (int i = 0; i < ss.length; ++i) {
+            Stripe s = ss[i];
+            s.lock();
+            try {
+                Entry<?, ?>[] tab = table;
+                for (int j = i; j < tab.length; j += ss.length) {
+                    for (Entry<K, V> e = entryAt(tab, j); e != null; e = e.next)
+                        e.value = Objects.requireNonNull(function.apply(e.key, e.value));
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+    // 弱一致：不加锁，和迭代器一样从后往前遍历桶数组
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Entry<?, ?>[] tab = table;
+        for (int i = tab.length; i-- > 0; ) {
+            for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next)
+                action.accept((K) e.key, (V) e.value);
+        }
+    }
+
+    /* ---------------- 并行批量操作 -------------- */
+
+    // 读本来就不加锁，没有要打开的
+    public void setOptimisticReads(boolean enabled) {
+    }
+
+    /**
+     * 参数同Hashtable.parallelForEach，但不是快照：任务不加锁地遍历开始时的桶数组，和forEach一样是弱一致的
+     * 取桶不用monitor，调用线程持有monitor时照样可以拆分
+     */
+    public void parallelForEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Entry<?, ?>[] tab = table;
+        new ForEachTask<K, V>(null, batchFor(parallelismThreshold, size()), 0, tab.length, tab, action).invoke();
+    }
+
+    // 同Hashtable.parallelReduce，遍历方式同parallelForEach
+    public <U> U parallelReduce(long parallelismThreshold,
+                                BiFunction<? super K, ? super V, ? extends U> transformer,
+                                BiFunction<? super U, ? super U, ? extends U> reducer) {
+        Objects.requireNonNull(transformer);
+        Objects.requireNonNull(reducer);
+        Entry<?, ?>[] tab = table;
+        return new ReduceTask<K, V, U>(null, batchFor(parallelismThreshold, size()), 0, tab.length, tab,
+                null, transformer, reducer).invoke();
+    }
+
+    /* ---------------- 扩容 -------------- */
+
+    private void lockAll() {
+        for (Stripe s : stripes)
+            s.lock();
+    }
+
+    private void unlockAll() {
+        Stripe[] ss = stripes;
+        for (int i = ss.length - 1; i >= 0; --i)
+            ss[i].unlock();
+    }
+
+    /**
+     * 某一组的元素个数超过平摊的阈值时调用，元素总数也超过阈值才扩容
+     * 在compute系列的函数里（已经持有某一组的锁）不扩容，否则按顺序拿全部锁可能和别的扩容线程死锁，留给下一次写操作
+     */
+    private void tryGrow() {
+        Entry<?, ?>[] tab = table;
+        if (tab.length >= MAXIMUM_CAPACITY || size() <= threshold)
+            return;
+        for (Stripe s : stripes)
+            if (s.isHeldByCurrentThread())
+                return;
+        lockAll();
+        try {
+            if (table == tab && size() > threshold)
+                rehash();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * 桶数组长度翻倍
+     * 和Hashtable不同，不把旧节点挪到新链表上（正在旧表上读的线程会走丢），而是在新表上复制；
+     * 每个旧链表末尾落在同一个新桶里的那一段直接复用（ConcurrentHashMap在JDK 7里的做法），它们的next在新旧两张表上都一样
+     */
+    @SuppressWarnings("unchecked")
+    protected void rehash() {
+        lockAll();
+        try {
+            Entry<?, ?>[] oldTab = table;
+            int oldCapacity = oldTab.length;
+            if (oldCapacity >= MAXIMUM_CAPACITY)
+                return;                                                 // 保持最大长度继续用
+            int newCapacity = oldCapacity << 1, mask = newCapacity - 1;
+            Entry<?, ?>[] newTab = new Entry<?, ?>[newCapacity];
+            for (int i = 0; i < oldCapacity; ++i) {
+                Entry<K, V> e = entryAt(oldTab, i);
+                if (e == null)
+                    continue;
+                Entry<K, V> lastRun = e;
+                int lastIndex = spread(e.hash) & mask;
+                for (Entry<K, V> p = e.next; p != null; p = p.next) {
+                    int k = spread(p.hash) & mask;
+                    if (k != lastIndex) {
+                        lastIndex = k;
+                        lastRun = p;
+                    }
+                }
+                newTab[lastIndex] = lastRun;
+                for (Entry<K, V> p = e; p != lastRun; p = p.next) {
+                    int k = spread(p.hash) & mask;
+                    newTab[k] = new Entry<K, V>(p.hash, p.key, p.value, (Entry<K, V>) newTab[k]);
+                }
+            }
+            setThreshold(newCapacity);
+            table = newTab;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /* ---------------- Object的方法 -------------- */
+
+    // 在全部锁下复制，得到的是某一时刻的完整快照
+    // Hashtable.clone要拿monitor，放在lockAll之前，否则和持有monitor再写的线程（先monitor后锁）顺序相反
+    @SuppressWarnings("unchecked")
+    public Object clone() {
+        StripedHashtable<K, V> t = (StripedHashtable<K, V>) super.clone();
+        lockAll();
+        try {
+            Entry<?, ?>[] tab = table, newTab = new Entry<?, ?>[tab.length];
+            t.init(0);
+            for (int i = 0; i < tab.length; ++i) {
+                Entry<K, V> copy = null;
+                for (Entry<K, V> e = entryAt(tab, i); e != null; e = e.next)
+                    copy = new Entry<K, V>(e.hash, e.key, e.value, copy);
+                newTab[i] = copy;
+            }
+            for (int i = 0; i < stripes.length; ++i)
+                t.stripes[i].count = stripes[i].count;
+            t.setThreshold(tab.length);
+            t.table = newTab;
+            t.keySet = null;
+            t.entrySet = null;
+            t.values = null;
+            return t;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public String toString() {
+        Iterator<Map.Entry<K, V>> it = entrySet().iterator();
+        if (!it.hasNext())
+            return "{}";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (; ; ) {
+            Map.Entry<K, V> e = it.next();
+            K key = e.getKey();
+            V value = e.getValue();
+            sb.append(key == this ? "(this Map)" : key.toString());
+            sb.append('=');
+            sb.append(value == this ? "(this Map)" : value.toString());
+            if (!it.hasNext())
+                return sb.append('}').toString();
+            sb.append(", ");
+        }
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof Map))
+            return false;
+        Map<?, ?> t = (Map<?, ?>) o;
+        if (t.size() != size())
+            return false;
+
+        try {
+            Entry<?, ?>[] tab = table;
+            for (int i = tab.length; i-- > 0; ) {
+                for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next) {
+                    if (!e.value.equals(t.get(e.key)))
+                        return false;
+                }
+            }
+        } catch (ClassCastException unused) {
+            return false;
+        } catch (NullPointerException unused) {
+            return false;
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        int h = 0;
+        Entry<?, ?>[] tab = table;
+        for (int i = tab.length; i-- > 0; ) {
+            for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next)
+                h += e.hash ^ e.value.hashCode();
+        }
+        return h;
+    }
+
+    /* ---------------- 序列化，格式和Hashtable一样：桶数、元素个数，然后是key、value；父类那一层写的是空表 -------------- */
+
+    @java.io.Serial
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        // 先不加锁地把元素收集起来，写出的个数和后面写的元素一致
+        Entry<Object, Object> entryStack = null;
+        int count = 0;
+        Entry<?, ?>[] tab = table;
+        for (int i = 0; i < tab.length; ++i) {
+            for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next) {
+                entryStack = new Entry<Object, Object>(0, e.key, e.value, entryStack);
+                ++count;
+            }
+        }
+
+        s.defaultWriteObject();
+        s.writeInt(tab.length);
+        s.writeInt(count);
+        for (; entryStack != null; entryStack = entryStack.next) {
+            s.writeObject(entryStack.key);
+            s.writeObject(entryStack.value);
+        }
+    }
+
+    @java.io.Serial
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new StreamCorruptedException("Illegal Load: " + loadFactor);
+        if (concurrencyLevel <= 0 || concurrencyLevel > MAX_CONCURRENCY_LEVEL
+                || (concurrencyLevel & (concurrencyLevel - 1)) != 0)
+            throw new StreamCorruptedException("Illegal Concurrency Level: " + concurrencyLevel);
+
+        s.readInt();                                                    // 原来的桶数，按元素个数重新计算
+        int elements = s.readInt();
+        if (elements < 0)
+            throw new StreamCorruptedException("Illegal # of Elements: " + elements);
+
+        int length = tableSizeFor((int) Math.min(elements / loadFactor + 1.0f, MAXIMUM_CAPACITY));
+        SharedSecrets.getJavaObjectInputStreamAccess().checkArray(s, Map.Entry[].class,
+                Math.max(length, concurrencyLevel));
+        init(length);
+
+        for (; elements > 0; elements--) {
+            @SuppressWarnings("unchecked")
+            K key = (K) s.readObject();
+            @SuppressWarnings("unchecked")
+            V value = (V) s.readObject();
+            reconstitutionPut(key, value);
+        }
+    }
+
+    // 只在readObject里调用，这时还没有别的线程能看到这个对象
+    private void reconstitutionPut(K key, V value) throws StreamCorruptedException {
+        if (value == null)
+            throw new StreamCorruptedException();
+        int hash = key.hashCode(), h = spread(hash);
+        Entry<?, ?>[] tab = table;
+        int index = h & (tab.length - 1);
+        for (Entry<?, ?> e = tab[index]; e != null; e = e.next) {
+            if (e.hash == hash && e.key.equals(key))
+                throw new StreamCorruptedException();
+        }
+        Stripe st = stripes[h & (stripes.length - 1)];
+        if (addEntry(st, tab, index, hash, key, value) > stripeThreshold && size() > threshold)
+            rehash();
+    }
+
+    /* ---------------- 视图和迭代 -------------- */
+
+    private <T> Enumeration<T> getEnumeration(int type) {
+        if (isEmpty()) {
+            return Collections.emptyEnumeration();
+        } else {
+            return new Enumerator<>(type, false);
+        }
+    }
+
+    private <T> Iterator<T> getIterator(int type) {
+        if (isEmpty()) {
+            return Collections.emptyIterator();
+        } else {
+            return new Enumerator<>(type, true);
+        }
+    }
+
+    public Set<K> keySet() {
+        if (keySet == null)
+            keySet = new KeySet();
+        return keySet;
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null)
+            entrySet = new EntrySet();
+        return entrySet;
+    }
+
+    public Collection<V> values() {
+        if (values == null)
+            values = new ValueCollection();
+        return values;
+    }
+
+    private class KeySet extends AbstractSet<K> {
+        public Iterator<K> iterator() {
+            return getIterator(KEYS);
+        }
+
+        public int size() {
+            return StripedHashtable.this.size();
+        }
+
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        public boolean remove(Object o) {
+            return StripedHashtable.this.remove(o) != null;
+        }
+
+        public void clear() {
+            StripedHashtable.this.clear();
+        }
+    }
+
+    private class ValueCollection extends AbstractCollection<V> {
+        public Iterator<V> iterator() {
+            return getIterator(VALUES);
+        }
+
+        public int size() {
+            return StripedHashtable.this.size();
+        }
+
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        public void clear() {
+            StripedHashtable.this.clear();
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return getIterator(ENTRIES);
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            Object v = entry.getValue();
+            return v != null && v.equals(get(entry.getKey()));
+        }
+
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            Object v = entry.getValue();
+            return v != null && StripedHashtable.this.remove(entry.getKey(), v);
+        }
+
+        public int size() {
+            return StripedHashtable.this.size();
+        }
+
+        public void clear() {
+            StripedHashtable.this.clear();
+        }
+    }
+
+    /**
+     * entrySet迭代器返回的Entry，扩容后链表节点可能已经换成了复制品，所以setValue通过put写回map
+     */
+    final class MapEntry implements Map.Entry<K, V> {
+        final K key;
+        V value;
+
+        MapEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            if (value == null)
+                throw new NullPointerException();
+            V oldValue = this.value;
+            this.value = value;
+            put(key, value);
+            return oldValue;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && value.equals(e.getValue());
+        }
+
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        public String toString() {
+            return key.toString() + "=" + value.toString();
+        }
+    }
+
+    /**
+     * 和Hashtable的Enumerator一样从桶数组的末尾往前走，作为Enumeration时不支持remove
+     * 拿到的是创建时的桶数组，之后的扩容看不到，扩容以后的修改也看不到；扩容以前的修改能不能看到取决于走到那个桶的时机
+     */
+    private class Enumerator<T> implements Enumeration<T>, Iterator<T> {
+        final Entry<?, ?>[] table = StripedHashtable.this.table;
+        int index = table.length;
+        Entry<?, ?> entry;
+        Entry<?, ?> lastReturned;
+        final int type;
+        final boolean iterator;
+
+        Enumerator(int type, boolean iterator) {
+            this.type = type;
+            this.iterator = iterator;
+        }
+
+        public boolean hasMoreElements() {
+            Entry<?, ?> e = entry;
+            int i = index;
+            Entry<?, ?>[] t = table;
+            /* Use locals for faster loop iteration */
+            while (e == null && i > 0) {
+                e = entryAt(t, --i);
+            }
+            entry = e;
+            index = i;
+            return e != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T nextElement() {
+            if (hasMoreElements()) {
+                Entry<?, ?> e = lastReturned = entry;
+                entry = e.next;
+                return (type == KEYS) ? (T) e.key : (type == VALUES) ? (T) e.value
+                        : (T) new MapEntry((K) e.key, (V) e.value);
+            }
+            throw new NoSuchElementException("Hashtable Enumerator");
+        }
+
+        // Iterator methods
+        public boolean hasNext() {
+            return hasMoreElements();
+        }
+
+        public T next() {
+            return nextElement();
+        }
+
+        // 按key删除，这期间这个key被别的线程删掉或者又放进来都不算错误
+        public void remove() {
+            if (!iterator)
+                throw new UnsupportedOperationException();
+            if (lastReturned == null)
+                throw new IllegalStateException("Hashtable Enumerator");
+            StripedHashtable.this.remove(lastReturned.key);
+            lastReturned = null;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final Unsafe U = Unsafe.getUnsafe();
+    private static final int ABASE = U.arrayBaseOffset(Entry[].class);
+    private static final int ASHIFT;
+
+    static {
+        int scale = U.arrayIndexScale(Entry[].class);
+        if ((scale & (scale - 1)) != 0)
+            throw new ExceptionInInitializerError("array index scale not a power of two");
+        ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+    }
+
+    /**
+     * 并行遍历的任务，按桶下标区间拆分，拆法同Hashtable.BulkTask，只是直接读桶数组，不经过快照
+     */
+    @SuppressWarnings("serial")
+    abstract static class BulkTask<K, V, R> extends CountedCompleter<R> {
+        final Entry<?, ?>[] tab;
+        int batch;                                                      // 还能再拆几次
+        int baseIndex, baseLimit;                                       // 负责的桶下标区间[baseIndex, baseLimit)
+
+        BulkTask(BulkTask<K, V, ?> par, int b, int i, int f, Entry<?, ?>[] tab) {
+            super(par);
+            this.batch = b;
+            this.baseIndex = i;
+            this.baseLimit = f;
+            this.tab = tab;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ForEachTask<K, V> extends BulkTask<K, V, Void> {
+        final BiConsumer<? super K, ? super V> action;
+
+        ForEachTask(BulkTask<K, V, ?> p, int b, int i, int f, Entry<?, ?>[] tab,
+                    BiConsumer<? super K, ? super V> action) {
+            super(p, b, i, f, tab);
+            this.action = action;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void compute() {
+            final BiConsumer<? super K, ? super V> action = this.action;
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                new ForEachTask<K, V>(this, batch >>>= 1, baseLimit = h, f, tab, action).fork();
+            }
+            for (int i = baseIndex; i < baseLimit; ++i) {
+                for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next)
+                    action.accept((K) e.key, (V) e.value);
+            }
+            propagateCompletion();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ReduceTask<K, V, U> extends BulkTask<K, V, U> {
+        final BiFunction<? super K, ? super V, ? extends U> transformer;
+        final BiFunction<? super U, ? super U, ? extends U> reducer;
+        U result;
+        ReduceTask<K, V, U> rights, nextRight;
+
+        ReduceTask(BulkTask<K, V, ?> p, int b, int i, int f, Entry<?, ?>[] tab, ReduceTask<K, V, U> nextRight,
+                   BiFunction<? super K, ? super V, ? extends U> transformer,
+                   BiFunction<? super U, ? super U, ? extends U> reducer) {
+            super(p, b, i, f, tab);
+            this.nextRight = nextRight;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+
+        public final U getRawResult() {
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        public final void compute() {
+            final BiFunction<? super K, ? super V, ? extends U> transformer = this.transformer;
+            final BiFunction<? super U, ? super U, ? extends U> reducer = this.reducer;
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                (rights = new ReduceTask<K, V, U>(this, batch >>>= 1, baseLimit = h, f, tab,
+                        rights, transformer, reducer)).fork();
+            }
+            U r = null;
+            for (int i = baseIndex; i < baseLimit; ++i) {
+                for (Entry<?, ?> e = entryAt(tab, i); e != null; e = e.next) {
+                    U u;
+                    if ((u = transformer.apply((K) e.key, (V) e.value)) != null)
+                        r = (r == null) ? u : reducer.apply(r, u);
+                }
+            }
+            result = r;
+            CountedCompleter<?> c;
+            for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                ReduceTask<K, V, U> t = (ReduceTask<K, V, U>) c, s = t.rights;
+                while (s != null) {
+                    U tr, sr;
+                    if ((sr = s.result) != null)
+                        t.result = (((tr = t.result) == null) ? sr : reducer.apply(tr, sr));
+                    s = t.rights = s.nextRight;
+                }
+            }
+        }
+    }
+}
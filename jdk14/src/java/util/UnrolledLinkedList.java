@@ -0,0 +1,795 @@
+package java.util;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 按块存放元素的链表（unrolled linked list），可以代替LinkedList做大队列、双端队列和偶尔按下标访问的List
+ * LinkedList每个元素一个Node（24字节，外加指向元素的引用），遍历时每走一步都可能缓存缺失；
+ * 这里每个块是一个CHUNK_SIZE个槽的数组，元素放在items[start, end)里，遍历基本就是顺序扫数组
+ *
+ * 块按顺序放在一个循环数组dir（块目录）里，相当于块之间的链表指针：
+ *   addFirst/pollFirst只动第一个块（满了就在dir前面加一个新块，元素从新块的末尾往前放），addLast/pollLast只动最后一个块，都是O(1)
+ *   中间插入时块满了就对半拆成两个块，中间删除后块里不到CHUNK_SIZE/4个元素就并到相邻的块里，块的个数保持在size/CHUNK_SIZE的几倍以内
+ * 按下标访问用每个块的pos做索引：pos是块里第一个元素的虚拟下标，下标i的元素的虚拟下标是第一个块的pos+i，
+ *   在两端增删时只改第一个块的pos，其他块的pos不变；中间插入删除只让后面块的pos失效（validChunks），
+ *   下次按下标访问时再从失效的地方往后补算，然后在dir上二分查找，访问两端的块不用查找
+ *
+ * 和LinkedList一样允许null元素，不是线程安全的，迭代器是快速失败的
+ */
+public class UnrolledLinkedList<E> extends AbstractList<E> implements List<E>, Deque<E>, Cloneable, java.io.Serializable {
+
+    @java.io.Serial
+    private static final long serialVersionUID = -4358157434725386751L;
+    static final int CHUNK_SIZE = 64;                                   // 每个块的槽数
+    static final int MIN_MERGE = CHUNK_SIZE >>> 2;                      // 中间删除后块里少于这么多个元素就尝试合并
+    static final int INITIAL_DIR_CAPACITY = 8;                          // 块目录的初始长度，2的幂
+
+    transient Chunk[] dir = new Chunk[INITIAL_DIR_CAPACITY];            // 块目录，循环数组，长度是2的幂
+    transient int head;                                                 // 第一个块在dir里的位置
+    transient int chunks;                                               // 块的个数，没有空块
+    transient int validChunks;                                          // 前validChunks个块的pos是准确的，有块时至少是1
+    transient int size;                                                 // 元素个数
+    transient Chunk spare;                                              // 两端最近删掉的空块，下次在两端加块时复用，队列稳定时不用反复分配
+
+    /**
+     * 一个块，元素放在items[start, end)里，其余的槽都是null
+     */
+    static final class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+        int start, end;
+        long pos;                                                       // 第一个元素的虚拟下标
+
+        Chunk(int start) {
+            this.start = this.end = start;
+        }
+
+        int size() {
+            return end - start;
+        }
+    }
+
+    /**
+     * 几个构造方法
+     */
+    public UnrolledLinkedList() {
+    }
+
+    public UnrolledLinkedList(Collection<? extends E> c) {
+        addAll(c);
+    }
+
+    /* ---------------- 块目录 -------------- */
+
+    // dir里第j个块
+    final Chunk chunk(int j) {
+        return dir[(head + j) & (dir.length - 1)];
+    }
+
+    // 把c插到第j个块的位置，原来第j个块及以后的块往后挪；j为0时c.pos要由调用者设好
+    private void insertChunk(int j, Chunk c) {
+        if (chunks == dir.length)
+            growDir();
+        Chunk[] d = dir;
+        int mask = d.length - 1;
+        if (j == 0) {
+            d[head = (head - 1) & mask] = c;
+            ++validChunks;
+        } else {
+            for (int t = chunks; t > j; --t)
+                d[(head + t) & mask] = d[(head + t - 1) & mask];
+            d[(head + j) & mask] = c;
+            if (j == chunks && validChunks == chunks) {
+                Chunk p = chunk(j - 1);
+                c.pos = p.pos + p.size();
+                ++validChunks;
+            } else if (validChunks > j) {
+                validChunks = j;
+            }
+        }
+        ++chunks;
+    }
+
+    // 删掉第j个块并返回它，后面的块往前挪；删的是第一个块时，新的第一个块的pos由它推出来
+    private Chunk removeChunk(int j) {
+        Chunk[] d = dir;
+        int mask = d.length - 1;
+        Chunk r = d[(head + j) & mask];
+        if (j == 0) {
+            d[head] = null;
+            head = (head + 1) & mask;
+            if (--chunks > 0) {
+                d[head].pos = r.pos + r.size();
+                validChunks = Math.max(validChunks - 1, 1);
+            } else {
+                validChunks = 0;
+            }
+        } else {
+            for (int t = j; t < chunks - 1; ++t)
+                d[(head + t) & mask] = d[(head + t + 1) & mask];
+            d[(head + chunks - 1) & mask] = null;
+            --chunks;
+            if (validChunks > j)
+                validChunks = j;
+        }
+        return r;
+    }
+
+    // 两端加块时先用spare
+    private Chunk newChunk(int start) {
+        Chunk c = spare;
+        if (c == null)
+            return new Chunk(start);
+        spare = null;
+        c.start = c.end = start;
+        return c;
+    }
+
+    private void growDir() {
+        Chunk[] d = dir, nd = new Chunk[d.length << 1];
+        for (int t = 0; t < chunks; ++t)
+            nd[t] = d[(head + t) & (d.length - 1)];
+        dir = nd;
+        head = 0;
+    }
+
+    // 补算失效的pos
+    private void updatePositions() {
+        Chunk p = chunk(validChunks - 1);
+        for (int j = validChunks; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            c.pos = p.pos + p.size();
+            p = c;
+        }
+        validChunks = chunks;
+    }
+
+    /**
+     * 下标index（0 <= index < size）的元素所在的块，先看两端的块，都不是再补算pos后二分查找
+     */
+    final int chunkFor(int index) {
+        Chunk f = chunk(0);
+        if (index < f.size())
+            return 0;
+        int last = chunks - 1;
+        if (index >= size - chunk(last).size())
+            return last;
+        if (validChunks < chunks)
+            updatePositions();
+        long v = f.pos + index;
+        int lo = 1, hi = last - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (chunk(mid).pos <= v)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    // 下标index的元素在块j（由chunkFor得到）的items里的位置，两端的块的pos可能没补算过，从两头数
+    final int slotFor(int j, int index) {
+        Chunk c = chunk(j);
+        if (j == 0)
+            return c.start + index;
+        if (j == chunks - 1)
+            return c.end - (size - index);
+        return c.start + (int) (chunk(0).pos + index - c.pos);
+    }
+
+    /* ---------------- 两端的操作 -------------- */
+
+    public void addFirst(E e) {
+        Chunk c;
+        if (chunks == 0 || (c = chunk(0)).start == 0) {
+            c = newChunk(CHUNK_SIZE);                                   // 新的第一个块从末尾往前放
+            c.pos = (chunks == 0) ? 0L : chunk(0).pos;
+            insertChunk(0, c);
+        }
+        c.items[--c.start] = e;
+        --c.pos;
+        ++size;
+        ++modCount;
+    }
+
+    public void addLast(E e) {
+        Chunk c;
+        if (chunks == 0) {
+            c = newChunk(0);
+            insertChunk(0, c);
+        } else if ((c = chunk(chunks - 1)).end == CHUNK_SIZE) {
+            c = newChunk(0);
+            insertChunk(chunks, c);
+        }
+        c.items[c.end++] = e;
+        ++size;
+        ++modCount;
+    }
+
+    public boolean offerFirst(E e) {
+        addFirst(e);
+        return true;
+    }
+
+    public boolean offerLast(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E pollFirst() {
+        if (size == 0)
+            return null;
+        Chunk c = chunk(0);
+        E e = (E) c.items[c.start];
+        c.items[c.start++] = null;
+        ++c.pos;
+        --size;
+        ++modCount;
+        if (c.start == c.end)
+            spare = removeChunk(0);
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        if (size == 0)
+            return null;
+        int last = chunks - 1;
+        Chunk c = chunk(last);
+        E e = (E) c.items[--c.end];
+        c.items[c.end] = null;
+        --size;
+        ++modCount;
+        if (c.start == c.end)
+            spare = removeChunk(last);
+        return e;
+    }
+
+    public E removeFirst() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return pollFirst();
+    }
+
+    public E removeLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return pollLast();
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peekFirst() {
+        if (size == 0)
+            return null;
+        Chunk c = chunk(0);
+        return (E) c.items[c.start];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peekLast() {
+        if (size == 0)
+            return null;
+        Chunk c = chunk(chunks - 1);
+        return (E) c.items[c.end - 1];
+    }
+
+    public E getFirst() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return peekFirst();
+    }
+
+    public E getLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return peekLast();
+    }
+
+    public boolean add(E e) {
+        addLast(e);
+        return true;
+    }
+
+    public boolean offer(E e) {
+        addLast(e);
+        return true;
+    }
+
+    public void push(E e) {
+        addFirst(e);
+    }
+
+    public E pop() {
+        return removeFirst();
+    }
+
+    public E remove() {
+        return removeFirst();
+    }
+
+    public E poll() {
+        return pollFirst();
+    }
+
+    public E element() {
+        return getFirst();
+    }
+
+    public E peek() {
+        return peekFirst();
+    }
+
+    public boolean addAll(Collection<? extends E> c) {
+        for (E e : c)
+            addLast(e);
+        return !c.isEmpty();
+    }
+
+    /* ---------------- 按下标访问 -------------- */
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        int j = chunkFor(index);
+        return (E) chunk(j).items[slotFor(j, index)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        Objects.checkIndex(index, size);
+        int j = chunkFor(index);
+        Object[] items = chunk(j).items;
+        int k = slotFor(j, index);
+        E old = (E) items[k];
+        items[k] = element;
+        return old;
+    }
+
+    /**
+     * 插到下标index的元素前面：块里有空槽就在块内挪动，靠哪头有空槽就挪哪头；块满了就对半拆开再插
+     */
+    public void add(int index, E element) {
+        if (index == size) {
+            addLast(element);
+            return;
+        }
+        Objects.checkIndex(index, size);
+        if (index == 0) {
+            addFirst(element);
+            return;
+        }
+        int j = chunkFor(index), k = slotFor(j, index);
+        Chunk c = chunk(j);
+        if (c.size() == CHUNK_SIZE) {                                   // 满了，后一半挪到新块里
+            int half = CHUNK_SIZE >>> 1;
+            Chunk c2 = new Chunk(0);
+            System.arraycopy(c.items, half, c2.items, 0, half);
+            Arrays.fill(c.items, half, CHUNK_SIZE, null);
+            c.end = half;
+            c2.end = half;
+            insertChunk(j + 1, c2);
+            if (k > half) {
+                c = c2;
+                k -= half;
+            }
+        }
+        Object[] items = c.items;
+        if (c.end < CHUNK_SIZE) {
+            System.arraycopy(items, k, items, k + 1, c.end - k);
+            items[k] = element;
+            ++c.end;
+        } else {
+            System.arraycopy(items, c.start, items, c.start - 1, k - c.start);
+            items[k - 1] = element;
+            --c.start;
+        }
+        if (validChunks > j + 1)
+            validChunks = j + 1;
+        ++size;
+        ++modCount;
+    }
+
+    public E remove(int index) {
+        Objects.checkIndex(index, size);
+        if (index == 0)
+            return pollFirst();
+        if (index == size - 1)
+            return pollLast();
+        int j = chunkFor(index), k = slotFor(j, index);
+        @SuppressWarnings("unchecked")
+        E old = (E) chunk(j).items[k];
+        removeAt(j, k);
+        return old;
+    }
+
+    /**
+     * 删掉第j个块items[k]上的元素，返回被删元素后面那个元素的位置：高32位是块的序号，低32位是items里的下标
+     * （可能等于那个块的end，表示在下一个块的开头）；块变空就删掉，少于MIN_MERGE个元素就并到相邻的块里
+     */
+    final long removeAt(int j, int k) {
+        Chunk c = chunk(j);
+        Object[] items = c.items;
+        if (k == c.start) {
+            items[c.start++] = null;
+            ++k;
+        } else {
+            System.arraycopy(items, k + 1, items, k, c.end - k - 1);
+            items[--c.end] = null;
+        }
+        if (validChunks > j + 1)
+            validChunks = j + 1;
+        --size;
+        ++modCount;
+        int n = c.size();
+        if (n == 0) {
+            removeChunk(j);
+            if (j == chunks && j > 0)                                   // 删的是最后一个块
+                return ((long) (j - 1) << 32) | chunk(j - 1).end;
+            return ((long) j << 32) | ((j < chunks) ? chunk(j).start : 0);
+        }
+        if (n < MIN_MERGE) {
+            int rel = k - c.start;
+            if (j > 0 && chunk(j - 1).size() + n <= CHUNK_SIZE)
+                return ((long) (j - 1) << 32) | (mergeIntoPrevious(j) + rel);
+            if (j + 1 < chunks && chunk(j + 1).size() + n <= CHUNK_SIZE) {
+                mergeIntoPrevious(j + 1);
+                return ((long) j << 32) | (c.start + rel);
+            }
+        }
+        return ((long) j << 32) | k;
+    }
+
+    /**
+     * 把第j个块的元素接到第j-1个块的末尾，删掉第j个块，返回第j个块原来的第一个元素在第j-1个块里的位置
+     * 第j-1个块末尾放不下时先把它的元素挪到数组开头
+     */
+    private int mergeIntoPrevious(int j) {
+        Chunk p = chunk(j - 1), c = chunk(j);
+        int pn = p.size(), cn = c.size();
+        if (p.end + cn > CHUNK_SIZE) {
+            System.arraycopy(p.items, p.start, p.items, 0, pn);
+            Arrays.fill(p.items, pn, p.end, null);
+            p.start = 0;
+            p.end = pn;
+        }
+        int at = p.end;
+        System.arraycopy(c.items, c.start, p.items, at, cn);
+        p.end += cn;
+        removeChunk(j);
+        return at;
+    }
+
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    public boolean removeFirstOccurrence(Object o) {
+        int i = indexOf(o);
+        if (i < 0)
+            return false;
+        remove(i);
+        return true;
+    }
+
+    public boolean removeLastOccurrence(Object o) {
+        int i = lastIndexOf(o);
+        if (i < 0)
+            return false;
+        remove(i);
+        return true;
+    }
+
+    public int indexOf(Object o) {
+        int index = 0;
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            Object[] items = c.items;
+            for (int k = c.start; k < c.end; ++k, ++index) {
+                if (Objects.equals(o, items[k]))
+                    return index;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(Object o) {
+        int index = size;
+        for (int j = chunks - 1; j >= 0; --j) {
+            Chunk c = chunk(j);
+            Object[] items = c.items;
+            for (int k = c.end - 1; k >= c.start; --k) {
+                --index;
+                if (Objects.equals(o, items[k]))
+                    return index;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    public void clear() {
+        dir = new Chunk[INITIAL_DIR_CAPACITY];
+        head = chunks = validChunks = size = 0;
+        spare = null;
+        ++modCount;
+    }
+
+    /* ---------------- 批量操作 -------------- */
+
+    /**
+     * 一遍扫完：保留的元素按顺序紧凑地重新装进块里，只有真的删了元素才重建
+     */
+    @SuppressWarnings("unchecked")
+    public boolean removeIf(Predicate<? super E> filter) {
+        Objects.requireNonNull(filter);
+        final int expectedModCount = modCount;
+        int n = 0;
+        Object[] kept = new Object[size];
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            for (int k = c.start; k < c.end; ++k) {
+                Object e = c.items[k];
+                if (!filter.test((E) e))
+                    kept[n++] = e;
+            }
+        }
+        if (modCount != expectedModCount)
+            throw new ConcurrentModificationException();
+        if (n == size)
+            return false;
+        clear();
+        for (int i = 0; i < n; ++i)
+            addLast((E) kept[i]);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super E> action) {
+        Objects.requireNonNull(action);
+        final int expectedModCount = modCount;
+        for (int j = 0; j < chunks && modCount == expectedModCount; ++j) {
+            Chunk c = chunk(j);
+            Object[] items = c.items;
+            for (int k = c.start, end = c.end; k < end; ++k)
+                action.accept((E) items[k]);
+        }
+        if (modCount != expectedModCount)
+            throw new ConcurrentModificationException();
+    }
+
+    public Object[] toArray() {
+        Object[] a = new Object[size];
+        int n = 0;
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            System.arraycopy(c.items, c.start, a, n, c.size());
+            n += c.size();
+        }
+        return a;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        if (a.length < size)
+            a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
+        int n = 0;
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            System.arraycopy(c.items, c.start, a, n, c.size());
+            n += c.size();
+        }
+        if (a.length > size)
+            a[size] = null;
+        return a;
+    }
+
+    /* ---------------- 迭代器 -------------- */
+
+    public Iterator<E> iterator() {
+        return new ListItr(0);
+    }
+
+    public ListIterator<E> listIterator(int index) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return new ListItr(index);
+    }
+
+    public Iterator<E> descendingIterator() {
+        return new DescendingIterator();
+    }
+
+    /**
+     * 记着当前块和块里的位置，next、previous只在越过块的边界时换块；
+     * p是下一个元素在c.items里的位置，等于c.end时下一个元素在下一个块的开头
+     */
+    private class ListItr implements ListIterator<E> {
+        int cursor;                                                     // 下一个元素的下标
+        int lastRet = -1;                                               // 上一次返回的元素的下标
+        int ci;                                                         // 当前块的序号
+        Chunk c;
+        int p;
+        int expectedModCount = modCount;
+
+        ListItr(int index) {
+            cursor = index;
+            seek(index);
+        }
+
+        // 定位到下标index的元素前面
+        final void seek(int index) {
+            if (chunks == 0) {
+                c = null;
+            } else if (index == size) {
+                c = chunk(ci = chunks - 1);
+                p = c.end;
+            } else {
+                c = chunk(ci = chunkFor(index));
+                p = slotFor(ci, index);
+            }
+        }
+
+        public boolean hasNext() {
+            return cursor < size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            checkForComodification();
+            if (cursor >= size)
+                throw new NoSuchElementException();
+            if (p == c.end) {
+                c = chunk(++ci);
+                p = c.start;
+            }
+            lastRet = cursor++;
+            return (E) c.items[p++];
+        }
+
+        public boolean hasPrevious() {
+            return cursor > 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E previous() {
+            checkForComodification();
+            if (cursor <= 0)
+                throw new NoSuchElementException();
+            if (p == c.start) {
+                c = chunk(--ci);
+                p = c.end;
+            }
+            lastRet = --cursor;
+            return (E) c.items[--p];
+        }
+
+        public int nextIndex() {
+            return cursor;
+        }
+
+        public int previousIndex() {
+            return cursor - 1;
+        }
+
+        // 就地删除，不用重新按下标定位
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            checkForComodification();
+            int k = (lastRet < cursor) ? p - 1 : p;                     // 刚调用过next时在p-1，刚调用过previous时在p
+            long r = removeAt(ci, k);
+            cursor = lastRet;
+            lastRet = -1;
+            expectedModCount = modCount;
+            if (chunks == 0) {
+                c = null;
+            } else {
+                c = chunk(ci = (int) (r >>> 32));
+                p = (int) r;
+            }
+        }
+
+        public void set(E e) {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            checkForComodification();
+            c.items[(lastRet < cursor) ? p - 1 : p] = e;
+        }
+
+        public void add(E e) {
+            checkForComodification();
+            UnrolledLinkedList.this.add(cursor++, e);
+            lastRet = -1;
+            expectedModCount = modCount;
+            seek(cursor);
+        }
+
+        public void forEachRemaining(Consumer<? super E> action) {
+            Objects.requireNonNull(action);
+            while (cursor < size && modCount == expectedModCount)
+                action.accept(next());
+            checkForComodification();
+        }
+
+        final void checkForComodification() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    // 从尾往前走，复用ListItr的previous
+    private class DescendingIterator implements Iterator<E> {
+        private final ListItr itr = new ListItr(size());
+
+        public boolean hasNext() {
+            return itr.hasPrevious();
+        }
+
+        public E next() {
+            return itr.previous();
+        }
+
+        public void remove() {
+            itr.remove();
+        }
+    }
+
+    /* ---------------- 克隆和序列化 -------------- */
+
+    @SuppressWarnings("unchecked")
+    public Object clone() {
+        UnrolledLinkedList<E> clone;
+        try {
+            clone = (UnrolledLinkedList<E>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e);
+        }
+        Chunk[] d = new Chunk[dir.length];
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j), n = new Chunk(c.start);
+            System.arraycopy(c.items, c.start, n.items, c.start, c.size());
+            n.end = c.end;
+            n.pos = c.pos;
+            d[j] = n;
+        }
+        clone.dir = d;
+        clone.head = 0;
+        clone.spare = null;
+        clone.modCount = 0;
+        return clone;
+    }
+
+    @java.io.Serial
+    private void writeObject(java.io.ObjectOutputStream s) throws IOException {
+        s.defaultWriteObject();
+        s.writeInt(size);
+        for (int j = 0; j < chunks; ++j) {
+            Chunk c = chunk(j);
+            for (int k = c.start; k < c.end; ++k)
+                s.writeObject(c.items[k]);
+        }
+    }
+
+    @java.io.Serial
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        int n = s.readInt();
+        if (n < 0)
+            throw new StreamCorruptedException("Illegal size: " + n);
+        dir = new Chunk[INITIAL_DIR_CAPACITY];
+        for (int i = 0; i < n; ++i)
+            addLast((E) s.readObject());
+    }
+}
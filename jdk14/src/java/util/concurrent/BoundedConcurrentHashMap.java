@@ -0,0 +1,1049 @@
+package java.util.concurrent;
+
+import jdk.internal.misc.Unsafe;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+
+/**
+ * 有界的ConcurrentMap：按权重限制容量，支持可插拔的淘汰策略（W-TinyLFU、分段LRU）和过期
+ *
+ * 数据放在一个ConcurrentHashMap<K, Node>里，所有写操作都通过它的compute系列方法完成，
+ * 也就是直接用putVal/replaceNode那一套桶锁保证单个key的原子性，不再额外加一把全局锁
+ *
+ * 淘汰策略需要的访问顺序不在读写路径上直接维护，而是先记录到缓冲区里：
+ *   读：get把命中的Node放进按线程探针分散的环形缓冲区（类似Striped64的cells，竞争时扩容），缓冲区满了就丢弃，get本身无锁
+ *   写：在桶锁内把AddTask/UpdateTask/RemovalTask放进写缓冲区，同一个key的任务顺序和桶锁内的修改顺序一致
+ * 拿到evictionLock（只tryLock，不阻塞）的线程负责维护：回放读写缓冲区、清理过期节点、淘汰直到总权重不超过上限
+ *
+ * 和ConcurrentHashMap一样不允许null的key和value；size()可能包含已过期但还没被清理的节点
+ */
+public class BoundedConcurrentHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    static final int NCPU = Runtime.getRuntime().availableProcessors(); // 获取cpu核心数
+    // 读缓冲区的最大个数，和Striped64一样按cpu核数限制
+    static final int MAX_READ_BUFFERS = 4 * ceilingPowerOfTwo(NCPU);
+
+    // Node.state：只在evictionLock下读写
+    static final int NEW = 0;           // AddTask还没回放，淘汰策略里还没有它
+    static final int LIVE = 1;          // 已经在淘汰策略里
+    static final int DEAD = 2;          // 已经从淘汰策略里移除
+
+    final ConcurrentHashMap<K, Node<K, V>> data;
+    final long maximumWeight;
+    final ToIntBiFunction<? super K, ? super V> weigher;
+    final EvictionPolicy<K, V> policy;
+    final long expireAfterWriteNanos;   // 0表示不过期
+    final long expireAfterAccessNanos;  // 0表示不过期
+
+    final ReentrantLock evictionLock = new ReentrantLock();
+    final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    transient volatile ReadBuffer[] readBuffers;
+    private transient volatile int readBuffersBusy;  // 扩容读缓冲区时的自旋锁，同Striped64.cellsBusy
+    volatile long weightedSize;                      // 淘汰策略里所有节点的权重和，只在evictionLock下修改
+
+    // 以下两个链表只在开启对应的过期时使用，只在evictionLock下修改
+    final LinkedDeque<K, V> accessOrder = new LinkedDeque<K, V>(LinkedDeque.ACCESS);
+    final LinkedDeque<K, V> writeOrder = new LinkedDeque<K, V>(LinkedDeque.WRITE);
+
+    /**
+     * 几个构造方法
+     */
+    // 每个元素权重为1，也就是最多maximumSize个元素，W-TinyLFU淘汰
+    public BoundedConcurrentHashMap(long maximumSize) {
+        this(maximumSize, (k, v) -> 1, EvictionPolicy.<K, V>windowTinyLfu(), 0L, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    public BoundedConcurrentHashMap(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher,
+                                    EvictionPolicy<K, V> policy) {
+        this(maximumWeight, weigher, policy, 0L, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * expireAfterWrite：写入（put、replace）之后超过这么久过期
+     * expireAfterAccess：最后一次读或写之后超过这么久过期
+     * 传0表示不开启；policy实例不能在多个map之间共享
+     */
+    public BoundedConcurrentHashMap(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher,
+                                    EvictionPolicy<K, V> policy, long expireAfterWrite,
+                                    long expireAfterAccess, TimeUnit unit) {
+        if (maximumWeight < 0 || expireAfterWrite < 0 || expireAfterAccess < 0)
+            throw new IllegalArgumentException();
+        if (weigher == null || policy == null || unit == null)
+            throw new NullPointerException();
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.policy = policy;
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(
+                (int) Math.min(maximumWeight, 1 << 16));
+        this.readBuffers = new ReadBuffer[]{new ReadBuffer()};
+        policy.init(maximumWeight);
+    }
+
+    // 不小于x的2的幂
+    static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+
+    /* ---------------- 节点 -------------- */
+
+    /**
+     * map里的一个节点，value原地更新；淘汰策略通过它拿到key和权重
+     */
+    public static final class Node<K, V> implements Map.Entry<K, V> {
+        final K key;
+        volatile V value;
+        int weight;                     // 桶锁内修改
+        volatile long writeTime;
+        volatile long accessTime;
+
+        // 以下字段只在evictionLock下读写
+        int policyWeight;               // 淘汰策略看到的权重，回放写任务时更新
+        int state;                      // NEW、LIVE、DEAD
+        int queue;                      // 内置策略用来记录节点在哪个队列
+        Node<K, V> prev, next;          // 淘汰策略的链表
+        Node<K, V> accessPrev, accessNext;
+        Node<K, V> writePrev, writeNext;
+
+        Node(K key, V value, int weight, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        // 淘汰策略记账用的权重
+        public int weight() {
+            return policyWeight;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            Object k, v;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    (k == key || k.equals(key)) &&
+                    (v == value || v.equals(value)));
+        }
+
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * 侵入式双向链表，kind决定用Node上的哪一对指针
+     */
+    static final class LinkedDeque<K, V> {
+        static final int POLICY = 0, ACCESS = 1, WRITE = 2;
+        final int kind;
+        Node<K, V> head, tail;
+
+        LinkedDeque(int kind) {
+            this.kind = kind;
+        }
+
+        Node<K, V> prevOf(Node<K, V> n) {
+            return kind == POLICY ? n.prev : kind == ACCESS ? n.accessPrev : n.writePrev;
+        }
+
+        Node<K, V> nextOf(Node<K, V> n) {
+            return kind == POLICY ? n.next : kind == ACCESS ? n.accessNext : n.writeNext;
+        }
+
+        void setPrev(Node<K, V> n, Node<K, V> p) {
+            if (kind == POLICY) n.prev = p;
+            else if (kind == ACCESS) n.accessPrev = p;
+            else n.writePrev = p;
+        }
+
+        void setNext(Node<K, V> n, Node<K, V> x) {
+            if (kind == POLICY) n.next = x;
+            else if (kind == ACCESS) n.accessNext = x;
+            else n.writeNext = x;
+        }
+
+        boolean contains(Node<K, V> n) {
+            return prevOf(n) != null || head == n;
+        }
+
+        Node<K, V> peekFirst() {
+            return head;
+        }
+
+        Node<K, V> peekLast() {
+            return tail;
+        }
+
+        void linkLast(Node<K, V> n) {
+            Node<K, V> t = tail;
+            setPrev(n, t);
+            setNext(n, null);
+            tail = n;
+            if (t == null)
+                head = n;
+            else
+                setNext(t, n);
+        }
+
+        void unlink(Node<K, V> n) {
+            Node<K, V> p = prevOf(n), x = nextOf(n);
+            if (p == null)
+                head = x;
+            else
+                setNext(p, x);
+            if (x == null)
+                tail = p;
+            else
+                setPrev(x, p);
+            setPrev(n, null);
+            setNext(n, null);
+        }
+
+        void moveToLast(Node<K, V> n) {
+            if (n != tail) {
+                unlink(n);
+                linkLast(n);
+            }
+        }
+    }
+
+    /* ---------------- 淘汰策略 -------------- */
+
+    /**
+     * 可插拔的淘汰策略，所有方法都只在evictionLock下被调用，实现不需要考虑并发
+     * 节点的weight()在onInsert/onUpdate被调用前已经更新；总权重超过上限时map会反复调用victim()并淘汰它返回的节点
+     */
+    public abstract static class EvictionPolicy<K, V> {
+
+        protected EvictionPolicy() {
+        }
+
+        // 构造map时调用一次
+        protected abstract void init(long maximumWeight);
+
+        protected abstract void onInsert(Node<K, V> node);
+
+        // 读命中（读缓冲区是有损的，并不是每次读都会回调）
+        protected abstract void onAccess(Node<K, V> node);
+
+        // 原地更新了value，oldWeight是更新前的权重
+        protected abstract void onUpdate(Node<K, V> node, int oldWeight);
+
+        protected abstract void onRemove(Node<K, V> node);
+
+        // 下一个要淘汰的节点，没有可淘汰的返回null
+        protected abstract Node<K, V> victim();
+
+        // 窗口LRU + 频率草图准入 + 分段LRU主区
+        public static <K, V> EvictionPolicy<K, V> windowTinyLfu() {
+            return new WindowTinyLfu<K, V>();
+        }
+
+        // 试用区 + 保护区的分段LRU
+        public static <K, V> EvictionPolicy<K, V> segmentedLru() {
+            return new SegmentedLru<K, V>();
+        }
+    }
+
+    /**
+     * 分段LRU：新节点进试用区，在试用区被再次访问后升入保护区（占总权重的80%），
+     * 保护区超出时把最老的降回试用区尾部；淘汰先从试用区头部开始
+     */
+    static class SegmentedLru<K, V> extends EvictionPolicy<K, V> {
+        static final int WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+        final LinkedDeque<K, V> probation = new LinkedDeque<K, V>(LinkedDeque.POLICY);
+        final LinkedDeque<K, V> protectedQ = new LinkedDeque<K, V>(LinkedDeque.POLICY);
+        long protectedMax, protectedWeight;
+
+        protected void init(long maximumWeight) {
+            protectedMax = maximumWeight - maximumWeight / 5;
+        }
+
+        protected void onInsert(Node<K, V> node) {
+            node.queue = PROBATION;
+            probation.linkLast(node);
+        }
+
+        protected void onAccess(Node<K, V> node) {
+            if (node.queue == PROBATION) {
+                probation.unlink(node);
+                node.queue = PROTECTED;
+                protectedQ.linkLast(node);
+                protectedWeight += node.policyWeight;
+                Node<K, V> f;
+                while (protectedWeight > protectedMax && (f = protectedQ.peekFirst()) != node) {
+                    protectedQ.unlink(f);
+                    protectedWeight -= f.policyWeight;
+                    f.queue = PROBATION;
+                    probation.linkLast(f);
+                }
+            } else if (node.queue == PROTECTED)
+                protectedQ.moveToLast(node);
+        }
+
+        protected void onUpdate(Node<K, V> node, int oldWeight) {
+            if (node.queue == PROTECTED)
+                protectedWeight += node.policyWeight - oldWeight;
+            onAccess(node);
+        }
+
+        protected void onRemove(Node<K, V> node) {
+            if (node.queue == PROBATION)
+                probation.unlink(node);
+            else if (node.queue == PROTECTED) {
+                protectedQ.unlink(node);
+                protectedWeight -= node.policyWeight;
+            }
+            node.queue = 0;
+        }
+
+        protected Node<K, V> victim() {
+            Node<K, V> v;
+            return ((v = probation.peekFirst()) != null) ? v : protectedQ.peekFirst();
+        }
+    }
+
+    /**
+     * W-TinyLFU：新节点先进占总权重1%的窗口LRU，被挤出窗口后进入主区的试用区尾部成为候选，
+     * 淘汰时用频率草图比较候选（试用区尾部）和受害者（试用区头部），频率低的那个被淘汰
+     */
+    static final class WindowTinyLfu<K, V> extends SegmentedLru<K, V> {
+        final LinkedDeque<K, V> window = new LinkedDeque<K, V>(LinkedDeque.POLICY);
+        long windowMax, windowWeight;
+        FrequencySketch sketch;
+
+        protected void init(long maximumWeight) {
+            windowMax = Math.max(1L, maximumWeight / 100);
+            super.init(maximumWeight - windowMax);
+            sketch = new FrequencySketch(maximumWeight);
+        }
+
+        protected void onInsert(Node<K, V> node) {
+            sketch.increment(node.key);
+            node.queue = WINDOW;
+            window.linkLast(node);
+            windowWeight += node.policyWeight;
+            evictFromWindow();
+        }
+
+        // 窗口超出的部分移到试用区尾部
+        private void evictFromWindow() {
+            Node<K, V> f;
+            while (windowWeight > windowMax && (f = window.peekFirst()) != null) {
+                window.unlink(f);
+                windowWeight -= f.policyWeight;
+                f.queue = PROBATION;
+                probation.linkLast(f);
+            }
+        }
+
+        protected void onAccess(Node<K, V> node) {
+            sketch.increment(node.key);
+            if (node.queue == WINDOW)
+                window.moveToLast(node);
+            else
+                super.onAccess(node);
+        }
+
+        protected void onUpdate(Node<K, V> node, int oldWeight) {
+            if (node.queue == WINDOW) {
+                windowWeight += node.policyWeight - oldWeight;
+                onAccess(node);
+                evictFromWindow();
+            } else
+                super.onUpdate(node, oldWeight);
+        }
+
+        protected void onRemove(Node<K, V> node) {
+            if (node.queue == WINDOW) {
+                window.unlink(node);
+                windowWeight -= node.policyWeight;
+                node.queue = 0;
+            } else
+                super.onRemove(node);
+        }
+
+        protected Node<K, V> victim() {
+            Node<K, V> victim = probation.peekFirst(), candidate = probation.peekLast();
+            if (victim == null) {
+                if ((victim = protectedQ.peekFirst()) == null)
+                    victim = window.peekFirst();
+                return victim;
+            }
+            if (victim == candidate)
+                return victim;
+            return (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) ? victim : candidate;
+        }
+    }
+
+    /**
+     * 4位计数器的Count-Min草图，每个long放16个计数器，每个key在4行里各占一个计数器，频率取最小值
+     * 累计增加次数达到sampleSize时所有计数器减半，让旧的热度逐渐衰减；只在evictionLock下使用
+     */
+    static final class FrequencySketch {
+        static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        static final long RESET_MASK = 0x7777777777777777L;
+        final long[] table;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(long maximumSize) {
+            int n = (int) Math.min(Math.max(maximumSize, 16L), 1 << 18);
+            int cap = ceilingPowerOfTwo(n);
+            table = new long[cap];
+            sampleSize = 10 * cap;
+        }
+
+        private int indexOf(int h, int i) {
+            long x = (h + SEEDS[i]) * SEEDS[i];
+            x += x >>> 32;
+            return ((int) x) & (table.length - 1);
+        }
+
+        // 第i行在这个long里用哪个4位计数器
+        private static int offsetOf(int h, int i) {
+            return ((h >>> (i << 3)) & 3) << 2 | i;
+        }
+
+        private static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+
+        int frequency(Object key) {
+            int h = spread(key.hashCode()), f = 15;
+            for (int i = 0; i < 4; i++) {
+                int c = (int) (table[indexOf(h, i)] >>> (offsetOf(h, i) << 2)) & 0xf;
+                f = Math.min(f, c);
+            }
+            return f;
+        }
+
+        void increment(Object key) {
+            int h = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int idx = indexOf(h, i), shift = offsetOf(h, i) << 2;
+                long mask = 0xfL << shift;
+                if ((table[idx] & mask) != mask) {
+                    table[idx] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                additions >>>= 1;
+            }
+        }
+    }
+
+    /* ---------------- 读缓冲区 -------------- */
+
+    /**
+     * 多生产者、单消费者的有损环形缓冲区：生产者CAS领取writeCount的下标再发布节点，满了直接丢弃；
+     * 只有持有evictionLock的线程消费
+     */
+    @jdk.internal.vm.annotation.Contended
+    static final class ReadBuffer {
+        static final int SIZE = 16;
+        static final int MASK = SIZE - 1;
+        static final int SUCCESS = 0, FULL = 1, FAILED = 2;
+        final Object[] slots = new Object[SIZE];
+        volatile long readCount;
+        volatile long writeCount;
+
+        int offer(Object e) {
+            long w = writeCount, size = w - readCount;
+            if (size >= SIZE)
+                return FULL;
+            if (U.compareAndSetLong(this, WRITECOUNT, w, w + 1)) {
+                U.putReferenceRelease(slots, slotOffset((int) w & MASK), e);
+                return (size + 1 >= SIZE) ? FULL : SUCCESS;
+            }
+            return FAILED;
+        }
+
+        <K, V> void drainTo(BoundedConcurrentHashMap<K, V> map) {
+            long r = readCount, w = writeCount;
+            for (; r != w; r++) {
+                long off = slotOffset((int) r & MASK);
+                Object e = U.getReferenceAcquire(slots, off);
+                if (e == null)
+                    break;          // 生产者领了下标还没写入，下次再消费
+                U.putReferenceRelease(slots, off, null);
+                @SuppressWarnings("unchecked") Node<K, V> n = (Node<K, V>) e;
+                map.onAccess(n);
+            }
+            readCount = r;
+        }
+
+        private static final long WRITECOUNT = U.objectFieldOffset(ReadBuffer.class, "writeCount");
+    }
+
+    // 把读到的节点记到当前线程对应的读缓冲区；CAS失败说明有竞争，换一个探针并尝试扩容读缓冲区
+    final void recordRead(Node<K, V> node) {
+        ReadBuffer[] bs = readBuffers;
+        int h;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+        }
+        int r = bs[h & (bs.length - 1)].offer(node);
+        if (r == ReadBuffer.FULL)
+            tryMaintenance();
+        else if (r == ReadBuffer.FAILED) {
+            ThreadLocalRandom.advanceProbe(h);
+            if (bs.length < MAX_READ_BUFFERS && readBuffers == bs &&
+                    readBuffersBusy == 0 && U.compareAndSetInt(this, READBUFFERSBUSY, 0, 1)) {
+                try {
+                    if (readBuffers == bs) {  // Expand table unless stale
+                        ReadBuffer[] rs = new ReadBuffer[bs.length << 1];
+                        System.arraycopy(bs, 0, rs, 0, bs.length);
+                        for (int i = bs.length; i < rs.length; i++)
+                            rs[i] = new ReadBuffer();
+                        readBuffers = rs;
+                    }
+                } finally {
+                    readBuffersBusy = 0;
+                }
+            }
+        }
+    }
+
+    /* ---------------- 写缓冲区里的任务 -------------- */
+
+    final class AddTask implements Runnable {
+        final Node<K, V> node;
+        final int weight;
+
+        AddTask(Node<K, V> node, int weight) {
+            this.node = node;
+            this.weight = weight;
+        }
+
+        public void run() {
+            Node<K, V> n = node;
+            if (n.state != NEW)
+                return;
+            n.state = LIVE;
+            n.policyWeight = weight;
+            weightedSize += weight;
+            policy.onInsert(n);
+            if (expireAfterAccessNanos > 0)
+                accessOrder.linkLast(n);
+            if (expireAfterWriteNanos > 0)
+                writeOrder.linkLast(n);
+        }
+    }
+
+    final class UpdateTask implements Runnable {
+        final Node<K, V> node;
+        final int weight;
+
+        UpdateTask(Node<K, V> node, int weight) {
+            this.node = node;
+            this.weight = weight;
+        }
+
+        public void run() {
+            Node<K, V> n = node;
+            if (n.state != LIVE)
+                return;             // 更新之后已经被淘汰了
+            int old = n.policyWeight;
+            n.policyWeight = weight;
+            weightedSize += weight - old;
+            policy.onUpdate(n, old);
+            if (expireAfterAccessNanos > 0)
+                accessOrder.moveToLast(n);
+            if (expireAfterWriteNanos > 0)
+                writeOrder.moveToLast(n);
+        }
+    }
+
+    final class RemovalTask implements Runnable {
+        final Node<K, V> node;
+
+        RemovalTask(Node<K, V> node) {
+            this.node = node;
+        }
+
+        public void run() {
+            retire(node);
+        }
+    }
+
+    /* ---------------- 维护：回放缓冲区、过期、淘汰 -------------- */
+
+    // 节点已经从data里删掉了，把它从淘汰策略和过期链表里摘掉
+    final void retire(Node<K, V> n) {
+        if (n.state == LIVE) {
+            weightedSize -= n.policyWeight;
+            policy.onRemove(n);
+            if (expireAfterAccessNanos > 0)
+                accessOrder.unlink(n);
+            if (expireAfterWriteNanos > 0)
+                writeOrder.unlink(n);
+        }
+        n.state = DEAD;
+    }
+
+    // 回放一次读命中
+    final void onAccess(Node<K, V> n) {
+        if (n.state == LIVE) {
+            policy.onAccess(n);
+            if (expireAfterAccessNanos > 0)
+                accessOrder.moveToLast(n);
+        }
+    }
+
+    // 拿不到锁说明已经有线程在维护，直接返回；维护完如果又有写任务进来就再试一次，避免漏掉
+    final void tryMaintenance() {
+        while (evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            if (writeBuffer.isEmpty())
+                break;
+        }
+    }
+
+    final void maintenance() {
+        for (ReadBuffer b : readBuffers)
+            b.drainTo(this);
+        drainWriteBuffer();
+        expire();
+        evict();
+    }
+
+    final void drainWriteBuffer() {
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null)
+            task.run();
+    }
+
+    final void expire() {
+        if (expireAfterAccessNanos == 0 && expireAfterWriteNanos == 0)
+            return;
+        long now = System.nanoTime();
+        Node<K, V> n;
+        while ((n = accessOrder.peekFirst()) != null && now - n.accessTime >= expireAfterAccessNanos) {
+            if (!evictNode(n))
+                drainWriteBuffer();
+        }
+        while ((n = writeOrder.peekFirst()) != null && now - n.writeTime >= expireAfterWriteNanos) {
+            if (!evictNode(n))
+                drainWriteBuffer();
+        }
+    }
+
+    final void evict() {
+        Node<K, V> n;
+        while (weightedSize > maximumWeight && (n = policy.victim()) != null) {
+            if (!evictNode(n))
+                drainWriteBuffer();
+        }
+    }
+
+    /**
+     * 在桶锁内把节点从data里删掉；返回false说明它已经被别的写操作删掉了，
+     * 对应的RemovalTask已经在写缓冲区里，调用方回放写缓冲区即可
+     */
+    final boolean evictNode(Node<K, V> node) {
+        boolean[] removed = new boolean[1];
+        data.computeIfPresent(node.key, (k, n) -> {
+            if (n != node)
+                return n;
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0])
+            retire(node);
+        return removed[0];
+    }
+
+    // 写操作之后调用
+    final void afterWrite() {
+        tryMaintenance();
+    }
+
+    /* ---------------- 过期判断和权重 -------------- */
+
+    final boolean expires() {
+        return expireAfterWriteNanos > 0 || expireAfterAccessNanos > 0;
+    }
+
+    final boolean hasExpired(Node<K, V> n, long now) {
+        return (expireAfterWriteNanos > 0 && now - n.writeTime >= expireAfterWriteNanos) ||
+                (expireAfterAccessNanos > 0 && now - n.accessTime >= expireAfterAccessNanos);
+    }
+
+    final long now() {
+        return expires() ? System.nanoTime() : 0L;
+    }
+
+    final int weigh(K key, V value) {
+        int w = weigher.applyAsInt(key, value);
+        if (w < 0)
+            throw new IllegalArgumentException("negative weight");
+        return w;
+    }
+
+    /* ---------------- Map的方法 -------------- */
+
+    public int size() {
+        return data.size();
+    }
+
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    // 淘汰策略里所有节点的权重和（还没回放的写操作不计入）
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    // 立即回放缓冲区并清理过期、超出的节点
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // get无锁：读data，判断过期，记到读缓冲区
+    public V get(Object key) {
+        Node<K, V> n = data.get(key);
+        if (n == null)
+            return null;
+        V v = n.value;
+        if (expires()) {
+            long now = System.nanoTime();
+            if (hasExpired(n, now)) {
+                tryMaintenance();
+                return null;
+            }
+            if (expireAfterAccessNanos > 0)
+                n.accessTime = now;
+        }
+        recordRead(n);
+        return v;
+    }
+
+    public boolean containsKey(Object key) {
+        Node<K, V> n = data.get(key);
+        return n != null && !(expires() && hasExpired(n, System.nanoTime()));
+    }
+
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        long now = now();
+        for (Node<K, V> n : data.values()) {
+            V v = n.value;
+            if ((v == value || value.equals(v)) && !(expires() && hasExpired(n, now)))
+                return true;
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * 不存在（或已过期）时插入新节点，存在时原地更新value、权重和时间；都在data的桶锁内完成，任务也在桶锁内入队
+     */
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int w = weigh(key, value);
+        long now = now();
+        Object[] prev = new Object[1];
+        data.compute(key, (k, n) -> {
+            if (n == null) {
+                n = new Node<K, V>(k, value, w, now);
+                writeBuffer.offer(new AddTask(n, w));
+                return n;
+            }
+            boolean expired = expires() && hasExpired(n, now);
+            if (!expired) {
+                prev[0] = n.value;
+                if (onlyIfAbsent)
+                    return n;
+            }
+            n.value = value;
+            n.weight = w;
+            n.writeTime = n.accessTime = now;
+            writeBuffer.offer(new UpdateTask(n, w));
+            return n;
+        });
+        afterWrite();
+        @SuppressWarnings("unchecked") V p = (V) prev[0];
+        return p;
+    }
+
+    public V remove(Object key) {
+        return removeVal(key, null);
+    }
+
+    public boolean remove(Object key, Object value) {
+        return value != null && removeVal(key, value) != null;
+    }
+
+    /**
+     * 删除key，value不为null时只有当前值等于它才删除；已过期的节点也会被删掉，但按不存在返回
+     */
+    final V removeVal(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        long now = now();
+        Object[] prev = new Object[1];
+        @SuppressWarnings("unchecked") K k0 = (K) key;
+        data.computeIfPresent(k0, (k, n) -> {
+            boolean expired = expires() && hasExpired(n, now);
+            V v = n.value;
+            if (!expired && value != null && !(v == value || value.equals(v)))
+                return n;
+            if (!expired)
+                prev[0] = v;
+            writeBuffer.offer(new RemovalTask(n));
+            return null;
+        });
+        afterWrite();
+        @SuppressWarnings("unchecked") V p = (V) prev[0];
+        return p;
+    }
+
+    public V replace(K key, V value) {
+        return replaceVal(key, null, value);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null)
+            throw new NullPointerException();
+        return replaceVal(key, oldValue, newValue) != null;
+    }
+
+    // 存在且没过期时原地更新，expect不为null时只有当前值等于它才更新
+    final V replaceVal(K key, V expect, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int w = weigh(key, value);
+        long now = now();
+        Object[] prev = new Object[1];
+        data.computeIfPresent(key, (k, n) -> {
+            V v = n.value;
+            if ((expires() && hasExpired(n, now)) ||
+                    (expect != null && !(v == expect || expect.equals(v))))
+                return n;
+            prev[0] = v;
+            n.value = value;
+            n.weight = w;
+            n.writeTime = n.accessTime = now;
+            writeBuffer.offer(new UpdateTask(n, w));
+            return n;
+        });
+        if (prev[0] != null)
+            afterWrite();
+        @SuppressWarnings("unchecked") V p = (V) prev[0];
+        return p;
+    }
+
+    /**
+     * 命中时无锁返回；否则在桶锁内计算，同一个key的mappingFunction只会执行一次
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        V v = get(key);
+        if (v != null)
+            return v;
+        long now = now();
+        Object[] result = new Object[1];
+        data.compute(key, (k, n) -> {
+            if (n != null && !(expires() && hasExpired(n, now))) {
+                result[0] = n.value;
+                return n;
+            }
+            V nv = mappingFunction.apply(k);
+            if (nv == null) {
+                if (n != null)
+                    writeBuffer.offer(new RemovalTask(n));
+                return null;
+            }
+            int w = weigh(k, nv);
+            result[0] = nv;
+            if (n == null) {
+                n = new Node<K, V>(k, nv, w, now);
+                writeBuffer.offer(new AddTask(n, w));
+            } else {
+                n.value = nv;
+                n.weight = w;
+                n.writeTime = n.accessTime = now;
+                writeBuffer.offer(new UpdateTask(n, w));
+            }
+            return n;
+        });
+        afterWrite();
+        @SuppressWarnings("unchecked") V r = (V) result[0];
+        return r;
+    }
+
+    public void clear() {
+        for (K k : data.keySet())
+            removeVal(k, null);
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new EntrySetView();
+    }
+
+    /**
+     * 基于data的弱一致视图，跳过已过期的节点
+     */
+    final class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        public int size() {
+            return BoundedConcurrentHashMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            Object k, v, r;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (r = BoundedConcurrentHashMap.this.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    BoundedConcurrentHashMap.this.remove(k, v));
+        }
+
+        public void clear() {
+            BoundedConcurrentHashMap.this.clear();
+        }
+    }
+
+    final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        final Iterator<Node<K, V>> it = data.values().iterator();
+        final long now = now();
+        Map.Entry<K, V> next;
+        K lastKey;
+
+        public boolean hasNext() {
+            while (next == null && it.hasNext()) {
+                Node<K, V> n = it.next();
+                V v = n.value;
+                if (!(expires() && hasExpired(n, now)))
+                    next = new MapEntry(n.key, v);
+            }
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<K, V> e = next;
+            next = null;
+            lastKey = e.getKey();
+            return e;
+        }
+
+        public void remove() {
+            K k;
+            if ((k = lastKey) == null)
+                throw new IllegalStateException();
+            lastKey = null;
+            BoundedConcurrentHashMap.this.remove(k);
+        }
+    }
+
+    // 迭代器返回的entry，setValue写回map
+    final class MapEntry extends AbstractMap.SimpleEntry<K, V> {
+        @java.io.Serial
+        private static final long serialVersionUID = -2570137846393472953L;
+
+        MapEntry(K key, V value) {
+            super(key, value);
+        }
+
+        public V setValue(V value) {
+            Objects.requireNonNull(value);
+            V v = super.setValue(value);
+            BoundedConcurrentHashMap.this.put(getKey(), value);
+            return v;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final Unsafe U = Unsafe.getUnsafe();
+    private static final long READBUFFERSBUSY
+            = U.objectFieldOffset(BoundedConcurrentHashMap.class, "readBuffersBusy");
+    private static final int ABASE = U.arrayBaseOffset(Object[].class);
+    private static final int ASHIFT;
+
+    static {
+        int scale = U.arrayIndexScale(Object[].class);
+        if ((scale & (scale - 1)) != 0)
+            throw new ExceptionInInitializerError("array index scale not a power of two");
+        ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+    }
+
+    static long slotOffset(int i) {
+        return ((long) i << ASHIFT) + ABASE;
+    }
+}
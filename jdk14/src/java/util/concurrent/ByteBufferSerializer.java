@@ -0,0 +1,17 @@
+package java.util.concurrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把对象写进ByteBuffer、再从ByteBuffer读回来的序列化器，
+ * OffHeapConcurrentHashMap存堆外记录、ConcurrentHashMap.checkpoint/restore写映射文件都用它
+ * serialize必须从out当前position开始正好写serializedSize个字节，
+ * deserialize拿到的in从position到limit正好是一条序列化结果
+ */
+public interface ByteBufferSerializer<T> {
+    int serializedSize(T t);
+
+    void serialize(T t, ByteBuffer out);
+
+    T deserialize(ByteBuffer in);
+}
@@ -1,12 +1,22 @@
 package java.util.concurrent;
 
 import jdk.internal.misc.Unsafe;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.lang.Runtime;
@@ -28,18 +38,31 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
     private static final int RESIZE_STAMP_BITS = 16;        //
     private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;//
     private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;       //
+    private static final int COUNT_SLACK_SHIFT = 3; // addCount抽样求和时允许超过阈值的比例 1/2^3
     static final int MOVED = -1;    // hash for forwarding nodes
     static final int TREEBIN = -2;  // hash for roots of trees
     static final int RESERVED = -3; // hash for transient reservations
+    static final int ARRAYBIN = -4; // hash for compact collision bins
+    static final int MAPPED = -5;   // hash for bins still in a checkpoint file
     static final int HASH_BITS = 0x7fffffff; // 留下最高位,目的是为了后面按位与得到符合位
     static final int NCPU = Runtime.getRuntime().availableProcessors(); // 获取cpu核心数
     transient volatile Node<K, V>[] table; // 底层数组
     private transient volatile Node<K, V>[] nextTable;//
+    private transient volatile long resizeStart;    // 这一轮扩容开始的时间，开始时没有打开统计模式为0
     private transient volatile long baseCount;
     private transient volatile int sizeCtl;
     private transient volatile int transferIndex;
     private transient volatile int cellsBusy;
     private transient volatile CounterCell[] counterCells;
+    private transient int resizeQuota;              // 渐进式扩容时每次操作最多迁移的桶数，0表示原来的整段迁移；序列化和checkpoint都会带上
+    private transient volatile int migratedBins;    // 渐进式扩容已经迁移完成的桶数
+    private transient volatile Stats stats;         // 统计模式的计数器，关闭时为null
+    private transient volatile SnapshotList<K, V> snapshots;  // 还没关闭的快照，写线程在桶锁内读取
+    private transient volatile boolean compactBins;  // 树化时key都是同一个Comparable类就用ArrayBin代替TreeBin
+    private transient volatile ConcurrentHashMap<Object, CompletableFuture<V>> loads; // computeIfAbsentAsync正在加载的key
+    private transient volatile MappedFile<K, V> mapped; // restore映射的文件，表里可能还有MappedBin时非null
+    private transient volatile long sizeStaleness;  // size()近似模式允许的过期时间（纳秒），0为精确
+    private transient volatile CountSample countSample; // 近似模式下最近一次求和的结果
     private transient KeySetView<K, V> keySet;      // key的set集合
     private transient ValuesView<K, V> values;      // value的集合
     private transient EntrySetView<K, V> entrySet;  // entry集合
@@ -48,6 +71,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             new ObjectStreamField("segments", Segment[].class),
             new ObjectStreamField("segmentMask", Integer.TYPE),
             new ObjectStreamField("segmentShift", Integer.TYPE),
+            new ObjectStreamField("resizeQuota", Integer.TYPE),      // 没有这个字段的旧格式读出来是0
     };
 
     /**
@@ -77,6 +101,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         int cap = (size >= (long) MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : tableSizeFor((int) size);
         this.sizeCtl = cap;
     }
+    // 渐进式扩容：扩容期间每次写操作最多迁移resizeBinsPerOp个桶，没有线程会一次性迁移一整段
+    public ConcurrentHashMap(int initialCapacity, float loadFactor, int concurrencyLevel, int resizeBinsPerOp) {
+        this(initialCapacity, loadFactor, concurrencyLevel);
+        if (resizeBinsPerOp <= 0)
+            throw new IllegalArgumentException();
+        this.resizeQuota = resizeBinsPerOp;
+    }
     // 带初始map的构造方法
     public ConcurrentHashMap(Map<? extends K, ? extends V> m) {
         this.sizeCtl = DEFAULT_CAPACITY;// 16
@@ -204,7 +235,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
 
 
     public int size() {
-        long n = sumCount();
+        long n = (sizeStaleness > 0L) ? approximateCount() : sumCount();
         return ((n < 0L) ? 0 :
                 (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE :
                         (int) n);
@@ -279,8 +310,11 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             if (tab == null || (n = tab.length) == 0)
                 tab = initTable();
             else if ((f = tabAt(tab, i = (n - 1) & hash)) == null) {
-                if (casTabAt(tab, i, null, new Node<K, V>(hash, key, value)))
+                if (casEmptyBin(tab, i, new Node<K, V>(hash, key, value)))
                     break;                   // no lock when adding to empty bin
+                Stats st;
+                if ((st = stats) != null)
+                    st.casRetries.increment();
             } else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else if (onlyIfAbsent // check first node without acquiring lock
@@ -290,8 +324,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 return fv;
             else {
                 V oldVal = null;
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             binCount = 1;
                             for (Node<K, V> e = f; ; ++binCount) {
@@ -319,9 +358,24 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                                 if (!onlyIfAbsent)
                                     p.val = value;
                             }
+                        } else if (f instanceof ArrayBin) {
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p = t.find(hash, key);
+                            if (p != null || t.accepts(hash, key)) {
+                                binCount = 2;
+                                if (p != null)
+                                    oldVal = p.val;
+                                if (p == null || !onlyIfAbsent)
+                                    t.put(hash, (p == null) ? key : p.key, value);
+                            } else
+                                setTabAt(tab, i, t.toTreeBin()); // binCount为0，在TreeBin上重试
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (binCount != 0) {
                     if (binCount >= TREEIFY_THRESHOLD)
@@ -345,6 +399,165 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             putVal(e.getKey(), e.getValue(), false);
     }
 
+    /**
+     * 并行版本的putAll，m的元素个数小于parallelismThreshold时退化为单线程
+     */
+    public void parallelPutAll(long parallelismThreshold, Map<? extends K, ? extends V> m) {
+        bulkLoad(parallelismThreshold, m.entrySet().spliterator(), m.size());
+    }
+
+    /**
+     * 从spliterator批量加载，按estimateSize决定并行度；entries中有重复key时保留哪一个value不确定
+     * 只有SIZED的spliterator才按元素个数预先扩容，估计值可能是Long.MAX_VALUE，不能当真
+     */
+    public void bulkLoad(Spliterator<? extends Entry<? extends K, ? extends V>> entries) {
+        bulkLoad(1L, entries, entries.getExactSizeIfKnown());
+    }
+
+    /**
+     * 批量加载分两个阶段，都在ForkJoinPool公共池上按batchFor拆分：
+     * 1.ScatterTask：各线程拆分spliterator，计算hash、创建Node，按桶下标的高位挂到P个分区链表上（每个分区一条CAS）
+     * 2.LoadTask：各线程领取若干分区，把分区内的Node按桶归类后逐个桶写入，一个桶只加一次锁（空桶一次CAS）
+     * 两个阶段中间表被别的线程扩容时，受影响的桶退回到逐个putVal
+     * size是确切的元素个数，不知道时为-1，这时不预先扩容，并行度按estimateSize算
+     */
+    private void bulkLoad(long parallelismThreshold,
+                          Spliterator<? extends Entry<? extends K, ? extends V>> entries,
+                          long size) {
+        if (entries == null)
+            throw new NullPointerException();
+        if (size >= 0L) {
+            long c = Math.max(sumCount(), 0L);
+            tryPresize((size >= (long) MAXIMUM_CAPACITY - c) ? MAXIMUM_CAPACITY : (int) (c + size));
+        }
+        Node<K, V>[] tab;
+        if ((tab = table) == null || tab.length == 0)
+            tab = initTable();
+        int n = tab.length;
+        int b = batchFor(parallelismThreshold, (size >= 0L) ? size : entries.estimateSize());
+        // 分区数取并行度的4倍，且不超过桶数
+        int parts = Math.min(n, tableSizeFor((b + 1) << 2));
+        int shift = Integer.numberOfTrailingZeros(n) - Integer.numberOfTrailingZeros(parts);
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] heads = (Node<K, V>[]) new Node<?, ?>[parts];
+        new ScatterTask<K, V>(null, b, entries, heads, n - 1, shift).invoke();
+        new LoadTask<K, V>(null, b, 0, parts, this, tab, heads, shift).invoke();
+    }
+
+    /**
+     * 把同一个桶的一串新节点(chain)写入tab[i]，返回新增的个数
+     */
+    final int loadBin(Node<K, V>[] tab, int i, Node<K, V> chain) {
+        for (; ; ) {
+            Node<K, V> f;
+            int fh, binCount = 0, added = 0;
+            if (table != tab || (f = tabAt(tab, i)) != null && f.hash == MOVED) {
+                // 表已经换了，退回逐个插入
+                for (Node<K, V> x = chain, nx; x != null; x = nx) {
+                    nx = x.next;
+                    putVal(x.key, x.val, false);
+                }
+                return 0;
+            }
+            if (f == null) {
+                // 空桶：先在本地去重串好，再一次CAS放上去
+                Node<K, V> hd = null, tl = null;
+                for (Node<K, V> x = chain, nx; x != null; x = nx) {
+                    nx = x.next;
+                    Node<K, V> q = hd;
+                    for (K xk = x.key; q != null; q = q.next) {
+                        K qk;
+                        if (q.hash == x.hash && ((qk = q.key) == xk || xk.equals(qk))) {
+                            q.val = x.val;
+                            break;
+                        }
+                    }
+                    if (q == null) {
+                        x.next = null;
+                        if (tl == null)
+                            hd = x;
+                        else
+                            tl.next = x;
+                        tl = x;
+                        ++added;
+                    }
+                }
+                if (casEmptyBin(tab, i, hd)) {
+                    if (added >= TREEIFY_THRESHOLD)
+                        treeifyBin(tab, i);
+                    return added;
+                }
+                chain = hd;     // 桶被别的线程占了，去重后的链表走加锁路径
+                continue;
+            }
+            fh = f.hash;
+            synchronized (f) {
+                if (tabAt(tab, i) == f) {
+                    snapshotBin(tab, i, f);
+                    if (fh >= 0) {
+                        binCount = 1;
+                        for (Node<K, V> x = chain, nx; x != null; x = nx) {
+                            nx = x.next;
+                            int c = 1;
+                            for (Node<K, V> e = f; ; ++c) {
+                                K ek;
+                                if (e.hash == x.hash &&
+                                        ((ek = e.key) == x.key || (ek != null && x.key.equals(ek)))) {
+                                    e.val = x.val;
+                                    break;
+                                }
+                                if (e.next == null) {
+                                    x.next = null;
+                                    e.next = x;
+                                    ++added;
+                                    ++c;
+                                    break;
+                                }
+                                e = e.next;
+                            }
+                            binCount = c;
+                        }
+                    } else if (f instanceof TreeBin) {
+                        binCount = 2;
+                        TreeBin<K, V> t = (TreeBin<K, V>) f;
+                        for (Node<K, V> x = chain, nx; x != null; x = nx) {
+                            nx = x.next;
+                            Node<K, V> p;
+                            if ((p = t.putTreeVal(x.hash, x.key, x.val)) != null)
+                                p.val = x.val;
+                            else
+                                ++added;
+                        }
+                    } else if (f instanceof ArrayBin) {
+                        ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                        boolean fits = true;
+                        for (Node<K, V> x = chain; x != null && fits; x = x.next)
+                            fits = t.find(x.hash, x.key) != null || t.accepts(x.hash, x.key);
+                        if (!fits)
+                            setTabAt(tab, i, t.toTreeBin());    // 在TreeBin上重试
+                        else {
+                            binCount = 2;
+                            for (Node<K, V> x = chain; x != null; x = x.next) {
+                                Node<K, V> p = t.find(x.hash, x.key);
+                                t.put(x.hash, (p == null) ? x.key : p.key, x.val);
+                                if (p == null)
+                                    ++added;
+                            }
+                        }
+                    } else if (f instanceof MappedBin) {
+                        setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
+                    } else if (f instanceof ReservationNode)
+                        throw new IllegalStateException("Recursive update");
+                }
+            }
+            if (binCount != 0) {
+                if (binCount >= TREEIFY_THRESHOLD)
+                    treeifyBin(tab, i);
+                return added;
+            }
+        }
+    }
+
     /**
      *
      */
@@ -368,8 +581,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             else {
                 V oldVal = null;
                 boolean validated = false;
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             validated = true;
                             for (Node<K, V> e = f, pred = null; ; ) {
@@ -407,12 +625,31 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                                     if (value != null)
                                         p.val = value;
                                     else if (t.removeTreeNode(p))
-                                        setTabAt(tab, i, untreeify(t.first));
+                                        setTabAt(tab, i, untreeifyBin(t.first));
+                                }
+                            }
+                        } else if (f instanceof ArrayBin) {
+                            validated = true;
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p;
+                            if ((p = t.find(hash, key)) != null) {
+                                V pv = p.val;
+                                if (cv == null || cv == pv ||
+                                        (pv != null && cv.equals(pv))) {
+                                    oldVal = pv;
+                                    if (value != null)
+                                        t.put(hash, p.key, value);
+                                    else if (t.remove(hash, p.key))
+                                        setTabAt(tab, i, untreeifyBin(t.first()));
                                 }
                             }
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (validated) {
                     if (oldVal != null) {
@@ -433,6 +670,8 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
     public void clear() {
         long delta = 0L; // negative number of deletions
         int i = 0;
+        if (resizeQuota > 0)
+            completeTransfer(); // 旧表中还没迁移的桶不会出现在nextTable里，先迁移完
         Node<K, V>[] tab = table;
         while (tab != null && i < tab.length) {
             int fh;
@@ -445,9 +684,14 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             } else {
                 synchronized (f) {
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         Node<K, V> p = (fh >= 0 ? f :
                                 (f instanceof TreeBin) ?
                                         ((TreeBin<K, V>) f).first : null);
+                        if (f instanceof ArrayBin)
+                            delta -= ((ArrayBin<K, V>) f).size;
+                        else if (f instanceof MappedBin)
+                            delta -= ((MappedBin<K, V>) f).count(i);
                         while (p != null) {
                             --delta;
                             p = p.next;
@@ -592,6 +836,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         streamFields.put("segments", segments);
         streamFields.put("segmentShift", segmentShift);
         streamFields.put("segmentMask", segmentMask);
+        streamFields.put("resizeQuota", resizeQuota);
         s.writeFields();
 
         Node<K, V>[] t;
@@ -611,7 +856,11 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
      */
     private void readObject(java.io.ObjectInputStream s) throws java.io.IOException, ClassNotFoundException {
         sizeCtl = -1; // force exclusion for table construction
-        s.defaultReadObject();
+        java.io.ObjectInputStream.GetField streamFields = s.readFields();
+        int quota = streamFields.get("resizeQuota", 0);
+        if (quota < 0)
+            throw new java.io.InvalidObjectException("Illegal resizeQuota: " + quota);
+        resizeQuota = quota;
         long size = 0L;
         Node<K, V> p = null;
         for (; ; ) {
@@ -693,6 +942,214 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         }
     }
 
+    /**
+     * 检查点文件格式（大端）：
+     * 头部36字节：magic、version、桶数n、MAPPED_BLOCK_SHIFT、元素个数、目录偏移、resizeQuota
+     * 数据区：按block（64个桶）顺序写，每个非空桶一条记录：int个数，之后每个元素int hash、int key长度、key、int value长度、value
+     * 目录：每个block一个long（block的起始偏移），每个桶一个int（相对block起始的偏移，空桶为-1）
+     * 头部最后写，写之前先force，写了一半的文件magic对不上，restore直接拒绝
+     * 整个文件先写到同一目录下的临时文件，force之后再原子地rename成目标文件，原来的文件在这之前一直完好
+     */
+    static final int CHECKPOINT_MAGIC = 0x43484d43;         // "CHMC"
+    static final int CHECKPOINT_VERSION = 2;                // 2：头部加了resizeQuota
+    static final int CHECKPOINT_HEADER = 36;
+    static final int CHECKPOINT_BUFFER = 1 << 20;           // 写文件的缓冲区大小
+    static final int MAPPED_BLOCK_SHIFT = 6;                // 一个block的桶共用一个MappedBin
+    static final int MAPPED_BLOCK = 1 << MAPPED_BLOCK_SHIFT;
+    static final int DIR_REGION_SHIFT = 28;                 // 目录每2^28个桶（1GB）映射一段
+
+    /**
+     * 把map的一个快照（见snapshot()）按桶分组写到file，不经过ObjectOutputStream
+     * key的hashCode必须在不同进程间保持不变（String、Long这一类），restore时会校验
+     * file正是这个map restore时映射的文件时，先把还没反序列化的桶全部读进来，之后map不再依赖这个文件
+     */
+    public void checkpoint(Path file, ByteBufferSerializer<? super K> keySerializer,
+                           ByteBufferSerializer<? super V> valueSerializer) throws IOException {
+        if (file == null || keySerializer == null || valueSerializer == null)
+            throw new NullPointerException();
+        MappedFile<K, V> mf;
+        if ((mf = mapped) != null && Files.exists(file) && Files.isSameFile(mf.path, file))
+            materialize(mf);
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        boolean done = false;
+        try {
+            writeCheckpoint(tmp, keySerializer, valueSerializer);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done)
+                Files.deleteIfExists(tmp);
+        }
+    }
+
+    // checkpoint的实际写入，file是临时文件
+    private void writeCheckpoint(Path file, ByteBufferSerializer<? super K> keySerializer,
+                                 ByteBufferSerializer<? super V> valueSerializer) throws IOException {
+        try (Snapshot<K, V> s = snapshot();
+             FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            Node<K, V>[] tab = s.tab;
+            int n = (tab == null) ? 0 : tab.length;
+            int blocks = (n + MAPPED_BLOCK - 1) >>> MAPPED_BLOCK_SHIFT;
+            long[] bases = new long[blocks];
+            int[] offsets = new int[n];
+            ByteBuffer buf = ByteBuffer.allocateDirect(CHECKPOINT_BUFFER);
+            long pos = CHECKPOINT_HEADER, count = 0L;
+            ch.position(pos);
+            for (int b = 0; b < blocks; ++b) {
+                bases[b] = pos;
+                for (int i = b << MAPPED_BLOCK_SHIFT, e = Math.min(n, i + MAPPED_BLOCK); i < e; ++i) {
+                    Node<K, V> hd;
+                    if ((hd = s.bin(i)) == null) {
+                        offsets[i] = -1;
+                        continue;
+                    }
+                    if (pos - bases[b] > Integer.MAX_VALUE)
+                        throw new IOException("Bin block too large");
+                    offsets[i] = (int) (pos - bases[b]);
+                    int c = 0;
+                    for (Node<K, V> p = hd; p != null; p = p.next)
+                        ++c;
+                    (buf = reserve(ch, buf, 4)).putInt(c);
+                    pos += 4;
+                    for (Node<K, V> p = hd; p != null; p = p.next) {
+                        int ks = keySerializer.serializedSize(p.key);
+                        int vs = valueSerializer.serializedSize(p.val);
+                        buf = reserve(ch, buf, 8 + ks + 4 + vs);
+                        buf.putInt(p.hash).putInt(ks);
+                        int start = buf.position();
+                        keySerializer.serialize(p.key, buf);
+                        buf.putInt(vs);
+                        valueSerializer.serialize(p.val, buf);
+                        if (buf.position() - start != ks + 4 + vs)
+                            throw new IllegalStateException("serializedSize mismatch");
+                        pos += 8 + ks + 4 + vs;
+                    }
+                    count += c;
+                }
+            }
+            long dir = pos;
+            for (long base : bases)
+                (buf = reserve(ch, buf, 8)).putLong(base);
+            for (int off : offsets)
+                (buf = reserve(ch, buf, 4)).putInt(off);
+            flush(ch, buf);
+            ch.force(false);
+            ByteBuffer h = ByteBuffer.allocate(CHECKPOINT_HEADER);
+            h.putInt(CHECKPOINT_MAGIC).putInt(CHECKPOINT_VERSION).putInt(n).putInt(MAPPED_BLOCK_SHIFT)
+                    .putLong(count).putLong(dir).putInt(resizeQuota).flip();
+            while (h.hasRemaining())
+                ch.write(h, h.position());
+            ch.force(true);
+        }
+    }
+
+    // buf剩余空间不够len就先写出去，单条记录比缓冲区还大时换一个够大的
+    private static ByteBuffer reserve(FileChannel ch, ByteBuffer buf, int len) throws IOException {
+        if (buf.remaining() >= len)
+            return buf;
+        flush(ch, buf);
+        return (len <= buf.capacity()) ? buf : ByteBuffer.allocate(len);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * 从checkpoint写出的文件恢复一个map
+     * 数据区和目录用MappedByteBuffer映射，多个线程按block并行地把非空桶挂上MappedBin，不读任何键值，
+     * 一个桶的key、value在这个桶第一次被访问（读、写、遍历、迁移）时才反序列化，所以恢复的耗时只和桶数有关
+     * map里还有MappedBin时映射一直有效，这期间文件不能被截短或改写；
+     * 往同一个文件checkpoint是安全的，checkpoint会先把剩下的桶读进来，再用rename替换文件
+     * 恢复出来的map沿用写checkpoint时的resizeQuota
+     */
+    public static <K, V> ConcurrentHashMap<K, V> restore(Path file,
+                                                         ByteBufferSerializer<K> keySerializer,
+                                                         ByteBufferSerializer<V> valueSerializer)
+            throws IOException {
+        if (file == null || keySerializer == null || valueSerializer == null)
+            throw new NullPointerException();
+        ConcurrentHashMap<K, V> m = new ConcurrentHashMap<K, V>();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer h = readAt(ch, 0L, CHECKPOINT_HEADER);
+            int n, blocks, quota;
+            long count, dir;
+            if (h.getInt() != CHECKPOINT_MAGIC || h.getInt() != CHECKPOINT_VERSION ||
+                    (n = h.getInt()) < 0 || n > MAXIMUM_CAPACITY || (n & (n - 1)) != 0 ||
+                    h.getInt() != MAPPED_BLOCK_SHIFT || (count = h.getLong()) < 0L ||
+                    (dir = h.getLong()) < CHECKPOINT_HEADER ||
+                    dir + ((long) (blocks = (n + MAPPED_BLOCK - 1) >>> MAPPED_BLOCK_SHIFT) << 3) +
+                            ((long) n << 2) != ch.size() || (quota = h.getInt()) < 0)
+                throw new IOException("Not a ConcurrentHashMap checkpoint: " + file);
+            m.resizeQuota = quota;
+            if (n == 0)
+                return m;
+            long[] bases = new long[blocks];
+            readAt(ch, dir, blocks << 3).asLongBuffer().get(bases);
+            // 按block边界把数据区切成不超过2GB的几段分别映射
+            long[] starts = new long[blocks + 1];
+            int r = 0;
+            starts[0] = bases[0];
+            for (int b = 0; b < blocks; ++b) {
+                long end = (b + 1 < blocks) ? bases[b + 1] : dir;
+                if (bases[b] < starts[r] || end < bases[b])
+                    throw new IOException("Corrupt checkpoint: " + file);
+                if (end - starts[r] > Integer.MAX_VALUE) {
+                    if (bases[b] == starts[r])
+                        throw new IOException("Bin block too large: " + file);
+                    starts[++r] = bases[b];
+                }
+            }
+            starts[++r] = dir;
+            ByteBuffer[] regions = new ByteBuffer[r];
+            for (int j = 0; j < r; ++j)
+                regions[j] = ch.map(FileChannel.MapMode.READ_ONLY, starts[j], starts[j + 1] - starts[j]);
+            ByteBuffer[] dirs = new ByteBuffer[((n - 1) >>> DIR_REGION_SHIFT) + 1];
+            for (int j = 0; j < dirs.length; ++j) {
+                long lo = (long) j << DIR_REGION_SHIFT, hi = Math.min(n, lo + (1L << DIR_REGION_SHIFT));
+                dirs[j] = ch.map(FileChannel.MapMode.READ_ONLY,
+                        dir + ((long) blocks << 3) + (lo << 2), (hi - lo) << 2);
+            }
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] tab = (Node<K, V>[]) new Node<?, ?>[n];
+            MappedFile<K, V> mf = new MappedFile<K, V>(file.toAbsolutePath(), tab, keySerializer,
+                    valueSerializer, m, bases, starts, regions, dirs);
+            new RestoreTask<K, V>(null, batchFor(1L, blocks), 0, blocks, mf).invoke();
+            m.mapped = mf;
+            m.table = tab;
+            m.sizeCtl = n - (n >>> 2);
+            m.baseCount = count;
+        }
+        return m;
+    }
+
+    /**
+     * 把restore那张表里剩下的MappedBin全部反序列化换掉，之后map不再读mf映射的文件
+     * 扩容中已经迁走的桶是ForwardingNode，迁移时已经读过了
+     */
+    private void materialize(MappedFile<K, V> mf) {
+        Node<K, V>[] tab = mf.tab;
+        for (int i = 0; i < tab.length; ++i) {
+            Node<K, V> f;
+            if ((f = tabAt(tab, i)) instanceof MappedBin)
+                ((MappedBin<K, V>) f).install(i);
+        }
+        U.compareAndSetReference(this, MAPPEDFILE, mf, null);
+    }
+
+    private static ByteBuffer readAt(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining())
+            if (ch.read(b, pos + b.position()) < 0)
+                throw new EOFException();
+        return b.flip();
+    }
+
 
     /**
      *
@@ -826,6 +1283,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 Node<K, V> r = new ReservationNode<K, V>();
                 synchronized (r) {
                     if (casTabAt(tab, i, null, r)) {
+                        snapshotBin(tab, i, null);
                         binCount = 1;
                         Node<K, V> node = null;
                         try {
@@ -846,8 +1304,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 return fv;
             else {
                 boolean added = false;
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             binCount = 1;
                             for (Node<K, V> e = f; ; ++binCount) {
@@ -880,9 +1343,28 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                                 added = true;
                                 t.putTreeVal(h, key, val);
                             }
+                        } else if (f instanceof ArrayBin) {
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p;
+                            if ((p = t.find(h, key)) != null) {
+                                binCount = 2;
+                                val = p.val;
+                            } else if (!t.accepts(h, key))
+                                setTabAt(tab, i, t.toTreeBin());    // 在TreeBin上重试
+                            else {
+                                binCount = 2;
+                                if ((val = mappingFunction.apply(key)) != null) {
+                                    added = true;
+                                    t.put(h, key, val);
+                                }
+                            }
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (binCount != 0) {
                     if (binCount >= TREEIFY_THRESHOLD)
@@ -898,6 +1380,68 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         return val;
     }
 
+    /**
+     * 异步版本的computeIfAbsent：key不存在时调用loader得到一个CompletableFuture，完成后用putIfAbsent写入
+     *
+     * computeIfAbsent在桶锁内执行mappingFunction，慢的加载会挡住同一个桶的所有key，递归加载同一个桶直接死锁；
+     * 这里桶锁只用于在loads里放一个占位的future（一次putIfAbsent），loader在任何锁之外执行，
+     * 同一个key的并发调用共用同一个占位future，只有第一个调用loader；占位future只在这里完成，
+     * 每个调用方拿到的都是它的copy()，complete、obtrudeValue、cancel都只影响自己手里的那个，不影响别的调用方和写入map
+     * 加载结果写入map之后才撤掉占位，之后的调用直接从map里读到，不会重复加载
+     * loader抛异常、future异常完成时占位被撤掉，返回的future以包着这个异常的CompletionException完成（copy()的规则）；
+     * 结果为null时不写入，future以null完成
+     */
+    public CompletableFuture<V> computeIfAbsentAsync(K key,
+                                                     Function<? super K, ? extends CompletableFuture<? extends V>> loader) {
+        if (key == null || loader == null)
+            throw new NullPointerException();
+        V v;
+        if ((v = get(key)) != null)
+            return CompletableFuture.completedFuture(v);
+        ConcurrentHashMap<Object, CompletableFuture<V>> ls;
+        if ((ls = loads) == null && !U.compareAndSetReference(this, LOADS, null,
+                ls = new ConcurrentHashMap<Object, CompletableFuture<V>>()))
+            ls = loads;
+        CompletableFuture<V> p = new CompletableFuture<V>(), w;
+        if ((w = ls.putIfAbsent(key, p)) != null)
+            return w.copy();                // 已经有线程在加载
+        CompletableFuture<? extends V> cf;
+        try {
+            if ((v = get(key)) != null) {   // 占位之前刚被写入
+                ls.remove(key, p);
+                p.complete(v);
+                return p.copy();
+            }
+            cf = loader.apply(key);
+        } catch (Throwable ex) {
+            ls.remove(key, p);
+            p.completeExceptionally(ex);
+            return p.copy();
+        }
+        if (cf == null) {
+            ls.remove(key, p);
+            p.complete(null);
+            return p.copy();
+        }
+        final ConcurrentHashMap<Object, CompletableFuture<V>> fls = ls;
+        cf.whenComplete((r, ex) -> {
+            V u = null;
+            try {
+                if (ex == null && r != null)
+                    u = ((u = putIfAbsent(key, r)) != null) ? u : r;
+            } catch (Throwable e) {
+                ex = e;
+            } finally {
+                fls.remove(key, p);
+            }
+            if (ex != null)
+                p.completeExceptionally(ex);
+            else
+                p.complete(u);
+        });
+        return p.copy();
+    }
+
     /**
      *
      */
@@ -918,8 +1462,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             binCount = 1;
                             for (Node<K, V> e = f, pred = null; ; ++binCount) {
@@ -956,12 +1505,30 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                                 else {
                                     delta = -1;
                                     if (t.removeTreeNode(p))
-                                        setTabAt(tab, i, untreeify(t.first));
+                                        setTabAt(tab, i, untreeifyBin(t.first));
+                                }
+                            }
+                        } else if (f instanceof ArrayBin) {
+                            binCount = 2;
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p;
+                            if ((p = t.find(h, key)) != null) {
+                                val = remappingFunction.apply(key, p.val);
+                                if (val != null)
+                                    t.put(h, p.key, val);
+                                else {
+                                    delta = -1;
+                                    if (t.remove(h, p.key))
+                                        setTabAt(tab, i, untreeifyBin(t.first()));
                                 }
                             }
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (binCount != 0)
                     break;
@@ -992,6 +1559,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 Node<K, V> r = new ReservationNode<K, V>();
                 synchronized (r) {
                     if (casTabAt(tab, i, null, r)) {
+                        snapshotBin(tab, i, null);
                         binCount = 1;
                         Node<K, V> node = null;
                         try {
@@ -1009,8 +1577,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             } else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             binCount = 1;
                             for (Node<K, V> e = f, pred = null; ; ++binCount) {
@@ -1063,11 +1636,33 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                             } else if (p != null) {
                                 delta = -1;
                                 if (t.removeTreeNode(p))
-                                    setTabAt(tab, i, untreeify(t.first));
+                                    setTabAt(tab, i, untreeifyBin(t.first));
+                            }
+                        } else if (f instanceof ArrayBin) {
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p = t.find(h, key);
+                            if (p == null && !t.accepts(h, key))
+                                setTabAt(tab, i, t.toTreeBin());    // 在TreeBin上重试
+                            else {
+                                binCount = 1;
+                                val = remappingFunction.apply(key, (p == null) ? null : p.val);
+                                if (val != null) {
+                                    if (p == null)
+                                        delta = 1;
+                                    t.put(h, (p == null) ? key : p.key, val);
+                                } else if (p != null) {
+                                    delta = -1;
+                                    if (t.remove(h, p.key))
+                                        setTabAt(tab, i, untreeifyBin(t.first()));
+                                }
                             }
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (binCount != 0) {
                     if (binCount >= TREEIFY_THRESHOLD)
@@ -1097,7 +1692,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             if (tab == null || (n = tab.length) == 0)
                 tab = initTable();
             else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
-                if (casTabAt(tab, i, null, new Node<K, V>(h, key, value))) {
+                if (casEmptyBin(tab, i, new Node<K, V>(h, key, value))) {
                     delta = 1;
                     val = value;
                     break;
@@ -1105,8 +1700,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             } else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                Stats st = stats;
+                long t0 = (st != null) ? st.beforeLock(i) : 0L;
                 synchronized (f) {
+                    if (st != null)
+                        st.lockAcquired(i, t0);
                     if (tabAt(tab, i) == f) {
+                        snapshotBin(tab, i, f);
                         if (fh >= 0) {
                             binCount = 1;
                             for (Node<K, V> e = f, pred = null; ; ++binCount) {
@@ -1153,11 +1753,34 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                             } else if (p != null) {
                                 delta = -1;
                                 if (t.removeTreeNode(p))
-                                    setTabAt(tab, i, untreeify(t.first));
+                                    setTabAt(tab, i, untreeifyBin(t.first));
+                            }
+                        } else if (f instanceof ArrayBin) {
+                            ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                            Node<K, V> p = t.find(h, key);
+                            if (p == null && !t.accepts(h, key))
+                                setTabAt(tab, i, t.toTreeBin());    // 在TreeBin上重试
+                            else {
+                                binCount = 2;
+                                val = (p == null) ? value :
+                                        remappingFunction.apply(p.val, value);
+                                if (val != null) {
+                                    if (p == null)
+                                        delta = 1;
+                                    t.put(h, (p == null) ? key : p.key, val);
+                                } else if (p != null) {
+                                    delta = -1;
+                                    if (t.remove(h, p.key))
+                                        setTabAt(tab, i, untreeifyBin(t.first()));
+                                }
                             }
+                        } else if (f instanceof MappedBin) {
+                            setTabAt(tab, i, ((MappedBin<K, V>) f).load(i)); // 还没反序列化，换上后重试
                         } else if (f instanceof ReservationNode)
                             throw new IllegalStateException("Recursive update");
                     }
+                    if (st != null)
+                        st.lockReleased(i);
                 }
                 if (binCount != 0) {
                     if (binCount >= TREEIFY_THRESHOLD)
@@ -1202,7 +1825,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
      *
      */
     public long mappingCount() {
-        long n = sumCount();
+        long n = (sizeStaleness > 0L) ? approximateCount() : sumCount();
         return (n < 0L) ? 0L : n; // ignore transient negative values
     }
 
@@ -1338,11 +1961,25 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             }
             if (check <= 1)
                 return;
+            // 不是每次都求和：这个cell的值跨过step的整数倍时才检查，没检查到的增量合计不超过sizeCtl的1/8
+            int sc0;
+            if ((sc0 = sizeCtl) > 0) {
+                long step = Long.highestOneBit(Math.max(1L, ((long) sc0 >>> COUNT_SLACK_SHIFT) / (m + 1)));
+                if (((v + x) & -step) == (v & -step))
+                    return;
+            }
             s = sumCount();
         }
         if (check >= 0) {
             Node<K, V>[] tab, nt;
             int n, sc;
+            if (resizeQuota > 0) {
+                // 渐进式：扩容中就迁移一小段，达到阈值就发起扩容，都不循环
+                if ((tab = table) != null &&
+                        ((sc = sizeCtl) < 0 || (s >= (long) sc && tab.length < MAXIMUM_CAPACITY)))
+                    incrementalTransfer(tab);
+                return;
+            }
             while (s >= (long) (sc = sizeCtl) && (tab = table) != null &&
                     (n = tab.length) < MAXIMUM_CAPACITY) {
                 int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
@@ -1367,6 +2004,14 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         int sc;
         if (tab != null && (f instanceof ForwardingNode) &&
                 (nextTab = ((ForwardingNode<K, V>) f).nextTable) != null) {
+            Stats st;
+            if ((st = stats) != null)
+                st.transferHelps.increment();
+            if (resizeQuota > 0) {
+                if (nextTab == nextTable && table == tab)
+                    incrementalTransfer(tab);
+                return nextTab;
+            }
             int rs = resizeStamp(tab.length) << RESIZE_STAMP_SHIFT;
             while (nextTab == nextTable && table == tab &&
                     (sc = sizeCtl) < 0) {
@@ -1409,7 +2054,10 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 }
             } else if (c <= sc || n >= MAXIMUM_CAPACITY)
                 break;
-            else if (tab == table) {
+            else if (resizeQuota > 0) {
+                incrementalTransfer(tab);   // 只发起扩容，剩下的交给后续的写操作
+                break;
+            } else if (tab == table) {
                 int rs = resizeStamp(n);
                 if (U.compareAndSetInt(this, SIZECTL, sc,
                         (rs << RESIZE_STAMP_SHIFT) + 2))
@@ -1434,6 +2082,7 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 sizeCtl = Integer.MAX_VALUE;
                 return;
             }
+            resizeStart = (stats != null) ? System.nanoTime() : 0L;   // 在nextTable发布之前写，帮忙的线程可能先做完
             nextTable = nextTab;
             transferIndex = n;
         }
@@ -1442,8 +2091,6 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         boolean advance = true;
         boolean finishing = false; // to ensure sweep before committing nextTab
         for (int i = 0, bound = 0; ; ) {
-            Node<K, V> f;
-            int fh;
             while (advance) {
                 int nextIndex, nextBound;
                 if (--i >= bound || finishing)
@@ -1463,9 +2110,12 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
             if (i < 0 || i >= n || i + n >= nextn) {
                 int sc;
                 if (finishing) {
+                    long t0 = resizeStart;      // 发布之前取走，发布以后马上开始的下一轮扩容会覆盖它
+                    resizeStart = 0L;
                     nextTable = null;
                     table = nextTab;
                     sizeCtl = (n << 1) - (n >>> 1);
+                    resized(t0);
                     return;
                 }
                 if (U.compareAndSetInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
@@ -1474,121 +2124,702 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                     finishing = advance = true;
                     i = n; // recheck before commit
                 }
-            } else if ((f = tabAt(tab, i)) == null)
-                advance = casTabAt(tab, i, null, fwd);
-            else if ((fh = f.hash) == MOVED)
-                advance = true; // already processed
-            else {
-                synchronized (f) {
-                    if (tabAt(tab, i) == f) {
-                        Node<K, V> ln, hn;
-                        if (fh >= 0) {
-                            int runBit = fh & n;
-                            Node<K, V> lastRun = f;
-                            for (Node<K, V> p = f.next; p != null; p = p.next) {
-                                int b = p.hash & n;
-                                if (b != runBit) {
-                                    runBit = b;
-                                    lastRun = p;
-                                }
-                            }
-                            if (runBit == 0) {
-                                ln = lastRun;
-                                hn = null;
-                            } else {
-                                hn = lastRun;
-                                ln = null;
-                            }
-                            for (Node<K, V> p = f; p != lastRun; p = p.next) {
-                                int ph = p.hash;
-                                K pk = p.key;
-                                V pv = p.val;
-                                if ((ph & n) == 0)
-                                    ln = new Node<K, V>(ph, pk, pv, ln);
-                                else
-                                    hn = new Node<K, V>(ph, pk, pv, hn);
-                            }
-                            setTabAt(nextTab, i, ln);
-                            setTabAt(nextTab, i + n, hn);
-                            setTabAt(tab, i, fwd);
-                            advance = true;
-                        } else if (f instanceof TreeBin) {
-                            TreeBin<K, V> t = (TreeBin<K, V>) f;
-                            TreeNode<K, V> lo = null, loTail = null;
-                            TreeNode<K, V> hi = null, hiTail = null;
-                            int lc = 0, hc = 0;
-                            for (Node<K, V> e = t.first; e != null; e = e.next) {
-                                int h = e.hash;
-                                TreeNode<K, V> p = new TreeNode<K, V>
-                                        (h, e.key, e.val, null, null);
-                                if ((h & n) == 0) {
-                                    if ((p.prev = loTail) == null)
-                                        lo = p;
-                                    else
-                                        loTail.next = p;
-                                    loTail = p;
-                                    ++lc;
-                                } else {
-                                    if ((p.prev = hiTail) == null)
-                                        hi = p;
-                                    else
-                                        hiTail.next = p;
-                                    hiTail = p;
-                                    ++hc;
-                                }
-                            }
-                            ln = (lc <= UNTREEIFY_THRESHOLD) ? untreeify(lo) :
-                                    (hc != 0) ? new TreeBin<K, V>(lo) : t;
-                            hn = (hc <= UNTREEIFY_THRESHOLD) ? untreeify(hi) :
-                                    (lc != 0) ? new TreeBin<K, V>(hi) : t;
-                            setTabAt(nextTab, i, ln);
-                            setTabAt(nextTab, i + n, hn);
-                            setTabAt(tab, i, fwd);
-                            advance = true;
-                        } else if (f instanceof ReservationNode)
-                            throw new IllegalStateException("Recursive update");
+            } else
+                advance = transferBin(tab, nextTab, i, fwd);
+        }
+    }
+
+    /**
+     * 迁移tab[i]这一个桶（从transfer中拆出来，渐进式扩容也用它），返回false表示桶头变了需要重试
+     */
+    private boolean transferBin(Node<K, V>[] tab, Node<K, V>[] nextTab, int i, ForwardingNode<K, V> fwd) {
+        Node<K, V> f;
+        int fh, n = tab.length;
+        if ((f = tabAt(tab, i)) == null)
+            return casEmptyBin(tab, i, fwd);
+        if ((fh = f.hash) == MOVED)
+            return true; // already processed
+        synchronized (f) {
+            if (tabAt(tab, i) == f) {
+                snapshotBin(tab, i, f);
+                Node<K, V> ln, hn;
+                if (fh >= 0) {
+                    int runBit = fh & n;
+                    Node<K, V> lastRun = f;
+                    for (Node<K, V> p = f.next; p != null; p = p.next) {
+                        int b = p.hash & n;
+                        if (b != runBit) {
+                            runBit = b;
+                            lastRun = p;
+                        }
                     }
-                }
+                    if (runBit == 0) {
+                        ln = lastRun;
+                        hn = null;
+                    } else {
+                        hn = lastRun;
+                        ln = null;
+                    }
+                    for (Node<K, V> p = f; p != lastRun; p = p.next) {
+                        int ph = p.hash;
+                        K pk = p.key;
+                        V pv = p.val;
+                        if ((ph & n) == 0)
+                            ln = new Node<K, V>(ph, pk, pv, ln);
+                        else
+                            hn = new Node<K, V>(ph, pk, pv, hn);
+                    }
+                    setTabAt(nextTab, i, ln);
+                    setTabAt(nextTab, i + n, hn);
+                    setTabAt(tab, i, fwd);
+                    return true;
+                } else if (f instanceof TreeBin) {
+                    TreeBin<K, V> t = (TreeBin<K, V>) f;
+                    TreeNode<K, V> lo = null, loTail = null;
+                    TreeNode<K, V> hi = null, hiTail = null;
+                    int lc = 0, hc = 0;
+                    for (Node<K, V> e = t.first; e != null; e = e.next) {
+                        int h = e.hash;
+                        TreeNode<K, V> p = new TreeNode<K, V>
+                                (h, e.key, e.val, null, null);
+                        if ((h & n) == 0) {
+                            if ((p.prev = loTail) == null)
+                                lo = p;
+                            else
+                                loTail.next = p;
+                            loTail = p;
+                            ++lc;
+                        } else {
+                            if ((p.prev = hiTail) == null)
+                                hi = p;
+                            else
+                                hiTail.next = p;
+                            hiTail = p;
+                            ++hc;
+                        }
+                    }
+                    ln = (lc <= UNTREEIFY_THRESHOLD) ? untreeifyBin(lo) :
+                            (hc != 0) ? new TreeBin<K, V>(lo) : t;
+                    hn = (hc <= UNTREEIFY_THRESHOLD) ? untreeifyBin(hi) :
+                            (lc != 0) ? new TreeBin<K, V>(hi) : t;
+                    setTabAt(nextTab, i, ln);
+                    setTabAt(nextTab, i + n, hn);
+                    setTabAt(tab, i, fwd);
+                    return true;
+                } else if (f instanceof ArrayBin) {
+                    // 拆分后两边仍然有序，够大的直接建ArrayBin，否则退回链表
+                    ArrayBin<K, V> t = (ArrayBin<K, V>) f;
+                    Node<K, V> lo = null, loTail = null, hi = null, hiTail = null;
+                    int lc = 0, hc = 0;
+                    for (Node<K, V> e = t.first(), nx; e != null; e = nx) {
+                        nx = e.next;
+                        e.next = null;
+                        if ((e.hash & n) == 0) {
+                            if (loTail == null)
+                                lo = e;
+                            else
+                                loTail.next = e;
+                            loTail = e;
+                            ++lc;
+                        } else {
+                            if (hiTail == null)
+                                hi = e;
+                            else
+                                hiTail.next = e;
+                            hiTail = e;
+                            ++hc;
+                        }
+                    }
+                    ln = (lc <= UNTREEIFY_THRESHOLD) ? untreeifyBin(lo) :
+                            (hc != 0) ? ArrayBin.of(lo, true) : t;
+                    hn = (hc <= UNTREEIFY_THRESHOLD) ? untreeifyBin(hi) :
+                            (lc != 0) ? ArrayBin.of(hi, true) : t;
+                    setTabAt(nextTab, i, ln);
+                    setTabAt(nextTab, i + n, hn);
+                    setTabAt(tab, i, fwd);
+                    return true;
+                } else if (f instanceof MappedBin) {
+                    setTabAt(tab, i, ((MappedBin<K, V>) f).load(i));
+                    return false;             // 在反序列化出来的桶上重试
+                } else if (f instanceof ReservationNode)
+                    throw new IllegalStateException("Recursive update");
             }
         }
+        return false;
     }
 
-
     /**
-     *
+     * 渐进式扩容（resizeQuota > 0）
+     * 扩容期间sizeCtl固定为(rs << RESIZE_STAMP_SHIFT) + 2，不记录参与的线程数；
+     * 每次调用通过transferIndex领取最多resizeQuota个桶迁移完就返回，完成的桶数累加到migratedBins，
+     * 累加到旧表长度的线程负责切换table，不需要transfer最后那一遍检查所有桶的扫描
+     * 没迁移的桶仍在旧表上正常读写，get遇到ForwardingNode会转到nextTable，相当于两张表都查
      */
-    @jdk.internal.vm.annotation.Contended
-    static final class CounterCell {
-        volatile long value;
+    private final void incrementalTransfer(Node<K, V>[] tab) {
+        Node<K, V>[] nextTab;
+        int n = tab.length, sc, quota = resizeQuota;
+        int rs = (resizeStamp(n) << RESIZE_STAMP_SHIFT) + 2;
+        if ((sc = sizeCtl) >= 0) {
+            if (table != tab || !U.compareAndSetInt(this, SIZECTL, sc, rs))
+                return;
+            try {
+                @SuppressWarnings("unchecked")
+                Node<K, V>[] nt = (Node<K, V>[]) new Node<?, ?>[n << 1];
+                nextTab = nt;
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            migratedBins = 0;
+            transferIndex = n;
+            resizeStart = (stats != null) ? System.nanoTime() : 0L;
+            nextTable = nextTab;
+        } else if (sc != rs || (nextTab = nextTable) == null || table != tab)
+            return;                 // 正在初始化、上一轮还没发布完或者已经是另一轮扩容
+        int nextIndex, nextBound;
+        do {
+            if ((nextIndex = transferIndex) <= 0)
+                return;
+        } while (!U.compareAndSetInt(this, TRANSFERINDEX, nextIndex,
+                nextBound = (nextIndex > quota ? nextIndex - quota : 0)));
+        ForwardingNode<K, V> fwd = new ForwardingNode<K, V>(nextTab);
+        for (int i = nextIndex - 1; i >= nextBound; ) {
+            if (transferBin(tab, nextTab, i, fwd))
+                --i;
+        }
+        int moved = nextIndex - nextBound;
+        if (U.getAndAddInt(this, MIGRATEDBINS, moved) + moved == n) {
+            long t0 = resizeStart;
+            resizeStart = 0L;
+            nextTable = null;
+            table = nextTab;
+            sizeCtl = (n << 1) - (n >>> 1);
+            resized(t0);
+        }
+    }
 
-        CounterCell(long x) {
-            value = x;
+    /**
+     * 渐进式扩容时把当前这一轮迁移做完，clear这类要看到完整一张表的操作用
+     */
+    private final void completeTransfer() {
+        Node<K, V>[] tab;
+        while ((tab = table) != null && sizeCtl < 0 && nextTable != null) {
+            if (transferIndex > 0)
+                incrementalTransfer(tab);
+            else
+                Thread.yield(); // 剩下的桶已被别的线程领走
         }
     }
 
-    final long sumCount() {
-        CounterCell[] cs = counterCells;
-        long sum = baseCount;
-        if (cs != null) {
-            for (CounterCell c : cs)
-                if (c != null)
-                    sum += c.value;
+    /**
+     * 扩容进度：没有在扩容时返回1.0，否则返回旧表中已经迁移的桶所占的比例
+     * 渐进式扩容按已完成的桶数计算，原来的方式按已被领取的桶数计算
+     */
+    public double resizeProgress() {
+        Node<K, V>[] tab = table;
+        int n, done;
+        if (nextTable == null || tab == null || (n = tab.length) == 0)
+            return 1.0;
+        done = (resizeQuota > 0) ? migratedBins : n - Math.max(transferIndex, 0);
+        return Math.min(1.0, (double) done / n);
+    }
+
+    /**
+     * 扩容完成，统计模式下记录次数和耗时，t0是发布新表之前从resizeStart取走的开始时间
+     * 扩容开始时统计模式还没打开的话，没有开始时间，这一次不记
+     */
+    private void resized(long t0) {
+        Stats st;
+        if ((st = stats) != null && t0 != 0L) {
+            st.resizes.increment();
+            st.resizeNanos.add(System.nanoTime() - t0);
         }
-        return sum;
     }
 
-    private final void fullAddCount(long x, boolean wasUncontended) {
-        int h;
-        if ((h = ThreadLocalRandom.getProbe()) == 0) {
-            ThreadLocalRandom.localInit();      // force initialization
-            h = ThreadLocalRandom.getProbe();
-            wasUncontended = true;
+    /**
+     * 打开后，key都是同一个Comparable类的冲突桶在树化时改用ArrayBin（不可变B+树，没有TreeNode），
+     * 只影响之后的树化，已经是TreeBin的桶不变
+     */
+    public void setCompactBins(boolean enabled) {
+        compactBins = enabled;
+    }
+
+    /* ---------------- 统计模式 -------------- */
+
+    /**
+     * 打开或关闭统计模式。关闭时热路径上只多读一次stats字段；
+     * 打开后各个计数器用LongAdder分段累加，重新打开会从0开始计数
+     */
+    public void setStatsEnabled(boolean enabled) {
+        stats = enabled ? new Stats() : null;
+    }
+
+    public boolean isStatsEnabled() {
+        return stats != null;
+    }
+
+    /**
+     * 当前计数的快照，没有打开统计模式时所有计数都是0
+     */
+    public StatsSnapshot snapshotStats() {
+        Stats st = stats;
+        return (st == null) ? new StatsSnapshot(new Stats()) : new StatsSnapshot(st);
+    }
+
+    /**
+     * 统计模式下的计数器
+     */
+    static final class Stats {
+        static final long BIN_LOCK_WAIT_NANOS = 1000L;     // 拿桶锁超过这么久才算一次等待
+        static final int LOCK_STRIPES = 64;                 // 按桶下标分组记录桶锁的持有者
+        static final int LOCK_STRIPE_SHIFT = 4;             // 每组隔开16个引用，不同组的写不在同一条缓存行上
+        final AtomicReferenceArray<Thread> lockOwners =
+                new AtomicReferenceArray<Thread>(LOCK_STRIPES << LOCK_STRIPE_SHIFT);
+        final LongAdder binLockWaits = new LongAdder();
+        final LongAdder binLockWaitNanos = new LongAdder();
+        final LongAdder treeifies = new LongAdder();
+        final LongAdder untreeifies = new LongAdder();
+        final LongAdder resizes = new LongAdder();
+        final LongAdder resizeNanos = new LongAdder();
+        final LongAdder transferHelps = new LongAdder();    // helpTransfer的调用次数
+        final LongAdder cellExpansions = new LongAdder();   // fullAddCount创建或扩容counterCells的次数
+        final LongAdder casRetries = new LongAdder();       // 空桶CAS失败、计数CAS失败的次数
+
+        static int ownerSlot(int i) {
+            return (i & (LOCK_STRIPES - 1)) << LOCK_STRIPE_SHIFT;
         }
-        boolean collide = false;                // True if last slot nonempty
-        for (; ; ) {
-            CounterCell[] cs;
-            CounterCell c;
-            int n;
+
+        /**
+         * 拿桶锁之前调用：同组里有别的线程正持有桶锁时才开始计时，返回开始时间，否则返回0
+         * 只按耗时判断的话，GC、safepoint停顿都会被算成等锁，单线程也能数出一堆"等待"
+         */
+        long beforeLock(int i) {
+            Thread o = lockOwners.get(ownerSlot(i));
+            return (o != null && o != Thread.currentThread()) ? System.nanoTime() : 0L;
+        }
+
+        // 拿到桶锁之后调用，t0是beforeLock的返回值
+        void lockAcquired(int i, long t0) {
+            lockOwners.set(ownerSlot(i), Thread.currentThread());
+            long waited;
+            if (t0 != 0L && (waited = System.nanoTime() - t0) >= BIN_LOCK_WAIT_NANOS) {
+                binLockWaits.increment();
+                binLockWaitNanos.add(waited);
+            }
+        }
+
+        // 放开桶锁之前调用；锁内抛异常时会漏掉，留下的记录由下一个拿同组桶锁的线程覆盖
+        void lockReleased(int i) {
+            lockOwners.compareAndSet(ownerSlot(i), Thread.currentThread(), null);
+        }
+    }
+
+    /**
+     * snapshotStats()返回的不可变快照，各个计数分别求和，彼此之间不保证是同一时刻的
+     */
+    public static final class StatsSnapshot {
+        private final long binLockWaits, binLockWaitNanos, treeifies, untreeifies;
+        private final long resizes, resizeNanos, transferHelps, cellExpansions, casRetries;
+
+        StatsSnapshot(Stats st) {
+            binLockWaits = st.binLockWaits.sum();
+            binLockWaitNanos = st.binLockWaitNanos.sum();
+            treeifies = st.treeifies.sum();
+            untreeifies = st.untreeifies.sum();
+            resizes = st.resizes.sum();
+            resizeNanos = st.resizeNanos.sum();
+            transferHelps = st.transferHelps.sum();
+            cellExpansions = st.cellExpansions.sum();
+            casRetries = st.casRetries.sum();
+        }
+
+        public long getBinLockWaits() {
+            return binLockWaits;
+        }
+
+        public long getBinLockWaitNanos() {
+            return binLockWaitNanos;
+        }
+
+        public long getTreeifies() {
+            return treeifies;
+        }
+
+        public long getUntreeifies() {
+            return untreeifies;
+        }
+
+        public long getResizes() {
+            return resizes;
+        }
+
+        public long getResizeNanos() {
+            return resizeNanos;
+        }
+
+        public long getTransferHelps() {
+            return transferHelps;
+        }
+
+        public long getCellExpansions() {
+            return cellExpansions;
+        }
+
+        public long getCasRetries() {
+            return casRetries;
+        }
+
+        public String toString() {
+            return "StatsSnapshot{binLockWaits=" + binLockWaits +
+                    ", binLockWaitNanos=" + binLockWaitNanos +
+                    ", treeifies=" + treeifies +
+                    ", untreeifies=" + untreeifies +
+                    ", resizes=" + resizes +
+                    ", resizeNanos=" + resizeNanos +
+                    ", transferHelps=" + transferHelps +
+                    ", cellExpansions=" + cellExpansions +
+                    ", casRetries=" + casRetries + "}";
+        }
+    }
+
+    /* ---------------- 快照 -------------- */
+
+    /**
+     * O(1)地取一个不可变的时间点视图，用完要close()
+     *
+     * 快照只记下当前的table并通过一次CAS挂到snapshots上，不复制任何桶；
+     * 之后写线程在桶锁内第一次修改某个桶之前，先把这个桶的内容复制一份存到快照里（snapshotBin），
+     * 快照读桶时有副本就用副本，没有就在桶锁内读当前的桶，所以复制是按桶、按需进行的，从没被修改过的桶永远不复制
+     * 写线程在桶锁内读snapshots：读到的链表里没有这个快照的写操作算在快照之前，否则算在快照之后，
+     * 同一个桶上的写操作被桶锁串行化，所以每个桶看到的都是它历史的一个前缀，合起来是一个一致的时间点
+     *
+     * 扩容时transfer也会先保存再放ForwardingNode，所以快照只需要盯着自己那张table；正在扩容时先等扩容完成再取快照
+     */
+    public Snapshot<K, V> snapshot() {
+        for (; ; ) {
+            Node<K, V>[] tab = table;
+            if (nextTable != null) {
+                if (resizeQuota > 0)
+                    completeTransfer();
+                else
+                    Thread.yield();
+                continue;
+            }
+            Snapshot<K, V> s = new Snapshot<K, V>(this, tab);
+            if (tab == null)
+                return s;           // 还没有初始化，之后的写入都在快照之后
+            SnapshotList<K, V> h = snapshots;
+            if (!U.compareAndSetReference(this, SNAPSHOTS, h, new SnapshotList<K, V>(s, h)))
+                continue;
+            if (table == tab && nextTable == null)
+                return s;
+            s.close();              // 注册前已经开始扩容，有的桶可能没保存就被迁走了，重来
+        }
+    }
+
+    // 写线程修改tab[i]之前调用（持有桶锁，或者用ReservationNode占住了空桶），给还没保存这个桶的快照保存一份
+    private final void snapshotBin(Node<K, V>[] tab, int i, Node<K, V> f) {
+        SnapshotList<K, V> l;
+        if ((l = snapshots) != null) {
+            Node<K, V> copy = null;
+            for (; l != null; l = l.next) {
+                Snapshot<K, V> s = l.snapshot;
+                if (s.tab == tab && s.saved(i) == null) {
+                    if (copy == null) {
+                        @SuppressWarnings("unchecked")
+                        Node<K, V> empty = (Node<K, V>) EMPTY_BIN;
+                        copy = ((copy = copyBin(f, i)) == null) ? empty : copy;
+                    }
+                    s.save(i, copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * 代替空桶上的无锁CAS：有快照时先用ReservationNode占住桶，在它的锁内保存空桶再写入
+     */
+    private final boolean casEmptyBin(Node<K, V>[] tab, int i, Node<K, V> node) {
+        if (snapshots == null)
+            return casTabAt(tab, i, null, node);
+        Node<K, V> r = new ReservationNode<K, V>();
+        synchronized (r) {
+            if (!casTabAt(tab, i, null, r))
+                return false;
+            snapshotBin(tab, i, null);
+            setTabAt(tab, i, node);
+        }
+        return true;
+    }
+
+    // 把桶i里的键值复制成一条新的普通链表，空桶、ReservationNode返回null
+    static <K, V> Node<K, V> copyBin(Node<K, V> f, int i) {
+        if (f instanceof MappedBin)
+            return ((MappedBin<K, V>) f).chain(i);  // 反序列化出来的本来就是新节点
+        Node<K, V> hd = null;
+        Node<K, V> p = (f == null) ? null : (f.hash >= 0) ? f :
+                (f instanceof TreeBin) ? ((TreeBin<K, V>) f).first :
+                (f instanceof ArrayBin) ? ((ArrayBin<K, V>) f).first() : null;
+        for (; p != null; p = p.next)
+            hd = new Node<K, V>(p.hash, p.key, p.val, hd);
+        return hd;
+    }
+
+    // 保存过的空桶
+    static final Node<?, ?> EMPTY_BIN = new Node<Object, Object>(0, null, null);
+
+    static final class SnapshotList<K, V> {
+        final Snapshot<K, V> snapshot;
+        final SnapshotList<K, V> next;
+
+        SnapshotList(Snapshot<K, V> snapshot, SnapshotList<K, V> next) {
+            this.snapshot = snapshot;
+            this.next = next;
+        }
+    }
+
+    /**
+     * snapshot()返回的只读视图，修改方法都抛UnsupportedOperationException
+     * 保存的桶按每页1024个分页，用到才分配
+     */
+    public static final class Snapshot<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+        static final int PAGE_SHIFT = 10;
+        static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        final ConcurrentHashMap<K, V> map;
+        final Node<K, V>[] tab;
+        private final AtomicReferenceArray<Node<K, V>[]> pages;
+        private volatile boolean closed;
+        private long size = -1L;            // 第一次调用size()时计算
+
+        Snapshot(ConcurrentHashMap<K, V> map, Node<K, V>[] tab) {
+            this.map = map;
+            this.tab = tab;
+            this.pages = new AtomicReferenceArray<Node<K, V>[]>(
+                    (tab == null) ? 0 : (tab.length + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+        }
+
+        Node<K, V> saved(int i) {
+            Node<K, V>[] page = pages.get(i >>> PAGE_SHIFT);
+            return (page == null) ? null : tabAt(page, i & (PAGE_SIZE - 1));
+        }
+
+        void save(int i, Node<K, V> copy) {
+            int p = i >>> PAGE_SHIFT;
+            Node<K, V>[] page;
+            if ((page = pages.get(p)) == null) {
+                @SuppressWarnings("unchecked")
+                Node<K, V>[] np = (Node<K, V>[]) new Node<?, ?>[Math.min(PAGE_SIZE, tab.length)];
+                page = pages.compareAndSet(p, null, np) ? np : pages.get(p);
+            }
+            casTabAt(page, i & (PAGE_SIZE - 1), null, copy);
+        }
+
+        /**
+         * 快照时刻桶i里的链表：保存过就用副本，否则在桶锁内确认还没保存后复制当前的桶
+         * 读到空桶时把EMPTY_BIN存进来再重读：空桶上的无锁CAS可能是在注册快照之前读的snapshots，
+         * 不存下来的话之后再读这个桶会看到那次写入，同一个快照前后两次的结果就不一样了
+         * 读到ForwardingNode说明transfer已经保存过，重读一次即可
+         */
+        @SuppressWarnings("unchecked")
+        Node<K, V> bin(int i) {
+            if (closed)
+                throw new IllegalStateException("snapshot closed");
+            for (; ; ) {
+                Node<K, V> s, f;
+                if ((s = saved(i)) != null)
+                    return (s == EMPTY_BIN) ? null : s;
+                if ((f = tabAt(tab, i)) == null) {
+                    save(i, (Node<K, V>) EMPTY_BIN);
+                } else if (f.hash != MOVED) {
+                    synchronized (f) {
+                        if (tabAt(tab, i) == f && saved(i) == null)
+                            return copyBin(f, i);
+                    }
+                }
+            }
+        }
+
+        public V get(Object key) {
+            if (tab == null)
+                return null;
+            int h = spread(key.hashCode());
+            for (Node<K, V> e = bin((tab.length - 1) & h); e != null; e = e.next) {
+                K ek;
+                if (e.hash == h && ((ek = e.key) == key || key.equals(ek)))
+                    return e.val;
+            }
+            return null;
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public int size() {
+            long n = mappingCount();
+            return (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+        }
+
+        public long mappingCount() {
+            long n;
+            if ((n = size) < 0L) {
+                n = 0L;
+                for (int i = 0, len = (tab == null) ? 0 : tab.length; i < len; ++i) {
+                    for (Node<K, V> e = bin(i); e != null; e = e.next)
+                        ++n;
+                }
+                size = n;
+            }
+            return n;
+        }
+
+        public boolean isEmpty() {
+            return mappingCount() == 0L;
+        }
+
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            if (action == null) throw new NullPointerException();
+            for (int i = 0, len = (tab == null) ? 0 : tab.length; i < len; ++i) {
+                for (Node<K, V> e = bin(i); e != null; e = e.next)
+                    action.accept(e.key, e.val);
+            }
+        }
+
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new SnapshotIterator();
+                }
+
+                public int size() {
+                    return Snapshot.this.size();
+                }
+            };
+        }
+
+        // 逐个桶取快照时刻的链表
+        final class SnapshotIterator implements Iterator<Map.Entry<K, V>> {
+            int index;
+            Node<K, V> next;
+
+            SnapshotIterator() {
+                advance();
+            }
+
+            private void advance() {
+                if (next != null)
+                    next = next.next;
+                for (int len = (tab == null) ? 0 : tab.length; next == null && index < len; )
+                    next = bin(index++);
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<K, V> next() {
+                Node<K, V> e;
+                if ((e = next) == null)
+                    throw new NoSuchElementException();
+                advance();
+                return new AbstractMap.SimpleImmutableEntry<K, V>(e.key, e.val);
+            }
+        }
+
+        /**
+         * 从map上摘下来，之后写线程不再为它复制桶
+         */
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            ConcurrentHashMap<K, V> m = map;
+            for (SnapshotList<K, V> h; (h = m.snapshots) != null; ) {
+                SnapshotList<K, V> l = null;
+                boolean found = false;
+                for (SnapshotList<K, V> p = h; p != null; p = p.next) {
+                    if (p.snapshot == this)
+                        found = true;
+                    else
+                        l = new SnapshotList<K, V>(p.snapshot, l);
+                }
+                if (!found || U.compareAndSetReference(m, SNAPSHOTS, h, l))
+                    break;
+            }
+        }
+    }
+
+
+    /**
+     * 每个cell用@Contended单独占缓存行，线程按probe散到不同的cell上，互相不会false sharing；
+     * 代价是sumCount每个cell都要读一条缓存行，所以addCount按step抽样求和，size()可以用近似模式
+     */
+    @jdk.internal.vm.annotation.Contended
+    static final class CounterCell {
+        volatile long value;
+
+        CounterCell(long x) {
+            value = x;
+        }
+    }
+
+    /**
+     * size()、mappingCount()的近似模式：maxStaleness内重复调用直接返回上一次的求和结果，0表示精确（默认）
+     * 在很多线程高频写入时，避免每次size()都把所有CounterCell的缓存行读一遍
+     */
+    public void setApproximateSize(long maxStaleness, TimeUnit unit) {
+        if (maxStaleness < 0L)
+            throw new IllegalArgumentException();
+        sizeStaleness = unit.toNanos(maxStaleness);
+    }
+
+    // 近似模式下的计数，样本过期才重新求和
+    private long approximateCount() {
+        CountSample cs = countSample;
+        long now = System.nanoTime();
+        if (cs != null && now - cs.time <= sizeStaleness)
+            return cs.count;
+        long n = sumCount();
+        countSample = new CountSample(n, now);
+        return n;
+    }
+
+    static final class CountSample {
+        final long count;
+        final long time;
+
+        CountSample(long count, long time) {
+            this.count = count;
+            this.time = time;
+        }
+    }
+
+    final long sumCount() {
+        CounterCell[] cs = counterCells;
+        long sum = baseCount;
+        if (cs != null) {
+            for (CounterCell c : cs)
+                if (c != null)
+                    sum += c.value;
+        }
+        return sum;
+    }
+
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        Stats st;
+        if ((st = stats) != null && (!wasUncontended || counterCells == null))
+            st.casRetries.increment();  // baseCount或者cell上的CAS失败了
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (; ; ) {
+            CounterCell[] cs;
+            CounterCell c;
+            int n;
             long v;
             if ((cs = counterCells) != null && (n = cs.length) > 0) {
                 if ((c = cs[(n - 1) & h]) == null) {
@@ -1625,8 +2856,11 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 else if (cellsBusy == 0 &&
                         U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
                     try {
-                        if (counterCells == cs) // Expand table unless stale
+                        if (counterCells == cs) { // Expand table unless stale
                             counterCells = Arrays.copyOf(cs, n << 1);
+                            if (st != null)
+                                st.cellExpansions.increment();
+                        }
                     } finally {
                         cellsBusy = 0;
                     }
@@ -1643,6 +2877,8 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                         rs[h & 1] = new CounterCell(x);
                         counterCells = rs;
                         init = true;
+                        if (st != null)
+                            st.cellExpansions.increment();
                     }
                 } finally {
                     cellsBusy = 0;
@@ -1666,7 +2902,14 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 tryPresize(n << 1);
             else if ((b = tabAt(tab, index)) != null && b.hash >= 0) {
                 synchronized (b) {
-                    if (tabAt(tab, index) == b) {
+                    ArrayBin<K, V> ab;
+                    if (tabAt(tab, index) == b && compactBins &&
+                            (ab = ArrayBin.of(b, false)) != null) {
+                        setTabAt(tab, index, ab);
+                        Stats st;
+                        if ((st = stats) != null)
+                            st.treeifies.increment();
+                    } else if (tabAt(tab, index) == b) {
                         TreeNode<K, V> hd = null, tl = null;
                         for (Node<K, V> e = b; e != null; e = e.next) {
                             TreeNode<K, V> p =
@@ -1679,12 +2922,23 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                             tl = p;
                         }
                         setTabAt(tab, index, new TreeBin<K, V>(hd));
+                        Stats st;
+                        if ((st = stats) != null)
+                            st.treeifies.increment();
                     }
                 }
             }
         }
     }
 
+    // 统计模式下记录untreeify次数，transfer拆分出的空链表不算
+    private Node<K, V> untreeifyBin(Node<K, V> b) {
+        Stats st;
+        if (b != null && (st = stats) != null)
+            st.untreeifies.increment();
+        return untreeify(b);
+    }
+
     /**
      *
      */
@@ -2264,6 +3518,491 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                 = U.objectFieldOffset(TreeBin.class, "lockState");
     }
 
+    /* ---------------- 紧凑冲突桶 -------------- */
+
+    /**
+     * 代替TreeBin的紧凑冲突桶，只用于桶里的key都是同一个Comparable类的情况（setCompactBins打开后由treeifyBin选用）
+     *
+     * 内部是一棵不可变的B+树，每个节点最多MAX_KEYS个key，按(hash, compareTo)排序；
+     * 叶子只有hash、key、value三个平行数组，没有TreeNode的parent/left/right/prev/red，每个entry十几个字节
+     * 写操作在桶锁内按路径复制出新的根再volatile发布，读线程拿到哪个根就在哪个版本上二分查找，
+     * 不需要TreeBin的lockState，也没有红黑树的旋转
+     *
+     * 不满足有序条件的key（别的类、compareTo为0但不equals）写不进来：调用方先用accepts判断，
+     * 不行就把整个桶换成TreeBin再重试
+     */
+    static final class ArrayBin<K, V> extends Node<K, V> {
+        static final int MAX_KEYS = 16;
+        final Class<?> kc;              // 桶里所有key的类
+        volatile BNode root;            // 不会为null，空树是一个空叶子
+        volatile int size;
+
+        private ArrayBin(Class<?> kc, BNode root, int size) {
+            super(ARRAYBIN, null, null);
+            this.kc = kc;
+            this.root = root;
+            this.size = size;
+        }
+
+        /**
+         * 用链表b建一个ArrayBin，b里的key不是同一个Comparable类或者有compareTo为0的两个key时返回null
+         * sorted为true表示b已经按顺序排好（transfer拆分出来的链表）
+         */
+        static <K, V> ArrayBin<K, V> of(Node<K, V> b, boolean sorted) {
+            Class<?> kc;
+            int n = 0;
+            if (b == null || (kc = comparableClassFor(b.key)) == null)
+                return null;
+            for (Node<K, V> e = b; e != null; e = e.next) {
+                if (e.key.getClass() != kc)
+                    return null;
+                ++n;
+            }
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] es = (Node<K, V>[]) new Node<?, ?>[n];
+            n = 0;
+            for (Node<K, V> e = b; e != null; e = e.next)
+                es[n++] = e;
+            if (!sorted)
+                Arrays.sort(es, ENTRY_ORDER);
+            int[] hs = new int[n];
+            Object[] ks = new Object[n], vs = new Object[n];
+            for (int i = 0; i < n; ++i) {
+                Node<K, V> e = es[i];
+                if (i > 0 && ENTRY_ORDER.compare(es[i - 1], e) == 0)
+                    return null;
+                hs[i] = e.hash;
+                ks[i] = e.key;
+                vs[i] = e.val;
+            }
+            return new ArrayBin<K, V>(kc, BNode.build(hs, ks, vs, n), n);
+        }
+
+        // 按hash再按compareTo排序，只用于同一个Comparable类的key
+        static final Comparator<Node<?, ?>> ENTRY_ORDER = new Comparator<Node<?, ?>>() {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            public int compare(Node<?, ?> a, Node<?, ?> b) {
+                return (a.hash < b.hash) ? -1 : (a.hash > b.hash) ? 1 :
+                        ((Comparable) a.key).compareTo(b.key);
+            }
+        };
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        static int cmp(int h, Object k, int h2, Object k2) {
+            return (h < h2) ? -1 : (h > h2) ? 1 : ((Comparable) k).compareTo(k2);
+        }
+
+        // 内部节点里k应该进入的子树：最后一个不大于k的分隔key，比所有分隔key都小时是第0个
+        static int childIndex(BNode n, int h, Object k) {
+            int lo = 1, hi = n.keys.length - 1, r = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cmp(h, k, n.hashes[mid], n.keys[mid]) >= 0) {
+                    r = mid;
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+            return r;
+        }
+
+        // 叶子里的二分查找，找不到返回-(插入位置 + 1)
+        static int indexOf(BNode n, int h, Object k) {
+            int lo = 0, hi = n.keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1, c = cmp(h, k, n.hashes[mid], n.keys[mid]);
+                if (c > 0)
+                    lo = mid + 1;
+                else if (c < 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -(lo + 1);
+        }
+
+        static BNode leafFor(BNode n, int h, Object k) {
+            while (n.kids != null)
+                n = n.kids[childIndex(n, h, k)];
+            return n;
+        }
+
+        /**
+         * 无锁查找，命中时返回一个新的Node携带key和value（不是桶里的节点，修改它没有效果）
+         */
+        Node<K, V> find(int h, Object k) {
+            BNode r = root, n;
+            int j;
+            if (k == null)
+                return null;
+            if (k.getClass() != kc)
+                return scan(r, h, k);
+            if ((j = indexOf(n = leafFor(r, h, k), h, k)) >= 0) {
+                Object ek = n.keys[j];
+                if (ek == k || k.equals(ek)) {
+                    @SuppressWarnings("unchecked") K key = (K) ek;
+                    @SuppressWarnings("unchecked") V val = (V) n.vals[j];
+                    return new Node<K, V>(h, key, val);
+                }
+            }
+            return null;
+        }
+
+        // 别的类的key可能通过equals和桶里的key相等，只能逐个比较
+        private Node<K, V> scan(BNode n, int h, Object k) {
+            if (n.kids != null) {
+                for (BNode c : n.kids) {
+                    Node<K, V> p;
+                    if ((p = scan(c, h, k)) != null)
+                        return p;
+                }
+            } else {
+                for (int j = 0; j < n.keys.length; ++j) {
+                    Object ek;
+                    if (n.hashes[j] == h && ((ek = n.keys[j]) == k || k.equals(ek))) {
+                        @SuppressWarnings("unchecked") K key = (K) ek;
+                        @SuppressWarnings("unchecked") V val = (V) n.vals[j];
+                        return new Node<K, V>(h, key, val);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * k能不能按顺序放进来：同一个类，并且没有compareTo为0却不equals的key
+         */
+        boolean accepts(int h, Object k) {
+            BNode n;
+            int j;
+            Object ek;
+            return k.getClass() == kc &&
+                    ((j = indexOf(n = leafFor(root, h, k), h, k)) < 0 ||
+                            (ek = n.keys[j]) == k || k.equals(ek));
+        }
+
+        /**
+         * 插入或替换value，持有桶锁时调用；k必须是accepts的或者是find返回的桶里的key
+         */
+        void put(int h, K k, V v) {
+            BNode[] out = new BNode[2];
+            BNode r = root;
+            boolean added = indexOf(leafFor(r, h, k), h, k) < 0;
+            if ((r = insert(r, h, k, v, out)) == null)
+                r = BNode.parentOf(out, 2);
+            root = r;
+            if (added)
+                ++size;
+        }
+
+        // 在子树n里插入，返回新的子树；分裂时把两半放进out并返回null
+        private static BNode insert(BNode n, int h, Object k, Object v, BNode[] out) {
+            int len = n.keys.length;
+            if (n.kids == null) {
+                int j = indexOf(n, h, k);
+                if (j >= 0) {
+                    Object[] vs = n.vals.clone();
+                    vs[j] = v;
+                    return new BNode(n.hashes, n.keys, vs, null);
+                }
+                j = -j - 1;
+                int[] hs = new int[len + 1];
+                Object[] ks = new Object[len + 1], vs = new Object[len + 1];
+                System.arraycopy(n.hashes, 0, hs, 0, j);
+                System.arraycopy(n.keys, 0, ks, 0, j);
+                System.arraycopy(n.vals, 0, vs, 0, j);
+                hs[j] = h;
+                ks[j] = k;
+                vs[j] = v;
+                System.arraycopy(n.hashes, j, hs, j + 1, len - j);
+                System.arraycopy(n.keys, j, ks, j + 1, len - j);
+                System.arraycopy(n.vals, j, vs, j + 1, len - j);
+                return BNode.splitIfFull(new BNode(hs, ks, vs, null), out);
+            }
+            int c = childIndex(n, h, k);
+            BNode kid = insert(n.kids[c], h, k, v, out);
+            BNode[] kids;
+            if (kid != null) {
+                kids = n.kids.clone();
+                kids[c] = kid;
+            } else {
+                kids = new BNode[len + 1];
+                System.arraycopy(n.kids, 0, kids, 0, c);
+                kids[c] = out[0];
+                kids[c + 1] = out[1];
+                System.arraycopy(n.kids, c + 1, kids, c + 2, len - c - 1);
+            }
+            return BNode.splitIfFull(BNode.parentOf(kids, kids.length), out);
+        }
+
+        /**
+         * 删除k（必须存在），持有桶锁时调用；返回true表示剩下的太少，调用方应该换回链表
+         */
+        boolean remove(int h, Object k) {
+            BNode r = delete(root, h, k);
+            if (r == null)
+                r = BNode.EMPTY;
+            else if (r.kids != null && r.kids.length == 1)
+                r = r.kids[0];
+            root = r;
+            return --size <= UNTREEIFY_THRESHOLD;
+        }
+
+        // 返回删除后的子树，子树空了返回null；不做合并，太稀疏时整个桶会换回链表
+        private static BNode delete(BNode n, int h, Object k) {
+            int len = n.keys.length;
+            if (n.kids == null) {
+                int j = indexOf(n, h, k);
+                if (j < 0)
+                    return n;
+                if (len == 1)
+                    return null;
+                int[] hs = new int[len - 1];
+                Object[] ks = new Object[len - 1], vs = new Object[len - 1];
+                System.arraycopy(n.hashes, 0, hs, 0, j);
+                System.arraycopy(n.keys, 0, ks, 0, j);
+                System.arraycopy(n.vals, 0, vs, 0, j);
+                System.arraycopy(n.hashes, j + 1, hs, j, len - j - 1);
+                System.arraycopy(n.keys, j + 1, ks, j, len - j - 1);
+                System.arraycopy(n.vals, j + 1, vs, j, len - j - 1);
+                return new BNode(hs, ks, vs, null);
+            }
+            int c = childIndex(n, h, k);
+            BNode kid = delete(n.kids[c], h, k);
+            BNode[] kids;
+            if (kid != null) {
+                kids = n.kids.clone();
+                kids[c] = kid;
+            } else if (len == 1)
+                return null;
+            else {
+                kids = new BNode[len - 1];
+                System.arraycopy(n.kids, 0, kids, 0, c);
+                System.arraycopy(n.kids, c + 1, kids, c, len - c - 1);
+            }
+            return BNode.parentOf(kids, kids.length);
+        }
+
+        /**
+         * 按顺序复制成一条普通Node链表，给遍历、transfer、快照和换回链表用
+         */
+        Node<K, V> first() {
+            return link(root, null);
+        }
+
+        private static <K, V> Node<K, V> link(BNode n, Node<K, V> tail) {
+            if (n.kids != null) {
+                for (int j = n.kids.length - 1; j >= 0; --j)
+                    tail = link(n.kids[j], tail);
+            } else {
+                for (int j = n.keys.length - 1; j >= 0; --j) {
+                    @SuppressWarnings("unchecked") K key = (K) n.keys[j];
+                    @SuppressWarnings("unchecked") V val = (V) n.vals[j];
+                    tail = new Node<K, V>(n.hashes[j], key, val, tail);
+                }
+            }
+            return tail;
+        }
+
+        // key放不进来时换成的TreeBin
+        TreeBin<K, V> toTreeBin() {
+            TreeNode<K, V> hd = null, tl = null;
+            for (Node<K, V> e = first(); e != null; e = e.next) {
+                TreeNode<K, V> p = new TreeNode<K, V>(e.hash, e.key, e.val, null, null);
+                if ((p.prev = tl) == null)
+                    hd = p;
+                else
+                    tl.next = p;
+                tl = p;
+            }
+            return new TreeBin<K, V>(hd);
+        }
+
+        /**
+         * B+树节点，创建后不再修改
+         * 叶子：hashes/keys/vals是每个entry；内部节点：hashes/keys是每个子树里最小的key，vals为null
+         */
+        static final class BNode {
+            static final BNode EMPTY = new BNode(new int[0], new Object[0], new Object[0], null);
+            final int[] hashes;
+            final Object[] keys;
+            final Object[] vals;
+            final BNode[] kids;
+
+            BNode(int[] hashes, Object[] keys, Object[] vals, BNode[] kids) {
+                this.hashes = hashes;
+                this.keys = keys;
+                this.vals = vals;
+                this.kids = kids;
+            }
+
+            // 以kids[0..n)为子树的内部节点
+            static BNode parentOf(BNode[] kids, int n) {
+                if (kids.length != n)
+                    kids = Arrays.copyOf(kids, n);
+                int[] hs = new int[n];
+                Object[] ks = new Object[n];
+                for (int j = 0; j < n; ++j) {
+                    hs[j] = kids[j].hashes[0];
+                    ks[j] = kids[j].keys[0];
+                }
+                return new BNode(hs, ks, null, kids);
+            }
+
+            // 超过MAX_KEYS就对半分到out里返回null
+            static BNode splitIfFull(BNode n, BNode[] out) {
+                int len = n.keys.length, m = len >>> 1;
+                if (len <= MAX_KEYS)
+                    return n;
+                int[] hs = n.hashes;
+                Object[] ks = n.keys, vs = n.vals;
+                if (n.kids == null) {
+                    out[0] = new BNode(Arrays.copyOfRange(hs, 0, m), Arrays.copyOfRange(ks, 0, m),
+                            Arrays.copyOfRange(vs, 0, m), null);
+                    out[1] = new BNode(Arrays.copyOfRange(hs, m, len), Arrays.copyOfRange(ks, m, len),
+                            Arrays.copyOfRange(vs, m, len), null);
+                } else {
+                    out[0] = parentOf(Arrays.copyOfRange(n.kids, 0, m), m);
+                    out[1] = parentOf(Arrays.copyOfRange(n.kids, m, len), len - m);
+                }
+                return null;
+            }
+
+            // 由排好序的n个entry自底向上建树，每个节点装满MAX_KEYS个
+            static BNode build(int[] hs, Object[] ks, Object[] vs, int n) {
+                if (n == 0)
+                    return EMPTY;
+                int m = (n + MAX_KEYS - 1) / MAX_KEYS;
+                BNode[] level = new BNode[m];
+                for (int j = 0, i = 0; j < m; ++j, i += MAX_KEYS) {
+                    int e = Math.min(n, i + MAX_KEYS);
+                    level[j] = new BNode(Arrays.copyOfRange(hs, i, e), Arrays.copyOfRange(ks, i, e),
+                            Arrays.copyOfRange(vs, i, e), null);
+                }
+                while (m > 1) {
+                    int pm = (m + MAX_KEYS - 1) / MAX_KEYS;
+                    BNode[] up = new BNode[pm];
+                    for (int j = 0, i = 0; j < pm; ++j, i += MAX_KEYS) {
+                        int e = Math.min(m, i + MAX_KEYS);
+                        up[j] = parentOf(Arrays.copyOfRange(level, i, e), e - i);
+                    }
+                    level = up;
+                    m = pm;
+                }
+                return level[0];
+            }
+        }
+    }
+
+    /* ---------------- 检查点恢复的桶 -------------- */
+
+    /**
+     * restore出来还没有反序列化的桶，同一个block里的非空桶共用一个MappedBin（桶下标由hash或调用方给出）
+     * 第一次访问时在它的锁内把这个桶从映射的文件里读出来，换成普通链表/TreeBin/ArrayBin：
+     * 读线程和Traverser用install，已经持有它的锁的写线程和transfer直接setTabAt(tab, i, load(i))再重试
+     * 只会出现在restore建的那张表里，扩容迁移时全部换掉，nextTable里不会有
+     */
+    static final class MappedBin<K, V> extends Node<K, V> {
+        final MappedFile<K, V> file;
+        final ByteBuffer region;        // 这个block所在的那段映射
+        final int base;                 // block在region里的起始偏移
+        final int[] offsets;            // 每个桶相对base的偏移，空桶为-1
+
+        MappedBin(MappedFile<K, V> file, ByteBuffer region, int base, int[] offsets) {
+            super(MAPPED, null, null);
+            this.file = file;
+            this.region = region;
+            this.base = base;
+            this.offsets = offsets;
+        }
+
+        Node<K, V> find(int h, Object k) {
+            Node<K, V>[] tab = file.tab;
+            int i = (tab.length - 1) & h;
+            Node<K, V> b;
+            if ((b = install(i)) == null)
+                b = tabAt(tab, i);      // 已经被别的线程换掉了
+            return (b == null) ? null : b.find(h, k);
+        }
+
+        // 桶i的元素个数，clear用，不需要反序列化
+        int count(int i) {
+            return region.getInt(base + offsets[i & (MAPPED_BLOCK - 1)]);
+        }
+
+        /**
+         * 把桶i换成反序列化出来的桶并返回，桶i已经不是这个MappedBin时返回null
+         */
+        Node<K, V> install(int i) {
+            Node<K, V>[] tab = file.tab;
+            synchronized (this) {
+                if (tabAt(tab, i) == this) {
+                    Node<K, V> b = load(i);
+                    setTabAt(tab, i, b);
+                    return b;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 反序列化桶i，够长的按treeifyBin的规则建成TreeBin或ArrayBin
+         */
+        Node<K, V> load(int i) {
+            Node<K, V> hd = chain(i);
+            int n = 0;
+            for (Node<K, V> e = hd; e != null; e = e.next)
+                ++n;
+            if (n < TREEIFY_THRESHOLD || file.tab.length < MIN_TREEIFY_CAPACITY)
+                return hd;
+            ArrayBin<K, V> ab;
+            if (file.map.compactBins && (ab = ArrayBin.of(hd, false)) != null)
+                return ab;
+            TreeNode<K, V> th = null, tt = null;
+            for (Node<K, V> e = hd; e != null; e = e.next) {
+                TreeNode<K, V> q = new TreeNode<K, V>(e.hash, e.key, e.val, null, null);
+                if ((q.prev = tt) == null)
+                    th = q;
+                else
+                    tt.next = q;
+                tt = q;
+            }
+            return new TreeBin<K, V>(th);
+        }
+
+        /**
+         * 把桶i反序列化成一条普通链表
+         * key的hash和写检查点时不一样说明hashCode跨进程不稳定，这个桶已经放错了位置，直接抛异常
+         */
+        Node<K, V> chain(int i) {
+            ByteBuffer r = region;
+            ByteBufferSerializer<K> ks = file.keySerializer;
+            ByteBufferSerializer<V> vs = file.valueSerializer;
+            int p = base + offsets[i & (MAPPED_BLOCK - 1)], n = r.getInt(p);
+            Node<K, V> hd = null, tl = null;
+            p += 4;
+            for (int j = 0; j < n; ++j) {
+                int h = r.getInt(p), kl = r.getInt(p + 4);
+                K k = ks.deserialize(r.slice(p + 8, kl));
+                p += 8 + kl;
+                int vl = r.getInt(p);
+                V v = vs.deserialize(r.slice(p + 4, vl));
+                p += 4 + vl;
+                if (k == null || v == null)
+                    throw new NullPointerException();
+                if (spread(k.hashCode()) != h)
+                    throw new IllegalStateException("hashCode changed since checkpoint: " + k);
+                Node<K, V> x = new Node<K, V>(h, k, v);
+                if (tl == null)
+                    hd = x;
+                else
+                    tl.next = x;
+                tl = x;
+            }
+            return hd;
+        }
+    }
+
     /* ----------------Table Traversal -------------- */
 
     /**
@@ -2321,7 +4060,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                         continue;
                     } else if (e instanceof TreeBin)
                         e = ((TreeBin<K, V>) e).first;
-                    else
+                    else if (e instanceof ArrayBin)
+                        e = ((ArrayBin<K, V>) e).first();
+                    else if (e instanceof MappedBin) {
+                        ((MappedBin<K, V>) e).install(i);
+                        e = null;
+                        continue;   // 重读这个桶
+                    } else
                         e = null;
                 }
                 if (stack != null)
@@ -2646,8 +4391,12 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
      *
      */
     final int batchFor(long b) {
-        long n;
-        if (b == Long.MAX_VALUE || (n = sumCount()) <= 1L || n < b)
+        return batchFor(b, sumCount());
+    }
+
+    // 按元素个数n计算拆分次数，bulkLoad时n是待加载的元素个数
+    static int batchFor(long b, long n) {
+        if (b == Long.MAX_VALUE || n <= 1L || n < b)
             return 0;
         int sp = ForkJoinPool.getCommonPoolParallelism() << 2; // slack of 4
         return (b <= 0L || (n /= b) >= sp) ? sp : (int) n;
@@ -2959,91 +4708,370 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
     /**
      *
      */
-    public <U> void forEachEntry(long parallelismThreshold,
-                                 Function<Entry<K, V>, ? extends U> transformer,
-                                 Consumer<? super U> action) {
-        if (transformer == null || action == null)
+    public <U> void forEachEntry(long parallelismThreshold,
+                                 Function<Entry<K, V>, ? extends U> transformer,
+                                 Consumer<? super U> action) {
+        if (transformer == null || action == null)
+            throw new NullPointerException();
+        new ForEachTransformedEntryTask<K, V, U>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        transformer, action).invoke();
+    }
+
+    /**
+     *
+     */
+    public <U> U searchEntries(long parallelismThreshold,
+                               Function<Entry<K, V>, ? extends U> searchFunction) {
+        if (searchFunction == null) throw new NullPointerException();
+        return new SearchEntriesTask<K, V, U>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        searchFunction, new AtomicReference<U>()).invoke();
+    }
+
+    /**
+     *
+     */
+    public Entry<K, V> reduceEntries(long parallelismThreshold,
+                                     BiFunction<Entry<K, V>, Entry<K, V>, ? extends Entry<K, V>> reducer) {
+        if (reducer == null) throw new NullPointerException();
+        return new ReduceEntriesTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, reducer).invoke();
+    }
+
+    /**
+     *
+     */
+    public <U> U reduceEntries(long parallelismThreshold,
+                               Function<Entry<K, V>, ? extends U> transformer,
+                               BiFunction<? super U, ? super U, ? extends U> reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceEntriesTask<K, V, U>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, reducer).invoke();
+    }
+
+    /**
+     *
+     */
+    public double reduceEntriesToDouble(long parallelismThreshold,
+                                        ToDoubleFunction<Entry<K, V>> transformer,
+                                        double basis,
+                                        DoubleBinaryOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceEntriesToDoubleTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, basis, reducer).invoke();
+    }
+
+    /**
+     *
+     */
+    public long reduceEntriesToLong(long parallelismThreshold,
+                                    ToLongFunction<Entry<K, V>> transformer,
+                                    long basis,
+                                    LongBinaryOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceEntriesToLongTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, basis, reducer).invoke();
+    }
+
+    /**
+     *
+     */
+    public int reduceEntriesToInt(long parallelismThreshold,
+                                  ToIntFunction<Entry<K, V>> transformer,
+                                  int basis,
+                                  IntBinaryOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceEntriesToIntTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, basis, reducer).invoke();
+    }
+
+    /* ---------------- 列式归约 -------------- */
+
+    /*
+     * reduce*To{Long,Int,Double}每个元素都要走一次advance、transformer、reducer，reducer是接口调用，循环没法向量化
+     * 列式归约把遍历和归约分开：每次从Traverser取COLUMN_BATCH个元素，经transformer写进一个原始类型的临时数组，
+     * 再用BatchOperator.reduce对整个数组归约一次；SUM、MIN、MAX的reduce是对数组的简单循环，JIT可以向量化
+     * 拆分和合并与原来的reduce*一样，按batchFor拆到ForkJoinPool公共池，子任务的结果用applyAsXxx合并
+     */
+
+    static final int COLUMN_BATCH = 256;    // 临时数组的长度，long的话2KB，在L1里
+
+    /**
+     * 可以一次归约一批值的LongBinaryOperator，reduce的默认实现逐个调用applyAsLong
+     */
+    public interface LongBatchOperator extends LongBinaryOperator {
+        default long reduce(long acc, long[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = applyAsLong(acc, values[i]);
+            return acc;
+        }
+    }
+
+    /**
+     * 可以一次归约一批值的IntBinaryOperator，reduce的默认实现逐个调用applyAsInt
+     */
+    public interface IntBatchOperator extends IntBinaryOperator {
+        default int reduce(int acc, int[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = applyAsInt(acc, values[i]);
+            return acc;
+        }
+    }
+
+    /**
+     * 可以一次归约一批值的DoubleBinaryOperator，reduce的默认实现逐个调用applyAsDouble
+     */
+    public interface DoubleBatchOperator extends DoubleBinaryOperator {
+        default double reduce(double acc, double[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = applyAsDouble(acc, values[i]);
+            return acc;
+        }
+    }
+
+    public static final LongBatchOperator LONG_SUM = new LongBatchOperator() {
+        public long applyAsLong(long a, long b) {
+            return a + b;
+        }
+
+        public long reduce(long acc, long[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc += values[i];
+            return acc;
+        }
+    };
+
+    public static final LongBatchOperator LONG_MIN = new LongBatchOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.min(a, b);
+        }
+
+        public long reduce(long acc, long[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.min(acc, values[i]);
+            return acc;
+        }
+    };
+
+    public static final LongBatchOperator LONG_MAX = new LongBatchOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+
+        public long reduce(long acc, long[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.max(acc, values[i]);
+            return acc;
+        }
+    };
+
+    public static final IntBatchOperator INT_SUM = new IntBatchOperator() {
+        public int applyAsInt(int a, int b) {
+            return a + b;
+        }
+
+        public int reduce(int acc, int[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc += values[i];
+            return acc;
+        }
+    };
+
+    public static final IntBatchOperator INT_MIN = new IntBatchOperator() {
+        public int applyAsInt(int a, int b) {
+            return Math.min(a, b);
+        }
+
+        public int reduce(int acc, int[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.min(acc, values[i]);
+            return acc;
+        }
+    };
+
+    public static final IntBatchOperator INT_MAX = new IntBatchOperator() {
+        public int applyAsInt(int a, int b) {
+            return Math.max(a, b);
+        }
+
+        public int reduce(int acc, int[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.max(acc, values[i]);
+            return acc;
+        }
+    };
+
+    // double的加法不满足结合律，JIT不会把它向量化，这里只省掉了逐个的接口调用
+    public static final DoubleBatchOperator DOUBLE_SUM = new DoubleBatchOperator() {
+        public double applyAsDouble(double a, double b) {
+            return a + b;
+        }
+
+        public double reduce(double acc, double[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc += values[i];
+            return acc;
+        }
+    };
+
+    public static final DoubleBatchOperator DOUBLE_MIN = new DoubleBatchOperator() {
+        public double applyAsDouble(double a, double b) {
+            return Math.min(a, b);
+        }
+
+        public double reduce(double acc, double[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.min(acc, values[i]);
+            return acc;
+        }
+    };
+
+    public static final DoubleBatchOperator DOUBLE_MAX = new DoubleBatchOperator() {
+        public double applyAsDouble(double a, double b) {
+            return Math.max(a, b);
+        }
+
+        public double reduce(double acc, double[] values, int n) {
+            for (int i = 0; i < n; ++i)
+                acc = Math.max(acc, values[i]);
+            return acc;
+        }
+    };
+
+    /**
+     * 列式版本的reduceToLong，basis必须是reducer的单位元（每个子任务都从basis开始）
+     */
+    public long reduceToLongColumnar(long parallelismThreshold,
+                                     ToLongBiFunction<? super K, ? super V> transformer,
+                                     long basis,
+                                     LongBatchOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new ColumnarToLongTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, null, null, transformer, basis, reducer).invoke();
+    }
+
+    /**
+     * 列式版本的reduceKeysToLong
+     */
+    public long reduceKeysToLongColumnar(long parallelismThreshold,
+                                         ToLongFunction<? super K> transformer,
+                                         long basis,
+                                         LongBatchOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new ColumnarToLongTask<K, V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, null, null, basis, reducer).invoke();
+    }
+
+    /**
+     * 列式版本的reduceValuesToLong
+     */
+    public long reduceValuesToLongColumnar(long parallelismThreshold,
+                                           ToLongFunction<? super V> transformer,
+                                           long basis,
+                                           LongBatchOperator reducer) {
+        if (transformer == null || reducer == null)
             throw new NullPointerException();
-        new ForEachTransformedEntryTask<K, V, U>
+        return new ColumnarToLongTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        transformer, action).invoke();
+                        null, null, transformer, null, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceToInt
      */
-    public <U> U searchEntries(long parallelismThreshold,
-                               Function<Entry<K, V>, ? extends U> searchFunction) {
-        if (searchFunction == null) throw new NullPointerException();
-        return new SearchEntriesTask<K, V, U>
+    public int reduceToIntColumnar(long parallelismThreshold,
+                                   ToIntBiFunction<? super K, ? super V> transformer,
+                                   int basis,
+                                   IntBatchOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new ColumnarToIntTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        searchFunction, new AtomicReference<U>()).invoke();
+                        null, null, null, transformer, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceKeysToInt
      */
-    public Entry<K, V> reduceEntries(long parallelismThreshold,
-                                     BiFunction<Entry<K, V>, Entry<K, V>, ? extends Entry<K, V>> reducer) {
-        if (reducer == null) throw new NullPointerException();
-        return new ReduceEntriesTask<K, V>
+    public int reduceKeysToIntColumnar(long parallelismThreshold,
+                                       ToIntFunction<? super K> transformer,
+                                       int basis,
+                                       IntBatchOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new ColumnarToIntTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        null, reducer).invoke();
+                        null, transformer, null, null, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceValuesToInt
      */
-    public <U> U reduceEntries(long parallelismThreshold,
-                               Function<Entry<K, V>, ? extends U> transformer,
-                               BiFunction<? super U, ? super U, ? extends U> reducer) {
+    public int reduceValuesToIntColumnar(long parallelismThreshold,
+                                         ToIntFunction<? super V> transformer,
+                                         int basis,
+                                         IntBatchOperator reducer) {
         if (transformer == null || reducer == null)
             throw new NullPointerException();
-        return new MapReduceEntriesTask<K, V, U>
+        return new ColumnarToIntTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        null, transformer, reducer).invoke();
+                        null, null, transformer, null, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceToDouble
      */
-    public double reduceEntriesToDouble(long parallelismThreshold,
-                                        ToDoubleFunction<Entry<K, V>> transformer,
-                                        double basis,
-                                        DoubleBinaryOperator reducer) {
+    public double reduceToDoubleColumnar(long parallelismThreshold,
+                                         ToDoubleBiFunction<? super K, ? super V> transformer,
+                                         double basis,
+                                         DoubleBatchOperator reducer) {
         if (transformer == null || reducer == null)
             throw new NullPointerException();
-        return new MapReduceEntriesToDoubleTask<K, V>
+        return new ColumnarToDoubleTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        null, transformer, basis, reducer).invoke();
+                        null, null, null, transformer, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceKeysToDouble
      */
-    public long reduceEntriesToLong(long parallelismThreshold,
-                                    ToLongFunction<Entry<K, V>> transformer,
-                                    long basis,
-                                    LongBinaryOperator reducer) {
+    public double reduceKeysToDoubleColumnar(long parallelismThreshold,
+                                             ToDoubleFunction<? super K> transformer,
+                                             double basis,
+                                             DoubleBatchOperator reducer) {
         if (transformer == null || reducer == null)
             throw new NullPointerException();
-        return new MapReduceEntriesToLongTask<K, V>
+        return new ColumnarToDoubleTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        null, transformer, basis, reducer).invoke();
+                        null, transformer, null, null, basis, reducer).invoke();
     }
 
     /**
-     *
+     * 列式版本的reduceValuesToDouble
      */
-    public int reduceEntriesToInt(long parallelismThreshold,
-                                  ToIntFunction<Entry<K, V>> transformer,
-                                  int basis,
-                                  IntBinaryOperator reducer) {
+    public double reduceValuesToDoubleColumnar(long parallelismThreshold,
+                                               ToDoubleFunction<? super V> transformer,
+                                               double basis,
+                                               DoubleBatchOperator reducer) {
         if (transformer == null || reducer == null)
             throw new NullPointerException();
-        return new MapReduceEntriesToIntTask<K, V>
+        return new ColumnarToDoubleTask<K, V>
                 (null, batchFor(parallelismThreshold), 0, 0, table,
-                        null, transformer, basis, reducer).invoke();
+                        null, null, transformer, null, basis, reducer).invoke();
     }
 
     /**
@@ -3535,7 +5563,13 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
                         continue;
                     } else if (e instanceof TreeBin)
                         e = ((TreeBin<K, V>) e).first;
-                    else
+                    else if (e instanceof ArrayBin)
+                        e = ((ArrayBin<K, V>) e).first();
+                    else if (e instanceof MappedBin) {
+                        ((MappedBin<K, V>) e).install(i);
+                        e = null;
+                        continue;   // 重读这个桶
+                    } else
                         e = null;
                 }
                 if (stack != null)
@@ -5122,11 +7156,452 @@ public class ConcurrentHashMap<K, V> extends AbstractMap<K, V> implements Concur
         }
     }
 
+    /**
+     * 列式归约的任务：keyTransformer、valueTransformer、transformer三个里只有一个不为null
+     */
+    @SuppressWarnings("serial")
+    static final class ColumnarToLongTask<K, V>
+            extends BulkTask<K, V, Long> {
+        final ToLongFunction<? super K> keyTransformer;
+        final ToLongFunction<? super V> valueTransformer;
+        final ToLongBiFunction<? super K, ? super V> transformer;
+        final LongBatchOperator reducer;
+        final long basis;
+        long result;
+        ColumnarToLongTask<K, V> rights, nextRight;
+
+        ColumnarToLongTask
+                (BulkTask<K, V, ?> p, int b, int i, int f, Node<K, V>[] t,
+                 ColumnarToLongTask<K, V> nextRight,
+                 ToLongFunction<? super K> keyTransformer,
+                 ToLongFunction<? super V> valueTransformer,
+                 ToLongBiFunction<? super K, ? super V> transformer,
+                 long basis,
+                 LongBatchOperator reducer) {
+            super(p, b, i, f, t);
+            this.nextRight = nextRight;
+            this.keyTransformer = keyTransformer;
+            this.valueTransformer = valueTransformer;
+            this.transformer = transformer;
+            this.basis = basis;
+            this.reducer = reducer;
+        }
+
+        public final Long getRawResult() {
+            return result;
+        }
+
+        public final void compute() {
+            final ToLongFunction<? super K> kt = keyTransformer;
+            final ToLongFunction<? super V> vt = valueTransformer;
+            final ToLongBiFunction<? super K, ? super V> et = transformer;
+            final LongBatchOperator reducer;
+            if ((reducer = this.reducer) != null) {
+                long r = this.basis;
+                for (int i = baseIndex, f, h; batch > 0 &&
+                        (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                    addToPendingCount(1);
+                    (rights = new ColumnarToLongTask<K, V>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    rights, kt, vt, et, r, reducer)).fork();
+                }
+                long[] buf = new long[COLUMN_BATCH];
+                for (int n = COLUMN_BATCH; n == COLUMN_BATCH; ) {
+                    Node<K, V> p;
+                    n = 0;
+                    if (kt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = kt.applyAsLong(p.key);
+                    } else if (vt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = vt.applyAsLong(p.val);
+                    } else {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = et.applyAsLong(p.key, p.val);
+                    }
+                    r = reducer.reduce(r, buf, n);
+                }
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    @SuppressWarnings("unchecked")
+                    ColumnarToLongTask<K, V>
+                            t = (ColumnarToLongTask<K, V>) c,
+                            s = t.rights;
+                    while (s != null) {
+                        t.result = reducer.applyAsLong(t.result, s.result);
+                        s = t.rights = s.nextRight;
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * 列式归约的任务：keyTransformer、valueTransformer、transformer三个里只有一个不为null
+     */
+    @SuppressWarnings("serial")
+    static final class ColumnarToIntTask<K, V>
+            extends BulkTask<K, V, Integer> {
+        final ToIntFunction<? super K> keyTransformer;
+        final ToIntFunction<? super V> valueTransformer;
+        final ToIntBiFunction<? super K, ? super V> transformer;
+        final IntBatchOperator reducer;
+        final int basis;
+        int result;
+        ColumnarToIntTask<K, V> rights, nextRight;
+
+        ColumnarToIntTask
+                (BulkTask<K, V, ?> p, int b, int i, int f, Node<K, V>[] t,
+                 ColumnarToIntTask<K, V> nextRight,
+                 ToIntFunction<? super K> keyTransformer,
+                 ToIntFunction<? super V> valueTransformer,
+                 ToIntBiFunction<? super K, ? super V> transformer,
+                 int basis,
+                 IntBatchOperator reducer) {
+            super(p, b, i, f, t);
+            this.nextRight = nextRight;
+            this.keyTransformer = keyTransformer;
+            this.valueTransformer = valueTransformer;
+            this.transformer = transformer;
+            this.basis = basis;
+            this.reducer = reducer;
+        }
+
+        public final Integer getRawResult() {
+            return result;
+        }
+
+        public final void compute() {
+            final ToIntFunction<? super K> kt = keyTransformer;
+            final ToIntFunction<? super V> vt = valueTransformer;
+            final ToIntBiFunction<? super K, ? super V> et = transformer;
+            final IntBatchOperator reducer;
+            if ((reducer = this.reducer) != null) {
+                int r = this.basis;
+                for (int i = baseIndex, f, h; batch > 0 &&
+                        (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                    addToPendingCount(1);
+                    (rights = new ColumnarToIntTask<K, V>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    rights, kt, vt, et, r, reducer)).fork();
+                }
+                int[] buf = new int[COLUMN_BATCH];
+                for (int n = COLUMN_BATCH; n == COLUMN_BATCH; ) {
+                    Node<K, V> p;
+                    n = 0;
+                    if (kt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = kt.applyAsInt(p.key);
+                    } else if (vt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = vt.applyAsInt(p.val);
+                    } else {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = et.applyAsInt(p.key, p.val);
+                    }
+                    r = reducer.reduce(r, buf, n);
+                }
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    @SuppressWarnings("unchecked")
+                    ColumnarToIntTask<K, V>
+                            t = (ColumnarToIntTask<K, V>) c,
+                            s = t.rights;
+                    while (s != null) {
+                        t.result = reducer.applyAsInt(t.result, s.result);
+                        s = t.rights = s.nextRight;
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * 列式归约的任务：keyTransformer、valueTransformer、transformer三个里只有一个不为null
+     */
+    @SuppressWarnings("serial")
+    static final class ColumnarToDoubleTask<K, V>
+            extends BulkTask<K, V, Double> {
+        final ToDoubleFunction<? super K> keyTransformer;
+        final ToDoubleFunction<? super V> valueTransformer;
+        final ToDoubleBiFunction<? super K, ? super V> transformer;
+        final DoubleBatchOperator reducer;
+        final double basis;
+        double result;
+        ColumnarToDoubleTask<K, V> rights, nextRight;
+
+        ColumnarToDoubleTask
+                (BulkTask<K, V, ?> p, int b, int i, int f, Node<K, V>[] t,
+                 ColumnarToDoubleTask<K, V> nextRight,
+                 ToDoubleFunction<? super K> keyTransformer,
+                 ToDoubleFunction<? super V> valueTransformer,
+                 ToDoubleBiFunction<? super K, ? super V> transformer,
+                 double basis,
+                 DoubleBatchOperator reducer) {
+            super(p, b, i, f, t);
+            this.nextRight = nextRight;
+            this.keyTransformer = keyTransformer;
+            this.valueTransformer = valueTransformer;
+            this.transformer = transformer;
+            this.basis = basis;
+            this.reducer = reducer;
+        }
+
+        public final Double getRawResult() {
+            return result;
+        }
+
+        public final void compute() {
+            final ToDoubleFunction<? super K> kt = keyTransformer;
+            final ToDoubleFunction<? super V> vt = valueTransformer;
+            final ToDoubleBiFunction<? super K, ? super V> et = transformer;
+            final DoubleBatchOperator reducer;
+            if ((reducer = this.reducer) != null) {
+                double r = this.basis;
+                for (int i = baseIndex, f, h; batch > 0 &&
+                        (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                    addToPendingCount(1);
+                    (rights = new ColumnarToDoubleTask<K, V>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    rights, kt, vt, et, r, reducer)).fork();
+                }
+                double[] buf = new double[COLUMN_BATCH];
+                for (int n = COLUMN_BATCH; n == COLUMN_BATCH; ) {
+                    Node<K, V> p;
+                    n = 0;
+                    if (kt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = kt.applyAsDouble(p.key);
+                    } else if (vt != null) {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = vt.applyAsDouble(p.val);
+                    } else {
+                        while (n < COLUMN_BATCH && (p = advance()) != null)
+                            buf[n++] = et.applyAsDouble(p.key, p.val);
+                    }
+                    r = reducer.reduce(r, buf, n);
+                }
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    @SuppressWarnings("unchecked")
+                    ColumnarToDoubleTask<K, V>
+                            t = (ColumnarToDoubleTask<K, V>) c,
+                            s = t.rights;
+                    while (s != null) {
+                        t.result = reducer.applyAsDouble(t.result, s.result);
+                        s = t.rights = s.nextRight;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * bulkLoad第一阶段：拆分spliterator，把entry转成Node按分区挂到heads上
+     */
+    @SuppressWarnings("serial")
+    static final class ScatterTask<K, V> extends CountedCompleter<Void> {
+        final Spliterator<? extends Entry<? extends K, ? extends V>> spliterator;
+        final Node<K, V>[] heads;
+        final int mask;         // 桶数 - 1
+        final int shift;        // 桶下标右移shift位得到分区号
+        int batch;
+
+        ScatterTask(CountedCompleter<?> p, int b,
+                    Spliterator<? extends Entry<? extends K, ? extends V>> s,
+                    Node<K, V>[] heads, int mask, int shift) {
+            super(p);
+            this.batch = b;
+            this.spliterator = s;
+            this.heads = heads;
+            this.mask = mask;
+            this.shift = shift;
+        }
+
+        public final void compute() {
+            Spliterator<? extends Entry<? extends K, ? extends V>> s = spliterator, r;
+            while (batch > 0 && (r = s.trySplit()) != null) {
+                addToPendingCount(1);
+                new ScatterTask<K, V>(this, batch >>>= 1, r, heads, mask, shift).fork();
+            }
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] hd = (Node<K, V>[]) new Node<?, ?>[heads.length], tl = hd.clone();
+            s.forEachRemaining(e -> {
+                K k = e.getKey();
+                V v = e.getValue();
+                if (k == null || v == null) throw new NullPointerException();
+                int h = spread(k.hashCode()), p = (h & mask) >>> shift;
+                Node<K, V> x = new Node<K, V>(h, k, v, hd[p]);
+                if (hd[p] == null)
+                    tl[p] = x;
+                hd[p] = x;
+            });
+            // 本线程的每个分区链表整体接到公共链表头上
+            for (int p = 0; p < hd.length; ++p) {
+                Node<K, V> x;
+                if ((x = hd[p]) != null) {
+                    do {
+                        tl[p].next = tabAt(heads, p);
+                    } while (!casTabAt(heads, p, tl[p].next, x));
+                }
+            }
+            propagateCompletion();
+        }
+    }
+
+    /**
+     * bulkLoad第二阶段：每个任务负责[baseIndex, baseLimit)这些分区，一个分区对应连续的1 << shift个桶
+     */
+    @SuppressWarnings("serial")
+    static final class LoadTask<K, V> extends CountedCompleter<Void> {
+        final ConcurrentHashMap<K, V> map;
+        final Node<K, V>[] tab;
+        final Node<K, V>[] heads;
+        final int shift;
+        final int baseIndex;
+        int baseLimit;
+        int batch;
+
+        LoadTask(CountedCompleter<?> p, int b, int i, int f, ConcurrentHashMap<K, V> map,
+                 Node<K, V>[] tab, Node<K, V>[] heads, int shift) {
+            super(p);
+            this.batch = b;
+            this.baseIndex = i;
+            this.baseLimit = f;
+            this.map = map;
+            this.tab = tab;
+            this.heads = heads;
+            this.shift = shift;
+        }
+
+        public final void compute() {
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                new LoadTask<K, V>(this, batch >>>= 1, baseLimit = h, f,
+                        map, tab, heads, shift).fork();
+            }
+            int width = 1 << shift, mask = tab.length - 1;
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] bins = (Node<K, V>[]) new Node<?, ?>[width];
+            long added = 0L;
+            for (int p = baseIndex; p < baseLimit; ++p) {
+                int base = p << shift;
+                for (Node<K, V> x = tabAt(heads, p), nx; x != null; x = nx) {
+                    nx = x.next;
+                    int j = (x.hash & mask) - base;
+                    x.next = bins[j];
+                    bins[j] = x;
+                }
+                for (int j = 0; j < width; ++j) {
+                    Node<K, V> chain;
+                    if ((chain = bins[j]) != null) {
+                        bins[j] = null;
+                        added += map.loadBin(tab, base + j, chain);
+                    }
+                }
+            }
+            if (added != 0L)
+                map.addCount(added, 2);
+            propagateCompletion();
+        }
+    }
+
+    /**
+     * restore用到的映射和序列化器，所有MappedBin共用一个
+     */
+    static final class MappedFile<K, V> {
+        final Path path;                // 映射的文件
+        final Node<K, V>[] tab;
+        final ByteBufferSerializer<K> keySerializer;
+        final ByteBufferSerializer<V> valueSerializer;
+        final ConcurrentHashMap<K, V> map;
+        final long[] bases;             // 每个block在文件里的起始偏移
+        final long[] starts;            // 每段数据映射在文件里的起始偏移，最后一个是目录偏移
+        final ByteBuffer[] regions;     // 数据区的各段映射
+        final ByteBuffer[] dirs;        // 桶目录的各段映射，每段2^DIR_REGION_SHIFT个桶
+
+        MappedFile(Path path, Node<K, V>[] tab, ByteBufferSerializer<K> keySerializer,
+                   ByteBufferSerializer<V> valueSerializer, ConcurrentHashMap<K, V> map,
+                   long[] bases, long[] starts, ByteBuffer[] regions, ByteBuffer[] dirs) {
+            this.path = path;
+            this.tab = tab;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.map = map;
+            this.bases = bases;
+            this.starts = starts;
+            this.regions = regions;
+            this.dirs = dirs;
+        }
+    }
+
+    /**
+     * restore时并行建表：每个任务负责[baseIndex, baseLimit)这些block，读目录，给block里的非空桶挂上同一个MappedBin
+     */
+    @SuppressWarnings("serial")
+    static final class RestoreTask<K, V> extends CountedCompleter<Void> {
+        final MappedFile<K, V> file;
+        final int baseIndex;
+        int baseLimit;
+        int batch;
+
+        RestoreTask(CountedCompleter<?> p, int b, int i, int f, MappedFile<K, V> file) {
+            super(p);
+            this.batch = b;
+            this.baseIndex = i;
+            this.baseLimit = f;
+            this.file = file;
+        }
+
+        public final void compute() {
+            for (int i = baseIndex, f, h; batch > 0 &&
+                    (h = ((f = baseLimit) + i) >>> 1) > i; ) {
+                addToPendingCount(1);
+                new RestoreTask<K, V>(this, batch >>>= 1, baseLimit = h, f, file).fork();
+            }
+            Node<K, V>[] tab = file.tab;
+            long[] starts = file.starts;
+            int n = tab.length, last = file.regions.length, mask = (1 << DIR_REGION_SHIFT) - 1;
+            for (int b = baseIndex; b < baseLimit; ++b) {
+                int lo = b << MAPPED_BLOCK_SHIFT, w = Math.min(MAPPED_BLOCK, n - lo);
+                ByteBuffer dir = file.dirs[lo >>> DIR_REGION_SHIFT];
+                int[] offsets = null;
+                for (int j = 0; j < w; ++j) {
+                    int off = dir.getInt(((lo + j) & mask) << 2);
+                    if (off >= 0) {
+                        if (offsets == null) {
+                            offsets = new int[w];
+                            Arrays.fill(offsets, -1);
+                        }
+                        offsets[j] = off;
+                    }
+                }
+                if (offsets != null) {
+                    int r = Arrays.binarySearch(starts, 0, last, file.bases[b]);
+                    if (r < 0)
+                        r = -r - 2;
+                    MappedBin<K, V> mb = new MappedBin<K, V>(file, file.regions[r],
+                            (int) (file.bases[b] - starts[r]), offsets);
+                    for (int j = 0; j < w; ++j)
+                        if (offsets[j] >= 0)
+                            tab[lo + j] = mb;
+                }
+            }
+            propagateCompletion();
+        }
+    }
+
     private static final Unsafe U = Unsafe.getUnsafe();
     private static final long SIZECTL = U.objectFieldOffset(ConcurrentHashMap.class, "sizeCtl");
     private static final long TRANSFERINDEX = U.objectFieldOffset(ConcurrentHashMap.class, "transferIndex");
     private static final long BASECOUNT = U.objectFieldOffset(ConcurrentHashMap.class, "baseCount");
     private static final long CELLSBUSY = U.objectFieldOffset(ConcurrentHashMap.class, "cellsBusy");
+    private static final long MIGRATEDBINS = U.objectFieldOffset(ConcurrentHashMap.class, "migratedBins");
+    private static final long SNAPSHOTS = U.objectFieldOffset(ConcurrentHashMap.class, "snapshots");
+    private static final long LOADS = U.objectFieldOffset(ConcurrentHashMap.class, "loads");
+    private static final long MAPPEDFILE = U.objectFieldOffset(ConcurrentHashMap.class, "mapped");
     private static final long CELLVALUE = U.objectFieldOffset(CounterCell.class, "value");
     private static final int ABASE = U.arrayBaseOffset(Node[].class);
     private static final int ASHIFT;
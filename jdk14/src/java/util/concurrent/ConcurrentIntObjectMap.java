@@ -0,0 +1,985 @@
+package java.util.concurrent;
+
+import jdk.internal.misc.Unsafe;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import java.util.concurrent.ConcurrentHashMap.CounterCell;
+
+
+/**
+ * key为基本类型int的ConcurrentHashMap
+ * 与ConcurrentHashMap<Integer,V>相比：key直接内联在Node中，get/put路径上不会装箱，Node上也没有单独的hash字段（hash由key现算）
+ * 扩容沿用ConcurrentHashMap的sizeCtl/transferIndex多线程协助迁移，计数沿用baseCount + CounterCell
+ * 没有红黑树：散列前先加上每个实例随机生成的hashSeed，不知道seed就没法事先构造出落在同一个桶里的大批key
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;    // 最大容量2的30次方
+    private static final int DEFAULT_CAPACITY = 16;         // 默认容量16
+    private static final float LOAD_FACTOR = 0.75f;         // 加载因子
+    private static final int MIN_TRANSFER_STRIDE = 16;      // 每个线程一次最少迁移的桶数
+    private static final int RESIZE_STAMP_BITS = 16;
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+    static final int HASH_BITS = 0x7fffffff;                // 去掉符号位
+    static final int NCPU = Runtime.getRuntime().availableProcessors(); // 获取cpu核心数
+    transient volatile Node<V>[] table;                     // 底层数组
+    private transient volatile Node<V>[] nextTable;         // 扩容时的新数组
+    private transient volatile long baseCount;              // 无竞争时的计数
+    private transient volatile int sizeCtl;                 // 含义同ConcurrentHashMap.sizeCtl
+    private transient volatile int transferIndex;           // 扩容时下一个待领取的桶区间上界
+    private transient volatile int cellsBusy;               // counterCells扩容/初始化的自旋锁
+    private transient volatile CounterCell[] counterCells;  // 有竞争时的分段计数，直接复用ConcurrentHashMap.CounterCell
+    final int hashSeed = ThreadLocalRandom.current().nextInt(); // 每个实例一个的散列种子，见spread
+
+    /**
+     * 几个构造方法
+     */
+    public ConcurrentIntObjectMap() {
+    }
+
+    // 自定义初始容量，计算方式与ConcurrentHashMap一致
+    public ConcurrentIntObjectMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        long size = (long) (1.0 + (long) initialCapacity / LOAD_FACTOR);
+        this.sizeCtl = (size >= (long) MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : tableSizeFor((int) size);
+    }
+
+    // 计算新的容量值
+    private static final int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /**
+     * 存储数据的Node，只有key、val、next三个字段
+     * val为null的只可能是ForwardingNode或ReservationNode，get时用它来区分特殊节点，省去hash字段
+     */
+    static class Node<V> {
+        final int key;         // key值
+        volatile V val;         // value值
+        volatile Node<V> next;  // 下一个节点
+
+        Node(int key, V val) {
+            this.key = key;
+            this.val = val;
+        }
+
+        Node(int key, V val, Node<V> next) {
+            this(key, val);
+            this.next = next;
+        }
+
+        // 从当前节点开始往后找key
+        Node<V> find(int k) {
+            Node<V> e = this;
+            do {
+                if (e.key == k)
+                    return e;
+            } while ((e = e.next) != null);
+            return null;
+        }
+    }
+
+    /**
+     * 加上seed后做murmur3的fmix32（两轮乘法、移位异或），保证连续的id也能均匀落到各个桶
+     * 单纯的乘法散列可逆，按k = h * C^-1就能算出任意多个同桶的key；seed每个实例随机，外部不知道就构造不出来
+     */
+    static final int spread(int k, int seed) {
+        int h = k + seed;
+        h = (h ^ (h >>> 16)) * 0x85ebca6b;
+        h = (h ^ (h >>> 13)) * 0xc2b2ae35;
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    @SuppressWarnings("unchecked")
+    static final <V> Node<V> tabAt(Node<V>[] tab, int i) {
+        return (Node<V>) U.getReferenceAcquire(tab, ((long) i << ASHIFT) + ABASE);
+    }
+
+    static final <V> boolean casTabAt(Node<V>[] tab, int i, Node<V> c, Node<V> v) {
+        return U.compareAndSetReference(tab, ((long) i << ASHIFT) + ABASE, c, v);
+    }
+
+    static final <V> void setTabAt(Node<V>[] tab, int i, Node<V> v) {
+        U.putReferenceRelease(tab, ((long) i << ASHIFT) + ABASE, v);
+    }
+
+
+    public int size() {
+        long n = sumCount();
+        return ((n < 0L) ? 0 :
+                (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int) n);
+    }
+
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    public boolean isEmpty() {
+        return sumCount() <= 0L; // ignore transient negative values
+    }
+
+    /**
+     * 无锁读，遇到val为null的头节点说明是特殊节点(正在迁移或者正在computeIfAbsent)，交给它的find处理
+     */
+    public V get(int key) {
+        Node<V>[] tab;
+        Node<V> e, p;
+        V ev;
+        int n;
+        if ((tab = table) != null && (n = tab.length) > 0 &&
+                (e = tabAt(tab, (n - 1) & spread(key, hashSeed))) != null) {
+            if ((ev = e.val) == null)
+                return (p = e.find(key)) != null ? p.val : null;
+            if (e.key == key)
+                return ev;
+            while ((e = e.next) != null) {
+                if (e.key == key)
+                    return e.val;
+            }
+        }
+        return null;
+    }
+
+    public V getOrDefault(int key, V defaultValue) {
+        V v;
+        return (v = get(key)) == null ? defaultValue : v;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    public V put(int key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(int key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * 与ConcurrentHashMap.putVal相同：空桶CAS，非空桶锁住头节点
+     */
+    final V putVal(int key, V value, boolean onlyIfAbsent) {
+        if (value == null) throw new NullPointerException();
+        int hash = spread(key, hashSeed);
+        int binCount = 0;
+        for (Node<V>[] tab = table; ; ) {
+            Node<V> f;
+            int n, i;
+            V fv;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & hash)) == null) {
+                if (casTabAt(tab, i, null, new Node<V>(key, value)))
+                    break;                   // no lock when adding to empty bin
+            } else if (f instanceof ForwardingNode)
+                tab = helpTransfer(tab, f);
+            else if (onlyIfAbsent // check first node without acquiring lock
+                    && f.key == key
+                    && (fv = f.val) != null)
+                return fv;
+            else {
+                V oldVal = null;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                        binCount = 1;
+                        for (Node<V> e = f; ; ++binCount) {
+                            if (e.key == key) {
+                                oldVal = e.val;
+                                if (!onlyIfAbsent)
+                                    e.val = value;
+                                break;
+                            }
+                            Node<V> pred = e;
+                            if ((e = e.next) == null) {
+                                pred.next = new Node<V>(key, value);
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (oldVal != null)
+                        return oldVal;
+                    break;
+                }
+            }
+        }
+        addCount(1L, binCount);
+        return null;
+    }
+
+    public V remove(int key) {
+        return replaceNode(key, null, null);
+    }
+
+    public boolean remove(int key, Object value) {
+        return value != null && replaceNode(key, null, value) != null;
+    }
+
+    public V replace(int key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return replaceNode(key, value, null);
+    }
+
+    public boolean replace(int key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceNode(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * remove/replace的公共实现：value为null表示删除，cv不为null时要求旧值等于cv
+     */
+    final V replaceNode(int key, V value, Object cv) {
+        int hash = spread(key, hashSeed);
+        for (Node<V>[] tab = table; ; ) {
+            Node<V> f;
+            int n, i;
+            if (tab == null || (n = tab.length) == 0 ||
+                    (f = tabAt(tab, i = (n - 1) & hash)) == null)
+                break;
+            else if (f instanceof ForwardingNode)
+                tab = helpTransfer(tab, f);
+            else {
+                V oldVal = null;
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                        validated = true;
+                        for (Node<V> e = f, pred = null; ; ) {
+                            if (e.key == key) {
+                                V ev = e.val;
+                                if (cv == null || cv == ev ||
+                                        (ev != null && cv.equals(ev))) {
+                                    oldVal = ev;
+                                    if (value != null)
+                                        e.val = value;
+                                    else if (pred != null)
+                                        pred.next = e.next;
+                                    else
+                                        setTabAt(tab, i, e.next);
+                                }
+                                break;
+                            }
+                            pred = e;
+                            if ((e = e.next) == null)
+                                break;
+                        }
+                    }
+                }
+                if (validated) {
+                    if (oldVal != null) {
+                        if (value == null)
+                            addCount(-1L, -1);
+                        return oldVal;
+                    }
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 与ConcurrentHashMap.computeIfAbsent相同，空桶先放一个ReservationNode占位再执行mappingFunction
+     */
+    public V computeIfAbsent(int key, IntFunction<? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        int h = spread(key, hashSeed);
+        V val = null;
+        int binCount = 0;
+        for (Node<V>[] tab = table; ; ) {
+            Node<V> f;
+            int n, i;
+            V fv;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                Node<V> r = new ReservationNode<V>();
+                synchronized (r) {
+                    if (casTabAt(tab, i, null, r)) {
+                        binCount = 1;
+                        Node<V> node = null;
+                        try {
+                            if ((val = mappingFunction.apply(key)) != null)
+                                node = new Node<V>(key, val);
+                        } finally {
+                            setTabAt(tab, i, node);
+                        }
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            } else if (f instanceof ForwardingNode)
+                tab = helpTransfer(tab, f);
+            else if (f.key == key    // check first node without acquiring lock
+                    && (fv = f.val) != null)
+                return fv;
+            else {
+                boolean added = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                        binCount = 1;
+                        for (Node<V> e = f; ; ++binCount) {
+                            if (e.key == key) {
+                                val = e.val;
+                                break;
+                            }
+                            Node<V> pred = e;
+                            if ((e = e.next) == null) {
+                                if ((val = mappingFunction.apply(key)) != null) {
+                                    if (pred.next != null)
+                                        throw new IllegalStateException("Recursive update");
+                                    added = true;
+                                    pred.next = new Node<V>(key, val);
+                                }
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (!added)
+                        return val;
+                    break;
+                }
+            }
+        }
+        if (val != null)
+            addCount(1L, binCount);
+        return val;
+    }
+
+    /**
+     * 与ConcurrentHashMap.merge相同：不存在则放入value，存在则用remappingFunction合并，合并结果为null则删除
+     */
+    public V merge(int key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        int h = spread(key, hashSeed);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        for (Node<V>[] tab = table; ; ) {
+            Node<V> f;
+            int n, i;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                if (casTabAt(tab, i, null, new Node<V>(key, value))) {
+                    delta = 1;
+                    val = value;
+                    break;
+                }
+            } else if (f instanceof ForwardingNode)
+                tab = helpTransfer(tab, f);
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                        binCount = 1;
+                        for (Node<V> e = f, pred = null; ; ++binCount) {
+                            if (e.key == key) {
+                                val = remappingFunction.apply(e.val, value);
+                                if (val != null)
+                                    e.val = val;
+                                else {
+                                    delta = -1;
+                                    Node<V> en = e.next;
+                                    if (pred != null)
+                                        pred.next = en;
+                                    else
+                                        setTabAt(tab, i, en);
+                                }
+                                break;
+                            }
+                            pred = e;
+                            if ((e = e.next) == null) {
+                                delta = 1;
+                                val = value;
+                                pred.next = new Node<V>(key, val);
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            }
+        }
+        if (delta != 0)
+            addCount((long) delta, binCount);
+        return val;
+    }
+
+    /**
+     * 清空，逐个桶加锁置空
+     */
+    public void clear() {
+        long delta = 0L; // negative number of deletions
+        int i = 0;
+        Node<V>[] tab = table;
+        while (tab != null && i < tab.length) {
+            Node<V> f = tabAt(tab, i);
+            if (f == null)
+                ++i;
+            else if (f instanceof ForwardingNode) {
+                tab = helpTransfer(tab, f);
+                i = 0; // restart
+            } else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        Node<V> p = (f instanceof ReservationNode) ? null : f;
+                        while (p != null) {
+                            --delta;
+                            p = p.next;
+                        }
+                        setTabAt(tab, i++, null);
+                    }
+                }
+            }
+        }
+        if (delta != 0L)
+            addCount(delta, -1);
+    }
+
+    /**
+     * 遍历所有映射，弱一致性，key以int传给action不装箱
+     */
+    public void forEach(IntObjConsumer<? super V> action) {
+        if (action == null) throw new NullPointerException();
+        Node<V>[] t;
+        if ((t = table) != null) {
+            Traverser<V> it = new Traverser<V>(t, t.length, 0, t.length);
+            for (Node<V> p; (p = it.advance()) != null; )
+                action.accept(p.key, p.val);
+        }
+    }
+
+    // 弱一致性的key迭代器
+    public PrimitiveIterator.OfInt keyIterator() {
+        Node<V>[] t;
+        int f = (t = table) == null ? 0 : t.length;
+        return new KeyIterator<V>(t, f, 0, f, this);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        Node<V>[] t;
+        if ((t = table) != null) {
+            Traverser<V> it = new Traverser<V>(t, t.length, 0, t.length);
+            boolean first = true;
+            for (Node<V> p; (p = it.advance()) != null; ) {
+                if (!first)
+                    sb.append(',').append(' ');
+                first = false;
+                V v = p.val;
+                sb.append(p.key).append('=').append(v == this ? "(this Map)" : v);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * forEach用的回调，避免BiConsumer<Integer,V>装箱
+     */
+    @FunctionalInterface
+    public interface IntObjConsumer<V> {
+        void accept(int key, V value);
+    }
+
+
+    /**
+     * 扩容时放在旧数组桶上的节点，find会转到nextTable去找
+     */
+    static final class ForwardingNode<V> extends Node<V> {
+        final Node<V>[] nextTable;
+        final int seed;         // 所属map的hashSeed
+
+        ForwardingNode(Node<V>[] tab, int seed) {
+            super(0, null);
+            this.nextTable = tab;
+            this.seed = seed;
+        }
+
+        Node<V> find(int k) {
+            outer:
+            for (Node<V>[] tab = nextTable; ; ) {
+                Node<V> e;
+                int n;
+                if (tab == null || (n = tab.length) == 0 ||
+                        (e = tabAt(tab, (n - 1) & spread(k, seed))) == null)
+                    return null;
+                for (; ; ) {
+                    if (e.val == null) {
+                        if (e instanceof ForwardingNode) {
+                            tab = ((ForwardingNode<V>) e).nextTable;
+                            continue outer;
+                        } else
+                            return e.find(k);
+                    }
+                    if (e.key == k)
+                        return e;
+                    if ((e = e.next) == null)
+                        return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * computeIfAbsent时的占位节点
+     */
+    static final class ReservationNode<V> extends Node<V> {
+        ReservationNode() {
+            super(0, null);
+        }
+
+        Node<V> find(int k) {
+            return null;
+        }
+    }
+
+
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    // 初始化数组，sizeCtl=-1表示正在初始化
+    private final Node<V>[] initTable() {
+        Node<V>[] tab;
+        int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0)
+                Thread.yield(); // lost initialization race; just spin
+            else if (U.compareAndSetInt(this, SIZECTL, sc, -1)) {
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
+                        @SuppressWarnings("unchecked")
+                        Node<V>[] nt = (Node<V>[]) new Node<?>[n];
+                        table = tab = nt;
+                        sc = n - (n >>> 2);
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    /**
+     * 计数并检查是否需要扩容，逻辑与ConcurrentHashMap.addCount一致
+     */
+    private final void addCount(long x, int check) {
+        CounterCell[] cs;
+        long b, s;
+        if ((cs = counterCells) != null || !U.compareAndSetLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            CounterCell c;
+            long v;
+            int m;
+            boolean uncontended = true;
+            if (cs == null || (m = cs.length - 1) < 0 ||
+                    (c = cs[ThreadLocalRandom.getProbe() & m]) == null ||
+                    !(uncontended = U.compareAndSetLong(c, CELLVALUE, v = c.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= 1)
+                return;
+            s = sumCount();
+        }
+        if (check >= 0) {
+            Node<V>[] tab, nt;
+            int n, sc;
+            while (s >= (long) (sc = sizeCtl) && (tab = table) != null &&
+                    (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
+                if (sc < 0) {
+                    if (sc == rs + MAX_RESIZERS || sc == rs + 1 ||
+                            (nt = nextTable) == null || transferIndex <= 0)
+                        break;
+                    if (U.compareAndSetInt(this, SIZECTL, sc, sc + 1))
+                        transfer(tab, nt);
+                } else if (U.compareAndSetInt(this, SIZECTL, sc, rs + 2))
+                    transfer(tab, null);
+                s = sumCount();
+            }
+        }
+    }
+
+    // 写线程遇到ForwardingNode时协助迁移
+    final Node<V>[] helpTransfer(Node<V>[] tab, Node<V> f) {
+        Node<V>[] nextTab;
+        int sc;
+        if (tab != null && (f instanceof ForwardingNode) &&
+                (nextTab = ((ForwardingNode<V>) f).nextTable) != null) {
+            int rs = resizeStamp(tab.length) << RESIZE_STAMP_SHIFT;
+            while (nextTab == nextTable && table == tab &&
+                    (sc = sizeCtl) < 0) {
+                if (sc == rs + MAX_RESIZERS || sc == rs + 1 ||
+                        transferIndex <= 0)
+                    break;
+                if (U.compareAndSetInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    /**
+     * 多线程协助迁移，每个线程通过transferIndex领取stride个桶
+     * 链表按(spread(key) & n)拆成lo/hi两条，hash不落在Node上所以这里现算
+     */
+    private final void transfer(Node<V>[] tab, Node<V>[] nextTab) {
+        int n = tab.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                @SuppressWarnings("unchecked")
+                Node<V>[] nt = (Node<V>[]) new Node<?>[n << 1];
+                nextTab = nt;
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length;
+        ForwardingNode<V> fwd = new ForwardingNode<V>(nextTab, hashSeed);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        for (int i = 0, bound = 0; ; ) {
+            Node<V> f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                } else if (U.compareAndSetInt
+                        (this, TRANSFERINDEX, nextIndex,
+                                nextBound = (nextIndex > stride ?
+                                        nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = (n << 1) - (n >>> 1);
+                    return;
+                }
+                if (U.compareAndSetInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = n; // recheck before commit
+                }
+            } else if ((f = tabAt(tab, i)) == null)
+                advance = casTabAt(tab, i, null, fwd);
+            else if (f instanceof ForwardingNode)
+                advance = true; // already processed
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                        Node<V> ln, hn;
+                        int runBit = spread(f.key, hashSeed) & n;
+                        Node<V> lastRun = f;
+                        for (Node<V> p = f.next; p != null; p = p.next) {
+                            int b = spread(p.key, hashSeed) & n;
+                            if (b != runBit) {
+                                runBit = b;
+                                lastRun = p;
+                            }
+                        }
+                        if (runBit == 0) {
+                            ln = lastRun;
+                            hn = null;
+                        } else {
+                            hn = lastRun;
+                            ln = null;
+                        }
+                        for (Node<V> p = f; p != lastRun; p = p.next) {
+                            int pk = p.key;
+                            V pv = p.val;
+                            if ((spread(pk, hashSeed) & n) == 0)
+                                ln = new Node<V>(pk, pv, ln);
+                            else
+                                hn = new Node<V>(pk, pv, hn);
+                        }
+                        setTabAt(nextTab, i, ln);
+                        setTabAt(nextTab, i + n, hn);
+                        setTabAt(tab, i, fwd);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    final long sumCount() {
+        CounterCell[] cs = counterCells;
+        long sum = baseCount;
+        if (cs != null) {
+            for (CounterCell c : cs)
+                if (c != null)
+                    sum += c.value;
+        }
+        return sum;
+    }
+
+    // 与ConcurrentHashMap.fullAddCount相同
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (; ; ) {
+            CounterCell[] cs;
+            CounterCell c;
+            int n;
+            long v;
+            if ((cs = counterCells) != null && (n = cs.length) > 0) {
+                if ((c = cs[(n - 1) & h]) == null) {
+                    if (cellsBusy == 0) {            // Try to attach new Cell
+                        CounterCell r = new CounterCell(x); // Optimistic create
+                        if (cellsBusy == 0 && U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                            boolean created = false;
+                            try {               // Recheck under lock
+                                CounterCell[] rs;
+                                int m, j;
+                                if ((rs = counterCells) != null &&
+                                        (m = rs.length) > 0 &&
+                                        rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                } else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (U.compareAndSetLong(c, CELLVALUE, v = c.value, v + x))
+                    break;
+                else if (counterCells != cs || n >= NCPU)
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (cellsBusy == 0 &&
+                        U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                    try {
+                        if (counterCells == cs) // Expand table unless stale
+                            counterCells = java.util.Arrays.copyOf(cs, n << 1);
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                h = ThreadLocalRandom.advanceProbe(h);
+            } else if (cellsBusy == 0 && counterCells == cs &&
+                    U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                boolean init = false;
+                try {                           // Initialize table
+                    if (counterCells == cs) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init)
+                    break;
+            } else if (U.compareAndSetLong(this, BASECOUNT, v = baseCount, v + x))
+                break;                          // Fall back on using base
+        }
+    }
+
+
+    /* ----------------Table Traversal -------------- */
+
+    /**
+     * 同ConcurrentHashMap.TableStack
+     */
+    static final class TableStack<V> {
+        int length;
+        int index;
+        Node<V>[] tab;
+        TableStack<V> next;
+    }
+
+    /**
+     * 同ConcurrentHashMap.Traverser，遇到ForwardingNode时转到新数组遍历对应的两个桶
+     */
+    static class Traverser<V> {
+        Node<V>[] tab;        // current table; updated if resized
+        Node<V> next;         // the next entry to use
+        TableStack<V> stack, spare; // to save/restore on ForwardingNodes
+        int index;              // index of bin to use next
+        int baseIndex;          // current index of initial table
+        int baseLimit;          // index bound for initial table
+        final int baseSize;     // initial table size
+
+        Traverser(Node<V>[] tab, int size, int index, int limit) {
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = this.index = index;
+            this.baseLimit = limit;
+            this.next = null;
+        }
+
+        final Node<V> advance() {
+            Node<V> e;
+            if ((e = next) != null)
+                e = e.next;
+            for (; ; ) {
+                Node<V>[] t;
+                int i, n;  // must use locals in checks
+                if (e != null)
+                    return next = e;
+                if (baseIndex >= baseLimit || (t = tab) == null ||
+                        (n = t.length) <= (i = index) || i < 0)
+                    return next = null;
+                if ((e = tabAt(t, i)) != null && e.val == null) {
+                    if (e instanceof ForwardingNode) {
+                        tab = ((ForwardingNode<V>) e).nextTable;
+                        e = null;
+                        pushState(t, i, n);
+                        continue;
+                    } else
+                        e = null;
+                }
+                if (stack != null)
+                    recoverState(n);
+                else if ((index = i + baseSize) >= n)
+                    index = ++baseIndex; // visit upper slots if present
+            }
+        }
+
+        private void pushState(Node<V>[] t, int i, int n) {
+            TableStack<V> s = spare;  // reuse if possible
+            if (s != null)
+                spare = s.next;
+            else
+                s = new TableStack<V>();
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.next = stack;
+            stack = s;
+        }
+
+        private void recoverState(int n) {
+            TableStack<V> s;
+            int len;
+            while ((s = stack) != null && (index += (len = s.length)) >= n) {
+                n = len;
+                index = s.index;
+                tab = s.tab;
+                s.tab = null;
+                TableStack<V> next = s.next;
+                s.next = spare; // save for reuse
+                stack = next;
+                spare = s;
+            }
+            if (s == null && (index += baseSize) >= n)
+                index = ++baseIndex;
+        }
+    }
+
+    static final class KeyIterator<V> extends Traverser<V> implements PrimitiveIterator.OfInt {
+        final ConcurrentIntObjectMap<V> map;
+        Node<V> lastReturned;
+
+        KeyIterator(Node<V>[] tab, int size, int index, int limit,
+                    ConcurrentIntObjectMap<V> map) {
+            super(tab, size, index, limit);
+            this.map = map;
+            advance();
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        public final int nextInt() {
+            Node<V> p;
+            if ((p = next) == null)
+                throw new NoSuchElementException();
+            int k = p.key;
+            lastReturned = p;
+            advance();
+            return k;
+        }
+
+        public final void remove() {
+            Node<V> p;
+            if ((p = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.replaceNode(p.key, null, null);
+        }
+    }
+
+
+    private static final Unsafe U = Unsafe.getUnsafe();
+    private static final long SIZECTL = U.objectFieldOffset(ConcurrentIntObjectMap.class, "sizeCtl");
+    private static final long TRANSFERINDEX = U.objectFieldOffset(ConcurrentIntObjectMap.class, "transferIndex");
+    private static final long BASECOUNT = U.objectFieldOffset(ConcurrentIntObjectMap.class, "baseCount");
+    private static final long CELLSBUSY = U.objectFieldOffset(ConcurrentIntObjectMap.class, "cellsBusy");
+    private static final long CELLVALUE = U.objectFieldOffset(CounterCell.class, "value");
+    private static final int ABASE = U.arrayBaseOffset(Node[].class);
+    private static final int ASHIFT;
+
+    static {
+        int scale = U.arrayIndexScale(Node[].class);
+        if ((scale & (scale - 1)) != 0)
+            throw new ExceptionInInitializerError("array index scale not a power of two");
+        ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+    }
+}
@@ -0,0 +1,678 @@
+package java.util.concurrent;
+
+import jdk.internal.misc.Unsafe;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+
+/**
+ * 开放寻址（线性探测）实现的无锁ConcurrentMap，面向读多写少的大map
+ * 与ConcurrentHashMap的区别：没有Node，key和value放在两个平行数组里，get只是在连续的数组槽上探测，不追next指针也不走TreeBin
+ *
+ * 槽的状态（key一旦CAS占上就不再改变，删除只把value改成TOMBSTONE，保证探测链不断）：
+ *   value == null          key刚占上，value还没写入，视为不存在
+ *   value == TOMBSTONE     已删除
+ *   value instanceof Reservation  computeIfAbsent正在计算，视为不存在，写线程要等它算完
+ *   value instanceof Prime 扩容时被冻结的值，读可以直接用，写要先协助迁移这个槽
+ *   value == MOVED         已经迁移到nextTable
+ *
+ * 扩容沿用ConcurrentHashMap.transfer的思路：每个线程通过transferIndex领取stride个槽迁移，
+ * 写线程遇到Prime/MOVED时先迁移自己那个槽再到新表上重试（helpTransfer），所有槽迁完后把新表发布为table
+ */
+public class ConcurrentOpenHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;    // 最大容量2的30次方
+    private static final int DEFAULT_CAPACITY = 16;         // 默认容量16
+    private static final int MIN_TRANSFER_STRIDE = 16;      // 每个线程一次最少迁移的槽数
+    static final int HASH_BITS = 0x7fffffff;
+    static final int NCPU = Runtime.getRuntime().availableProcessors(); // 获取cpu核心数
+
+    static final Object TOMBSTONE = new Object();           // 删除标记
+    static final Object MOVED = new Object();               // 已迁移标记
+
+    // putIfMatch的匹配方式
+    private static final Object NO_MATCH_OLD = new Object(); // 无条件写入：put、remove
+    private static final Object ABSENT = new Object();       // 不存在时才写入：putIfAbsent
+    private static final Object PRESENT = new Object();      // 存在时才写入：replace
+    private static final Object COPY = new Object();         // 扩容迁移：新表的槽从未写过才写入
+
+    transient volatile Table table;                         // 当前的根表，扩容完成后切换为table.next
+    private final LongAdder count = new LongAdder();        // 元素个数
+
+    /**
+     * 几个构造方法
+     */
+    public ConcurrentOpenHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // 按加载因子0.75换算出槽数
+    public ConcurrentOpenHashMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        long size = (long) (1.0 + (long) initialCapacity / 0.75f);
+        int cap = (size >= (long) MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : tableSizeFor((int) size);
+        this.table = new Table(cap, cap - (cap >>> 2));
+    }
+
+    public ConcurrentOpenHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    // 计算新的容量值
+    private static final int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < DEFAULT_CAPACITY - 1) ? DEFAULT_CAPACITY : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    static final int spread(int h) {
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    /**
+     * 一张开放寻址表，扩容时新旧两张表通过next串起来
+     */
+    static final class Table {
+        final Object[] keys;            // key数组
+        final Object[] vals;            // value数组，与keys下标一一对应
+        volatile int threshold;         // 允许占用的key槽数，超过就扩容
+        volatile int claimed;           // 已经占用的key槽数（包含已删除的）
+        volatile Table next;            // 扩容的目标表
+        volatile int transferIndex;     // 下一个待领取的迁移区间上界
+        volatile int movedCount;        // 已经迁移完成的槽数
+
+        Table(int cap, int threshold) {
+            this.keys = new Object[cap];
+            this.vals = new Object[cap];
+            this.threshold = threshold;
+            this.transferIndex = cap;
+        }
+    }
+
+    /**
+     * 扩容时冻结的值，迁移期间读线程仍然可以返回val
+     */
+    static final class Prime {
+        final Object val;
+
+        Prime(Object val) {
+            this.val = val;
+        }
+    }
+
+    /**
+     * computeIfAbsent的占位值，计算线程在整个计算期间持有它的监视器锁，其它写线程在它上面等待
+     */
+    static final class Reservation {
+    }
+
+    static final Object arrayAt(Object[] a, int i) {
+        return U.getReferenceAcquire(a, ((long) i << ASHIFT) + ABASE);
+    }
+
+    static final boolean casArrayAt(Object[] a, int i, Object c, Object v) {
+        return U.compareAndSetReference(a, ((long) i << ASHIFT) + ABASE, c, v);
+    }
+
+    // 不存在的几种状态
+    static final boolean isAbsent(Object v) {
+        return v == null || v == TOMBSTONE || v instanceof Reservation;
+    }
+
+
+    public int size() {
+        long n = count.sum();
+        return ((n < 0L) ? 0 :
+                (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int) n);
+    }
+
+    public long mappingCount() {
+        long n = count.sum();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    public boolean isEmpty() {
+        return count.sum() <= 0L;
+    }
+
+    /**
+     * 无锁读：从h & mask开始线性探测
+     * 遇到空key槽说明key不存在，除非这个空槽已经被标记MOVED，这时要去新表找
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int h = spread(key.hashCode());
+        outer:
+        for (Table t = table; ; ) {
+            Object[] ks = t.keys, vs = t.vals;
+            int m = ks.length - 1;
+            for (int i = h & m, probes = 0; ; i = (i + 1) & m) {
+                Object k = arrayAt(ks, i), v;
+                if (k == null) {
+                    if (arrayAt(vs, i) == MOVED) {
+                        t = t.next;
+                        continue outer;
+                    }
+                    return null;
+                }
+                if (k == key || key.equals(k)) {
+                    if ((v = arrayAt(vs, i)) == MOVED) {
+                        t = t.next;
+                        continue outer;
+                    }
+                    if (v instanceof Prime)
+                        v = ((Prime) v).val;
+                    return isAbsent(v) ? null : (V) v;
+                }
+                if (++probes > m) {     // 表满且没有找到
+                    if ((t = t.next) == null)
+                        return null;
+                    continue outer;
+                }
+            }
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        for (Itr it = new Itr(this); it.nextKey != null; it.advance()) {
+            Object v = it.nextVal;
+            if (v == value || value.equals(v))
+                return true;
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return unwrap(putIfMatch(key, value, NO_MATCH_OLD));
+    }
+
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return unwrap(putIfMatch(key, value, ABSENT));
+    }
+
+    public V remove(Object key) {
+        if (key == null) throw new NullPointerException();
+        return unwrap(putIfMatch(key, TOMBSTONE, NO_MATCH_OLD));
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (key == null) throw new NullPointerException();
+        if (value == null)
+            return false;
+        Object r = putIfMatch(key, TOMBSTONE, value);
+        return r != TOMBSTONE && (r == value || value.equals(r));
+    }
+
+    public V replace(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return unwrap(putIfMatch(key, value, PRESENT));
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        Object r = putIfMatch(key, newValue, oldValue);
+        return r != TOMBSTONE && (r == oldValue || oldValue.equals(r));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V unwrap(Object r) {
+        return (r == TOMBSTONE) ? null : (V) r;
+    }
+
+    /**
+     * 与ConcurrentHashMap.computeIfAbsent一样，mappingFunction对同一个key最多执行一次：
+     * 先CAS放入Reservation占位（持有它的锁），计算完再把Reservation换成结果；
+     * 同key的其它写线程和迁移线程都会在Reservation上等待
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        V val;
+        if ((val = get(key)) != null)
+            return val;
+        Reservation r = new Reservation();
+        synchronized (r) {
+            Object prev = putIfMatch(key, r, ABSENT);
+            if (prev != TOMBSTONE)
+                return (V) prev;    // 已经存在
+            try {
+                val = mappingFunction.apply(key);
+            } finally {
+                putIfMatch(key, (val != null) ? val : TOMBSTONE, r);
+            }
+        }
+        return val;
+    }
+
+    /**
+     * 所有写操作的公共实现
+     * match为NO_MATCH_OLD、ABSENT、PRESENT、COPY或者一个具体的旧值，newVal为TOMBSTONE表示删除
+     * 返回旧值，不存在时返回TOMBSTONE
+     */
+    private Object putIfMatch(Object key, Object newVal, Object match) {
+        return putIfMatch(table, key, spread(key.hashCode()), newVal, match);
+    }
+
+    private Object putIfMatch(Table t, Object key, int h, Object newVal, Object match) {
+        // 只有这几种情况在key不存在时需要占一个新的key槽
+        boolean insert = newVal != TOMBSTONE &&
+                (match == NO_MATCH_OLD || match == ABSENT || match == COPY);
+        outer:
+        for (; ; ) {
+            Object[] ks = t.keys, vs = t.vals;
+            int m = ks.length - 1;
+            int i = h & m;
+            for (int probes = 0; ; i = (i + 1) & m) {
+                Object k = arrayAt(ks, i);
+                if (k == null) {
+                    if (arrayAt(vs, i) == MOVED) {          // 空槽已迁移，key只可能在新表
+                        if (match == COPY)
+                            return MOVED;                   // 见下面COPY遇到Prime/MOVED的说明
+                        t = helpTransfer(t, i);
+                        continue outer;
+                    }
+                    if (!insert)
+                        return TOMBSTONE;
+                    if (match != COPY && t.claimed >= t.threshold) {
+                        t = growTable(t);                   // 超过阈值，扩容或者等待扩容完成
+                        continue outer;
+                    }
+                    if (casArrayAt(ks, i, null, key)) {
+                        U.getAndAddInt(t, CLAIMED, 1);
+                        break;
+                    }
+                    k = arrayAt(ks, i);                     // 被别的线程抢先占了，看看是不是同一个key
+                }
+                if (k == key || key.equals(k))
+                    break;
+                if (++probes > m) {                         // 探测了一整圈
+                    if (match == COPY)
+                        throw new IllegalStateException("Table full during transfer");
+                    t = growTable(t);
+                    continue outer;
+                }
+            }
+            // 走到这里说明i就是key所在的槽
+            for (; ; ) {
+                Object v = arrayAt(vs, i);
+                if (v == MOVED || v instanceof Prime) {
+                    // 迁移线程在冻结旧槽之后被耽搁了，别的线程已经把这个槽复制过来、t也已经成了根表在扩容，
+                    // 这次复制早就过时了，不能跟到t.next上去写，否则会把t上已经删掉的key又写回来
+                    if (match == COPY)
+                        return v;
+                    t = helpTransfer(t, i);
+                    continue outer;
+                }
+                if (v instanceof Reservation && v != match) {
+                    if (Thread.holdsLock(v))
+                        throw new IllegalStateException("Recursive update");
+                    synchronized (v) {
+                        // 等待computeIfAbsent计算完成
+                    }
+                    continue;
+                }
+                boolean absent = isAbsent(v);
+                if (match == COPY) {
+                    if (v != null)
+                        return v;                           // 别的线程已经迁移过了
+                } else if (match == ABSENT) {
+                    if (!absent)
+                        return v;
+                } else if (match == PRESENT) {
+                    if (absent)
+                        return TOMBSTONE;
+                } else if (match != NO_MATCH_OLD) {         // 必须等于指定的旧值
+                    if (v != match && (absent || !match.equals(v)))
+                        return absent ? TOMBSTONE : v;
+                }
+                if (newVal == TOMBSTONE && absent && v != match)
+                    return TOMBSTONE;                       // 本来就不存在，不用删
+                if (casArrayAt(vs, i, v, newVal)) {
+                    if (match != COPY) {
+                        if (absent && !isAbsent(newVal))
+                            count.increment();
+                        else if (!absent && isAbsent(newVal))
+                            count.decrement();
+                    }
+                    return absent ? TOMBSTONE : v;
+                }
+            }
+        }
+    }
+
+    /**
+     * 清空，逐个key删除
+     */
+    public void clear() {
+        for (Itr it = new Itr(this); it.nextKey != null; it.advance())
+            remove(it.nextKey);
+    }
+
+
+    /* ---------------- 扩容 -------------- */
+
+    /**
+     * 写线程在t上遇到了Prime或MOVED：先把槽i迁移掉，再顺手领一段迁移任务，然后去新表上重试
+     */
+    private Table helpTransfer(Table t, int i) {
+        Table nt = t.next;
+        migrateSlot(t, nt, i);
+        migrateStride(t, nt);
+        return nt;
+    }
+
+    /**
+     * t的key槽占用达到阈值
+     * t是根表：创建新表（存活元素少时只清理TOMBSTONE不加倍），然后参与迁移
+     * t是迁移中的新表：先帮根表把迁移做完
+     */
+    private Table growTable(Table t) {
+        Table r = table, nt;
+        if (t == r) {
+            if ((nt = t.next) == null) {
+                int n = t.keys.length;
+                long live = count.sum();
+                int cap = (live < (n >>> 2) || n >= MAXIMUM_CAPACITY) ? n : n << 1;
+                // 给旧表中所有占用的槽预留位置，迁移期间新key只能用剩下的部分
+                int th = cap - (cap >>> 2) - t.claimed;
+                Table created = new Table(cap, th);
+                if (U.compareAndSetReference(t, NEXT, null, created))
+                    nt = created;
+                else
+                    nt = t.next;
+            }
+            r = t;
+        } else if ((nt = r.next) == null)
+            return r;               // 根表已经换过了
+        if (!migrateStride(r, nt))
+            Thread.yield();         // 没有可领取的区间，别的线程还在迁移
+        return table;
+    }
+
+    /**
+     * 领取一段区间并迁移，没有可领取的区间返回false
+     */
+    private boolean migrateStride(Table t, Table nt) {
+        int n = t.keys.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        int nextIndex, nextBound;
+        for (; ; ) {
+            if ((nextIndex = t.transferIndex) <= 0)
+                return false;
+            if (U.compareAndSetInt(t, TRANSFERINDEX, nextIndex,
+                    nextBound = (nextIndex > stride ? nextIndex - stride : 0)))
+                break;
+        }
+        for (int i = nextIndex - 1; i >= nextBound; --i)
+            migrateSlot(t, nt, i);
+        return true;
+    }
+
+    /**
+     * 迁移一个槽：活值先CAS成Prime冻结，复制到新表后再CAS成MOVED
+     * 多个线程可能同时迁移同一个槽，新表上用COPY方式写入，保证只有第一次生效
+     */
+    private void migrateSlot(Table t, Table nt, int i) {
+        Object[] vs = t.vals;
+        for (; ; ) {
+            Object v = arrayAt(vs, i), pv;
+            if (v == MOVED)
+                return;
+            if (v instanceof Reservation) {
+                if (Thread.holdsLock(v))
+                    throw new IllegalStateException("Recursive update");
+                synchronized (v) {
+                    // 等待computeIfAbsent计算完成
+                }
+                continue;
+            }
+            if (v == null || v == TOMBSTONE) {
+                if (casArrayAt(vs, i, v, MOVED)) {
+                    finishSlot(t, nt);
+                    return;
+                }
+                continue;
+            }
+            if (v instanceof Prime)
+                pv = v;
+            else if (!casArrayAt(vs, i, v, pv = new Prime(v)))
+                continue;
+            Object k = arrayAt(t.keys, i);
+            putIfMatch(nt, k, spread(k.hashCode()), ((Prime) pv).val, COPY);
+            if (casArrayAt(vs, i, pv, MOVED))
+                finishSlot(t, nt);
+            return;
+        }
+    }
+
+    // 最后一个槽迁移完成的线程负责发布新表
+    private void finishSlot(Table t, Table nt) {
+        int n = t.keys.length;
+        if (U.getAndAddInt(t, MOVEDCOUNT, 1) + 1 == n) {
+            int cap = nt.keys.length;
+            nt.threshold = cap - (cap >>> 2);
+            U.compareAndSetReference(this, TABLE, t, nt);
+        }
+    }
+
+
+    /* ---------------- 遍历 -------------- */
+
+    /**
+     * 弱一致性遍历：先遍历开始时的根表t，已经迁移走的key到map中重新get；
+     * 再遍历t.next，只输出t中不存在的key（迁移期间新插入的），避免重复
+     */
+    static class Itr {
+        final ConcurrentOpenHashMap<?, ?> map;
+        final Table t, nt;
+        Table cur;
+        int index;
+        Object nextKey, nextVal;
+        Object lastKey;
+
+        Itr(ConcurrentOpenHashMap<?, ?> map) {
+            this.map = map;
+            this.cur = this.t = map.table;
+            this.nt = t.next;
+            advance();
+        }
+
+        final void advance() {
+            for (; ; ) {
+                Table c = cur;
+                if (index >= c.keys.length) {
+                    if (c == t && nt != null) {
+                        cur = nt;
+                        index = 0;
+                        continue;
+                    }
+                    nextKey = nextVal = null;
+                    return;
+                }
+                int i = index++;
+                Object k = arrayAt(c.keys, i), v;
+                if (k == null)
+                    continue;
+                if (c == nt && inTable(t, k))
+                    continue;
+                if ((v = arrayAt(c.vals, i)) == MOVED)
+                    v = map.get(k);
+                else if (v instanceof Prime)
+                    v = ((Prime) v).val;
+                if (isAbsent(v))
+                    continue;
+                nextKey = k;
+                nextVal = v;
+                return;
+            }
+        }
+
+        // t中是否有k占用的key槽
+        static boolean inTable(Table t, Object k) {
+            Object[] ks = t.keys;
+            int m = ks.length - 1;
+            for (int i = spread(k.hashCode()) & m, probes = 0; probes <= m; i = (i + 1) & m, ++probes) {
+                Object q = arrayAt(ks, i);
+                if (q == null)
+                    return false;
+                if (q == k || k.equals(q))
+                    return true;
+            }
+            return false;
+        }
+
+        public final boolean hasNext() {
+            return nextKey != null;
+        }
+
+        public final void remove() {
+            Object k;
+            if ((k = lastKey) == null)
+                throw new IllegalStateException();
+            lastKey = null;
+            map.remove(k);
+        }
+    }
+
+    static final class EntryIterator<K, V> extends Itr implements Iterator<Map.Entry<K, V>> {
+        EntryIterator(ConcurrentOpenHashMap<K, V> map) {
+            super(map);
+        }
+
+        @SuppressWarnings("unchecked")
+        public final Map.Entry<K, V> next() {
+            Object k, v;
+            if ((k = nextKey) == null)
+                throw new NoSuchElementException();
+            v = nextVal;
+            lastKey = k;
+            advance();
+            return new MapEntry<K, V>((K) k, (V) v, (ConcurrentOpenHashMap<K, V>) map);
+        }
+    }
+
+    /**
+     * 迭代器返回的Entry，setValue会写回map
+     */
+    static final class MapEntry<K, V> implements Map.Entry<K, V> {
+        final K key; // non-null
+        V val;       // non-null
+        final ConcurrentOpenHashMap<K, V> map;
+
+        MapEntry(K key, V val, ConcurrentOpenHashMap<K, V> map) {
+            this.key = key;
+            this.val = val;
+            this.map = map;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return val;
+        }
+
+        public int hashCode() {
+            return key.hashCode() ^ val.hashCode();
+        }
+
+        public String toString() {
+            return key + "=" + val;
+        }
+
+        public boolean equals(Object o) {
+            Object k, v;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    (k == key || k.equals(key)) &&
+                    (v == val || v.equals(val)));
+        }
+
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            V v = val;
+            val = value;
+            map.put(key, value);
+            return v;
+        }
+    }
+
+    private transient Set<Map.Entry<K, V>> entrySet;
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es;
+        return (es = entrySet) != null ? es : (entrySet = new EntrySet());
+    }
+
+    final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator<K, V>(ConcurrentOpenHashMap.this);
+        }
+
+        public int size() {
+            return ConcurrentOpenHashMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            Object k, v, r;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (r = get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    ConcurrentOpenHashMap.this.remove(k, v));
+        }
+
+        public void clear() {
+            ConcurrentOpenHashMap.this.clear();
+        }
+    }
+
+
+    private static final Unsafe U = Unsafe.getUnsafe();
+    private static final long TABLE = U.objectFieldOffset(ConcurrentOpenHashMap.class, "table");
+    private static final long NEXT = U.objectFieldOffset(Table.class, "next");
+    private static final long CLAIMED = U.objectFieldOffset(Table.class, "claimed");
+    private static final long TRANSFERINDEX = U.objectFieldOffset(Table.class, "transferIndex");
+    private static final long MOVEDCOUNT = U.objectFieldOffset(Table.class, "movedCount");
+    private static final int ABASE = U.arrayBaseOffset(Object[].class);
+    private static final int ASHIFT;
+
+    static {
+        int scale = U.arrayIndexScale(Object[].class);
+        if ((scale & (scale - 1)) != 0)
+            throw new ExceptionInInitializerError("array index scale not a power of two");
+        ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+    }
+}
@@ -0,0 +1,1266 @@
+package java.util.concurrent;
+
+import jdk.internal.misc.Unsafe;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap.CounterCell;
+
+
+/**
+ * key和value序列化后存放在堆外(ByteBuffer.allocateDirect)的ConcurrentHashMap，堆上只保留索引
+ * 索引部分与ConcurrentHashMap相同：Node数组 + 链表，写操作synchronized锁住桶的头节点，扩容走transfer/helpTransfer，计数用baseCount + CounterCell
+ * Node上只有hash、address、next三个字段，address指向堆外的一条记录：
+ *
+ *   | keyLen(int) | valLen(int) | key bytes | value bytes |
+ *
+ * 堆外内存按slab分配，每个slab是一块固定大小的direct buffer，记录只追加不覆盖：
+ * 更新和删除只是让旧记录失效（live减少），失效记录占的空间由compact把存活记录搬走后整块释放
+ * 不用手动调用compact：每换一个新slab（或者clear）之后的下一次写入检查一次，所有slab的存活字节数
+ * 不到已分配字节数的AUTO_COMPACT_RATIO时，由这个写线程执行compact(AUTO_COMPACT_RATIO)，同一时间只有一个线程做；
+ * 两次自动compact之间至少又写了和存活数据差不多多的字节，遍历索引的开销平摊到每次写入是常数
+ * 堆外占用因此不超过存活数据的两倍左右再加一个slab，反复覆盖同一批key也不会一直增长
+ *
+ * address的布局：| gen(16位) | slab id(16位) | offset(32位) |
+ * slab被释放后id会被复用，gen用来识别读线程手里拿的是不是过期的address
+ * 写线程从分配到把记录挂上索引之间pin住所在的slab，compact要等被搬空的slab上的pin都放掉才释放它
+ *
+ * key的比较是按序列化后的字节比较的，所以keySerializer必须是确定性的（相等的key序列化结果一定相同）
+ */
+public class OffHeapConcurrentHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;    // 最大容量2的30次方
+    private static final int DEFAULT_CAPACITY = 16;         // 默认容量16
+    private static final float LOAD_FACTOR = 0.75f;         // 加载因子
+    private static final int MIN_TRANSFER_STRIDE = 16;
+    private static final int RESIZE_STAMP_BITS = 16;
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+    static final int MOVED = -1;    // hash for forwarding nodes
+    static final int HASH_BITS = 0x7fffffff;
+    static final int NCPU = Runtime.getRuntime().availableProcessors(); // 获取cpu核心数
+
+    static final int DEFAULT_SLAB_SIZE = 1 << 24;           // 默认每个slab 16MB
+    static final int MAX_SLABS = 1 << 16;                   // address中slab id只有16位
+    static final int RECORD_HEADER = 8;                     // keyLen + valLen
+    static final double AUTO_COMPACT_RATIO = 0.5;           // 存活比例低于它时自动compact
+
+    transient volatile Node[] table;                        // 索引数组
+    private transient volatile Node[] nextTable;
+    private transient volatile long baseCount;
+    private transient volatile int sizeCtl;
+    private transient volatile int transferIndex;
+    private transient volatile int cellsBusy;
+    private transient volatile CounterCell[] counterCells;
+
+    final ByteBufferSerializer<K> keySerializer;                      // key的序列化器
+    final ByteBufferSerializer<V> valueSerializer;                    // value的序列化器
+    final int slabSize;                                     // 每个slab的大小
+    private volatile Slab[] slabs = new Slab[16];           // 下标是slab id，写时复制
+    private volatile Slab current;                          // 当前用于分配的slab
+    private int[] gens = new int[16];                       // 每个slab id已经用过的代数，slabLock保护
+    private final Object slabLock = new Object();           // 创建/释放slab的锁
+    private final Object compactLock = new Object();        // 同一时间只有一个compact
+    private volatile int autoCompact;                       // 0：不用检查，1：换过slab待检查，2：正在自动compact
+
+    /**
+     * 几个构造方法
+     */
+    public OffHeapConcurrentHashMap(ByteBufferSerializer<K> keySerializer, ByteBufferSerializer<V> valueSerializer) {
+        this(DEFAULT_CAPACITY, DEFAULT_SLAB_SIZE, keySerializer, valueSerializer);
+    }
+
+    // 自定义初始容量和slab大小
+    public OffHeapConcurrentHashMap(int initialCapacity, int slabSize,
+                                    ByteBufferSerializer<K> keySerializer, ByteBufferSerializer<V> valueSerializer) {
+        if (initialCapacity < 0 || slabSize <= RECORD_HEADER)
+            throw new IllegalArgumentException();
+        if (keySerializer == null || valueSerializer == null)
+            throw new NullPointerException();
+        long size = (long) (1.0 + (long) initialCapacity / LOAD_FACTOR);
+        this.sizeCtl = (size >= (long) MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : tableSizeFor((int) size);
+        this.slabSize = slabSize;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+    }
+
+    // 计算新的容量值
+    private static final int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    static final int spread(int h) {
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    /**
+     * 索引节点，记录本身在堆外
+     */
+    static class Node {
+        final int hash;         // key的hash值
+        volatile long address;  // 堆外记录的地址，更新value和compact搬迁时会改变
+        volatile Node next;     // 下一个节点
+
+        Node(int hash, long address) {
+            this.hash = hash;
+            this.address = address;
+        }
+
+        Node(int hash, long address, Node next) {
+            this(hash, address);
+            this.next = next;
+        }
+    }
+
+    /**
+     * 扩容时放在旧数组桶上的节点
+     */
+    static final class ForwardingNode extends Node {
+        final Node[] nextTable;
+
+        ForwardingNode(Node[] tab) {
+            super(MOVED, 0L);
+            this.nextTable = tab;
+        }
+    }
+
+    static final Node tabAt(Node[] tab, int i) {
+        return (Node) U.getReferenceAcquire(tab, ((long) i << ASHIFT) + ABASE);
+    }
+
+    static final boolean casTabAt(Node[] tab, int i, Node c, Node v) {
+        return U.compareAndSetReference(tab, ((long) i << ASHIFT) + ABASE, c, v);
+    }
+
+    static final void setTabAt(Node[] tab, int i, Node v) {
+        U.putReferenceRelease(tab, ((long) i << ASHIFT) + ABASE, v);
+    }
+
+
+    /* ---------------- 堆外slab -------------- */
+
+    /**
+     * 一块direct buffer，position只增不减（CAS追加分配），live是其中仍被索引引用的字节数
+     */
+    static final class Slab {
+        final ByteBuffer buf;
+        final int id;
+        final int gen;
+        final int capacity;
+        volatile int position;          // 已分配的字节数
+        volatile long live;             // 存活记录的字节数
+        volatile boolean evacuating;    // compact正在把它的记录搬走
+        volatile int pins;              // 分配了记录但还没挂上索引的写线程数
+
+        Slab(int id, int gen, int capacity) {
+            this.buf = ByteBuffer.allocateDirect(capacity);
+            this.id = id;
+            this.gen = gen;
+            this.capacity = capacity;
+        }
+
+        // 追加分配size个字节，空间不够返回-1
+        int bump(int size) {
+            for (int p; ; ) {
+                if ((p = position) > capacity - size)
+                    return -1;
+                if (U.compareAndSetInt(this, POSITION, p, p + size))
+                    return p;
+            }
+        }
+
+        // 撤销最后一次分配，记录后面已经有别的分配时什么也不做（空间等compact回收）
+        void unbump(int off, int size) {
+            U.compareAndSetInt(this, POSITION, off + size, off);
+        }
+
+        void addLive(long x) {
+            U.getAndAddLong(this, LIVE, x);
+        }
+
+        void pin() {
+            U.getAndAddInt(this, PINS, 1);
+        }
+
+        void unpin() {
+            U.getAndAddInt(this, PINS, -1);
+        }
+
+        // 记录的总字节数
+        int recordSize(int off) {
+            return RECORD_HEADER + buf.getInt(off) + buf.getInt(off + 4);
+        }
+    }
+
+    static final long address(Slab s, int off) {
+        return ((long) s.gen << 48) | ((long) s.id << 32) | (off & 0xffffffffL);
+    }
+
+    static final int offset(long a) {
+        return (int) a;
+    }
+
+    /**
+     * 根据address找到slab，slab已经被释放（或者id已被复用）时返回null
+     */
+    final Slab slabFor(long a) {
+        Slab[] ss = slabs;
+        int id = (int) (a >>> 32) & 0xffff;
+        Slab s;
+        return (id < ss.length && (s = ss[id]) != null && s.gen == (int) (a >>> 48)) ? s : null;
+    }
+
+    /**
+     * 分配size个字节，返回address，所在的slab已经pin住，调用方把记录挂上索引或者放弃（discard）后要unpin
+     * 先在current上CAS追加，不够了加锁换一个新的slab；超过slabSize的大记录单独占一个slab
+     * 先pin再检查evacuating：读到的current可能刚被换掉并被compact选中，这时不能再往里写
+     * （compact先设evacuating再等pin归零，两边都是volatile，至少有一边能看到对方）
+     */
+    private long allocate(int size) {
+        for (; ; ) {
+            Slab s = current;
+            int off;
+            if (s != null) {
+                s.pin();
+                if (!s.evacuating && (off = s.bump(size)) >= 0)
+                    return address(s, off);
+                s.unpin();
+            }
+            synchronized (slabLock) {
+                if (size > slabSize) {
+                    Slab big = newSlab(size);
+                    big.pin();
+                    U.compareAndSetInt(this, AUTOCOMPACT, 0, 1);
+                    return address(big, big.bump(size));
+                }
+                if (current == s) {
+                    current = newSlab(slabSize);
+                    U.compareAndSetInt(this, AUTOCOMPACT, 0, 1);
+                }
+            }
+        }
+    }
+
+    // 分配出来的记录不用了：能撤销就撤销分配，然后unpin
+    private void discard(long a) {
+        Slab s = slabFor(a);
+        s.unbump(offset(a), s.recordSize(offset(a)));
+        s.unpin();
+    }
+
+    // 调用方持有slabLock，找一个空闲的id创建slab
+    private Slab newSlab(int capacity) {
+        Slab[] ss = slabs;
+        int id = 0, n = ss.length;
+        while (id < n && ss[id] != null)
+            ++id;
+        if (id == n) {
+            if (n >= MAX_SLABS)
+                throw new IllegalStateException("Too many slabs");
+            ss = Arrays.copyOf(ss, n << 1);
+            gens = Arrays.copyOf(gens, n << 1);
+        } else
+            ss = ss.clone();
+        int gen = gens[id] = (gens[id] + 1) & 0xffff;
+        Slab s = new Slab(id, gen, capacity);
+        ss[id] = s;
+        slabs = ss;
+        return s;
+    }
+
+    /**
+     * 写入一条记录，返回address，记录所在的slab是pin住的（见allocate）
+     */
+    private long writeRecord(ByteBuffer kb, V value) {
+        if (autoCompact == 1)
+            maybeCompact();
+        int ks = kb.remaining();
+        int vs = valueSerializer.serializedSize(value);
+        int size = RECORD_HEADER + ks + vs;
+        long a = allocate(size);
+        Slab s = slabFor(a);
+        int off = offset(a);
+        try {
+            ByteBuffer d = s.buf.slice(off + RECORD_HEADER, ks + vs);
+            d.put(kb.duplicate());
+            valueSerializer.serialize(value, d);
+            if (d.position() != ks + vs)
+                throw new IllegalStateException("Serializer wrote " + (d.position() - ks) + " bytes, expected " + vs);
+        } catch (RuntimeException | Error ex) {     // 序列化失败也要放掉pin，否则compact会一直等
+            s.unbump(off, size);
+            s.unpin();
+            throw ex;
+        }
+        s.buf.putInt(off, ks);
+        s.buf.putInt(off + 4, vs);
+        return a;
+    }
+
+    // key序列化到堆上的临时buffer，用来和堆外的key字节比较
+    private ByteBuffer keyBytes(Object key) {
+        @SuppressWarnings("unchecked") K k = (K) key;
+        ByteBuffer kb = ByteBuffer.allocate(keySerializer.serializedSize(k));
+        keySerializer.serialize(k, kb);
+        return kb.flip();
+    }
+
+    static final boolean keyEquals(Slab s, int off, ByteBuffer kb) {
+        int ks = s.buf.getInt(off);
+        return ks == kb.remaining() && s.buf.slice(off + RECORD_HEADER, ks).equals(kb);
+    }
+
+    final K readKey(Slab s, int off) {
+        return keySerializer.deserialize(s.buf.slice(off + RECORD_HEADER, s.buf.getInt(off)));
+    }
+
+    final V readValue(Slab s, int off) {
+        int ks = s.buf.getInt(off);
+        return valueSerializer.deserialize(s.buf.slice(off + RECORD_HEADER + ks, s.buf.getInt(off + 4)));
+    }
+
+    /**
+     * 无锁读取节点当前指向的slab：address被compact改掉后旧slab可能已释放，重新读address再试，
+     * address没变但slab已释放说明节点早已被删除，返回null
+     */
+    final Slab slabOf(Node e, long[] ap) {
+        for (long a = e.address; ; ) {
+            Slab s = slabFor(a);
+            if (s != null) {
+                ap[0] = a;
+                return s;
+            }
+            long b = e.address;
+            if (b == a)
+                return null;
+            a = b;
+        }
+    }
+
+    /**
+     * 调用方持有节点所在桶的锁：节点的记录在正在被compact的slab上时，搬到current
+     */
+    private void evacuate(Node e) {
+        for (Slab s; (s = slabFor(e.address)) != null && s.evacuating; ) {
+            long a = e.address;
+            int off = offset(a), rs = s.recordSize(off);
+            long na = allocate(rs);
+            Slab ns = slabFor(na);
+            ns.buf.slice(offset(na), rs).put(s.buf.slice(off, rs));
+            ns.addLive(rs);
+            e.address = na;
+            ns.unpin();
+            s.addLive(-rs);
+        }
+    }
+
+    // 记录失效
+    private void release(long a) {
+        Slab s = slabFor(a);
+        if (s != null)
+            s.addLive(-s.recordSize(offset(a)));
+    }
+
+
+    public int size() {
+        long n = sumCount();
+        return ((n < 0L) ? 0 :
+                (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int) n);
+    }
+
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    public boolean isEmpty() {
+        return sumCount() <= 0L; // ignore transient negative values
+    }
+
+    /**
+     * 无锁读：hash相同的节点按key字节比较，命中后从堆外反序列化value
+     */
+    public V get(Object key) {
+        Node[] tab;
+        Node e;
+        int n;
+        int h = spread(key.hashCode());
+        ByteBuffer kb = null;
+        long[] ap = new long[1];
+        outer:
+        for (tab = table; ; ) {
+            if (tab == null || (n = tab.length) == 0 ||
+                    (e = tabAt(tab, (n - 1) & h)) == null)
+                return null;
+            for (; e != null; e = e.next) {
+                int eh;
+                if ((eh = e.hash) == MOVED) {
+                    tab = ((ForwardingNode) e).nextTable;
+                    continue outer;
+                }
+                if (eh == h) {
+                    Slab s;
+                    if (kb == null)
+                        kb = keyBytes(key);
+                    if ((s = slabOf(e, ap)) != null && keyEquals(s, offset(ap[0]), kb))
+                        return readValue(s, offset(ap[0]));
+                }
+            }
+            return null;
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        Node[] tab;
+        Node e;
+        int n;
+        int h = spread(key.hashCode());
+        ByteBuffer kb = null;
+        long[] ap = new long[1];
+        outer:
+        for (tab = table; ; ) {
+            if (tab == null || (n = tab.length) == 0 ||
+                    (e = tabAt(tab, (n - 1) & h)) == null)
+                return false;
+            for (; e != null; e = e.next) {
+                int eh;
+                if ((eh = e.hash) == MOVED) {
+                    tab = ((ForwardingNode) e).nextTable;
+                    continue outer;
+                }
+                if (eh == h) {
+                    Slab s;
+                    if (kb == null)
+                        kb = keyBytes(key);
+                    if ((s = slabOf(e, ap)) != null && keyEquals(s, offset(ap[0]), kb))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * 先在锁外把记录写到堆外，再像ConcurrentHashMap.putVal一样锁住头节点挂到链表上或替换旧节点的address
+     * 返回的旧值是在锁外反序列化的：旧记录只是失效，字节不会被覆盖
+     */
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null) throw new NullPointerException();
+        int hash = spread(key.hashCode());
+        ByteBuffer kb = keyBytes(key);
+        long addr = writeRecord(kb, value);
+        int binCount = 0;
+        Slab oldSlab = null;
+        long oldAddr = 0L;
+        for (Node[] tab = table; ; ) {
+            Node f;
+            int n, i, fh;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & hash)) == null) {
+                Node p = new Node(hash, addr);
+                if (casTabAt(tab, i, null, p)) {
+                    linkedUnlocked(p, hash);
+                    addr = 0L;
+                    break;                   // no lock when adding to empty bin
+                }
+            } else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        binCount = 1;
+                        for (Node e = f; ; ++binCount) {
+                            Slab s;
+                            long a;
+                            if (e.hash == hash && (s = slabFor(a = e.address)) != null &&
+                                    keyEquals(s, offset(a), kb)) {
+                                oldSlab = s;
+                                oldAddr = a;
+                                if (!onlyIfAbsent) {
+                                    e.address = addr;
+                                    linked(e);
+                                    s.addLive(-s.recordSize(offset(a)));
+                                    addr = 0L;
+                                }
+                                break;
+                            }
+                            Node pred = e;
+                            if ((e = e.next) == null) {
+                                linked(pred.next = new Node(hash, addr));
+                                addr = 0L;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            }
+        }
+        if (addr != 0L)                     // putIfAbsent时key已存在，新记录没有用上
+            discard(addr);
+        if (oldSlab != null)
+            return readValue(oldSlab, offset(oldAddr));
+        addCount(1L, binCount);
+        return null;
+    }
+
+    /**
+     * 调用方持有桶锁：新记录挂到索引上之后计入live，恰好落在正被compact的slab上时自己搬走，最后unpin
+     * （compact先设置evacuating再逐个桶加锁遍历，所以这里没看到evacuating的话，遍历一定会看到这个节点；
+     * slab在unpin之前不会被释放）
+     */
+    private void linked(Node p) {
+        Slab s = slabFor(p.address);
+        s.addLive(s.recordSize(offset(p.address)));
+        if (s.evacuating)
+            evacuate(p);
+        s.unpin();
+    }
+
+    // 空桶CAS进去的节点没有持锁，需要搬迁时重新定位到当前所在的桶再加锁
+    private void linkedUnlocked(Node p, int hash) {
+        Slab s = slabFor(p.address);
+        s.addLive(s.recordSize(offset(p.address)));
+        if (s.evacuating)
+            evacuateBin(hash);
+        s.unpin();
+    }
+
+    // 加锁搬走hash所在桶里所有落在正被compact的slab上的记录
+    private void evacuateBin(int hash) {
+        for (Node[] tab = table; ; ) {
+            Node f;
+            int n, i;
+            if (tab == null || (n = tab.length) == 0 ||
+                    (f = tabAt(tab, i = (n - 1) & hash)) == null)
+                return;
+            if (f.hash == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        for (Node e = f; e != null; e = e.next)
+                            evacuate(e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public V remove(Object key) {
+        return replaceNode(key, null, null);
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && replaceNode(key, null, value) != null;
+    }
+
+    public V replace(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        return replaceNode(key, value, null);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceNode(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * remove/replace的公共实现：value为null表示删除，cv不为null时要求旧值（反序列化后）等于cv
+     * 和putVal一样，新记录在加锁之前写好，没有替换成功时丢弃
+     */
+    final V replaceNode(Object key, V value, Object cv) {
+        int hash = spread(key.hashCode());
+        ByteBuffer kb = keyBytes(key);
+        long addr = (value != null) ? writeRecord(kb, value) : 0L;
+        V result = null;
+        for (Node[] tab = table; ; ) {
+            Node f;
+            int n, i, fh;
+            if (tab == null || (n = tab.length) == 0 ||
+                    (f = tabAt(tab, i = (n - 1) & hash)) == null)
+                break;
+            else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                V oldVal = null;
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        for (Node e = f, pred = null; ; ) {
+                            Slab s;
+                            long a;
+                            if (e.hash == hash && (s = slabFor(a = e.address)) != null &&
+                                    keyEquals(s, offset(a), kb)) {
+                                V ev = readValue(s, offset(a));
+                                if (cv == null || cv.equals(ev)) {
+                                    oldVal = ev;
+                                    if (value != null) {
+                                        e.address = addr;
+                                        linked(e);
+                                        addr = 0L;
+                                    } else if (pred != null)
+                                        pred.next = e.next;
+                                    else
+                                        setTabAt(tab, i, e.next);
+                                    s.addLive(-s.recordSize(offset(a)));
+                                }
+                                break;
+                            }
+                            pred = e;
+                            if ((e = e.next) == null)
+                                break;
+                        }
+                    }
+                }
+                if (validated) {
+                    if (oldVal != null) {
+                        if (value == null)
+                            addCount(-1L, -1);
+                        result = oldVal;
+                    }
+                    break;
+                }
+            }
+        }
+        if (addr != 0L)
+            discard(addr);
+        return result;
+    }
+
+    /**
+     * 清空，逐个桶加锁置空，堆外空间等compact回收（下一次写入时自动检查）
+     */
+    public void clear() {
+        long delta = 0L; // negative number of deletions
+        int i = 0;
+        Node[] tab = table;
+        while (tab != null && i < tab.length) {
+            int fh;
+            Node f = tabAt(tab, i);
+            if (f == null)
+                ++i;
+            else if ((fh = f.hash) == MOVED) {
+                tab = helpTransfer(tab, f);
+                i = 0; // restart
+            } else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        for (Node p = f; p != null; p = p.next) {
+                            --delta;
+                            release(p.address);
+                        }
+                        setTabAt(tab, i++, null);
+                    }
+                }
+            }
+        }
+        if (delta != 0L) {
+            addCount(delta, -1);
+            U.compareAndSetInt(this, AUTOCOMPACT, 0, 1);
+        }
+    }
+
+
+    /* ---------------- 压缩与内存统计 -------------- */
+
+    /**
+     * 把存活比例低于liveRatio的slab中的记录搬到current，然后释放这些slab
+     * 搬迁时逐个桶加锁（和写操作同一把锁），读线程不受影响；返回释放的slab字节数
+     * slab对应的direct内存在buffer对象被回收时归还，正在读旧slab的线程仍然可以安全读完
+     */
+    public long compact(double liveRatio) {
+        synchronized (compactLock) {
+            ArrayList<Slab> victims = new ArrayList<>();
+            synchronized (slabLock) {
+                for (Slab s : slabs) {
+                    if (s != null && s != current && s.live < s.position * liveRatio) {
+                        s.evacuating = true;
+                        victims.add(s);
+                    }
+                }
+            }
+            if (victims.isEmpty())
+                return 0L;
+            int i = 0;
+            Node[] tab = table;
+            while (tab != null && i < tab.length) {
+                Node f = tabAt(tab, i);
+                if (f == null)
+                    ++i;
+                else if (f.hash == MOVED) {
+                    tab = helpTransfer(tab, f);
+                    i = 0; // restart
+                } else {
+                    synchronized (f) {
+                        if (tabAt(tab, i) == f) {
+                            for (Node p = f; p != null; p = p.next)
+                                evacuate(p);
+                            ++i;
+                        }
+                    }
+                }
+            }
+            // 遍历时还没挂上索引的记录由写线程自己在linked里搬走，等它们都unpin
+            for (Slab s : victims) {
+                while (s.pins != 0)
+                    Thread.yield();
+            }
+            long freed = 0L;
+            synchronized (slabLock) {
+                Slab[] ss = slabs.clone();
+                for (Slab s : victims) {
+                    ss[s.id] = null;
+                    freed += s.capacity;
+                }
+                slabs = ss;
+            }
+            return freed;
+        }
+    }
+
+    /**
+     * 换过slab之后由下一次写入调用，这时写线程既没有持有桶锁也没有pin住slab，可以执行compact
+     * 抢到检查权的线程算一遍存活比例，低于AUTO_COMPACT_RATIO就compact，别的线程直接返回
+     * compact期间换slab不再登记检查，compact完以后的下一次换slab才会再检查
+     */
+    private void maybeCompact() {
+        if (!U.compareAndSetInt(this, AUTOCOMPACT, 1, 2))
+            return;
+        try {
+            if (offHeapLive() < offHeapUsed() * AUTO_COMPACT_RATIO)
+                compact(AUTO_COMPACT_RATIO);
+        } finally {
+            autoCompact = 0;
+        }
+    }
+
+    // 所有slab的总容量，也就是向操作系统申请的堆外内存
+    public long offHeapAllocated() {
+        long sum = 0L;
+        for (Slab s : slabs)
+            if (s != null)
+                sum += s.capacity;
+        return sum;
+    }
+
+    // 已经分配出去的字节数（包含失效记录）
+    public long offHeapUsed() {
+        long sum = 0L;
+        for (Slab s : slabs)
+            if (s != null)
+                sum += s.position;
+        return sum;
+    }
+
+    // 存活记录的字节数，offHeapUsed - offHeapLive 就是compact能回收的空间
+    public long offHeapLive() {
+        long sum = 0L;
+        for (Slab s : slabs)
+            if (s != null)
+                sum += s.live;
+        return sum;
+    }
+
+    public int slabCount() {
+        int c = 0;
+        for (Slab s : slabs)
+            if (s != null)
+                ++c;
+        return c;
+    }
+
+
+    /* ---------------- 扩容与计数，同ConcurrentHashMap -------------- */
+
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    private final Node[] initTable() {
+        Node[] tab;
+        int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0)
+                Thread.yield(); // lost initialization race; just spin
+            else if (U.compareAndSetInt(this, SIZECTL, sc, -1)) {
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
+                        Node[] nt = new Node[n];
+                        table = tab = nt;
+                        sc = n - (n >>> 2);
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    private final void addCount(long x, int check) {
+        CounterCell[] cs;
+        long b, s;
+        if ((cs = counterCells) != null || !U.compareAndSetLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            CounterCell c;
+            long v;
+            int m;
+            boolean uncontended = true;
+            if (cs == null || (m = cs.length - 1) < 0 ||
+                    (c = cs[ThreadLocalRandom.getProbe() & m]) == null ||
+                    !(uncontended = U.compareAndSetLong(c, CELLVALUE, v = c.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= 1)
+                return;
+            s = sumCount();
+        }
+        if (check >= 0) {
+            Node[] tab, nt;
+            int n, sc;
+            while (s >= (long) (sc = sizeCtl) && (tab = table) != null &&
+                    (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
+                if (sc < 0) {
+                    if (sc == rs + MAX_RESIZERS || sc == rs + 1 ||
+                            (nt = nextTable) == null || transferIndex <= 0)
+                        break;
+                    if (U.compareAndSetInt(this, SIZECTL, sc, sc + 1))
+                        transfer(tab, nt);
+                } else if (U.compareAndSetInt(this, SIZECTL, sc, rs + 2))
+                    transfer(tab, null);
+                s = sumCount();
+            }
+        }
+    }
+
+    final Node[] helpTransfer(Node[] tab, Node f) {
+        Node[] nextTab;
+        int sc;
+        if (tab != null && (f instanceof ForwardingNode) &&
+                (nextTab = ((ForwardingNode) f).nextTable) != null) {
+            int rs = resizeStamp(tab.length) << RESIZE_STAMP_SHIFT;
+            while (nextTab == nextTable && table == tab &&
+                    (sc = sizeCtl) < 0) {
+                if (sc == rs + MAX_RESIZERS || sc == rs + 1 ||
+                        transferIndex <= 0)
+                    break;
+                if (U.compareAndSetInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    // 只迁移索引节点，堆外记录不动
+    private final void transfer(Node[] tab, Node[] nextTab) {
+        int n = tab.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                nextTab = new Node[n << 1];
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length;
+        ForwardingNode fwd = new ForwardingNode(nextTab);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        for (int i = 0, bound = 0; ; ) {
+            Node f;
+            int fh;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                } else if (U.compareAndSetInt
+                        (this, TRANSFERINDEX, nextIndex,
+                                nextBound = (nextIndex > stride ?
+                                        nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = (n << 1) - (n >>> 1);
+                    return;
+                }
+                if (U.compareAndSetInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = n; // recheck before commit
+                }
+            } else if ((f = tabAt(tab, i)) == null)
+                advance = casTabAt(tab, i, null, fwd);
+            else if ((fh = f.hash) == MOVED)
+                advance = true; // already processed
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        Node ln, hn;
+                        int runBit = fh & n;
+                        Node lastRun = f;
+                        for (Node p = f.next; p != null; p = p.next) {
+                            int b = p.hash & n;
+                            if (b != runBit) {
+                                runBit = b;
+                                lastRun = p;
+                            }
+                        }
+                        if (runBit == 0) {
+                            ln = lastRun;
+                            hn = null;
+                        } else {
+                            hn = lastRun;
+                            ln = null;
+                        }
+                        for (Node p = f; p != lastRun; p = p.next) {
+                            int ph = p.hash;
+                            if ((ph & n) == 0)
+                                ln = new Node(ph, p.address, ln);
+                            else
+                                hn = new Node(ph, p.address, hn);
+                        }
+                        setTabAt(nextTab, i, ln);
+                        setTabAt(nextTab, i + n, hn);
+                        setTabAt(tab, i, fwd);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    final long sumCount() {
+        CounterCell[] cs = counterCells;
+        long sum = baseCount;
+        if (cs != null) {
+            for (CounterCell c : cs)
+                if (c != null)
+                    sum += c.value;
+        }
+        return sum;
+    }
+
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (; ; ) {
+            CounterCell[] cs;
+            CounterCell c;
+            int n;
+            long v;
+            if ((cs = counterCells) != null && (n = cs.length) > 0) {
+                if ((c = cs[(n - 1) & h]) == null) {
+                    if (cellsBusy == 0) {            // Try to attach new Cell
+                        CounterCell r = new CounterCell(x); // Optimistic create
+                        if (cellsBusy == 0 && U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                            boolean created = false;
+                            try {               // Recheck under lock
+                                CounterCell[] rs;
+                                int m, j;
+                                if ((rs = counterCells) != null &&
+                                        (m = rs.length) > 0 &&
+                                        rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                } else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (U.compareAndSetLong(c, CELLVALUE, v = c.value, v + x))
+                    break;
+                else if (counterCells != cs || n >= NCPU)
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (cellsBusy == 0 &&
+                        U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                    try {
+                        if (counterCells == cs) // Expand table unless stale
+                            counterCells = Arrays.copyOf(cs, n << 1);
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                h = ThreadLocalRandom.advanceProbe(h);
+            } else if (cellsBusy == 0 && counterCells == cs &&
+                    U.compareAndSetInt(this, CELLSBUSY, 0, 1)) {
+                boolean init = false;
+                try {                           // Initialize table
+                    if (counterCells == cs) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init)
+                    break;
+            } else if (U.compareAndSetLong(this, BASECOUNT, v = baseCount, v + x))
+                break;                          // Fall back on using base
+        }
+    }
+
+
+    /* ---------------- 遍历 -------------- */
+
+    static final class TableStack {
+        int length;
+        int index;
+        Node[] tab;
+        TableStack next;
+    }
+
+    /**
+     * 同ConcurrentHashMap.Traverser
+     */
+    static class Traverser {
+        Node[] tab;        // current table; updated if resized
+        Node next;         // the next entry to use
+        TableStack stack, spare; // to save/restore on ForwardingNodes
+        int index;              // index of bin to use next
+        int baseIndex;          // current index of initial table
+        int baseLimit;          // index bound for initial table
+        final int baseSize;     // initial table size
+
+        Traverser(Node[] tab, int size, int index, int limit) {
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = this.index = index;
+            this.baseLimit = limit;
+            this.next = null;
+        }
+
+        final Node advance() {
+            Node e;
+            if ((e = next) != null)
+                e = e.next;
+            for (; ; ) {
+                Node[] t;
+                int i, n;  // must use locals in checks
+                if (e != null)
+                    return next = e;
+                if (baseIndex >= baseLimit || (t = tab) == null ||
+                        (n = t.length) <= (i = index) || i < 0)
+                    return next = null;
+                if ((e = tabAt(t, i)) != null && e.hash < 0) {
+                    if (e instanceof ForwardingNode) {
+                        tab = ((ForwardingNode) e).nextTable;
+                        e = null;
+                        pushState(t, i, n);
+                        continue;
+                    } else
+                        e = null;
+                }
+                if (stack != null)
+                    recoverState(n);
+                else if ((index = i + baseSize) >= n)
+                    index = ++baseIndex; // visit upper slots if present
+            }
+        }
+
+        private void pushState(Node[] t, int i, int n) {
+            TableStack s = spare;  // reuse if possible
+            if (s != null)
+                spare = s.next;
+            else
+                s = new TableStack();
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.next = stack;
+            stack = s;
+        }
+
+        private void recoverState(int n) {
+            TableStack s;
+            int len;
+            while ((s = stack) != null && (index += (len = s.length)) >= n) {
+                n = len;
+                index = s.index;
+                tab = s.tab;
+                s.tab = null;
+                TableStack next = s.next;
+                s.next = spare; // save for reuse
+                stack = next;
+                spare = s;
+            }
+            if (s == null && (index += baseSize) >= n)
+                index = ++baseIndex;
+        }
+    }
+
+    /**
+     * 遍历时反序列化key和value，已经被删除的节点跳过
+     */
+    final class EntryIterator extends Traverser implements Iterator<Map.Entry<K, V>> {
+        final long[] ap = new long[1];
+        K nextKey, lastKey;
+        V nextVal;
+
+        EntryIterator(Node[] tab, int size) {
+            super(tab, size, 0, size);
+            fetch();
+        }
+
+        private void fetch() {
+            for (Node p; (p = advance()) != null; ) {
+                Slab s;
+                if ((s = slabOf(p, ap)) != null) {
+                    int off = offset(ap[0]);
+                    nextKey = readKey(s, off);
+                    nextVal = readValue(s, off);
+                    return;
+                }
+            }
+            nextKey = null;
+            nextVal = null;
+        }
+
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            K k;
+            if ((k = nextKey) == null)
+                throw new NoSuchElementException();
+            V v = nextVal;
+            lastKey = k;
+            fetch();
+            return new AbstractMap.SimpleImmutableEntry<>(k, v);
+        }
+
+        public void remove() {
+            K k;
+            if ((k = lastKey) == null)
+                throw new IllegalStateException();
+            lastKey = null;
+            OffHeapConcurrentHashMap.this.remove(k);
+        }
+    }
+
+    private transient Set<Map.Entry<K, V>> entrySet;
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es;
+        return (es = entrySet) != null ? es : (entrySet = new EntrySet());
+    }
+
+    final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        public Iterator<Map.Entry<K, V>> iterator() {
+            Node[] t;
+            int f = (t = table) == null ? 0 : t.length;
+            return new EntryIterator(t, f);
+        }
+
+        public int size() {
+            return OffHeapConcurrentHashMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            Object k, v, r;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (r = get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v;
+            Map.Entry<?, ?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?, ?>) o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    OffHeapConcurrentHashMap.this.remove(k, v));
+        }
+
+        public void clear() {
+            OffHeapConcurrentHashMap.this.clear();
+        }
+    }
+
+
+    private static final Unsafe U = Unsafe.getUnsafe();
+    private static final long SIZECTL = U.objectFieldOffset(OffHeapConcurrentHashMap.class, "sizeCtl");
+    private static final long TRANSFERINDEX = U.objectFieldOffset(OffHeapConcurrentHashMap.class, "transferIndex");
+    private static final long BASECOUNT = U.objectFieldOffset(OffHeapConcurrentHashMap.class, "baseCount");
+    private static final long CELLSBUSY = U.objectFieldOffset(OffHeapConcurrentHashMap.class, "cellsBusy");
+    private static final long CELLVALUE = U.objectFieldOffset(CounterCell.class, "value");
+    private static final long POSITION = U.objectFieldOffset(Slab.class, "position");
+    private static final long LIVE = U.objectFieldOffset(Slab.class, "live");
+    private static final long PINS = U.objectFieldOffset(Slab.class, "pins");
+    private static final long AUTOCOMPACT = U.objectFieldOffset(OffHeapConcurrentHashMap.class, "autoCompact");
+    private static final int ABASE = U.arrayBaseOffset(Node[].class);
+    private static final int ASHIFT;
+
+    static {
+        int scale = U.arrayIndexScale(Node[].class);
+        if ((scale & (scale - 1)) != 0)
+            throw new ExceptionInInitializerError("array index scale not a power of two");
+        ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+    }
+}
@@ -0,0 +1,114 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希连接的探测端：每次调用查一批BATCH个随机key，对比逐个get/put和jdk14源码里的getAll/putAll，结果是每个key的时间
+ * size=4194304时table加上Node有一百多MB，远大于末级缓存，几乎每次查找都是缓存缺失；size=65536时整张表都在缓存里，作为对照
+ * key是打乱顺序插入的，Node在堆里的位置和桶的顺序无关
+ * getAll、putAll只在jdk14这份源码里有，用MethodHandle调用，没有这两个方法时setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1 -i BatchLookupBenchmark jdk14=java,-Xmx4g,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BatchLookupBenchmark {
+    static final int BATCH = 1024;
+    static final int PROBES = 1 << 20;
+
+    @Param({"65536", "4194304"})
+    int size;
+
+    HashMap<Object, Object> map;
+    Object[] probes;
+    Object[] batch = new Object[BATCH];
+    Object[] out = new Object[BATCH];
+    Object[] values = new Object[BATCH];
+    MethodHandle getAll;
+    MethodHandle putAll;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Object[] keys = KeySpace.keys("uniform", size);
+        Object[] shuffled = keys.clone();
+        SplittableRandom r = new SplittableRandom(7L);
+        for (int j = size - 1; j > 0; --j) {
+            int k = r.nextInt(j + 1);
+            Object t = shuffled[j];
+            shuffled[j] = shuffled[k];
+            shuffled[k] = t;
+        }
+        map = new HashMap<Object, Object>();
+        for (Object k : shuffled)
+            map.put(k, k);
+        int[] seq = KeySpace.sequence("uniform", size, PROBES, 1L);
+        probes = new Object[PROBES];
+        for (int j = 0; j < PROBES; ++j)
+            probes[j] = keys[seq[j]];
+        for (int j = 0; j < BATCH; ++j)
+            values[j] = j;
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodType type = MethodType.methodType(int.class, Object[].class, Object[].class);
+        getAll = lookup.findVirtual(HashMap.class, "getAll", type);
+        putAll = lookup.findVirtual(HashMap.class, "putAll", type.changeReturnType(void.class));
+    }
+
+    Object[] nextBatch() {
+        System.arraycopy(probes, i, batch, 0, BATCH);
+        i = (i + BATCH) & (PROBES - 1);
+        return batch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object[] getLoop() {
+        Object[] b = nextBatch(), o = out;
+        for (int j = 0; j < BATCH; ++j)
+            o[j] = map.get(b[j]);
+        return o;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object[] getAll() throws Throwable {
+        Object[] o = out;
+        int found = (int) getAll.invokeExact(map, nextBatch(), o);
+        return (found == BATCH) ? o : null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putLoop() {
+        Object[] b = nextBatch(), v = values;
+        for (int j = 0; j < BATCH; ++j)
+            map.put(b[j], v[j]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putAll() throws Throwable {
+        putAll.invokeExact(map, nextBatch(), values);
+    }
+}
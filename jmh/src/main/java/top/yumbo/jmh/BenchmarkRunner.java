@@ -0,0 +1,79 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 把同一组基准分别跑在几个版本的ConcurrentHashMap上，每个版本、每个线程数输出一个JSON结果
+ *
+ * 版本靠fork出来的JVM区分，几份源码都在java.util.concurrent包里，不能在同一个JVM里共存：
+ * jdk14：JDK 14+的JVM，先把jdk14/src里的ConcurrentHashMap编译出来，用--patch-module替换java.base里的类
+ *   javac --patch-module java.base=jdk14/src -d build/jdk14 jdk14/src/java/util/concurrent/ConcurrentHashMap.java \
+ *         jdk14/src/java/util/concurrent/OffHeapConcurrentHashMap.java jdk14/src/java/util/concurrent/ByteBufferSerializer.java
+ * jdk8：JDK 8的JVM（这份源码用的是sun.misc.Unsafe），编译后用-Xbootclasspath/p放到启动类路径前面
+ * 不加任何参数时就是JVM自带的版本，可以作为基线
+ *
+ * 用法：java -jar target/benchmarks.jar [-t 1,2,4,8] [-i 正则] [-o 结果目录] [-prof 分析器] 名字=java路径[,JVM参数...] ...
+ *   线程数0表示用基准类上@Threads/@GroupThreads注解的线程数
+ *   -prof可以重复，名字和JMH命令行的-prof一样，例如gc（每次操作分配的字节数）
+ *   例：jdk14=/opt/jdk17/bin/java,--patch-module,java.base=build/jdk14 jdk8=/opt/jdk8/bin/java,-Xbootclasspath/p:build/jdk8
+ * 结果文件：结果目录/jmh-名字-t线程数.json，JMH的JSON里带着jvm、jvmArgs、参数和每次迭代的原始数据，可以直接做回归对比
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threads = {1, 2, 4, 8};
+        String include = "top\\.yumbo\\.jmh\\..*";
+        File out = new File("target/jmh");
+        List<String[]> impls = new ArrayList<String[]>();
+        List<String> profilers = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            String a = args[i];
+            if ("-t".equals(a))
+                threads = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            else if ("-i".equals(a))
+                include = args[++i];
+            else if ("-o".equals(a))
+                out = new File(args[++i]);
+            else if ("-prof".equals(a))
+                profilers.add(args[++i]);
+            else if (a.indexOf('=') > 0)
+                impls.add(a.split("=", 2));
+            else
+                throw new IllegalArgumentException("Unknown argument: " + a);
+        }
+        if (impls.isEmpty())
+            impls.add(new String[]{"current", null});
+        if (!out.isDirectory() && !out.mkdirs())
+            throw new IllegalArgumentException("Cannot create " + out);
+        for (String[] impl : impls) {
+            for (int t : threads) {
+                ChainedOptionsBuilder opt = new OptionsBuilder()
+                        .include(include)
+                        .resultFormat(ResultFormatType.JSON)
+                        .result(new File(out, "jmh-" + impl[0] + "-t" + t + ".json").getPath());
+                if (t > 0)
+                    opt.threads(t);
+                for (String p : profilers)
+                    opt.addProfiler(p);
+                if (impl[1] != null) {
+                    String[] jvm = impl[1].split(",");
+                    opt.jvm(jvm[0]);
+                    if (jvm.length > 1)
+                        opt.jvmArgsAppend(Arrays.copyOfRange(jvm, 1, jvm.length));
+                }
+                new Runner(opt.build()).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并行批量操作reduce*的耗时：parallelismThreshold为1时按batchFor拆到ForkJoinPool公共池，
+ * 为Long.MAX_VALUE时在调用线程上顺序执行，两者对比就是并行拆分的收益
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BulkBenchmark {
+    @Param({"uniform", "collide"})
+    String distribution;
+
+    @Param({"1048576"})
+    int size;
+
+    @Param({"1", "9223372036854775807"})
+    long parallelismThreshold;
+
+    ConcurrentHashMap<Object, Integer> map;
+
+    @Setup
+    public void setup() {
+        Object[] keys = KeySpace.keys(distribution, size);
+        map = new ConcurrentHashMap<Object, Integer>();
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    @Benchmark
+    public long reduceValuesToLong() {
+        return map.reduceValuesToLong(parallelismThreshold, Integer::longValue, 0L, Long::sum);
+    }
+
+    @Benchmark
+    public long reduceToLong() {
+        return map.reduceToLong(parallelismThreshold, (k, v) -> k.hashCode() ^ v, 0L, Long::sum);
+    }
+
+    @Benchmark
+    public Integer reduceValues() {
+        return map.reduceValues(parallelismThreshold, Math::max);
+    }
+
+    @Benchmark
+    public Object reduceKeys() {
+        return map.reduceKeys(parallelismThreshold, (a, b) -> (a.hashCode() >= b.hashCode()) ? a : b);
+    }
+}
@@ -0,0 +1,88 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 冲突桶TreeBin和ArrayBin的对比，key全部是CollidingKey（每个桶16个key）
+ * setCompactBins只有jdk14这份源码里有，用反射调用：compactBins=true却没有这个方法时直接失败，不会悄悄测成TreeBin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CollisionBinBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"false", "true"})
+    boolean compactBins;
+
+    @Param({"65536", "1048576"})
+    int size;
+
+    ConcurrentHashMap<Object, Integer> map;
+    Object[] keys;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("collide", size);
+        map = new ConcurrentHashMap<Object, Integer>();
+        if (compactBins) {
+            Method m = ConcurrentHashMap.class.getMethod("setCompactBins", boolean.class);
+            m.invoke(map, Boolean.TRUE);
+        }
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        static final AtomicLong SEEDS = new AtomicLong();
+        int[] seq;
+        int i;
+
+        @Setup
+        public void setup(CollisionBinBenchmark b) {
+            seq = KeySpace.sequence("uniform", b.size, SEQUENCE_LENGTH, SEEDS.incrementAndGet());
+        }
+
+        int next() {
+            return seq[i++ & (SEQUENCE_LENGTH - 1)];
+        }
+    }
+
+    @Benchmark
+    public Integer get(Cursor c) {
+        return map.get(keys[c.next()]);
+    }
+
+    @Benchmark
+    public Integer put(Cursor c) {
+        int i = c.next();
+        return map.put(keys[i], i);
+    }
+
+    @Benchmark
+    public long iterate() {
+        long s = 0L;
+        for (Integer v : map.values())
+            s += v;
+        return s;
+    }
+}
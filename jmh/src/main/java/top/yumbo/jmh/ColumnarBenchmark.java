@@ -0,0 +1,68 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * reduceValuesToLong和列式的reduceValuesToLongColumnar对比，后者只有jdk14这份源码里有，通过MethodHandle调用
+ * 先用几个别的reducer跑一遍原来的reduce，让它的reducer调用点变成多态的，和真实应用里共用这段代码的情况一样
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ColumnarBenchmark {
+    @Param({"1048576", "16777216"})
+    int size;
+
+    @Param({"1", "9223372036854775807"})
+    long parallelismThreshold;
+
+    ConcurrentHashMap<Integer, Long> map;
+    MethodHandle columnar;
+    Object longSum;
+
+    static final ToLongFunction<Long> VALUE = Long::longValue;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Class<?> c = ConcurrentHashMap.class;
+        Class<?> op = Class.forName("java.util.concurrent.ConcurrentHashMap$LongBatchOperator");
+        columnar = MethodHandles.publicLookup().unreflect(c.getMethod("reduceValuesToLongColumnar",
+                long.class, ToLongFunction.class, long.class, op));
+        longSum = c.getField("LONG_SUM").get(null);
+        map = new ConcurrentHashMap<Integer, Long>();
+        for (int i = 0; i < size; ++i)
+            map.put(i, (long) i);
+        map.reduceValuesToLong(Long.MAX_VALUE, VALUE, Long.MIN_VALUE, Math::max);
+        map.reduceValuesToLong(Long.MAX_VALUE, VALUE, Long.MAX_VALUE, Math::min);
+        map.reduceValuesToLong(Long.MAX_VALUE, VALUE, 0L, (a, b) -> a ^ b);
+    }
+
+    @Benchmark
+    public long reduce() {
+        return map.reduceValuesToLong(parallelismThreshold, VALUE, 0L, Long::sum);
+    }
+
+    @Benchmark
+    public long columnar() throws Throwable {
+        return (long) columnar.invoke(map, parallelismThreshold, VALUE, 0L, longSum);
+    }
+}
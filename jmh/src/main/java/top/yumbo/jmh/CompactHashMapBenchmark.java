@@ -0,0 +1,93 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashMap、LinkedHashMap和jdk14源码里的CompactHashMap（紧凑数组按插入顺序存entry，另有一张int索引表）的遍历和查找对比
+ * iterate、forEach是遍历整张表的时间，get是随机命中查找的时间
+ * 每个entry占多少内存：加-prof gc跑build，gc.alloc.rate.norm除以size就是每个entry的字节数（包括扩容时丢掉的旧数组）
+ * CompactHashMap只在jdk14这份源码里有，用反射创建，没有这个类时setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1 -prof gc -i CompactHashMapBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CompactHashMapBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"HashMap", "LinkedHashMap", "CompactHashMap"})
+    String impl;
+
+    @Param({"16", "1024", "1048576"})
+    int size;
+
+    Map<Object, Integer> map;
+    Object[] keys;
+    int[] seq;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("uniform", size);
+        seq = KeySpace.sequence("uniform", size, SEQUENCE_LENGTH, 1L);
+        map = build();
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<Object, Integer> newMap() throws ReflectiveOperationException {
+        if ("HashMap".equals(impl))
+            return new HashMap<Object, Integer>();
+        else if ("LinkedHashMap".equals(impl))
+            return new LinkedHashMap<Object, Integer>();
+        else
+            return (Map<Object, Integer>) Class.forName("java.util." + impl).getConstructor().newInstance();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<Object, Integer> build() throws ReflectiveOperationException {
+        Map<Object, Integer> m = newMap();
+        for (int j = 0; j < keys.length; ++j)
+            m.put(keys[j], j);
+        return m;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        long s = 0;
+        for (Map.Entry<Object, Integer> e : map.entrySet())
+            s += e.getValue();
+        return s;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void forEach(Blackhole bh) {
+        map.forEach((k, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(keys[seq[i++ & (SEQUENCE_LENGTH - 1)]]);
+    }
+}
@@ -0,0 +1,97 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 单个操作的吞吐：get、put（putVal的更新路径）、computeIfAbsent（key都已存在，走首节点的快速路径）、merge、size
+ * map预先装满size个key，每个线程按自己的访问序列循环取key，线程数由BenchmarkRunner的-t控制
+ * 跑的是哪个版本的ConcurrentHashMap取决于fork出来的JVM（见BenchmarkRunner）
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ConcurrentHashMapBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"uniform", "zipf", "collide"})
+    String distribution;
+
+    @Param({"16384", "1048576"})
+    int size;
+
+    ConcurrentHashMap<Object, Integer> map;
+    Object[] keys;
+
+    @Setup
+    public void setup() {
+        keys = KeySpace.keys(distribution, size);
+        map = new ConcurrentHashMap<Object, Integer>();
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    /**
+     * 每个线程一个访问序列
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        static final AtomicLong SEEDS = new AtomicLong();
+        int[] seq;
+        int i;
+
+        @Setup
+        public void setup(ConcurrentHashMapBenchmark b) {
+            seq = KeySpace.sequence(b.distribution, b.size, SEQUENCE_LENGTH, SEEDS.incrementAndGet());
+        }
+
+        int next() {
+            return seq[i++ & (SEQUENCE_LENGTH - 1)];
+        }
+    }
+
+    static final Function<Object, Integer> ZERO = k -> 0;
+
+    @Benchmark
+    public Integer get(Cursor c) {
+        return map.get(keys[c.next()]);
+    }
+
+    @Benchmark
+    public Integer put(Cursor c) {
+        int i = c.next();
+        return map.put(keys[i], i);
+    }
+
+    @Benchmark
+    public Integer computeIfAbsent(Cursor c) {
+        return map.computeIfAbsent(keys[c.next()], ZERO);
+    }
+
+    @Benchmark
+    public Integer merge(Cursor c) {
+        return map.merge(keys[c.next()], 1, Integer::sum);
+    }
+
+    @Benchmark
+    public int size() {
+        return map.size();
+    }
+}
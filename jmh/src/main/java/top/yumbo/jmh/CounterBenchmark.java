@@ -0,0 +1,78 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 高并发写入下的计数开销：churn是64个线程不停地插入、删除（每次都走addCount），
+ * sizeUnderLoad是60个写线程加4个线程不停地调size()
+ * approximateSize=true时调用jdk14源码里的setApproximateSize（1ms），没有这个方法时直接失败
+ * 线程数写在注解里，用BenchmarkRunner时加-t 0 -i CounterBenchmark，要试更多线程可以再单独跑-t 128 -i CounterBenchmark.churn
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+    @Param({"false", "true"})
+    boolean approximateSize;
+
+    @Param({"1048576"})
+    int keys;
+
+    ConcurrentHashMap<Integer, Integer> map;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        map = new ConcurrentHashMap<Integer, Integer>();
+        if (approximateSize)
+            ConcurrentHashMap.class.getMethod("setApproximateSize", long.class, TimeUnit.class)
+                    .invoke(map, 1L, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < keys; i += 2)
+            map.put(i, i);
+    }
+
+    // 随机挑一个key，有就删，没有就插，size在keys/2附近
+    final Integer churn0() {
+        Integer k = ThreadLocalRandom.current().nextInt(keys);
+        return (map.remove(k) == null) ? map.put(k, k) : null;
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Integer churn() {
+        return churn0();
+    }
+
+    @Benchmark
+    @Group("sizeUnderLoad")
+    @GroupThreads(60)
+    public Integer writer() {
+        return churn0();
+    }
+
+    @Benchmark
+    @Group("sizeUnderLoad")
+    @GroupThreads(4)
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,127 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * jdk14源码里的FlatHashMap（开放寻址）和HashMap的单线程对比：get命中、get不命中、put（更新已有key）、遍历、从空表建表
+ * FlatHashMap只在jdk14这份源码里有，用反射创建，impl=FlatHashMap却找不到这个类时直接失败
+ * 每个entry占多少内存：加-prof gc跑buildPresized，gc.alloc.rate.norm除以size就是每个entry的字节数，
+ * key是事先建好的，预设容量时建表不会扩容，分配的就是Map最终占用的全部内存
+ * 例：java -jar target/benchmarks.jar -t 1 -prof gc -i FlatHashMapBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FlatHashMapBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"HashMap", "FlatHashMap"})
+    String impl;
+
+    @Param({"1024", "1048576"})
+    int size;
+
+    Map<Object, Integer> map;
+    Object[] keys;
+    Object[] missing;
+    int[] seq;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("uniform", size);
+        missing = new Object[size];
+        for (int j = 0; j < size; ++j)
+            missing[j] = size + j;
+        seq = KeySpace.sequence("uniform", size, SEQUENCE_LENGTH, 1L);
+        map = newMap(0);
+        for (int j = 0; j < size; ++j)
+            map.put(keys[j], j);
+    }
+
+    /**
+     * capacity为0时用默认构造函数
+     */
+    @SuppressWarnings("unchecked")
+    Map<Object, Integer> newMap(int capacity) throws ReflectiveOperationException {
+        Class<?> c = "HashMap".equals(impl) ? HashMap.class : Class.forName("java.util." + impl);
+        return (Map<Object, Integer>) ((capacity == 0) ? c.getConstructor().newInstance() :
+                c.getConstructor(int.class).newInstance(capacity));
+    }
+
+    int next() {
+        return seq[i++ & (SEQUENCE_LENGTH - 1)];
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(keys[next()]);
+    }
+
+    @Benchmark
+    public Integer getMiss() {
+        return map.get(missing[next()]);
+    }
+
+    @Benchmark
+    public Integer put() {
+        int j = next();
+        return map.put(keys[j], j);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        long s = 0L;
+        for (Map.Entry<Object, Integer> e : map.entrySet())
+            s += e.getValue();
+        return s;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long forEach() {
+        long[] s = new long[1];
+        map.forEach((k, v) -> s[0] += v);
+        return s[0];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<Object, Integer> build() throws ReflectiveOperationException {
+        Map<Object, Integer> m = newMap(0);
+        for (int j = 0; j < size; ++j)
+            m.put(keys[j], j);
+        return m;
+    }
+
+    /**
+     * 按各自的加载因子预设容量（HashMap 0.75，FlatHashMap 0.8），建表过程中不扩容
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<Object, Integer> buildPresized() throws ReflectiveOperationException {
+        float loadFactor = "HashMap".equals(impl) ? 0.75f : 0.8f;
+        Map<Object, Integer> m = newMap((int) (size / loadFactor) + 1);
+        for (int j = 0; j < size; ++j)
+            m.put(keys[j], j);
+        return m;
+    }
+}
@@ -0,0 +1,93 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashMap和它的只读快照（jdk14源码里的HashMap.freeze()）的查找对比：get命中、用equals相等但不是同一个对象的key命中、get不命中
+ * freeze只在jdk14这份源码里有，用反射调用，impl=FrozenMap却没有这个方法时直接失败
+ * 每个entry占多少内存：加-prof gc跑freeze（impl=FrozenMap），gc.alloc.rate.norm除以size就是每个entry的字节数
+ * 例：java -jar target/benchmarks.jar -t 1 -prof gc -i FrozenMapBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FrozenMapBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"HashMap", "FrozenMap"})
+    String impl;
+
+    @Param({"1024", "1048576"})
+    int size;
+
+    HashMap<Object, Integer> source;
+    Map<Object, Integer> map;
+    Object[] keys;
+    Object[] copies;
+    Object[] missing;
+    int[] seq;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("uniform", size);
+        copies = new Object[size];
+        missing = new Object[size];
+        for (int j = 0; j < size; ++j) {
+            copies[j] = new Integer((Integer) keys[j]);
+            missing[j] = size + j;
+        }
+        seq = KeySpace.sequence("uniform", size, SEQUENCE_LENGTH, 1L);
+        source = new HashMap<Object, Integer>();
+        for (int j = 0; j < size; ++j)
+            source.put(keys[j], j);
+        map = "HashMap".equals(impl) ? source : freeze0();
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<Object, Integer> freeze0() throws ReflectiveOperationException {
+        return (Map<Object, Integer>) HashMap.class.getMethod("freeze").invoke(source);
+    }
+
+    int next() {
+        return seq[i++ & (SEQUENCE_LENGTH - 1)];
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(keys[next()]);
+    }
+
+    @Benchmark
+    public Integer getEqualKey() {
+        return map.get(copies[next()]);
+    }
+
+    @Benchmark
+    public Integer getMiss() {
+        return map.get(missing[next()]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<Object, Integer> freeze() throws ReflectiveOperationException {
+        return freeze0();
+    }
+}
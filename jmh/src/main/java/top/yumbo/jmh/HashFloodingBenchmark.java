@@ -0,0 +1,82 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * String key的hash碰撞攻击：workload=attack时所有key都由"Aa"和"BB"拼成，hashCode全部相同，只能靠树化兜底；
+ * workload=random是长度相同的随机字符串，用来确认没有受到攻击时开启防护没有额外开销
+ * build是从空表插入全部key，get用内容相同但不是同一个对象的String查找（和解析请求得到的key一样，不能靠==命中）
+ * defense=true时调用jdk14源码里的setHashFloodingDefense，没有这个方法时直接失败
+ * 例：java -jar target/benchmarks.jar -t 1 -i HashFloodingBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class HashFloodingBenchmark {
+    @Param({"attack", "random"})
+    String workload;
+
+    @Param({"false", "true"})
+    boolean defense;
+
+    @Param({"16"})
+    int bits;
+
+    String[] keys;
+    String[] probes;
+    HashMap<String, Integer> map;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        int size = 1 << bits;
+        keys = new String[size];
+        probes = new String[size];
+        Random r = new Random(42L);
+        for (int j = 0; j < size; ++j) {
+            StringBuilder sb = new StringBuilder(bits * 2);
+            for (int b = 0; b < bits; ++b) {
+                if ("attack".equals(workload))
+                    sb.append(((j >>> b) & 1) == 0 ? "Aa" : "BB");
+                else
+                    sb.append((char) ('a' + r.nextInt(26))).append((char) ('a' + r.nextInt(26)));
+            }
+            keys[j] = sb.toString();
+            probes[j] = new String(keys[j]);
+        }
+        map = build();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public HashMap<String, Integer> build() throws ReflectiveOperationException {
+        HashMap<String, Integer> m = new HashMap<String, Integer>();
+        if (defense)
+            HashMap.class.getMethod("setHashFloodingDefense", boolean.class).invoke(m, Boolean.TRUE);
+        for (int j = 0; j < keys.length; ++j)
+            m.put(keys[j], j);
+        return m;
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(probes[i++ & (probes.length - 1)]);
+    }
+}
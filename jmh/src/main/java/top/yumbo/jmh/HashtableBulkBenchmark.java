@@ -0,0 +1,78 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.Hashtable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 百万元素的Hashtable上一个线程做整表操作、另一个线程不停地put/remove时，两边各自的耗时分布
+ * bulk=hashCode：原来的synchronized整表遍历，整个过程持有monitor，写线程要等它做完
+ * bulk=parallelReduce：jdk14源码里的parallelReduce算同样的和，在快照上分段持有monitor，段与段之间写线程可以插进来
+ * bulk=contains：查一个不存在的value，jdk14源码里大表会分段加锁
+ * 主要看writer的p99、p99.9和最大值；parallelReduce只在jdk14这份源码里有，用反射调用，没有这个方法时setup直接失败
+ * 线程数写在注解里，用BenchmarkRunner时加-t 0
+ * 例：java -jar target/benchmarks.jar -t 0 -i HashtableBulkBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Group)
+public class HashtableBulkBenchmark {
+    @Param({"hashCode", "parallelReduce", "contains"})
+    String bulk;
+
+    @Param({"1048576"})
+    int size;
+
+    Hashtable<Integer, Integer> table;
+    Method parallelReduce;
+    BiFunction<Integer, Integer, Integer> transformer = (k, v) -> k.hashCode() ^ v.hashCode();
+    BiFunction<Integer, Integer, Integer> reducer = Integer::sum;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        table = new Hashtable<Integer, Integer>();
+        for (int i = 0; i < size; ++i)
+            table.put(i, i);
+        parallelReduce = Hashtable.class.getMethod("parallelReduce", long.class, BiFunction.class, BiFunction.class);
+    }
+
+    @Benchmark
+    @Group("bulkUnderWrites")
+    @GroupThreads(1)
+    public Object bulk() throws ReflectiveOperationException {
+        if ("hashCode".equals(bulk))
+            return table.hashCode();
+        else if ("parallelReduce".equals(bulk))
+            return parallelReduce.invoke(table, 1L, transformer, reducer);
+        else
+            return table.contains(-1);
+    }
+
+    // 在size以外的一段key上插入再删除，元素个数基本不变，不会触发rehash
+    @Benchmark
+    @Group("bulkUnderWrites")
+    @GroupThreads(1)
+    public Integer writer() {
+        Integer k = size + ThreadLocalRandom.current().nextInt(1024);
+        return (table.remove(k) == null) ? table.put(k, k) : null;
+    }
+}
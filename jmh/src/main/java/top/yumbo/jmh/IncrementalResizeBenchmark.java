@@ -0,0 +1,64 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashMap一次性扩容和增量扩容下单次put的延迟分布，SampleTime模式的结果里有p0.999、p0.9999和p1.0
+ * 每次put一个新key，map长到size个元素后换一个新的空map重新长，所以每一轮都会经历所有的扩容
+ * 扩容一共只有log2(size)次，一次性扩容的停顿体现在p0.99999以上和最大值，p0.999主要是GC和缓存缺失
+ * setIncrementalResize只在jdk14这份源码里有，用反射调用，incremental=true却没有这个方法时直接失败
+ * 堆要放得下size个元素，例：-t 1 -i IncrementalResizeBenchmark jdk14=java,-Xmx4g,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class IncrementalResizeBenchmark {
+    @Param({"false", "true"})
+    boolean incremental;
+
+    @Param({"10000000"})
+    int size;
+
+    HashMap<Object, Integer> map;
+    Object[] keys;
+    int i;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("uniform", size);
+        map = newMap();
+    }
+
+    HashMap<Object, Integer> newMap() throws ReflectiveOperationException {
+        HashMap<Object, Integer> m = new HashMap<Object, Integer>();
+        if (incremental)
+            HashMap.class.getMethod("setIncrementalResize", boolean.class).invoke(m, Boolean.TRUE);
+        return m;
+    }
+
+    @Benchmark
+    public Integer put() throws ReflectiveOperationException {
+        if (i == size) {
+            map = newMap();
+            i = 0;
+        }
+        int j = i++;
+        return map.put(keys[j], j);
+    }
+}
@@ -0,0 +1,88 @@
+package top.yumbo.jmh;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * 基准测试用的key和访问序列
+ * uniform：Integer key，均匀访问
+ * zipf：Integer key，按Zipf分布（指数0.99，YCSB的默认值）访问，少数热点key占大部分请求
+ * collide：CollidingKey，每COLLISIONS个key的hashCode相同，桶会树化，均匀访问
+ */
+public final class KeySpace {
+    static final int COLLISIONS = 16;
+    static final double ZIPF_EXPONENT = 0.99;
+
+    private KeySpace() {
+    }
+
+    /**
+     * size个互不相等的key
+     */
+    public static Object[] keys(String distribution, int size) {
+        Object[] keys = new Object[size];
+        boolean collide = "collide".equals(distribution);
+        for (int i = 0; i < size; ++i)
+            keys[i] = collide ? new CollidingKey(i) : Integer.valueOf(i);
+        return keys;
+    }
+
+    /**
+     * 长度为length的访问序列（key的下标），每个线程用自己的seed
+     */
+    public static int[] sequence(String distribution, int size, int length, long seed) {
+        SplittableRandom r = new SplittableRandom(seed);
+        int[] seq = new int[length];
+        if ("zipf".equals(distribution)) {
+            // 逆变换采样：cdf[i]是前i+1个key的累计概率，下标打散，热点不集中在相邻的桶
+            double[] cdf = new double[size];
+            double sum = 0.0;
+            for (int i = 0; i < size; ++i)
+                cdf[i] = sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            for (int i = 0; i < size; ++i)
+                cdf[i] /= sum;
+            for (int j = 0; j < length; ++j) {
+                int i = Arrays.binarySearch(cdf, r.nextDouble());
+                int rank = Math.min(size - 1, (i < 0) ? -i - 1 : i);
+                seq[j] = scramble(rank, size);
+            }
+        } else {
+            for (int j = 0; j < length; ++j)
+                seq[j] = r.nextInt(size);
+        }
+        return seq;
+    }
+
+    // 把排名映射成一个固定的、分散的下标
+    static int scramble(int rank, int size) {
+        long h = (rank + 1) * 0x9E3779B97F4A7C15L;
+        return (int) ((h ^ (h >>> 32)) & 0x7fffffffL) % size;
+    }
+
+    /**
+     * hashCode只取id的高位，每COLLISIONS个连续的id落进同一个桶；实现Comparable，TreeBin/ArrayBin都能排序
+     */
+    public static final class CollidingKey implements Comparable<CollidingKey> {
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        public int hashCode() {
+            return id / COLLISIONS;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        public int compareTo(CollidingKey o) {
+            return Integer.compare(id, o.id);
+        }
+
+        public String toString() {
+            return "k" + id;
+        }
+    }
+}
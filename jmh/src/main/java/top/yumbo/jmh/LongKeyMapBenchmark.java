@@ -0,0 +1,146 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrentHashMap<Long,V>和jdk14源码里的ConcurrentLongObjectMap（key内联在Node里，不装箱）按读写比例混合的吞吐
+ * 和MixedBenchmark一样readPercent%的get，其余一半remove一半put；readPercent=95是读多的场景，10是写多的场景
+ * key是0到size-1的long（连续的id），ConcurrentHashMap那边直接调用，每次都要把long装箱成Long，这正是要比的开销
+ * ConcurrentLongObjectMap只在jdk14这份源码里有，这个模块按JDK 8编译，只能通过MethodHandle调用：
+ * 句柄放在static final字段里，JIT把它当常量，invokeExact可以一直内联到get/put/remove里，和直接调用一样；
+ * 不能放在实例字段里，那样每次调用都是一次没法内联的句柄分派，比的就成了分派的开销
+ * 没有这个类时句柄为null，选它的那组参数setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1,2,4,8 -i LongKeyMapBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LongKeyMapBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    static final Class<?> PRIMITIVE_MAP = findClass("java.util.concurrent.ConcurrentLongObjectMap");
+    static final MethodHandle GET = find("get", long.class);
+    static final MethodHandle PUT = find("put", long.class, Object.class);
+    static final MethodHandle REMOVE = find("remove", long.class);
+
+    static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    // 找不到时返回null，签名统一成(Object, long...)Object，和invokeExact的调用点对上
+    static MethodHandle find(String name, Class<?>... params) {
+        if (PRIMITIVE_MAP == null)
+            return null;
+        try {
+            MethodHandle h = MethodHandles.publicLookup().findVirtual(PRIMITIVE_MAP, name,
+                    MethodType.methodType(Object.class, params));
+            return h.asType(h.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Param({"ConcurrentHashMap", "ConcurrentLongObjectMap"})
+    String impl;
+
+    @Param({"65536", "1048576"})
+    int size;
+
+    @Param({"95", "10"})
+    int readPercent;
+
+    boolean primitive;
+    ConcurrentHashMap<Long, Object> boxed;
+    Object map;
+
+    @Setup
+    public void setup() throws Throwable {
+        primitive = !"ConcurrentHashMap".equals(impl);
+        if (primitive) {
+            if (GET == null || PUT == null || REMOVE == null)
+                throw new IllegalStateException(impl + " is not available");
+            map = PRIMITIVE_MAP.getConstructor().newInstance();
+            for (int i = 0; i < size; ++i) {
+                Object v = (Object) PUT.invokeExact(map, (long) i, (Object) Integer.valueOf(i));
+            }
+        } else {
+            boxed = new ConcurrentHashMap<Long, Object>();
+            for (int i = 0; i < size; ++i)
+                boxed.put((long) i, i);
+        }
+    }
+
+    /**
+     * 每个线程一个访问序列和一个操作序列（0读，1删，2写）
+     */
+    @State(Scope.Thread)
+    public static class Ops {
+        static final AtomicLong SEEDS = new AtomicLong();
+        int[] seq;
+        byte[] ops;
+        Integer[] values;
+        int i;
+
+        @Setup
+        public void setup(LongKeyMapBenchmark b) {
+            long seed = SEEDS.incrementAndGet();
+            seq = KeySpace.sequence("uniform", b.size, SEQUENCE_LENGTH, seed);
+            ops = new byte[SEQUENCE_LENGTH];
+            values = new Integer[SEQUENCE_LENGTH];
+            SplittableRandom r = new SplittableRandom(~seed);
+            for (int j = 0; j < SEQUENCE_LENGTH; ++j) {
+                ops[j] = (byte) ((r.nextInt(100) < b.readPercent) ? 0 : 1 + (j & 1));
+                values[j] = seq[j];
+            }
+        }
+    }
+
+    @Benchmark
+    public Object mixed(Ops o) throws Throwable {
+        int j = o.i++ & (SEQUENCE_LENGTH - 1);
+        long k = o.seq[j];
+        if (primitive) {
+            switch (o.ops[j]) {
+                case 0:
+                    return (Object) GET.invokeExact(map, k);
+                case 1:
+                    return (Object) REMOVE.invokeExact(map, k);
+                default:
+                    return (Object) PUT.invokeExact(map, k, (Object) o.values[j]);
+            }
+        }
+        switch (o.ops[j]) {
+            case 0:
+                return boxed.get(k);
+            case 1:
+                return boxed.remove(k);
+            default:
+                return boxed.put(k, o.values[j]);
+        }
+    }
+}
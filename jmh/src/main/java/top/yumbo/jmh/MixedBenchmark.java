@@ -0,0 +1,86 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按读写比例混合的吞吐：readPercent%的get，其余一半remove一半put（写的key和读的key来自同一个分布），
+ * 桶里的链表/树会不停地变，size在初始值附近波动
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MixedBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"uniform", "zipf", "collide"})
+    String distribution;
+
+    @Param({"1048576"})
+    int size;
+
+    @Param({"100", "90", "50"})
+    int readPercent;
+
+    ConcurrentHashMap<Object, Integer> map;
+    Object[] keys;
+
+    @Setup
+    public void setup() {
+        keys = KeySpace.keys(distribution, size);
+        map = new ConcurrentHashMap<Object, Integer>();
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    /**
+     * 每个线程一个访问序列和一个操作序列（0读，1删，2写）
+     */
+    @State(Scope.Thread)
+    public static class Ops {
+        static final AtomicLong SEEDS = new AtomicLong();
+        int[] seq;
+        byte[] ops;
+        int i;
+
+        @Setup
+        public void setup(MixedBenchmark b) {
+            long seed = SEEDS.incrementAndGet();
+            seq = KeySpace.sequence(b.distribution, b.size, SEQUENCE_LENGTH, seed);
+            ops = new byte[SEQUENCE_LENGTH];
+            SplittableRandom r = new SplittableRandom(~seed);
+            for (int j = 0; j < SEQUENCE_LENGTH; ++j)
+                ops[j] = (byte) ((r.nextInt(100) < b.readPercent) ? 0 : 1 + (j & 1));
+        }
+    }
+
+    @Benchmark
+    public Integer mixed(Ops o) {
+        int j = o.i++ & (SEQUENCE_LENGTH - 1), k = o.seq[j];
+        switch (o.ops[j]) {
+            case 0:
+                return map.get(keys[k]);
+            case 1:
+                return map.remove(keys[k]);
+            default:
+                return map.put(keys[k], k);
+        }
+    }
+}
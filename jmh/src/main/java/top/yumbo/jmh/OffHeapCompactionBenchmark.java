@@ -0,0 +1,128 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * jdk14源码里的OffHeapConcurrentHashMap一边被6个线程写、一边被另一个线程不停地compact(1.0)时的吞吐，同时也是并发压缩的压力测试
+ * slab只有512字节，每个slab装不了几条记录，写线程分配记录的slab经常刚好被compact选中
+ * 每个写线程在自己的一段key上反复put/replace/putIfAbsent，记下每个key最后写进去的值；
+ * 写操作的返回值表明key丢了、或者迭代结束时（@TearDown）有key的值不对，直接抛异常让这次运行失败
+ * OffHeapConcurrentHashMap只在jdk14这份源码里有，用反射创建（序列化器用Proxy实现），没有这个类时setup直接失败
+ * 线程数写在注解里，用BenchmarkRunner时加-t 0
+ * 例：java -jar target/benchmarks.jar -t 0 -i OffHeapCompactionBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 4)
+@Fork(2)
+@State(Scope.Group)
+public class OffHeapCompactionBenchmark {
+    static final int SLAB_SIZE = 512;
+    static final int RANGE = 2048;                          // 每个写线程的key数
+
+    ConcurrentMap<Integer, Integer> map;
+    Method compact;
+    final AtomicInteger writers = new AtomicInteger();
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        Class<?> c = Class.forName("java.util.concurrent.OffHeapConcurrentHashMap");
+        Class<?> s = Class.forName("java.util.concurrent.ByteBufferSerializer");
+        Object ints = Proxy.newProxyInstance(s.getClassLoader(), new Class<?>[]{s}, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "serializedSize":
+                    return 4;
+                case "serialize":
+                    ((ByteBuffer) args[1]).putInt((Integer) args[0]);
+                    return null;
+                case "deserialize":
+                    ByteBuffer in = (ByteBuffer) args[0];
+                    return in.getInt(in.position());
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+        map = (ConcurrentMap<Integer, Integer>) c.getConstructor(int.class, int.class, s, s)
+                .newInstance(16, SLAB_SIZE, ints, ints);
+        compact = c.getMethod("compact", double.class);
+    }
+
+    /**
+     * 一个写线程：自己的一段key，以及每个key最后写进去的值
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        int base;
+        int[] expected = new int[RANGE];
+        int n;
+
+        @Setup
+        public void setup(OffHeapCompactionBenchmark b) {
+            base = b.writers.getAndIncrement() * RANGE;
+        }
+
+        // 每个key都应该还在，值是最后一次写进去的
+        @TearDown(Level.Iteration)
+        public void verify(OffHeapCompactionBenchmark b) {
+            for (int j = 0; j < RANGE; ++j) {
+                Integer v = b.map.get(base + j);
+                if (expected[j] != 0 && (v == null || v != expected[j]))
+                    throw new IllegalStateException("key " + (base + j) + ": expected " + expected[j] + ", found " + v);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("writeUnderCompaction")
+    @GroupThreads(6)
+    public Integer write(Writer w) {
+        int n = ++w.n, j = n % RANGE, k = w.base + j;
+        Integer old;
+        if (n <= RANGE) {
+            old = map.put(k, n);
+            w.expected[j] = n;
+            return old;
+        }
+        if ((n & 7) == 0) {
+            old = map.replace(k, n);
+            w.expected[j] = n;
+        } else if ((n & 15) == 1) {
+            old = map.putIfAbsent(k, n);
+        } else {
+            old = map.put(k, n);
+            w.expected[j] = n;
+        }
+        if (old == null)
+            throw new IllegalStateException("key " + k + " lost");
+        return old;
+    }
+
+    @Benchmark
+    @Group("writeUnderCompaction")
+    @GroupThreads(1)
+    public Object compact() throws ReflectiveOperationException {
+        return compact.invoke(map, 1.0);
+    }
+}
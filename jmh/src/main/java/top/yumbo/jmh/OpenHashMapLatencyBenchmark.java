@@ -0,0 +1,102 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrentHashMap和jdk14源码里的ConcurrentOpenHashMap（线性探测的开放寻址表）在加载因子0.75时get的延迟分布
+ * size取比0.75倍表长少1的数，两边都刚好停在扩容阈值下面，表长都是size/0.75向上取整到2的幂
+ * key是随机的Integer（不是连续的0..size-1，否则两边的桶/槽都排得整整齐齐，探测长度体现不出来）
+ * hitPercent%的get查存在的key，其余查不存在的key，线性探测查不存在的key要走到空槽为止，是它的最坏情况
+ * 主要看p99和p99.9；ConcurrentOpenHashMap只在jdk14这份源码里有，用反射创建，没有这个类时setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1,4 -i OpenHashMapLatencyBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class OpenHashMapLatencyBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"ConcurrentHashMap", "ConcurrentOpenHashMap"})
+    String impl;
+
+    @Param({"49151", "786431"})
+    int size;
+
+    @Param({"100", "50"})
+    int hitPercent;
+
+    ConcurrentMap<Integer, Integer> map;
+    Integer[] keys;
+    Integer[] absent;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        SplittableRandom r = new SplittableRandom(1L);
+        Set<Integer> seen = new HashSet<Integer>();
+        keys = new Integer[size];
+        absent = new Integer[size];
+        for (int i = 0; i < size; ) {
+            Integer k = r.nextInt();
+            if (seen.add(k))
+                keys[i++] = k;
+        }
+        for (int i = 0; i < size; ) {
+            Integer k = r.nextInt();
+            if (seen.add(k))
+                absent[i++] = k;
+        }
+        if ("ConcurrentHashMap".equals(impl))
+            map = new ConcurrentHashMap<Integer, Integer>();
+        else
+            map = (ConcurrentMap<Integer, Integer>) Class.forName("java.util.concurrent." + impl).getConstructor().newInstance();
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    /**
+     * 每个线程一个访问序列，命中与否事先定好
+     */
+    @State(Scope.Thread)
+    public static class Probes {
+        static final AtomicLong SEEDS = new AtomicLong();
+        Integer[] probes;
+        int i;
+
+        @Setup
+        public void setup(OpenHashMapLatencyBenchmark b) {
+            long seed = SEEDS.incrementAndGet();
+            int[] seq = KeySpace.sequence("uniform", b.size, SEQUENCE_LENGTH, seed);
+            SplittableRandom r = new SplittableRandom(~seed);
+            probes = new Integer[SEQUENCE_LENGTH];
+            for (int j = 0; j < SEQUENCE_LENGTH; ++j)
+                probes[j] = (r.nextInt(100) < b.hitPercent) ? b.keys[seq[j]] : b.absent[seq[j]];
+        }
+    }
+
+    @Benchmark
+    public Integer get(Probes p) {
+        return map.get(p.probes[p.i++ & (SEQUENCE_LENGTH - 1)]);
+    }
+}
@@ -0,0 +1,100 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashtable、开启乐观读的Hashtable（OptimisticHashtable，见Hashtable.setOptimisticReads）、
+ * jdk14源码里的StripedHashtable（分组加锁、读不加锁）和ConcurrentHashMap随线程数的伸缩性
+ * 和MixedBenchmark一样按readPercent混合get、remove、put，看总吞吐随线程数的变化；Hashtable所有操作都在同一个monitor上，
+ * 线程数增加后吞吐基本不涨甚至下降
+ * StripedHashtable和setOptimisticReads只在jdk14这份源码里有，用反射调用，没有时setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1,2,4,8,16,32,64 -i StripedHashtableBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StripedHashtableBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"Hashtable", "OptimisticHashtable", "StripedHashtable", "ConcurrentHashMap"})
+    String impl;
+
+    @Param({"65536"})
+    int size;
+
+    @Param({"100", "99", "90", "50"})
+    int readPercent;
+
+    Map<Object, Integer> map;
+    Object[] keys;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        keys = KeySpace.keys("uniform", size);
+        if ("Hashtable".equals(impl) || "OptimisticHashtable".equals(impl))
+            map = new Hashtable<Object, Integer>();
+        else if ("ConcurrentHashMap".equals(impl))
+            map = new ConcurrentHashMap<Object, Integer>();
+        else
+            map = (Map<Object, Integer>) Class.forName("java.util." + impl).getConstructor().newInstance();
+        if ("OptimisticHashtable".equals(impl))
+            Hashtable.class.getMethod("setOptimisticReads", boolean.class).invoke(map, Boolean.TRUE);
+        for (int i = 0; i < size; ++i)
+            map.put(keys[i], i);
+    }
+
+    /**
+     * 每个线程一个访问序列和一个操作序列（0读，1删，2写）
+     */
+    @State(Scope.Thread)
+    public static class Ops {
+        static final AtomicLong SEEDS = new AtomicLong();
+        int[] seq;
+        byte[] ops;
+        int i;
+
+        @Setup
+        public void setup(StripedHashtableBenchmark b) {
+            long seed = SEEDS.incrementAndGet();
+            seq = KeySpace.sequence("uniform", b.size, SEQUENCE_LENGTH, seed);
+            ops = new byte[SEQUENCE_LENGTH];
+            SplittableRandom r = new SplittableRandom(~seed);
+            for (int j = 0; j < SEQUENCE_LENGTH; ++j)
+                ops[j] = (byte) ((r.nextInt(100) < b.readPercent) ? 0 : 1 + (j & 1));
+        }
+    }
+
+    @Benchmark
+    public Integer mixed(Ops o) {
+        int j = o.i++ & (SEQUENCE_LENGTH - 1), k = o.seq[j];
+        switch (o.ops[j]) {
+            case 0:
+                return map.get(keys[k]);
+            case 1:
+                return map.remove(keys[k]);
+            default:
+                return map.put(keys[k], k);
+        }
+    }
+}
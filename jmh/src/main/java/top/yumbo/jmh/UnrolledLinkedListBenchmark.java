@@ -0,0 +1,89 @@
+package top.yumbo.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LinkedList、ArrayDeque和jdk14源码里的UnrolledLinkedList（每块64个元素的块链表，块目录上按下标二分查找）对比
+ * queue是队列稳定状态下一次offerLast加一次pollFirst，stack是一次push加一次pop，iterate是遍历整个队列求和，get是随机下标访问
+ * ArrayDeque不能按下标访问，get在impl=ArrayDeque时用同样内容的ArrayList代替，作为数组的基准
+ * UnrolledLinkedList只在jdk14这份源码里有，用反射创建，没有这个类时setup直接失败
+ * 例：java -jar target/benchmarks.jar -t 1 -i UnrolledLinkedListBenchmark jdk14=java,--patch-module,java.base=build/jdk14
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class UnrolledLinkedListBenchmark {
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"LinkedList", "ArrayDeque", "UnrolledLinkedList"})
+    String impl;
+
+    @Param({"1024", "1048576"})
+    int size;
+
+    Deque<Integer> deque;
+    List<Integer> list;
+    int[] seq;
+    int i;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException {
+        if ("LinkedList".equals(impl))
+            deque = new LinkedList<Integer>();
+        else if ("ArrayDeque".equals(impl))
+            deque = new ArrayDeque<Integer>();
+        else
+            deque = (Deque<Integer>) Class.forName("java.util." + impl).getConstructor().newInstance();
+        for (int j = 0; j < size; ++j)
+            deque.addLast(j);
+        list = (deque instanceof List) ? (List<Integer>) deque : new ArrayList<Integer>(deque);
+        seq = KeySpace.sequence("uniform", size, SEQUENCE_LENGTH, 1L);
+    }
+
+    @Benchmark
+    public Integer queue() {
+        deque.offerLast(i++);
+        return deque.pollFirst();
+    }
+
+    @Benchmark
+    public Integer stack() {
+        deque.push(i++);
+        return deque.pop();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long iterate() {
+        long s = 0;
+        for (Integer e : deque)
+            s += e;
+        return s;
+    }
+
+    @Benchmark
+    public Integer get() {
+        return list.get(seq[i++ & (SEQUENCE_LENGTH - 1)]);
+    }
+}